@@ -0,0 +1,67 @@
+#!/bin/sh
+# Compares the startup time (until the first HTTP response) and the resident memory of the JVM and the native build.
+# Build both first: ./gradlew shadowJar nativeImage
+# Usage: ./benchmark-startup.sh [runs] [port]
+
+RUNS=${1:-5}
+PORT=${2:-18080}
+JAR=$(ls build/libs/jdownloadproxy-*-all.jar 2>/dev/null | head -n 1)
+NATIVE=build/native-image/jdownloadproxy
+JAVA=${JAVA_HOME:+$JAVA_HOME/bin/}java
+
+now_millis() {
+    echo $(($(date +%s%N) / 1000000))
+}
+
+rss_kib() {
+    awk '/^VmRSS/ {print $2}' /proc/$1/status
+}
+
+# prints "<startup ms> <rss KiB>" for one start of the given command
+measure() {
+    work_dir=$(mktemp -d)
+    started=$(now_millis)
+    (cd "$work_dir" && MICRONAUT_SERVER_PORT=$PORT exec "$@" > "$work_dir/out.log" 2>&1) &
+    pid=$!
+    while ! curl -s -o /dev/null "http://localhost:$PORT/download/ready"; do
+        if ! kill -0 $pid 2> /dev/null; then
+            echo "failed, see $work_dir/out.log" >&2
+            return 1
+        fi
+        sleep 0.01
+    done
+    ready=$(now_millis)
+    # Once more after the first request, which loads the request handling path
+    curl -s -o /dev/null "http://localhost:$PORT/download/status?url=http://localhost/"
+    echo "$((ready - started)) $(rss_kib $pid)"
+    kill $pid
+    wait $pid 2> /dev/null
+    rm -rf "$work_dir"
+}
+
+benchmark() {
+    name=$1
+    shift
+    total_millis=0
+    total_rss=0
+    i=0
+    while [ $i -lt "$RUNS" ]; do
+        result=$(measure "$@") || return 1
+        total_millis=$((total_millis + ${result% *}))
+        total_rss=$((total_rss + ${result#* }))
+        i=$((i + 1))
+    done
+    printf "%-8s %12d %12d\n" "$name" $((total_millis / RUNS)) $((total_rss / RUNS / 1024))
+}
+
+printf "%-8s %12s %12s\n" "build" "startup ms" "rss MiB"
+if [ -n "$JAR" ]; then
+    benchmark jvm "$JAVA" -Xmx128m -jar "$(pwd)/$JAR"
+else
+    echo "jvm: no shadow jar in build/libs" >&2
+fi
+if [ -x "$NATIVE" ]; then
+    benchmark native "$(pwd)/$NATIVE" -Xmx128m
+else
+    echo "native: no $NATIVE" >&2
+fi
@@ -0,0 +1,165 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.codemakers.jdownloadproxy.download.CacheKeys;
+import de.codemakers.jdownloadproxy.download.ChunkStore;
+import de.codemakers.jdownloadproxy.download.Downloader;
+import de.codemakers.jdownloadproxy.download.IntegrityScrubber;
+import de.codemakers.jdownloadproxy.download.HotTier;
+import de.codemakers.jdownloadproxy.download.MirrorGroups;
+import de.codemakers.jdownloadproxy.download.NegativeCache;
+import de.codemakers.jdownloadproxy.download.OriginClients;
+import de.codemakers.jdownloadproxy.download.OriginFetcher;
+import de.codemakers.jdownloadproxy.download.StorageExecutor;
+import de.codemakers.jdownloadproxy.download.StorageVolumes;
+import de.codemakers.jdownloadproxy.download.Webhooks;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Get;
+import io.micronaut.http.annotation.PathVariable;
+import io.micronaut.http.annotation.QueryValue;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+@Controller("/admin")
+public class AdminController {
+    
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    
+    @Get(uri = "/scrub", produces = MediaType.APPLICATION_JSON)
+    public String scrubStatus() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(IntegrityScrubber.getStatus());
+    }
+    
+    @Get(uri = "/scrub/start", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> scrubStart() {
+        return StorageExecutor.supply(() -> String.format("{\"started\": %b}", IntegrityScrubber.trigger()));
+    }
+    
+    @Get(uri = "/mirrors", produces = MediaType.APPLICATION_JSON)
+    public String mirrors() throws JsonProcessingException {
+        final Map<String, Object> status = new LinkedHashMap<>();
+        status.put("groups", MirrorGroups.getGroups());
+        status.put("hedge_delay", OriginFetcher.HEDGE_DELAY);
+        status.put("hedged_fetches", OriginFetcher.getHedgedFetches());
+        status.put("hedges_started", OriginFetcher.getHedgesStarted());
+        status.put("hedges_won", OriginFetcher.getHedgesWon());
+        return OBJECT_MAPPER.writeValueAsString(status);
+    }
+    
+    /**
+     * Saves the groups on the {@link StorageExecutor}, like every other change of a file.
+     */
+    @Get(uri = "/mirrors/add", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> mirrorsAdd(@QueryValue("prefixes") String prefixes) {
+        return StorageExecutor.supply(() -> String.format("{\"added\": %b}", MirrorGroups.addGroup(Arrays.asList(prefixes.split(",")))));
+    }
+    
+    @Get(uri = "/mirrors/remove/{index}", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> mirrorsRemove(@PathVariable("index") int index) {
+        return StorageExecutor.supply(() -> String.format("{\"removed\": %b}", MirrorGroups.removeGroup(index)));
+    }
+    
+    @Get(uri = "/cache_keys", produces = MediaType.APPLICATION_JSON)
+    public String cacheKeys() throws JsonProcessingException {
+        final Map<String, Object> status = new LinkedHashMap<>();
+        status.put("rules", CacheKeys.getRules().stream().map(CacheKeys.Rule::toString).collect(Collectors.toList()));
+        status.put("keys", CacheKeys.getKeys());
+        status.put("rewritten", CacheKeys.getRewritten());
+        return OBJECT_MAPPER.writeValueAsString(status);
+    }
+    
+    /**
+     * Shows the cache key of a URL with the current rules.
+     */
+    @Get(uri = "/cache_keys/preview", produces = MediaType.TEXT_PLAIN)
+    public String cacheKeysPreview(@QueryValue("url") String url) throws MalformedURLException {
+        return CacheKeys.of(new URL(url));
+    }
+    
+    /**
+     * Saves the rules and rewrites the keys of the whole index on the {@link StorageExecutor}.
+     *
+     * @param rule e.g. "*.example.com drop session" (see {@link CacheKeys})
+     */
+    @Get(uri = "/cache_keys/add", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> cacheKeysAdd(@QueryValue("rule") String rule) {
+        return StorageExecutor.supply(() -> String.format("{\"added\": %b}", CacheKeys.addRule(rule)));
+    }
+    
+    @Get(uri = "/cache_keys/remove/{index}", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> cacheKeysRemove(@PathVariable("index") int index) {
+        return StorageExecutor.supply(() -> String.format("{\"removed\": %b}", CacheKeys.removeRule(index)));
+    }
+    
+    @Get(uri = "/negative", produces = MediaType.APPLICATION_JSON)
+    public String negative() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(NegativeCache.getEntries().stream().map(NegativeCache.Entry::toMap).collect(Collectors.toList()));
+    }
+    
+    @Get(uri = "/negative/purge", produces = MediaType.APPLICATION_JSON)
+    public String negativePurge(@QueryValue(defaultValue = "") String url) throws MalformedURLException {
+        if (url.isEmpty()) {
+            return String.format("{\"purged\": %d}", NegativeCache.clear());
+        }
+        return String.format("{\"purged\": %d}", NegativeCache.remove(new URL(url)) ? 1 : 0);
+    }
+    
+    @Get(uri = "/origins", produces = MediaType.APPLICATION_JSON)
+    public String origins() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(OriginClients.getStats());
+    }
+    
+    /**
+     * The chunk index is loaded from disk on first use.
+     */
+    @Get(uri = "/chunks", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> chunks() {
+        return StorageExecutor.supply(() -> OBJECT_MAPPER.writeValueAsString(ChunkStore.getStats()));
+    }
+    
+    @Get(uri = "/hot", produces = MediaType.APPLICATION_JSON)
+    public String hot() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(HotTier.getStats());
+    }
+    
+    @Get(uri = "/commits", produces = MediaType.APPLICATION_JSON)
+    public String commits() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(Downloader.getCommitStats());
+    }
+    
+    @Get(uri = "/volumes", produces = MediaType.APPLICATION_JSON)
+    public String volumes() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(StorageVolumes.getStats());
+    }
+    
+    @Get(uri = "/webhooks", produces = MediaType.APPLICATION_JSON)
+    public String webhooks() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(Webhooks.getStats());
+    }
+    
+}
@@ -17,6 +17,7 @@
 
 package de.codemakers.jdownloadproxy;
 
+import de.codemakers.jdownloadproxy.download.JobJournal;
 import io.micronaut.runtime.Micronaut;
 
 import java.io.File;
@@ -31,6 +32,7 @@ public class Application {
     
     public static void main(String[] args) {
         Micronaut.run(Application.class, args);
+        JobJournal.recover();
         if (args.length == 1) {
             new Thread(() -> {
                 try {
@@ -0,0 +1,88 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+/**
+ * Settings are read from {@link #CONFIG_FILE} and can be overridden by system properties prefixed with {@link #SYSTEM_PROPERTY_PREFIX}
+ * (e.g. {@code -Djdownloadproxy.retention.finished.ttl=60000}).
+ */
+public class Config {
+    
+    public static final File CONFIG_FILE = new File(Application.APPLICATION_FOLDER, "config.properties");
+    public static final String SYSTEM_PROPERTY_PREFIX = "jdownloadproxy.";
+    
+    private static final Properties PROPERTIES = new Properties();
+    
+    static {
+        load();
+    }
+    
+    public static synchronized void load() {
+        PROPERTIES.clear();
+        if (CONFIG_FILE.exists()) {
+            try (final FileInputStream fileInputStream = new FileInputStream(CONFIG_FILE)) {
+                PROPERTIES.load(fileInputStream);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+    
+    public static String getString(String key, String defaultValue) {
+        final String value = System.getProperty(SYSTEM_PROPERTY_PREFIX + key);
+        if (value != null) {
+            return value.trim();
+        }
+        final String property = PROPERTIES.getProperty(key);
+        if (property == null) {
+            return defaultValue;
+        }
+        return property.trim();
+    }
+    
+    public static long getLong(String key, long defaultValue) {
+        final String value = getString(key, null);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.printf("[WARNING][%s#getLong] Invalid value \"%s\" for \"%s\"%n", Config.class.getSimpleName(), value, key);
+            return defaultValue;
+        }
+    }
+    
+    public static int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+    
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        final String value = getString(key, null);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        return Boolean.parseBoolean(value);
+    }
+    
+}
@@ -18,147 +18,415 @@
 package de.codemakers.jdownloadproxy;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.codemakers.jdownloadproxy.download.AdmissionControl;
+import de.codemakers.jdownloadproxy.download.ArchiveWriter;
 import de.codemakers.jdownloadproxy.download.DownloadContainer;
 import de.codemakers.jdownloadproxy.download.DownloadInfo;
 import de.codemakers.jdownloadproxy.download.Downloader;
+import de.codemakers.jdownloadproxy.download.NegativeCache;
+import de.codemakers.jdownloadproxy.download.JobJournal;
+import de.codemakers.jdownloadproxy.download.PrefetchJob;
+import de.codemakers.jdownloadproxy.download.StorageExecutor;
+import de.codemakers.jdownloadproxy.download.Webhooks;
+import io.micronaut.http.HttpHeaders;
+import io.micronaut.http.HttpRequest;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.HttpStatus;
 import io.micronaut.http.MediaType;
+import io.micronaut.http.annotation.Body;
 import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Error;
 import io.micronaut.http.annotation.Get;
 import io.micronaut.http.annotation.PathVariable;
+import io.micronaut.http.annotation.Post;
 import io.micronaut.http.annotation.QueryValue;
 import io.micronaut.http.server.types.files.StreamedFile;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.UUID;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 @Controller("/download")
 public class DownloadController {
     
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    
+    /**
+     * Exits the application, optionally after a delay.
+     *
+     * @param drain Stops accepting downloads and suspends the running ones first, so they resume after the restart (see {@link JobJournal})
+     */
     @Get(uri = "/shutdown", produces = MediaType.APPLICATION_JSON)
-    public String shutdown(@QueryValue(defaultValue = "-1") long delay) {
+    public CompletableFuture<String> shutdown(@QueryValue(defaultValue = "-1") long delay, @QueryValue(defaultValue = "false") boolean drain) {
+        if (drain) {
+            // Draining waits for the download threads, so it gets a thread of its own instead of an event loop or StorageExecutor thread
+            final CompletableFuture<String> future = new CompletableFuture<>();
+            new Thread(() -> {
+                System.out.println("Draining downloads");
+                final int suspended = Downloader.drain(Downloader.DRAIN_TIMEOUT);
+                System.out.printf("Shutdown requested in %d ms%n", Math.max(0, delay));
+                exit(Math.max(0, delay));
+                future.complete(String.format("{\"done\": %b, \"delay\": \"%d\", \"suspended\": %d}", true, Math.max(0, delay), suspended));
+            }, "DownloadController-Drain").start();
+            return future;
+        }
         if (delay > 0) {
             System.out.printf("Shutdown requested in %d ms%n", delay);
-            new Timer().schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    System.exit(0);
-                }
-            }, delay);
-            return String.format("{\"done\": %b, \"delay\": \"%d\"}", true, delay);
+            exit(delay);
+            return CompletableFuture.completedFuture(String.format("{\"done\": %b, \"delay\": \"%d\"}", true, delay));
         } else {
             System.out.println("Shutting down");
-            System.exit(0);
-            return String.format("{\"done\": %b}", true);
+            exit(0);
+            return CompletableFuture.completedFuture(String.format("{\"done\": %b}", true));
         }
     }
     
+    /**
+     * Exits from a timer thread, because the shutdown hooks (e.g. stopping the server) must not run on the event loop thread handling the request.
+     */
+    private static void exit(long delay) {
+        new Timer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                System.exit(0);
+            }
+        }, delay);
+    }
+    
+    public static final String CALLBACK_NONE = "//\\NONE\\//";
+    /**
+     * Response header of "/add" with the subscription of the client, which it passes to "/cancel", so only its own interest in a shared download gets dropped.
+     */
+    public static final String HEADER_SUBSCRIPTION = "X-Subscription";
+    
+    /**
+     * Queues a download and returns its UUID (and the subscription in the {@link #HEADER_SUBSCRIPTION} header), or rejects it with 429 (queue full) or 503 (disk full) and a "Retry-After" header.
+     *
+     * @param size Expected size in bytes (optional), checked against the free disk space
+     * @param callback URL (optional) the {@link DownloadInfo} gets POSTed to once the download is finished or errored (see {@link Webhooks})
+     */
     @Get(uri = "/add", produces = MediaType.TEXT_PLAIN)
-    public String addDownload(@QueryValue String url, @QueryValue(defaultValue = "false") boolean forceDownload) throws MalformedURLException {
-        System.out.printf("[DEBUG][%s#addDownload] url=\"%s\", forceDownload=%b%n", getClass().getSimpleName(), url, forceDownload); //DEBUG
-        System.out.printf("[DEBUG][%s#addDownload] forceDownload=%b%n", getClass().getSimpleName(), forceDownload); //DEBUG
-        final DownloadContainer downloadContainer = Downloader.createDownloadContainer(new URL(url), forceDownload);
-        downloadContainer.startAsync(); //FIXME What if there is already someone downloading that url?!
-        return downloadContainer.getDownloadInfo().getUuid().toString();
+    public HttpResponse<String> addDownload(@QueryValue String url, @QueryValue(defaultValue = "false") boolean forceDownload, @QueryValue(defaultValue = "-1") long size, @QueryValue(defaultValue = CALLBACK_NONE) String callback) throws MalformedURLException {
+        System.out.printf("[DEBUG][%s#addDownload] url=\"%s\", forceDownload=%b, size=%d, callback=\"%s\"%n", getClass().getSimpleName(), url, forceDownload, size, callback); //DEBUG
+        final URL url_ = new URL(url);
+        final URI callback_ = CALLBACK_NONE.equals(callback) ? null : Webhooks.parseCallback(callback);
+        if (!CALLBACK_NONE.equals(callback) && callback_ == null) {
+            return HttpResponse.badRequest("Invalid callback URL");
+        }
+        if (!forceDownload) {
+            final NegativeCache.Entry entry = NegativeCache.get(url_);
+            if (entry != null) {
+                System.out.printf("[DEBUG][%s#addDownload] \"%s\" failed recently: %s%n", getClass().getSimpleName(), url, entry.getReason()); //DEBUG
+                return HttpResponse.ok(addCallback(Downloader.createErroredDownloadContainer(url_, entry.getReason()), callback_).getDownloadInfo().getUuid().toString());
+            }
+        }
+        if (!forceDownload) {
+            final UUID subscription = UUID.randomUUID();
+            final DownloadContainer downloadContainer = Downloader.joinDownloadContainer(url_, subscription);
+            if (downloadContainer != null) {
+                System.out.printf("[DEBUG][%s#addDownload] \"%s\" is already being downloaded, sharing %s%n", getClass().getSimpleName(), url, downloadContainer.getDownloadInfo().getUuid()); //DEBUG
+                return HttpResponse.ok(addCallback(downloadContainer, callback_).getDownloadInfo().getUuid().toString()).header(HEADER_SUBSCRIPTION, subscription.toString());
+            }
+        }
+        final AdmissionControl.Rejection rejection = AdmissionControl.admit(size);
+        if (rejection != null) {
+            System.err.printf("[WARNING][%s#addDownload] Rejected \"%s\": %s%n", getClass().getSimpleName(), url, rejection.getReason()); //DEBUG
+            return HttpResponse.<String>status(HttpStatus.valueOf(rejection.getStatus())).header(HttpHeaders.RETRY_AFTER, String.valueOf(rejection.getRetryAfterSeconds())).body(rejection.getReason());
+        }
+        final DownloadContainer downloadContainer = addCallback(Downloader.createDownloadContainer(url_, forceDownload), callback_);
+        downloadContainer.startAsync();
+        return HttpResponse.ok(downloadContainer.getDownloadInfo().getUuid().toString()).header(HEADER_SUBSCRIPTION, downloadContainer.getSubscription().toString());
+    }
+    
+    private static DownloadContainer addCallback(DownloadContainer downloadContainer, URI callback) {
+        if (callback != null) {
+            downloadContainer.addCallback(callback);
+        }
+        return downloadContainer;
+    }
+    
+    /**
+     * Queues every URL (one per line) like "/add" does, so clients can queue many downloads with one request.
+     *
+     * @return One object per URL, with the status "/add" would have answered with and either the UUID or the reason
+     */
+    @Post(uri = "/add", consumes = MediaType.TEXT_PLAIN, produces = MediaType.APPLICATION_JSON)
+    public HttpResponse<String> addDownloads(@Body String urls, @QueryValue(defaultValue = "false") boolean forceDownload, @QueryValue(defaultValue = CALLBACK_NONE) String callback) throws JsonProcessingException {
+        if (!CALLBACK_NONE.equals(callback) && Webhooks.parseCallback(callback) == null) {
+            return HttpResponse.badRequest("Invalid callback URL");
+        }
+        final List<Map<String, Object>> results = new ArrayList<>();
+        for (String url : PrefetchJob.parseManifest(urls)) {
+            HttpResponse<String> response;
+            try {
+                response = addDownload(url, forceDownload, -1, callback);
+            } catch (MalformedURLException ex) {
+                response = HttpResponse.badRequest("Invalid URL");
+            }
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("url", url);
+            result.put("status", response.getStatus().getCode());
+            result.put(response.getStatus() == HttpStatus.OK ? "uuid" : "error", response.getBody().orElse(null));
+            response.getHeaders().getFirst(HEADER_SUBSCRIPTION).ifPresent((subscription) -> result.put("subscription", subscription));
+            results.add(result);
+        }
+        return HttpResponse.ok(OBJECT_MAPPER.writeValueAsString(results));
+    }
+    
+    /**
+     * Cancels an unfinished download, unless other clients still share it (see {@link Downloader#joinDownloadContainer(URL, UUID)}).
+     *
+     * @param subscription The {@link #HEADER_SUBSCRIPTION} "/add" answered with, so repeating the request is harmless.
+     * Without it any one client sharing the download is dropped, every time.
+     * @param keep Keeps the part file, so the download can be resumed
+     */
+    @Get(uri = "/cancel/{uuid}", produces = MediaType.APPLICATION_JSON)
+    public String cancelDownload(@PathVariable String uuid, @QueryValue(defaultValue = "") String subscription, @QueryValue(defaultValue = "false") boolean keep) {
+        System.out.printf("[DEBUG][%s#cancelDownload] uuid=\"%s\", subscription=\"%s\", keep=%b%n", getClass().getSimpleName(), uuid, subscription, keep); //DEBUG
+        final DownloadContainer downloadContainer = Downloader.getDownloadContainer(UUID.fromString(uuid));
+        if (downloadContainer == null) {
+            return null;
+        }
+        final boolean cancelled = downloadContainer.cancel(subscription.isEmpty() ? null : UUID.fromString(subscription), keep);
+        return String.format("{\"cancelled\": %b, \"subscribers\": %d}", cancelled, downloadContainer.getSubscribers());
+    }
+    
+    @Get(uri = "/resume/{uuid}", produces = MediaType.APPLICATION_JSON)
+    public String resumeDownload(@PathVariable String uuid) {
+        System.out.printf("[DEBUG][%s#resumeDownload] uuid=\"%s\"%n", getClass().getSimpleName(), uuid); //DEBUG
+        final DownloadContainer downloadContainer = Downloader.getDownloadContainer(UUID.fromString(uuid));
+        if (downloadContainer == null) {
+            return null;
+        }
+        return String.format("{\"resumed\": %b}", downloadContainer.resume());
+    }
+    
+    @Get(uri = "/queue", produces = MediaType.APPLICATION_JSON)
+    public String queue() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(AdmissionControl.getStatus());
+    }
+    
+    /**
+     * Answers 200 while new downloads are accepted and 503 otherwise, for load balancer health checks.
+     */
+    @Get(uri = "/ready", produces = MediaType.APPLICATION_JSON)
+    public HttpResponse<String> ready() {
+        final AdmissionControl.Rejection rejection = AdmissionControl.admit(-1);
+        if (rejection == null) {
+            return HttpResponse.ok("{\"ready\": true}");
+        }
+        return HttpResponse.<String>status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, String.valueOf(rejection.getRetryAfterSeconds())).body("{\"ready\": false}");
     }
     
     @Get(uri = "/status/{uuid}", produces = MediaType.APPLICATION_JSON)
     public String statusDownload(@PathVariable String uuid) throws JsonProcessingException {
         System.out.printf("[DEBUG][%s#statusDownload] uuid=\"%s\"%n", getClass().getSimpleName(), uuid); //DEBUG
-        final DownloadContainer downloadContainer = Downloader.getDownloadContainer(UUID.fromString(uuid));
-        System.out.printf("[DEBUG][%s#statusDownload] downloadContainer=%s%n", getClass().getSimpleName(), downloadContainer); //DEBUG
-        if (downloadContainer == null) {
+        final DownloadInfo downloadInfo = Downloader.getDownloadInfo(UUID.fromString(uuid));
+        System.out.printf("[DEBUG][%s#statusDownload] downloadInfo=%s%n", getClass().getSimpleName(), downloadInfo); //DEBUG
+        if (downloadInfo == null) {
             return null;
         }
-        return DownloadInfo.DownloadInfoSerializer.createObjectMapper().writeValueAsString(downloadContainer.getDownloadInfo());
+        return DownloadInfo.DownloadInfoSerializer.createObjectMapper().writeValueAsString(downloadInfo);
     }
     
     @Get(uri = "/status", produces = MediaType.APPLICATION_JSON)
     public String statusDownloadUrl(@QueryValue String url) throws JsonProcessingException, MalformedURLException {
         System.out.printf("[DEBUG][%s#statusDownload] url=\"%s\"%n", getClass().getSimpleName(), url); //DEBUG
-        final URL url_ = new URL(url);
-        final List<DownloadContainer> downloadContainers = Downloader.getDownloadContainers().stream().filter((downloadContainer) -> url_.equals(downloadContainer.getDownloadInfo().getUrl())).collect(Collectors.toList());
-        System.out.printf("[DEBUG][%s#statusDownload] downloadContainers=%s%n", getClass().getSimpleName(), downloadContainers); //DEBUG
-        if (downloadContainers.isEmpty()) {
+        final List<DownloadInfo> downloadInfos = Downloader.getDownloadInfos(new URL(url));
+        System.out.printf("[DEBUG][%s#statusDownload] downloadInfos=%s%n", getClass().getSimpleName(), downloadInfos); //DEBUG
+        if (downloadInfos.isEmpty()) {
             return "[]";
         }
-        return DownloadInfo.DownloadInfoSerializer.createObjectMapper().writeValueAsString(downloadContainers.stream().map(DownloadContainer::getDownloadInfo).collect(Collectors.toList())); //TODO //TEST //IMPORTANT
+        return DownloadInfo.DownloadInfoSerializer.createObjectMapper().writeValueAsString(downloadInfos); //TODO //TEST //IMPORTANT
+    }
+    
+    /**
+     * Returns the SHA-256 of a finished download, computing it if the file was stored under another {@link de.codemakers.jdownloadproxy.hash.HashScheme}.
+     */
+    @Get(uri = "/sha256/{uuid}", produces = MediaType.APPLICATION_JSON)
+    public CompletableFuture<String> sha256Download(@PathVariable String uuid) {
+        System.out.printf("[DEBUG][%s#sha256Download] uuid=\"%s\"%n", getClass().getSimpleName(), uuid); //DEBUG
+        final DownloadInfo downloadInfo = Downloader.getDownloadInfo(UUID.fromString(uuid));
+        if (downloadInfo == null || downloadInfo.getHash() == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return StorageExecutor.supply(() -> {
+            final String sha256 = Downloader.getSha256ForHash(downloadInfo.getHash(), true);
+            if (sha256 == null) {
+                return null;
+            }
+            final Map<String, Object> result = new LinkedHashMap<>();
+            result.put("uuid", downloadInfo.getUuid().toString());
+            result.put("hash", downloadInfo.getHash());
+            result.put("hash_scheme", downloadInfo.getHashScheme() == null ? null : downloadInfo.getHashScheme().name());
+            result.put("hash_sha256_base64", sha256);
+            return OBJECT_MAPPER.writeValueAsString(result);
+        });
     }
     
     public static final String FILENAME_NONE = "//\\NONE\\//";
     
     @Get(uri = "/get/{uuid}", produces = MediaType.APPLICATION_OCTET_STREAM)
-    //TODO Add parameter if the local file should be deleted after it has been downloaded by the client
-    public StreamedFile getDownload(@PathVariable String uuid, @QueryValue(defaultValue = FILENAME_NONE) String filename, @QueryValue(defaultValue = "true") boolean delete) throws FileNotFoundException {
+    public CompletableFuture<HttpResponse<StreamedFile>> getDownload(HttpRequest<?> request, @PathVariable String uuid, @QueryValue(defaultValue = FILENAME_NONE) String filename, @QueryValue(defaultValue = "false") boolean delete) {
         System.out.printf("[DEBUG][%s#getDownload] uuid=\"%s\", filename=\"%s\", delete=%b%n", getClass().getSimpleName(), uuid, filename, delete); //DEBUG
         final DownloadContainer downloadContainer = Downloader.getDownloadContainer(UUID.fromString(uuid));
         System.out.printf("[DEBUG][%s#getDownload] downloadContainer=%s%n", getClass().getSimpleName(), downloadContainer); //DEBUG
-        if (downloadContainer == null || !downloadContainer.getDownloadInfo().isDone()) {
-            return null;
+        if (downloadContainer == null || !downloadContainer.getDownloadInfo().isDone() || downloadContainer.getStoredObject() == null) {
+            return CompletableFuture.completedFuture(null);
         }
-        if (FILENAME_NONE.equals(filename)) {
-            filename = downloadContainer.getDownloadInfo().getFilename();
-        }
-        filename = Util.sanitizeFilename(filename);
-        return new StreamedFile(new FileInputStream(downloadContainer.getFile()), MediaType.APPLICATION_OCTET_STREAM_TYPE).attach(filename);
+        return openDownload(request, downloadContainer, filename, delete);
     }
     
     @Get(uri = "/get", produces = MediaType.APPLICATION_OCTET_STREAM)
-    //TODO Add parameter if the local file should be deleted after it has been downloaded by the client
-    public StreamedFile getDownloadUrl(@QueryValue String url, @QueryValue(defaultValue = FILENAME_NONE) String filename, @QueryValue(defaultValue = "true") boolean delete) throws FileNotFoundException, MalformedURLException {
+    public CompletableFuture<HttpResponse<StreamedFile>> getDownloadUrl(HttpRequest<?> request, @QueryValue String url, @QueryValue(defaultValue = FILENAME_NONE) String filename, @QueryValue(defaultValue = "false") boolean delete) throws MalformedURLException {
         System.out.printf("[DEBUG][%s#getDownload] url=\"%s\", filename=\"%s\", delete=%b%n", getClass().getSimpleName(), url, filename, delete); //DEBUG
-        final URL url_ = new URL(url);
-        final List<DownloadContainer> downloadContainers = Downloader.getDownloadContainers().stream().filter((downloadContainer) -> url_.equals(downloadContainer.getDownloadInfo().getUrl())).collect(Collectors.toList());
+        final List<DownloadContainer> downloadContainers = Downloader.getDownloadContainers(new URL(url));
         System.out.printf("[DEBUG][%s#getDownload] downloadContainers=%s%n", getClass().getSimpleName(), downloadContainers); //DEBUG
-        if (downloadContainers.isEmpty() || downloadContainers.stream().map(DownloadContainer::getDownloadInfo).noneMatch(DownloadInfo::isDone)) {
+        final DownloadContainer downloadContainer = downloadContainers.stream().filter((downloadContainer_) -> downloadContainer_.getDownloadInfo().isDone() && downloadContainer_.getStoredObject() != null).findAny().orElse(null);
+        if (downloadContainer == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return openDownload(request, downloadContainer, filename, delete);
+    }
+    
+    /**
+     * Opens the file on the {@link StorageExecutor}, the bytes are then streamed by Micronaut.
+     * <p>
+     * A single byte range ("Range" header) is answered with 206 and only that part, "delete" is ignored then, because no ranged request reads the whole file.
+     * Multiple ranges are answered with the whole file.
+     */
+    private static CompletableFuture<HttpResponse<StreamedFile>> openDownload(HttpRequest<?> request, DownloadContainer downloadContainer, String filename, boolean delete) {
+        final String filename_ = Util.sanitizeFilename(FILENAME_NONE.equals(filename) ? downloadContainer.getDownloadInfo().getFilename() : filename);
+        final String range = request.getHeaders().get(HttpHeaders.RANGE);
+        return StorageExecutor.supply(() -> {
+            final long length = downloadContainer.getStoredObject().getLength();
+            final long[] bounds = range == null ? null : parseRange(range, length);
+            if (bounds == null) {
+                final StreamedFile streamedFile = new StreamedFile(Downloader.openInputStream(downloadContainer, delete), MediaType.APPLICATION_OCTET_STREAM_TYPE, System.currentTimeMillis(), length);
+                return HttpResponse.ok(streamedFile.attach(filename_)).header(HttpHeaders.ACCEPT_RANGES, "bytes");
+            }
+            if (bounds.length == 0) {
+                return HttpResponse.<StreamedFile>status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE).header(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+            }
+            final StreamedFile streamedFile = new StreamedFile(Downloader.openInputStream(downloadContainer, bounds[0], bounds[1] - bounds[0] + 1), MediaType.APPLICATION_OCTET_STREAM_TYPE, System.currentTimeMillis(), bounds[1] - bounds[0] + 1);
+            return HttpResponse.<StreamedFile>status(HttpStatus.PARTIAL_CONTENT).body(streamedFile.attach(filename_)).header(HttpHeaders.ACCEPT_RANGES, "bytes").header(HttpHeaders.CONTENT_RANGE, "bytes " + bounds[0] + "-" + bounds[1] + "/" + length);
+        });
+    }
+    
+    /**
+     * Parses a single byte range ("bytes=first-last", "bytes=first-" or "bytes=-suffix").
+     *
+     * @return The first and last byte (inclusive), an empty array if the range is not satisfiable or null if the range should be ignored (malformed or multiple ranges)
+     */
+    protected static long[] parseRange(String range, long length) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
             return null;
         }
-        final DownloadContainer downloadContainer = downloadContainers.stream().filter((downloadContainer_) -> downloadContainer_.getDownloadInfo().isDone()).findAny().orElse(null);
-        if (downloadContainer == null) {
+        final String[] parts = range.substring("bytes=".length()).trim().split("-", -1);
+        if (parts.length != 2 || (parts[0].isEmpty() && parts[1].isEmpty())) {
+            return null;
+        }
+        try {
+            if (parts[0].isEmpty()) {
+                final long suffix = Long.parseLong(parts[1]);
+                if (suffix <= 0 || length == 0) {
+                    return new long[0];
+                }
+                return new long[] {Math.max(0, length - suffix), length - 1};
+            }
+            final long first = Long.parseLong(parts[0]);
+            final long last = parts[1].isEmpty() ? Long.MAX_VALUE : Long.parseLong(parts[1]);
+            if (last < first) {
+                return null;
+            }
+            if (first >= length) {
+                return new long[0];
+            }
+            return new long[] {first, Math.min(last, length - 1)};
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Streams the cached files of all UUIDs or URLs (one per line) as one zip or tar archive, items which are not cached are skipped.
+     */
+    @Post(uri = "/archive", consumes = MediaType.TEXT_PLAIN, produces = MediaType.APPLICATION_OCTET_STREAM)
+    public CompletableFuture<StreamedFile> getArchive(@Body String items, @QueryValue(defaultValue = "zip") String format, @QueryValue(defaultValue = FILENAME_NONE) String filename) {
+        return StorageExecutor.supply(() -> getArchive(PrefetchJob.parseManifest(items), format, filename));
+    }
+    
+    @Get(uri = "/archive", produces = MediaType.APPLICATION_OCTET_STREAM)
+    public CompletableFuture<StreamedFile> getArchiveUuids(@QueryValue String uuids, @QueryValue(defaultValue = "zip") String format, @QueryValue(defaultValue = FILENAME_NONE) String filename) {
+        return StorageExecutor.supply(() -> getArchive(Arrays.asList(uuids.split(",")), format, filename));
+    }
+    
+    private StreamedFile getArchive(List<String> items, String format, String filename) throws IOException {
+        System.out.printf("[DEBUG][%s#getArchive] items=%d, format=\"%s\", filename=\"%s\"%n", getClass().getSimpleName(), items.size(), format, filename); //DEBUG
+        final ArchiveWriter.Format format_ = ArchiveWriter.Format.of(format);
+        if (format_ == null) {
+            return null;
+        }
+        final List<ArchiveWriter.Entry> entries = ArchiveWriter.resolveEntries(items);
+        if (entries.isEmpty()) {
             return null;
         }
         if (FILENAME_NONE.equals(filename)) {
-            filename = downloadContainer.getDownloadInfo().getFilename();
+            filename = "downloads." + format_.getExtension();
         }
         filename = Util.sanitizeFilename(filename);
-        return new StreamedFile(new FileInputStream(downloadContainer.getFile()), MediaType.APPLICATION_OCTET_STREAM_TYPE).attach(filename);
+        return new StreamedFile(ArchiveWriter.open(entries, format_), MediaType.of(format_.getMediaType())).attach(filename);
     }
     
     @Get(uri = "/remove/{uuid}", produces = MediaType.APPLICATION_JSON)
-    public String removeDownload(@PathVariable String uuid, @QueryValue(defaultValue = "false") boolean delete) {
+    public CompletableFuture<String> removeDownload(@PathVariable String uuid, @QueryValue(defaultValue = "false") boolean delete) {
         System.out.printf("[DEBUG][%s#removeDownload] uuid=\"%s\", delete=%b%n", getClass().getSimpleName(), uuid, delete); //DEBUG
         final DownloadContainer downloadContainer = Downloader.getDownloadContainer(UUID.fromString(uuid));
         System.out.printf("[DEBUG][%s#removeDownload] downloadContainer=%s%n", getClass().getSimpleName(), downloadContainer); //DEBUG
         if (downloadContainer == null || !downloadContainer.getDownloadInfo().isDone()) {
-            return "{\"removed\": false, \"deleted\": false}";
+            return CompletableFuture.completedFuture("{\"removed\": false, \"deleted\": false}");
         }
-        boolean deleted = false;
-        if (delete) {
-            deleted = Downloader.removeFile(downloadContainer.getFile(), downloadContainer.getDownloadInfo().getUrl(), true);
+        if (!delete) {
+            return CompletableFuture.completedFuture(String.format("{\"removed\": %b, \"deleted\": %b}", Downloader.removeDownloadContainer(downloadContainer.getDownloadInfo().getUuid()), false));
         }
-        return String.format("{\"removed\": %b, \"deleted\": %b}", Downloader.removeDownloadContainer(downloadContainer.getDownloadInfo().getUuid()), deleted);
+        return StorageExecutor.supply(() -> {
+            // Removed first, so it doesn't count as a download still using the file
+            final boolean removed = Downloader.removeDownloadContainer(downloadContainer.getDownloadInfo().getUuid());
+            return String.format("{\"removed\": %b, \"deleted\": %b}", removed, Downloader.removeFile(downloadContainer.getStoredObject(), downloadContainer.getDownloadInfo().getUrl(), true));
+        });
     }
     
     @Get(uri = "/remove", produces = MediaType.APPLICATION_JSON)
-    public String removeDownloadUrl(@QueryValue String url, @QueryValue(defaultValue = "false") boolean delete) throws MalformedURLException {
+    public CompletableFuture<String> removeDownloadUrl(@QueryValue String url, @QueryValue(defaultValue = "false") boolean delete) throws MalformedURLException {
         System.out.printf("[DEBUG][%s#removeDownload] url=\"%s\", delete=%b%n", getClass().getSimpleName(), url, delete); //DEBUG
         final URL url_ = new URL(url);
-        final List<DownloadContainer> downloadContainers = Downloader.getDownloadContainers().stream().filter((downloadContainer) -> url_.equals(downloadContainer.getDownloadInfo().getUrl())).collect(Collectors.toList());
+        final List<DownloadContainer> downloadContainers = Downloader.getDownloadContainers(url_);
         System.out.printf("[DEBUG][%s#removeDownload] downloadContainers=%s%n", getClass().getSimpleName(), downloadContainers); //DEBUG
+        if (!delete) {
+            return CompletableFuture.completedFuture(removeDownloads(url_, downloadContainers, false));
+        }
+        return StorageExecutor.supply(() -> removeDownloads(url_, downloadContainers, true));
+    }
+    
+    private static String removeDownloads(URL url, List<DownloadContainer> downloadContainers, boolean delete) {
         if (downloadContainers.isEmpty() || !downloadContainers.stream().map(DownloadContainer::getDownloadInfo).allMatch(DownloadInfo::isDone)) {
             boolean deleted = false;
             if (delete) {
-                final String hash = Downloader.getHashForURL(url_);
+                final String hash = Downloader.getHashForURL(url);
                 if (hash != null) {
-                    final File file = Downloader.getFileForHash(hash);
-                    deleted = Downloader.removeFile(file, url_, true);
+                    deleted = Downloader.removeFile(Downloader.getStoredObjectForHash(hash), url, true);
                 }
             }
             return String.format("{\"removed\": 0, \"deleted\": %b}", deleted);
@@ -171,9 +439,20 @@ public class DownloadController {
         }
         boolean deleted = false;
         if (delete) {
-            deleted = downloadContainers.stream().anyMatch((downloadContainer) -> Downloader.removeFile(downloadContainer.getFile(), downloadContainer.getDownloadInfo().getUrl(), true));
+            deleted = downloadContainers.stream().anyMatch((downloadContainer) -> Downloader.removeFile(downloadContainer.getStoredObject(), downloadContainer.getDownloadInfo().getUrl(), true));
         }
         return String.format("{\"removed\": %d, \"deleted\": %b}", removed, deleted);
     }
     
+    /**
+     * Answers requests the {@link StorageExecutor} has no room for with 503, like every other overload.
+     * <p>
+     * Global, because the other controllers hand their file work to the {@link StorageExecutor} as well.
+     */
+    @Error(global = true, exception = RejectedExecutionException.class)
+    public HttpResponse<String> storageBusy(HttpRequest<?> request, RejectedExecutionException ex) {
+        System.err.printf("[WARNING][%s#storageBusy] Rejected %s: %s%n", getClass().getSimpleName(), request.getPath(), ex); //DEBUG
+        return HttpResponse.<String>status(HttpStatus.SERVICE_UNAVAILABLE).header(HttpHeaders.RETRY_AFTER, "1").body("Storage is busy");
+    }
+    
 }
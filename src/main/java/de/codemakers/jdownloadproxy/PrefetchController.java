@@ -0,0 +1,98 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import de.codemakers.jdownloadproxy.download.PrefetchJob;
+import de.codemakers.jdownloadproxy.download.Prefetcher;
+import de.codemakers.jdownloadproxy.download.StorageExecutor;
+import io.micronaut.http.HttpResponse;
+import io.micronaut.http.MediaType;
+import io.micronaut.http.annotation.Body;
+import io.micronaut.http.annotation.Controller;
+import io.micronaut.http.annotation.Get;
+import io.micronaut.http.annotation.PathVariable;
+import io.micronaut.http.annotation.Post;
+import io.micronaut.http.annotation.QueryValue;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
+@Controller("/prefetch")
+public class PrefetchController {
+    
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    
+    /**
+     * Creates a prefetch job from a manifest with one URL per line (empty lines and lines starting with {@code #} are ignored).
+     */
+    @Post(uri = "/add", consumes = MediaType.TEXT_PLAIN, produces = MediaType.TEXT_PLAIN)
+    public String addPrefetch(@Body String manifest, @QueryValue(defaultValue = "0") long delay, @QueryValue(defaultValue = "0") long interval) {
+        System.out.printf("[DEBUG][%s#addPrefetch] delay=%d, interval=%d%n", getClass().getSimpleName(), delay, interval); //DEBUG
+        return Prefetcher.createPrefetchJob(manifest, delay, interval).getUuid().toString();
+    }
+    
+    /**
+     * Checks the manifest file on the {@link StorageExecutor}, it's read again on every run.
+     * <br>
+     * Only files inside the {@link Application#APPLICATION_FOLDER} can be used, relative paths are resolved against it.
+     */
+    @Get(uri = "/add", produces = MediaType.TEXT_PLAIN)
+    public CompletableFuture<HttpResponse<String>> addPrefetchFile(@QueryValue String path, @QueryValue(defaultValue = "0") long delay, @QueryValue(defaultValue = "0") long interval) {
+        System.out.printf("[DEBUG][%s#addPrefetchFile] path=\"%s\", delay=%d, interval=%d%n", getClass().getSimpleName(), path, delay, interval); //DEBUG
+        return StorageExecutor.supply(() -> {
+            final File manifestFile = Prefetcher.getManifestFile(new File(path));
+            if (manifestFile == null) {
+                return HttpResponse.badRequest("Manifest file has to be inside the application folder");
+            }
+            final PrefetchJob prefetchJob = Prefetcher.createPrefetchJob(manifestFile, delay, interval);
+            if (prefetchJob == null) {
+                return HttpResponse.notFound();
+            }
+            return HttpResponse.ok(prefetchJob.getUuid().toString());
+        });
+    }
+    
+    @Get(uri = "/status/{uuid}", produces = MediaType.APPLICATION_JSON)
+    public String statusPrefetch(@PathVariable String uuid) throws JsonProcessingException {
+        final PrefetchJob prefetchJob = Prefetcher.getPrefetchJob(UUID.fromString(uuid));
+        if (prefetchJob == null) {
+            return null;
+        }
+        return OBJECT_MAPPER.writeValueAsString(prefetchJob.getStatus());
+    }
+    
+    @Get(uri = "/status", produces = MediaType.APPLICATION_JSON)
+    public String statusPrefetches() throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(Prefetcher.getPrefetchJobs().stream().map(PrefetchJob::getStatus).collect(Collectors.toList()));
+    }
+    
+    @Get(uri = "/cancel/{uuid}", produces = MediaType.APPLICATION_JSON)
+    public String cancelPrefetch(@PathVariable String uuid) {
+        return String.format("{\"cancelled\": %b}", Prefetcher.cancelPrefetchJob(UUID.fromString(uuid)));
+    }
+    
+    @Get(uri = "/remove/{uuid}", produces = MediaType.APPLICATION_JSON)
+    public String removePrefetch(@PathVariable String uuid) {
+        return String.format("{\"removed\": %b}", Prefetcher.removePrefetchJob(UUID.fromString(uuid)));
+    }
+    
+}
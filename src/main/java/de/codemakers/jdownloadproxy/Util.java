@@ -17,8 +17,10 @@
 
 package de.codemakers.jdownloadproxy;
 
+import de.codemakers.jdownloadproxy.hash.HashEngine;
+import de.codemakers.jdownloadproxy.hash.HashScheme;
+
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.DigestInputStream;
@@ -31,6 +33,7 @@ public class Util {
     public static final String HASH_ALGORITHM = "SHA-256";
     public static final String REGEX_FORBIDDEN_FILENAMES = "[\\\\/:\"*?<>|]+";
     public static final String DEFAULT_REPLACEMENT = "_";
+    public static final int HASH_BUFFER_SIZE = 64 * 1024;
     
     public static String base64encodeToString(byte[] data) {
         if (data == null) {
@@ -82,7 +85,7 @@ public class Util {
             return null;
         }
         try (final DigestInputStream digestInputStream = new DigestInputStream(inputStream, messageDigest)) {
-            final byte[] buffer = new byte[1024];
+            final byte[] buffer = new byte[HASH_BUFFER_SIZE];
             while (digestInputStream.read(buffer) != -1) {
             }
         } catch (IOException e) {
@@ -92,15 +95,7 @@ public class Util {
     }
     
     public static byte[] hashFile(File file) {
-        if (file == null || !file.exists()) {
-            return null;
-        }
-        try (final FileInputStream fileInputStream = new FileInputStream(file)) {
-            return hashStream(fileInputStream);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        return null;
+        return HashEngine.hashFile(file, HashScheme.FLAT);
     }
     
     public static String sanitizeFilename(String filename) {
@@ -0,0 +1,718 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Client for the "/download" endpoints of a JDownloadProxy server, it only depends on the JDK and Jackson, so other services can use it without the server.
+ * <p>
+ * All requests share one {@link HttpClient}, which keeps the connections to the server alive and reuses them.
+ * {@link #get(UUID, FileChannel)} fetches a file with up to {@link #getConnections()} parallel ranged requests of {@link #getPartSize()} bytes each,
+ * which are written straight to their position in the file, failed requests are resumed from the last written byte.
+ * Every file is verified against its SHA-256 ("hash_sha256_base64") before it is returned.
+ */
+public class DownloadClient implements AutoCloseable {
+    
+    public static final int DEFAULT_CONNECTIONS = 4;
+    public static final long DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long DEFAULT_RETRY_DELAY = 500;
+    public static final Duration DEFAULT_TIMEOUT = Duration.ofSeconds(30);
+    public static final long POLL_INTERVAL = 250;
+    public static final int BUFFER_SIZE = 256 * 1024;
+    
+    private final URI baseUri;
+    private final int connections;
+    private final long partSize;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final Duration timeout;
+    private final HttpClient httpClient;
+    private final ExecutorService executorService;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    
+    /**
+     * @param baseUri URI of the server, e.g. "http://localhost:8080"
+     */
+    public DownloadClient(URI baseUri) {
+        this(baseUri, DEFAULT_CONNECTIONS, DEFAULT_PART_SIZE, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY, DEFAULT_TIMEOUT);
+    }
+    
+    /**
+     * @param connections Number of threads fetching ranges for all {@link #get(UUID, FileChannel)} calls together (each call fetches its first part in its own thread)
+     * @param partSize Bytes per ranged request
+     * @param maxAttempts Attempts per ranged request before the fetch fails
+     * @param retryDelay Milliseconds before the first retry, doubled for every further one
+     * @param timeout Timeout for connecting and for the response headers
+     */
+    public DownloadClient(URI baseUri, int connections, long partSize, int maxAttempts, long retryDelay, Duration timeout) {
+        this.baseUri = baseUri.toString().endsWith("/") ? baseUri : URI.create(baseUri + "/");
+        this.connections = Math.max(1, connections);
+        this.partSize = Math.max(1, partSize);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = Math.max(0, retryDelay);
+        this.timeout = timeout;
+        // The server speaks HTTP/1.1 only, so the upgrade attempt to HTTP/2 would be wasted on every new connection
+        this.httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(timeout).build();
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.executorService = Executors.newFixedThreadPool(this.connections, (runnable) -> {
+            final Thread thread = new Thread(runnable, "DownloadClient-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    public URI getBaseUri() {
+        return baseUri;
+    }
+    
+    public int getConnections() {
+        return connections;
+    }
+    
+    public long getPartSize() {
+        return partSize;
+    }
+    
+    /**
+     * Queues a download (see "/download/add").
+     *
+     * @param callback URL (optional) the server POSTs the status to once the download is done
+     *
+     * @throws ResponseException If the server rejected the download, e.g. with 429 or 503 and a "Retry-After"
+     */
+    public UUID add(URL url, boolean forceDownload, URI callback) throws IOException {
+        final HttpResponse<String> response = send(HttpRequest.newBuilder(createUri("download/add", "url", url.toString(), "forceDownload", String.valueOf(forceDownload), "callback", callback == null ? null : callback.toString())).GET(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        checkStatus(response, response.body());
+        return UUID.fromString(response.body().trim());
+    }
+    
+    public UUID add(URL url) throws IOException {
+        return add(url, false, null);
+    }
+    
+    /**
+     * Queues many downloads with one request (see "POST /download/add").
+     *
+     * @return One result per URL, in the same order
+     */
+    public List<AddResult> addAll(List<URL> urls, boolean forceDownload, URI callback) throws IOException {
+        final String body = urls.stream().map(URL::toString).collect(Collectors.joining("\n"));
+        final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(createUri("download/add", "forceDownload", String.valueOf(forceDownload), "callback", callback == null ? null : callback.toString())).header("Content-Type", "text/plain").POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8));
+        final HttpResponse<String> response = send(requestBuilder, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        checkStatus(response, response.body());
+        final List<AddResult> addResults = new ArrayList<>();
+        for (JsonNode jsonNode : objectMapper.readTree(response.body())) {
+            addResults.add(new AddResult(jsonNode.path("url").asText(), jsonNode.path("status").asInt(), jsonNode.hasNonNull("uuid") ? UUID.fromString(jsonNode.get("uuid").asText()) : null, jsonNode.path("error").asText(null)));
+        }
+        return addResults;
+    }
+    
+    public List<AddResult> addAll(List<URL> urls) throws IOException {
+        return addAll(urls, false, null);
+    }
+    
+    /**
+     * @return The status of the download or null if the server does not know it
+     */
+    public Status status(UUID uuid) throws IOException {
+        final HttpResponse<String> response = send(HttpRequest.newBuilder(createUri("download/status/" + uuid)).GET(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        checkStatus(response, response.body());
+        return new Status(objectMapper.readTree(response.body()));
+    }
+    
+    /**
+     * Polls the status every {@link #POLL_INTERVAL} milliseconds until the download is done (callbacks avoid polling, see {@link #add(URL, boolean, URI)}).
+     *
+     * @return The last status, which is not done if the timeout elapsed, or null if the server does not know the download
+     */
+    public Status await(UUID uuid, long timeoutMillis) throws IOException {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            final Status status = status(uuid);
+            if (status == null || status.isDone() || System.currentTimeMillis() >= deadline) {
+                return status;
+            }
+            sleep(Math.min(POLL_INTERVAL, Math.max(1, deadline - System.currentTimeMillis())));
+        }
+    }
+    
+    /**
+     * Removes the download from the server (see "/download/remove").
+     *
+     * @param delete Deletes the cached file too
+     *
+     * @return If the download was removed (unfinished downloads are not)
+     */
+    public boolean remove(UUID uuid, boolean delete) throws IOException {
+        final HttpResponse<String> response = send(HttpRequest.newBuilder(createUri("download/remove/" + uuid, "delete", String.valueOf(delete))).GET(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        checkStatus(response, response.body());
+        return objectMapper.readTree(response.body()).path("removed").asBoolean();
+    }
+    
+    /**
+     * Fetches a finished download into the file, which is deleted again if the fetch or the verification fails.
+     *
+     * @return The status the file was verified against
+     */
+    public Status get(UUID uuid, Path target) throws IOException {
+        try (final FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return get(uuid, fileChannel);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(target);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Fetches a finished download into the file (from its start, it has to be readable for the verification) with parallel ranged requests.
+     *
+     * @return The status the file was verified against
+     *
+     * @throws FileNotFoundException If the server does not know the download or it is not finished
+     */
+    public Status get(UUID uuid, FileChannel target) throws IOException {
+        final Status status = getFinishedStatus(uuid);
+        final long length = fetchParallel(uuid, target);
+        verify(status, hash(target, length));
+        return status;
+    }
+    
+    /**
+     * Fetches a finished download into the channel with one request, which is resumed after failures.
+     *
+     * @return The status the bytes were verified against (they are written already, so a mismatch has to be handled by the caller)
+     *
+     * @throws FileNotFoundException If the server does not know the download or it is not finished
+     */
+    public Status get(UUID uuid, WritableByteChannel target) throws IOException {
+        if (target instanceof FileChannel) {
+            return get(uuid, (FileChannel) target);
+        }
+        final Status status = getFinishedStatus(uuid);
+        final MessageDigest messageDigest = createMessageDigest();
+        fetchSequential(uuid, target, messageDigest, null);
+        verify(status, messageDigest.digest());
+        return status;
+    }
+    
+    private Status getFinishedStatus(UUID uuid) throws IOException {
+        Status status = status(uuid);
+        if (status == null || !status.isDone()) {
+            throw new FileNotFoundException(String.format("Download %s is %s", uuid, status == null ? "unknown" : "not done yet"));
+        }
+        if (!status.isFinished()) {
+            throw new FileNotFoundException(String.format("Download %s is %s: %s", uuid, status.getStatus(), status.getError()));
+        }
+        if (status.getHashSha256Base64() == null) {
+            // The file is stored under another hash scheme, so the server computes the SHA-256 on request
+            final HttpResponse<String> response = send(HttpRequest.newBuilder(createUri("download/sha256/" + uuid)).GET(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            checkStatus(response, response.body());
+            status = status.withHashSha256Base64(objectMapper.readTree(response.body()).path("hash_sha256_base64").asText(null));
+        }
+        return status;
+    }
+    
+    /**
+     * Fetches the first part in this thread and all others on the executor, once the first response told the length.
+     *
+     * @return Length of the file
+     */
+    private long fetchParallel(UUID uuid, FileChannel target) throws IOException {
+        final HttpResponse<InputStream> response = sendRange(uuid, 0, partSize - 1);
+        if (response.statusCode() == 416) {
+            response.body().close();
+            final long length = parseContentRangeLength(response);
+            if (length != 0) {
+                throw new ResponseException(response.statusCode(), -1, "Range not satisfiable for a file of " + length + " Bytes");
+            }
+            target.truncate(0);
+            return 0;
+        }
+        if (response.statusCode() != 206) {
+            // The server ignored the range, so the whole file comes with this response
+            final long length = fetchSequential(uuid, target.position(0), null, response);
+            target.truncate(length);
+            return length;
+        }
+        final long length = parseContentRangeLength(response);
+        final List<Future<?>> futures = new ArrayList<>();
+        for (long first = partSize; first < length; first += partSize) {
+            final long first_ = first;
+            final long last = Math.min(length, first + partSize) - 1;
+            futures.add(executorService.submit(() -> {
+                fetchRange(uuid, target, first_, last, null);
+                return null;
+            }));
+        }
+        try {
+            fetchRange(uuid, target, 0, Math.min(length, partSize) - 1, response);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching " + uuid);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } finally {
+            // Running parts are not interrupted, because that would close the channel (parts which are not running yet are dropped)
+            futures.forEach((future) -> future.cancel(false));
+        }
+        if (target.size() > length) {
+            target.truncate(length);
+        }
+        return length;
+    }
+    
+    /**
+     * Writes the bytes from first to last (inclusive) at their position, a failed request is resumed from the last written byte.
+     */
+    private void fetchRange(UUID uuid, FileChannel target, long first, long last, HttpResponse<InputStream> response) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long position = first;
+        int attempts = 0;
+        while (true) {
+            try {
+                if (response == null) {
+                    response = sendRange(uuid, position, last);
+                    if (response.statusCode() != 206) {
+                        response.body().close();
+                        checkStatus(response, null);
+                        throw new ResponseException(response.statusCode(), -1, "Range request answered without a range");
+                    }
+                }
+                try (final InputStream inputStream = response.body()) {
+                    int read;
+                    while (position <= last && (read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, last - position + 1))) >= 0) {
+                        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                        while (byteBuffer.hasRemaining()) {
+                            position += target.write(byteBuffer, position);
+                        }
+                    }
+                }
+                if (position > last) {
+                    return;
+                }
+                throw new EOFException(String.format("Response ended after %d of %d Bytes", position - first, last - first + 1));
+            } catch (IOException ex) {
+                attempts++;
+                if (!isRetryable(ex) || attempts >= maxAttempts) {
+                    throw ex;
+                }
+                System.err.printf("[WARNING][%s#fetchRange] Fetching %s failed at %d Bytes (attempt %d of %d), resuming: %s%n", getClass().getSimpleName(), uuid, position, attempts, maxAttempts, ex);
+                sleep(retryDelay << Math.min(16, attempts - 1));
+                response = null;
+            }
+        }
+    }
+    
+    /**
+     * Writes the whole file in order, a failed request is resumed with a range from the last written byte (or the written bytes are skipped, if the server ignores ranges).
+     *
+     * @param messageDigest Gets every written byte (optional)
+     * @param response Response to start with (optional)
+     *
+     * @return Length of the file
+     */
+    private long fetchSequential(UUID uuid, WritableByteChannel target, MessageDigest messageDigest, HttpResponse<InputStream> response) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long position = 0;
+        int attempts = 0;
+        while (true) {
+            long length = -1;
+            try {
+                if (response == null) {
+                    response = position == 0 ? send(HttpRequest.newBuilder(createUri("download/get/" + uuid)).GET(), HttpResponse.BodyHandlers.ofInputStream()) : sendRange(uuid, position, -1);
+                }
+                try (final InputStream inputStream = response.body()) {
+                    checkStatus(response, null);
+                    long skip = 0;
+                    if (response.statusCode() == 206) {
+                        length = parseContentRangeLength(response);
+                    } else {
+                        length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                        skip = position;
+                    }
+                    while (skip > 0) {
+                        final long skipped = inputStream.skip(skip);
+                        if (skipped <= 0) {
+                            throw new EOFException("Response ended before the resumed position");
+                        }
+                        skip -= skipped;
+                    }
+                    int read;
+                    while ((read = inputStream.read(buffer)) >= 0) {
+                        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, read);
+                        while (byteBuffer.hasRemaining()) {
+                            target.write(byteBuffer);
+                        }
+                        if (messageDigest != null) {
+                            messageDigest.update(buffer, 0, read);
+                        }
+                        position += read;
+                    }
+                }
+                if (length < 0 || position >= length) {
+                    return position;
+                }
+                throw new EOFException(String.format("Response ended after %d of %d Bytes", position, length));
+            } catch (IOException ex) {
+                attempts++;
+                if (!isRetryable(ex) || attempts >= maxAttempts) {
+                    throw ex;
+                }
+                System.err.printf("[WARNING][%s#fetchSequential] Fetching %s failed at %d Bytes (attempt %d of %d), resuming: %s%n", getClass().getSimpleName(), uuid, position, attempts, maxAttempts, ex);
+                sleep(retryDelay << Math.min(16, attempts - 1));
+                response = null;
+            }
+        }
+    }
+    
+    /**
+     * @param last Last byte (inclusive) or a negative value for the rest of the file
+     */
+    private HttpResponse<InputStream> sendRange(UUID uuid, long first, long last) throws IOException {
+        return send(HttpRequest.newBuilder(createUri("download/get/" + uuid)).header("Range", "bytes=" + first + "-" + (last < 0 ? "" : String.valueOf(last))).GET(), HttpResponse.BodyHandlers.ofInputStream());
+    }
+    
+    private static long parseContentRangeLength(HttpResponse<?> response) throws IOException {
+        final String contentRange = response.headers().firstValue("Content-Range").orElse("");
+        try {
+            return Long.parseLong(contentRange.substring(contentRange.lastIndexOf('/') + 1).trim());
+        } catch (NumberFormatException ex) {
+            throw new IOException("Invalid Content-Range \"" + contentRange + "\"");
+        }
+    }
+    
+    private static byte[] hash(FileChannel fileChannel, long length) throws IOException {
+        final MessageDigest messageDigest = createMessageDigest();
+        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE * 4);
+        long position = 0;
+        while (position < length) {
+            byteBuffer.clear().limit((int) Math.min(byteBuffer.capacity(), length - position));
+            final int read = fileChannel.read(byteBuffer, position);
+            if (read < 0) {
+                throw new EOFException("File ended after " + position + " of " + length + " Bytes");
+            }
+            position += read;
+            messageDigest.update(byteBuffer.flip());
+        }
+        return messageDigest.digest();
+    }
+    
+    private static void verify(Status status, byte[] hash) throws IOException {
+        final String hash_ = Base64.getUrlEncoder().encodeToString(hash);
+        if (!hash_.equals(status.getHashSha256Base64())) {
+            throw new HashMismatchException(String.format("SHA-256 of %s is \"%s\" instead of \"%s\"", status.getUuid(), hash_, status.getHashSha256Base64()));
+        }
+    }
+    
+    private static MessageDigest createMessageDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    /**
+     * Network failures and responses of an overloaded server are worth another attempt, anything else would fail again.
+     */
+    private static boolean isRetryable(IOException ex) {
+        if (ex instanceof HashMismatchException || ex instanceof InterruptedIOException || ex instanceof FileNotFoundException || ex instanceof ClosedChannelException) {
+            return false;
+        }
+        if (ex instanceof ResponseException) {
+            final int status = ((ResponseException) ex).getStatus();
+            return status == 429 || status >= 500;
+        }
+        return true;
+    }
+    
+    private URI createUri(String path, String... parameters) {
+        final StringBuilder stringBuilder = new StringBuilder(path);
+        char separator = '?';
+        for (int i = 0; i + 1 < parameters.length; i += 2) {
+            if (parameters[i + 1] == null) {
+                continue;
+            }
+            stringBuilder.append(separator).append(parameters[i]).append('=').append(URLEncoder.encode(parameters[i + 1], StandardCharsets.UTF_8));
+            separator = '&';
+        }
+        return baseUri.resolve(stringBuilder.toString());
+    }
+    
+    private <T> HttpResponse<T> send(HttpRequest.Builder requestBuilder, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        try {
+            return httpClient.send(requestBuilder.timeout(timeout).build(), bodyHandler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + baseUri);
+        }
+    }
+    
+    private static void checkStatus(HttpResponse<?> response, String body) throws IOException {
+        if (response.statusCode() == 404) {
+            throw new FileNotFoundException(response.uri().toString());
+        }
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            final long retryAfterSeconds = response.headers().firstValueAsLong("Retry-After").orElse(-1);
+            throw new ResponseException(response.statusCode(), retryAfterSeconds, String.format("Server returned HTTP response code %d for \"%s\"%s", response.statusCode(), response.uri(), body == null || body.isEmpty() ? "" : ": " + body));
+        }
+    }
+    
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+    
+    /**
+     * Stops the threads of the parallel fetches, the connections are closed by the {@link HttpClient} once they are idle.
+     */
+    @Override
+    public void close() {
+        executorService.shutdownNow();
+    }
+    
+    public static class Status {
+        
+        private final UUID uuid;
+        private final String url;
+        private final String filename;
+        private final String status;
+        private final boolean done;
+        private final String hash;
+        private final String hashSha256Base64;
+        private final String hashScheme;
+        private final long totalBytes;
+        private final long receivedBytes;
+        private final int attempts;
+        private final String error;
+        
+        public Status(UUID uuid, String url, String filename, String status, boolean done, String hash, String hashSha256Base64, String hashScheme, long totalBytes, long receivedBytes, int attempts, String error) {
+            this.uuid = uuid;
+            this.url = url;
+            this.filename = filename;
+            this.status = status;
+            this.done = done;
+            this.hash = hash;
+            this.hashSha256Base64 = hashSha256Base64;
+            this.hashScheme = hashScheme;
+            this.totalBytes = totalBytes;
+            this.receivedBytes = receivedBytes;
+            this.attempts = attempts;
+            this.error = error;
+        }
+        
+        private Status(JsonNode jsonNode) {
+            this(UUID.fromString(jsonNode.path("uuid").asText()), jsonNode.path("url").asText(null), jsonNode.path("filename").asText(null), jsonNode.path("status").asText(null), jsonNode.path("done").asBoolean(), jsonNode.path("hash").asText(null), jsonNode.path("hash_sha256_base64").asText(null), jsonNode.path("hash_scheme").asText(null), jsonNode.path("totalBytes").asLong(-1), jsonNode.path("receivedBytes").asLong(-1), jsonNode.path("attempts").asInt(), jsonNode.path("error").asText(null));
+        }
+        
+        private Status withHashSha256Base64(String hashSha256Base64) {
+            return new Status(uuid, url, filename, status, done, hash, hashSha256Base64, hashScheme, totalBytes, receivedBytes, attempts, error);
+        }
+        
+        public UUID getUuid() {
+            return uuid;
+        }
+        
+        public String getUrl() {
+            return url;
+        }
+        
+        public String getFilename() {
+            return filename;
+        }
+        
+        public String getStatus() {
+            return status;
+        }
+        
+        public boolean isDone() {
+            return done;
+        }
+        
+        public boolean isFinished() {
+            return "FINISHED".equals(status);
+        }
+        
+        public String getHash() {
+            return hash;
+        }
+        
+        public String getHashSha256Base64() {
+            return hashSha256Base64;
+        }
+        
+        public String getHashScheme() {
+            return hashScheme;
+        }
+        
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+        
+        public long getReceivedBytes() {
+            return receivedBytes;
+        }
+        
+        public int getAttempts() {
+            return attempts;
+        }
+        
+        public String getError() {
+            return error;
+        }
+        
+        @Override
+        public String toString() {
+            return "Status{" + "uuid=" + uuid + ", url='" + url + '\'' + ", filename='" + filename + '\'' + ", status='" + status + '\'' + ", done=" + done + ", hashSha256Base64='" + hashSha256Base64 + '\'' + ", totalBytes=" + totalBytes + ", receivedBytes=" + receivedBytes + ", error='" + error + '\'' + '}';
+        }
+        
+    }
+    
+    public static class AddResult {
+        
+        private final String url;
+        private final int status;
+        private final UUID uuid;
+        private final String error;
+        
+        public AddResult(String url, int status, UUID uuid, String error) {
+            this.url = url;
+            this.status = status;
+            this.uuid = uuid;
+            this.error = error;
+        }
+        
+        public String getUrl() {
+            return url;
+        }
+        
+        /**
+         * @return The status "/download/add" would have answered with, e.g. 429 if the queue was full
+         */
+        public int getStatus() {
+            return status;
+        }
+        
+        public boolean isAdded() {
+            return uuid != null;
+        }
+        
+        /**
+         * @return The UUID of the queued (or joined) download or null if it was rejected
+         */
+        public UUID getUuid() {
+            return uuid;
+        }
+        
+        public String getError() {
+            return error;
+        }
+        
+        @Override
+        public String toString() {
+            return "AddResult{" + "url='" + url + '\'' + ", status=" + status + ", uuid=" + uuid + ", error='" + error + '\'' + '}';
+        }
+        
+    }
+    
+    /**
+     * An unexpected HTTP response code, e.g. 429 or 503 if the server rejected a download.
+     */
+    public static class ResponseException extends IOException {
+        
+        private final int status;
+        private final long retryAfterSeconds;
+        
+        public ResponseException(int status, long retryAfterSeconds, String message) {
+            super(message);
+            this.status = status;
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+        
+        public int getStatus() {
+            return status;
+        }
+        
+        /**
+         * @return Seconds from the "Retry-After" header or -1 if there was none
+         */
+        public long getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+        
+    }
+    
+    public static class HashMismatchException extends IOException {
+        
+        public HashMismatchException(String message) {
+            super(message);
+        }
+        
+    }
+    
+}
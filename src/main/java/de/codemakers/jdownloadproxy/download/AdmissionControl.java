@@ -0,0 +1,212 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Decides whether a new download is accepted, so overload results in rejected requests instead of an ever growing queue.
+ * <p>
+ * A full queue or too many unfinished (queued, running or retrying) downloads are answered with 429 (the client should slow down),
+ * too little free disk space with 503 (this node can't take the download at all).
+ * <p>
+ * Low priority downloads (e.g. prefetching) only get the smaller {@link #MAX_QUEUED_LOW} and {@link #MAX_ACTIVE_LOW} budgets,
+ * so the rest is always left for client requests.
+ */
+public class AdmissionControl {
+    
+    public static final int MAX_QUEUED = Config.getInt("admission.max_queued", 1000);
+    public static final int MAX_ACTIVE = Config.getInt("admission.max_active", MAX_QUEUED < 0 ? -1 : MAX_QUEUED + Downloader.DOWNLOAD_THREADS);
+    public static final int MAX_QUEUED_LOW = Config.getInt("admission.max_queued_low", MAX_QUEUED < 0 ? -1 : MAX_QUEUED / 2);
+    public static final int MAX_ACTIVE_LOW = Config.getInt("admission.max_active_low", MAX_ACTIVE < 0 ? -1 : MAX_ACTIVE / 2);
+    public static final long MIN_FREE_SPACE = Config.getLong("admission.min_free_space", 1024L * 1024 * 1024);
+    public static final long RETRY_AFTER_QUEUE = Config.getLong("admission.retry_after.queue", TimeUnit.SECONDS.toMillis(5));
+    public static final long RETRY_AFTER_DISK = Config.getLong("admission.retry_after.disk", TimeUnit.MINUTES.toMillis(1));
+    public static final long FREE_SPACE_INTERVAL = Config.getLong("admission.free_space_interval", 1000);
+    
+    public static final int STATUS_TOO_MANY_REQUESTS = 429;
+    public static final int STATUS_SERVICE_UNAVAILABLE = 503;
+    
+    private static final AtomicBoolean FREE_SPACE_REFRESHING = new AtomicBoolean();
+    private static volatile long freeSpace = -1;
+    private static volatile long freeSpaceTimestamp = 0;
+    
+    /**
+     * @param expectedSize Expected size of the download, or a negative value if unknown
+     *
+     * @return null if the download is admitted
+     */
+    public static Rejection admit(long expectedSize) {
+        return admit(expectedSize, Downloader.PRIORITY_NORMAL);
+    }
+    
+    /**
+     * @param priority Priority the download will be started with, anything after {@link Downloader#PRIORITY_NORMAL} (e.g. {@link Downloader#PRIORITY_LOW}) gets the low priority budgets
+     *
+     * @see #admit(long)
+     */
+    public static Rejection admit(long expectedSize, int priority) {
+        if (Downloader.isDraining()) {
+            return admit(expectedSize, priority, true, 0, 0, 0, 0);
+        }
+        final int queued = Downloader.getQueuedDownloads();
+        // The other counts are collected over every download, so they are only looked up if the queue doesn't decide already
+        if (isFull(queued, getMaxQueued(priority))) {
+            return admit(expectedSize, priority, false, queued, queued, 0, 0);
+        }
+        final int active = queued + Downloader.getRunningDownloads() + Downloader.getRetryingDownloads();
+        if (isFull(active, getMaxActive(priority))) {
+            return admit(expectedSize, priority, false, queued, active, 0, 0);
+        }
+        return admit(expectedSize, priority, false, queued, active, getFreeSpace(), Downloader.getPendingBytes());
+    }
+    
+    /**
+     * @param active Number of queued, running and retrying downloads
+     */
+    protected static Rejection admit(long expectedSize, int priority, boolean draining, int queued, int active, long freeSpace, long pendingBytes) {
+        if (draining) {
+            return new Rejection(STATUS_SERVICE_UNAVAILABLE, RETRY_AFTER_QUEUE, "Shutting down");
+        }
+        if (isFull(queued, getMaxQueued(priority))) {
+            return new Rejection(STATUS_TOO_MANY_REQUESTS, RETRY_AFTER_QUEUE, String.format("Queue is full (%d of %d queued downloads)", queued, getMaxQueued(priority)));
+        }
+        if (isFull(active, getMaxActive(priority))) {
+            return new Rejection(STATUS_TOO_MANY_REQUESTS, RETRY_AFTER_QUEUE, String.format("Too many downloads (%d of %d queued, running or retrying)", active, getMaxActive(priority)));
+        }
+        if (!hasSpaceFor(Math.max(0, expectedSize), freeSpace, pendingBytes)) {
+            return new Rejection(STATUS_SERVICE_UNAVAILABLE, RETRY_AFTER_DISK, String.format("Not enough free disk space (%d Bytes free, %d Bytes pending, %d Bytes expected)", freeSpace, pendingBytes, expectedSize));
+        }
+        return null;
+    }
+    
+    private static int getMaxQueued(int priority) {
+        return priority > Downloader.PRIORITY_NORMAL ? MAX_QUEUED_LOW : MAX_QUEUED;
+    }
+    
+    private static int getMaxActive(int priority) {
+        return priority > Downloader.PRIORITY_NORMAL ? MAX_ACTIVE_LOW : MAX_ACTIVE;
+    }
+    
+    private static boolean isFull(int count, int max) {
+        return max >= 0 && count >= max;
+    }
+    
+    /**
+     * Checks if the bytes fit on the disk next to the pending bytes of all unfinished downloads, while keeping {@link #MIN_FREE_SPACE} free.
+     */
+    public static boolean hasSpaceFor(long bytes) {
+        return hasSpaceFor(bytes, getFreeSpace(), Downloader.getPendingBytes());
+    }
+    
+    private static boolean hasSpaceFor(long bytes, long freeSpace, long pendingBytes) {
+        return freeSpace - pendingBytes - bytes >= MIN_FREE_SPACE;
+    }
+    
+    /**
+     * Returns the usable space of the writable {@link StorageVolumes} as measured at most about {@link #FREE_SPACE_INTERVAL} milliseconds ago.
+     * <p>
+     * A stale value is refreshed on the {@link StorageExecutor}, so admission checks on the event loop don't wait for the file system (only the very first call measures directly).
+     */
+    public static long getFreeSpace() {
+        if (FREE_SPACE_INTERVAL <= 0 || freeSpaceTimestamp == 0) {
+            return refreshFreeSpace();
+        }
+        if (System.currentTimeMillis() - freeSpaceTimestamp >= FREE_SPACE_INTERVAL && FREE_SPACE_REFRESHING.compareAndSet(false, true)) {
+            final boolean accepted = StorageExecutor.execute(() -> {
+                try {
+                    refreshFreeSpace();
+                } finally {
+                    FREE_SPACE_REFRESHING.set(false);
+                }
+            });
+            if (!accepted) {
+                FREE_SPACE_REFRESHING.set(false);
+            }
+        }
+        return freeSpace;
+    }
+    
+    private static long refreshFreeSpace() {
+        freeSpace = StorageVolumes.refresh();
+        freeSpaceTimestamp = System.currentTimeMillis();
+        return freeSpace;
+    }
+    
+    public static Map<String, Object> getStatus() {
+        final Rejection rejection = admit(-1);
+        final Map<String, Object> status = new LinkedHashMap<>();
+        status.put("accepting", rejection == null);
+        status.put("reason", rejection == null ? null : rejection.getReason());
+        status.put("queued", Downloader.getQueuedDownloads());
+        status.put("running", Downloader.getRunningDownloads());
+        status.put("retrying", Downloader.getRetryingDownloads());
+        status.put("threads", Downloader.DOWNLOAD_THREADS);
+        status.put("max_queued", MAX_QUEUED);
+        status.put("max_active", MAX_ACTIVE);
+        status.put("max_queued_low", MAX_QUEUED_LOW);
+        status.put("max_active_low", MAX_ACTIVE_LOW);
+        status.put("free_bytes", getFreeSpace());
+        status.put("pending_bytes", Downloader.getPendingBytes());
+        status.put("min_free_bytes", MIN_FREE_SPACE);
+        status.put("storage", StorageExecutor.getStats());
+        return status;
+    }
+    
+    public static class Rejection {
+        
+        private final int status;
+        private final long retryAfter;
+        private final String reason;
+        
+        public Rejection(int status, long retryAfter, String reason) {
+            this.status = status;
+            this.retryAfter = retryAfter;
+            this.reason = reason;
+        }
+        
+        public int getStatus() {
+            return status;
+        }
+        
+        /**
+         * Returns the delay a client should wait before trying again in milliseconds.
+         */
+        public long getRetryAfter() {
+            return retryAfter;
+        }
+        
+        /**
+         * Returns the delay in whole seconds, as used by the "Retry-After" header.
+         */
+        public long getRetryAfterSeconds() {
+            return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfter + 999));
+        }
+        
+        public String getReason() {
+            return reason;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,331 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+import de.codemakers.jdownloadproxy.Util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Streams many cached files as one zip or tar archive.
+ * <p>
+ * The archive is written by a separate thread into a pipe, so the client receives the first entry while the following ones are still being read,
+ * and neither memory nor disk usage depend on the size of the archive.
+ */
+public class ArchiveWriter {
+    
+    public enum Format {
+        ZIP("zip", "application/zip"),
+        TAR("tar", "application/x-tar");
+        
+        private final String extension;
+        private final String mediaType;
+        
+        Format(String extension, String mediaType) {
+            this.extension = extension;
+            this.mediaType = mediaType;
+        }
+        
+        public String getExtension() {
+            return extension;
+        }
+        
+        public String getMediaType() {
+            return mediaType;
+        }
+        
+        public static Format of(String name) {
+            for (Format format : values()) {
+                if (format.extension.equalsIgnoreCase(name)) {
+                    return format;
+                }
+            }
+            return null;
+        }
+    }
+    
+    public static final int PIPE_SIZE = Config.getInt("archive.pipe_size", 1024 * 1024);
+    public static final int ZIP_LEVEL = Config.getInt("archive.zip_level", 0);
+    
+    private static final ExecutorService WRITER_SERVICE = Executors.newCachedThreadPool((runnable) -> {
+        final Thread thread = new Thread(runnable, "ArchiveWriter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * Resolves every UUID or URL to its cached file, items which are not (or no longer) cached are skipped.
+     * <p>
+     * Entries are named after {@link DownloadInfo#resolveFilename()}, duplicate names get a counter appended.
+     */
+    public static List<Entry> resolveEntries(List<String> items) {
+        final List<Entry> entries = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+        for (String item : items) {
+            final Entry entry = resolveEntry(item.trim());
+            if (entry == null) {
+                System.err.printf("[WARNING][%s#resolveEntries] \"%s\" is not cached%n", ArchiveWriter.class.getSimpleName(), item); //DEBUG
+                continue;
+            }
+            entries.add(new Entry(uniqueName(entry.getName(), names), entry.getStoredObject()));
+        }
+        return entries;
+    }
+    
+    private static Entry resolveEntry(String item) {
+        String hash;
+        String filename;
+        try {
+            final DownloadInfo downloadInfo = Downloader.getDownloadInfo(UUID.fromString(item));
+            if (downloadInfo == null || downloadInfo.getDownloadStatus() != DownloadStatus.FINISHED) {
+                return null;
+            }
+            hash = downloadInfo.getHash();
+            filename = downloadInfo.resolveFilename();
+        } catch (IllegalArgumentException e) {
+            final URL url;
+            try {
+                url = new URL(item);
+            } catch (MalformedURLException e2) {
+                return null;
+            }
+            hash = Downloader.getHashForURL(url);
+            final String filename_ = Downloader.getFilenameForURL(url);
+            filename = filename_ == null || filename_.isBlank() ? DownloadInfo.DEFAULT_FILENAME : filename_;
+        }
+        final StoredObject storedObject = Downloader.getStoredObjectForHash(hash);
+        if (storedObject == null) {
+            return null;
+        }
+        return new Entry(Util.sanitizeFilename(filename), storedObject);
+    }
+    
+    private static String uniqueName(String name, Set<String> names) {
+        if (names.add(name.toLowerCase())) {
+            return name;
+        }
+        final int index = name.lastIndexOf('.');
+        final String base = index > 0 ? name.substring(0, index) : name;
+        final String extension = index > 0 ? name.substring(index) : "";
+        for (int i = 2; ; i++) {
+            final String name_ = String.format("%s (%d)%s", base, i, extension);
+            if (names.add(name_.toLowerCase())) {
+                return name_;
+            }
+        }
+    }
+    
+    /**
+     * Starts writing the archive and returns its readable end.
+     */
+    public static InputStream open(List<Entry> entries, Format format) throws IOException {
+        final PipedInputStream pipedInputStream = new PipedInputStream(PIPE_SIZE);
+        final PipedOutputStream pipedOutputStream = new PipedOutputStream(pipedInputStream);
+        WRITER_SERVICE.execute(() -> {
+            try (final OutputStream outputStream = pipedOutputStream) {
+                write(entries, format, outputStream);
+            } catch (IOException e) {
+                // Mostly the client went away and closed the pipe
+                System.err.printf("[WARNING][%s#open] Stopped writing %s archive with %d entries: %s%n", ArchiveWriter.class.getSimpleName(), format.getExtension(), entries.size(), e); //DEBUG
+            }
+        });
+        return pipedInputStream;
+    }
+    
+    private static void write(List<Entry> entries, Format format, OutputStream outputStream) throws IOException {
+        switch (format) {
+            case ZIP:
+                final ZipOutputStream zipOutputStream = new ZipOutputStream(outputStream, StandardCharsets.UTF_8);
+                zipOutputStream.setLevel(ZIP_LEVEL);
+                for (Entry entry : entries) {
+                    final ZipEntry zipEntry = new ZipEntry(entry.getName());
+                    zipEntry.setTime(entry.getStoredObject().getLastModified());
+                    zipOutputStream.putNextEntry(zipEntry);
+                    copy(entry, zipOutputStream);
+                    zipOutputStream.closeEntry();
+                }
+                zipOutputStream.finish();
+                break;
+            case TAR:
+                final TarOutputStream tarOutputStream = new TarOutputStream(outputStream);
+                for (Entry entry : entries) {
+                    final long size = entry.getStoredObject().getLength();
+                    tarOutputStream.putNextEntry(entry.getName(), size, entry.getStoredObject().getLastModified());
+                    final long copied = copy(entry, tarOutputStream);
+                    if (copied != size) {
+                        throw new IOException(String.format("\"%s\" changed its size while being archived", entry.getStoredObject().getKey()));
+                    }
+                    tarOutputStream.closeEntry();
+                }
+                tarOutputStream.finish();
+                break;
+        }
+        outputStream.flush();
+    }
+    
+    private static long copy(Entry entry, OutputStream outputStream) throws IOException {
+        try (final InputStream inputStream = Downloader.openInputStream(entry.getStoredObject())) {
+            return inputStream.transferTo(outputStream);
+        }
+    }
+    
+    public static class Entry {
+        
+        private final String name;
+        private final StoredObject storedObject;
+        
+        public Entry(String name, StoredObject storedObject) {
+            this.name = name;
+            this.storedObject = storedObject;
+        }
+        
+        public String getName() {
+            return name;
+        }
+        
+        public StoredObject getStoredObject() {
+            return storedObject;
+        }
+        
+    }
+    
+    /**
+     * Minimal POSIX (pax) tar writer, long names and sizes above 8 GiB are stored in extended headers.
+     */
+    protected static class TarOutputStream extends FilterOutputStream {
+        
+        private static final int BLOCK_SIZE = 512;
+        protected static final long MAX_OCTAL_SIZE = 077777777777L;
+        
+        private long written = 0;
+        
+        protected TarOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+        
+        protected void putNextEntry(String name, long size, long lastModified) throws IOException {
+            final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            final StringBuilder records = new StringBuilder();
+            if (nameBytes.length > 100) {
+                records.append(paxRecord("path", name));
+            }
+            if (size > MAX_OCTAL_SIZE) {
+                records.append(paxRecord("size", String.valueOf(size)));
+            }
+            final long mtime = lastModified / 1000;
+            if (records.length() > 0) {
+                final byte[] paxBytes = records.toString().getBytes(StandardCharsets.UTF_8);
+                out.write(header("PaxHeader", paxBytes.length, mtime, (byte) 'x'));
+                out.write(paxBytes);
+                pad(paxBytes.length);
+            }
+            out.write(header(name, Math.min(size, MAX_OCTAL_SIZE), mtime, (byte) '0'));
+            written = 0;
+        }
+        
+        protected void closeEntry() throws IOException {
+            pad(written);
+        }
+        
+        protected void finish() throws IOException {
+            out.write(new byte[2 * BLOCK_SIZE]);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written++;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+            written += length;
+        }
+        
+        private void pad(long length) throws IOException {
+            final int remainder = (int) (length % BLOCK_SIZE);
+            if (remainder != 0) {
+                out.write(new byte[BLOCK_SIZE - remainder]);
+            }
+        }
+        
+        private static String paxRecord(String key, String value) {
+            final int length = key.length() + value.getBytes(StandardCharsets.UTF_8).length + 3;
+            // The length prefix counts its own digits, too
+            int total = length + String.valueOf(length).length();
+            if (String.valueOf(total).length() != String.valueOf(length).length()) {
+                total++;
+            }
+            return total + " " + key + "=" + value + "\n";
+        }
+        
+        private static byte[] header(String name, long size, long mtime, byte type) {
+            final byte[] header = new byte[BLOCK_SIZE];
+            final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+            octal(header, 100, 8, 0644);
+            octal(header, 108, 8, 0);
+            octal(header, 116, 8, 0);
+            octal(header, 124, 12, size);
+            octal(header, 136, 12, mtime);
+            header[156] = type;
+            System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+            // The checksum is calculated with the checksum field filled with spaces
+            for (int i = 148; i < 156; i++) {
+                header[i] = ' ';
+            }
+            long checksum = 0;
+            for (byte b : header) {
+                checksum += b & 0xFF;
+            }
+            octal(header, 148, 7, checksum);
+            return header;
+        }
+        
+        private static void octal(byte[] header, int offset, int length, long value) {
+            final String octal = Long.toOctalString(value);
+            final int digits = length - 1;
+            for (int i = 0; i < digits; i++) {
+                final int index = octal.length() - digits + i;
+                header[offset + i] = (byte) (index < 0 ? '0' : octal.charAt(index));
+            }
+            header[offset + digits] = 0;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,173 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response body of a {@link java.net.http.HttpClient} as an {@link InputStream}, whose reads time out.
+ * <p>
+ * The {@link java.net.http.HttpClient} only times out until the response headers arrived, so a stalled body would block a reader forever.
+ * Buffers are requested one after another, so a slow reader slows down the connection instead of buffering the whole body.
+ */
+public class BodyInputStream extends InputStream implements HttpResponse.BodySubscriber<InputStream> {
+    
+    private static final List<ByteBuffer> END = List.of();
+    
+    private final long readTimeout;
+    private final BlockingQueue<List<ByteBuffer>> queue = new LinkedBlockingQueue<>();
+    private volatile Flow.Subscription subscription = null;
+    private volatile Throwable error = null;
+    private Iterator<ByteBuffer> buffers = null;
+    private ByteBuffer buffer = null;
+    private boolean ended = false;
+    private volatile boolean closed = false;
+    
+    public BodyInputStream(long readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+    
+    @Override
+    public CompletionStage<InputStream> getBody() {
+        return CompletableFuture.completedFuture(this);
+    }
+    
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (closed) {
+            subscription.cancel();
+        } else {
+            subscription.request(1);
+        }
+    }
+    
+    @Override
+    public void onNext(List<ByteBuffer> item) {
+        queue.offer(item);
+    }
+    
+    @Override
+    public void onError(Throwable throwable) {
+        error = throwable;
+        queue.offer(END);
+    }
+    
+    @Override
+    public void onComplete() {
+        queue.offer(END);
+    }
+    
+    /**
+     * Returns the current buffer with remaining bytes, or null at the end of the body.
+     */
+    private ByteBuffer current() throws IOException {
+        while (buffer == null || !buffer.hasRemaining()) {
+            if (buffers != null && buffers.hasNext()) {
+                buffer = buffers.next();
+                continue;
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (ended) {
+                return null;
+            }
+            final List<ByteBuffer> item;
+            try {
+                item = queue.poll(readTimeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IOException("Interrupted while reading the body", e);
+            }
+            if (item == null) {
+                close();
+                throw new SocketTimeoutException(String.format("No data received within %d ms", readTimeout));
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (item == END) {
+                ended = true;
+                if (error != null) {
+                    throw error instanceof IOException ? (IOException) error : new IOException(error);
+                }
+                return null;
+            }
+            buffers = item.iterator();
+            subscription.request(1);
+        }
+        return buffer;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        final ByteBuffer buffer = current();
+        if (buffer == null) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        final ByteBuffer buffer = current();
+        if (buffer == null) {
+            return -1;
+        }
+        final int read = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, read);
+        return read;
+    }
+    
+    @Override
+    public int available() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+    
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        final Flow.Subscription subscription = this.subscription;
+        if (subscription != null) {
+            subscription.cancel();
+        }
+        // Wakes up a reader blocked in another thread
+        queue.offer(END);
+    }
+    
+}
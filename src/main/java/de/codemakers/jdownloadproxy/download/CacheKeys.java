@@ -0,0 +1,366 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Application;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Canonical cache keys, so URLs which only differ in irrelevant details share one cache entry.
+ * <p>
+ * Keys are built from the {@link URI} only, so unlike {@link URL#equals(Object)} and {@link URL#hashCode()} they never resolve host names.
+ * Every key has a lower case scheme and host, no default port, no fragment, no dot segments and upper case percent escapes.
+ * On top of that the {@link Rule}s from {@code cache_keys.txt} (one per line: host pattern, action, parameters) rewrite the query, e.g.
+ * <pre>
+ * *                    drop utm_* fbclid gclid
+ * cdn.example.com      sort
+ * *.amazonaws.com      strip-signature
+ * downloads.example.com keep id version
+ * </pre>
+ * The key is only used to look up the cache, downloads always use the original URL (including signatures).
+ */
+public class CacheKeys {
+    
+    public static final String RULES_FILENAME = "cache_keys.txt";
+    public static final List<String> DEFAULT_RULES = List.of("* drop utm_* fbclid gclid msclkid");
+    /**
+     * Query parameters of signed URLs (AWS, Google Cloud Storage, CloudFront and Azure SAS), which change with every signature.
+     */
+    public static final List<String> SIGNATURE_PARAMETERS = List.of("X-Amz-*", "AWSAccessKeyId", "Signature", "Expires", "X-Goog-*", "GoogleAccessId", "Key-Pair-Id", "Policy", "sig", "se", "st", "sp", "sv", "sr", "spr", "skoid", "sktid", "skt", "ske", "sks", "skv");
+    
+    private static final Pattern PATTERN_PERCENT_ESCAPE = Pattern.compile("%[0-9a-fA-F]{2}");
+    private static final AtomicLong KEYS = new AtomicLong();
+    private static final AtomicLong REWRITTEN = new AtomicLong();
+    
+    public enum Action {
+        /**
+         * Removes the parameters.
+         */
+        DROP,
+        /**
+         * Removes every parameter except the given ones.
+         */
+        KEEP,
+        /**
+         * Sorts the parameters by name (keeping the order of repeated ones).
+         */
+        SORT,
+        /**
+         * Removes the {@link #SIGNATURE_PARAMETERS} and the given ones.
+         */
+        STRIP_SIGNATURE
+    }
+    
+    /**
+     * Returns the cache key of the URL.
+     */
+    public static String of(URL url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            return count(url.toString(), canonicalize(url.toURI(), RuleSet.RULES));
+        } catch (URISyntaxException e) {
+            // Not a valid URI (e.g. unescaped spaces), so only the parts URL already parsed get normalized
+            final String url_ = url.toString();
+            return count(url_, url.getProtocol().toLowerCase(Locale.ROOT) + url_.substring(url.getProtocol().length()));
+        }
+    }
+    
+    /**
+     * Returns the cache key of a URL given as String (e.g. a key stored before the current rules were configured).
+     */
+    public static String of(String url) {
+        if (url == null) {
+            return null;
+        }
+        try {
+            return count(url, canonicalize(new URI(url), RuleSet.RULES));
+        } catch (URISyntaxException e) {
+            return count(url, url);
+        }
+    }
+    
+    private static String count(String url, String key) {
+        KEYS.incrementAndGet();
+        if (!url.equals(key)) {
+            REWRITTEN.incrementAndGet();
+        }
+        return key;
+    }
+    
+    public static String canonicalize(URI uri, List<Rule> rules) {
+        if (uri.isOpaque() || uri.getScheme() == null) {
+            return uri.toString();
+        }
+        uri = uri.normalize();
+        final String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        final String host = uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.ROOT);
+        final StringBuilder stringBuilder = new StringBuilder(scheme).append("://");
+        if (host == null) {
+            // Registry based authority (or none, e.g. "file:///")
+            if (uri.getRawAuthority() != null) {
+                stringBuilder.append(uri.getRawAuthority());
+            }
+        } else {
+            if (uri.getRawUserInfo() != null) {
+                stringBuilder.append(uri.getRawUserInfo()).append('@');
+            }
+            stringBuilder.append(host);
+            if (uri.getPort() != -1 && uri.getPort() != getDefaultPort(scheme)) {
+                stringBuilder.append(':').append(uri.getPort());
+            }
+        }
+        final String path = uri.getRawPath();
+        stringBuilder.append(path == null || path.isEmpty() ? "/" : normalizeEscapes(path));
+        if (uri.getRawQuery() != null) {
+            List<String> parameters = new ArrayList<>(Arrays.asList(normalizeEscapes(uri.getRawQuery()).split("&")));
+            parameters.removeIf(String::isEmpty);
+            for (Rule rule : rules) {
+                if (rule.matchesHost(host)) {
+                    parameters = rule.apply(parameters);
+                }
+            }
+            if (!parameters.isEmpty()) {
+                stringBuilder.append('?').append(String.join("&", parameters));
+            }
+        }
+        return stringBuilder.toString();
+    }
+    
+    private static int getDefaultPort(String scheme) {
+        switch (scheme) {
+            case "http":
+                return 80;
+            case "https":
+                return 443;
+            case "ftp":
+                return 21;
+            default:
+                return -1;
+        }
+    }
+    
+    private static String normalizeEscapes(String string) {
+        if (string.indexOf('%') == -1) {
+            return string;
+        }
+        final Matcher matcher = PATTERN_PERCENT_ESCAPE.matcher(string);
+        final StringBuilder stringBuilder = new StringBuilder();
+        while (matcher.find()) {
+            matcher.appendReplacement(stringBuilder, matcher.group().toUpperCase(Locale.ROOT));
+        }
+        matcher.appendTail(stringBuilder);
+        return stringBuilder.toString();
+    }
+    
+    public static List<Rule> getRules() {
+        return Collections.unmodifiableList(RuleSet.RULES);
+    }
+    
+    /**
+     * Adds a rule and re-keys the index, so existing entries are found with the new rule.
+     */
+    public static boolean addRule(String line) {
+        final Rule rule = Rule.parse(line);
+        if (rule == null) {
+            return false;
+        }
+        RuleSet.RULES.add(rule);
+        RuleSet.save();
+        Downloader.rekeyIndex();
+        return true;
+    }
+    
+    /**
+     * Removes a rule, entries which were merged by it stay merged.
+     */
+    public static boolean removeRule(int index) {
+        synchronized (RuleSet.class) {
+            if (index < 0 || index >= RuleSet.RULES.size()) {
+                return false;
+            }
+            RuleSet.RULES.remove(index);
+        }
+        RuleSet.save();
+        return true;
+    }
+    
+    public static long getKeys() {
+        return KEYS.get();
+    }
+    
+    /**
+     * Returns the number of keys, which differ from the URL they were built from.
+     */
+    public static long getRewritten() {
+        return REWRITTEN.get();
+    }
+    
+    /**
+     * Holds the configured rules, separate from {@link CacheKeys}, so {@link #canonicalize(URI, List)} can be used without loading them.
+     */
+    private static class RuleSet {
+        
+        private static final File RULES_FILE = new File(Application.APPLICATION_FOLDER, RULES_FILENAME);
+        private static final List<Rule> RULES = new CopyOnWriteArrayList<>(load());
+        
+        private static List<Rule> load() {
+            List<String> lines = DEFAULT_RULES;
+            if (RULES_FILE.exists()) {
+                try {
+                    lines = Files.readAllLines(RULES_FILE.toPath(), StandardCharsets.UTF_8);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            final List<Rule> rules = new ArrayList<>();
+            for (String line : lines) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final Rule rule = Rule.parse(line);
+                if (rule == null) {
+                    System.err.printf("[WARNING][%s#load] Skipping invalid rule \"%s\"%n", CacheKeys.class.getSimpleName(), line);
+                    continue;
+                }
+                rules.add(rule);
+            }
+            return rules;
+        }
+        
+        private static synchronized void save() {
+            try {
+                Files.write(RULES_FILE.toPath(), RULES.stream().map(Rule::toString).collect(Collectors.toList()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        
+    }
+    
+    public static class Rule {
+        
+        private final String hostPattern;
+        private final Action action;
+        private final List<String> parameters;
+        
+        public Rule(String hostPattern, Action action, List<String> parameters) {
+            this.hostPattern = hostPattern.toLowerCase(Locale.ROOT);
+            this.action = action;
+            this.parameters = parameters;
+        }
+        
+        /**
+         * Parses "host-pattern action [parameter...]", returning null if the line is invalid.
+         */
+        public static Rule parse(String line) {
+            final String[] parts = line.trim().split("\\s+");
+            if (parts.length < 2) {
+                return null;
+            }
+            final Action action;
+            try {
+                action = Action.valueOf(parts[1].toUpperCase(Locale.ROOT).replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            final List<String> parameters = Arrays.asList(Arrays.copyOfRange(parts, 2, parts.length));
+            if ((action == Action.DROP || action == Action.KEEP) && parameters.isEmpty()) {
+                return null;
+            }
+            return new Rule(parts[0], action, parameters);
+        }
+        
+        /**
+         * "*" matches every host, "*.example.com" matches "example.com" and its subdomains.
+         */
+        public boolean matchesHost(String host) {
+            if (hostPattern.equals("*")) {
+                return true;
+            }
+            if (host == null) {
+                return false;
+            }
+            if (hostPattern.startsWith("*.")) {
+                final String domain = hostPattern.substring(2);
+                return host.equals(domain) || host.endsWith("." + domain);
+            }
+            return host.equals(hostPattern);
+        }
+        
+        public List<String> apply(List<String> parameters) {
+            switch (action) {
+                case DROP:
+                    return parameters.stream().filter((parameter) -> !matchesName(this.parameters, parameter)).collect(Collectors.toList());
+                case KEEP:
+                    return parameters.stream().filter((parameter) -> matchesName(this.parameters, parameter)).collect(Collectors.toList());
+                case SORT:
+                    return parameters.stream().sorted(Comparator.comparing(Rule::getName)).collect(Collectors.toList());
+                case STRIP_SIGNATURE:
+                    return parameters.stream().filter((parameter) -> !matchesName(SIGNATURE_PARAMETERS, parameter) && !matchesName(this.parameters, parameter)).collect(Collectors.toList());
+                default:
+                    return parameters;
+            }
+        }
+        
+        private static String getName(String parameter) {
+            final int index = parameter.indexOf('=');
+            return index == -1 ? parameter : parameter.substring(0, index);
+        }
+        
+        /**
+         * Names are compared case insensitive, a trailing "*" matches every name with that prefix.
+         */
+        private static boolean matchesName(List<String> names, String parameter) {
+            final String name = getName(parameter);
+            for (String name_ : names) {
+                if (name_.endsWith("*") ? name.regionMatches(true, 0, name_, 0, name_.length() - 1) : name.equalsIgnoreCase(name_)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        public String toString() {
+            return hostPattern + " " + action.name().toLowerCase(Locale.ROOT).replace('_', '-') + (parameters.isEmpty() ? "" : " " + String.join(" ", parameters));
+        }
+        
+    }
+    
+}
@@ -0,0 +1,579 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Application;
+import de.codemakers.jdownloadproxy.Config;
+import de.codemakers.jdownloadproxy.Util;
+import de.codemakers.jdownloadproxy.hash.Chunker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Optional deduplicating storage, which stores files as content-defined chunks (see {@link Chunker}).
+ * <p>
+ * Every chunk is stored once under its SHA-256 in the {@link #CHUNKS_FOLDER_NAME} folder of a volume (see {@link StorageVolumes#place(String)}),
+ * and every file is a manifest in {@link #MANIFESTS_FOLDER} listing its chunks.
+ * Chunks are reference counted and deleted together with the last manifest using them.
+ * Changes of a chunk (or a manifest) only hold the lock of its hash, so commits of different content don't wait for each other.
+ * Manifest layout: {@code MAGIC (int), VERSION (int), length (long), chunk count (int), [chunk length (int), chunk SHA-256 (32 bytes)]*}.
+ */
+public class ChunkStore {
+    
+    public static final boolean ENABLED = Config.getBoolean("chunks.enabled", false);
+    public static final int MIN_SIZE = Config.getInt("chunks.min_size", 256 * 1024);
+    public static final int AVG_SIZE = Config.getInt("chunks.avg_size", 1024 * 1024);
+    public static final int MAX_SIZE = Config.getInt("chunks.max_size", 4 * 1024 * 1024);
+    /**
+     * Checks the SHA-256 of every chunk read completely (see {@link ChunkInputStream}), the {@link IntegrityScrubber} checks all of them in the background anyway.
+     */
+    public static final boolean VERIFY = Config.getBoolean("chunks.verify", true);
+    public static final int LOCK_STRIPES = Config.getInt("chunks.lock_stripes", 256);
+    public static final String CHUNKS_FOLDER_NAME = "Chunks";
+    /**
+     * Where chunks were stored before they got placed on the volumes, they are still read and deleted from there, but new ones are never written to it.
+     */
+    public static final File CHUNKS_FOLDER = new File(Application.APPLICATION_FOLDER, CHUNKS_FOLDER_NAME);
+    public static final File MANIFESTS_FOLDER = new File(Application.APPLICATION_FOLDER, "Manifests");
+    public static final int MAGIC = 0x4A44504D; // "JDPM"
+    public static final int VERSION = 1;
+    
+    private static final int DIGEST_LENGTH = 32;
+    private static final Chunker CHUNKER = new Chunker(MIN_SIZE, AVG_SIZE, MAX_SIZE);
+    /**
+     * Reference count and size of every stored chunk, loaded from the manifests on first use.
+     * An entry is only changed while holding the lock of its chunk hash.
+     */
+    private static final Map<String, long[]> CHUNKS = new ConcurrentHashMap<>();
+    /**
+     * Keyed by chunk hashes and by the hashes of manifests.
+     */
+    private static final StripedLock LOCKS = new StripedLock(LOCK_STRIPES);
+    private static final AtomicInteger MANIFESTS = new AtomicInteger();
+    private static final AtomicLong LOGICAL_BYTES = new AtomicLong();
+    private static final AtomicLong PHYSICAL_BYTES = new AtomicLong();
+    private static volatile boolean loaded = false;
+    
+    public static File getManifestFile(String hash) {
+        return new File(MANIFESTS_FOLDER, hash);
+    }
+    
+    public static boolean isManifest(File file) {
+        return file != null && MANIFESTS_FOLDER.equals(file.getParentFile());
+    }
+    
+    /**
+     * @return The chunk folders of all volumes and the old {@link #CHUNKS_FOLDER}
+     */
+    private static List<File> getChunkFolders() {
+        final List<File> folders = new ArrayList<>();
+        StorageVolumes.getVolumes().forEach((volume) -> folders.add(new File(volume.getFolder(), CHUNKS_FOLDER_NAME)));
+        folders.add(CHUNKS_FOLDER);
+        return folders;
+    }
+    
+    private static File getChunkFile(File folder, String chunkHash) {
+        // Sharded, so no single folder gets millions of entries
+        return new File(new File(folder, chunkHash.substring(0, 2)), chunkHash);
+    }
+    
+    /**
+     * @return The file of the chunk, or null if it isn't stored
+     */
+    public static File findChunk(String chunkHash) {
+        for (File folder : getChunkFolders()) {
+            final File chunkFile = getChunkFile(folder, chunkHash);
+            if (chunkFile.exists()) {
+                return chunkFile;
+            }
+        }
+        return null;
+    }
+    
+    private static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (ChunkStore.class) {
+            if (loaded) {
+                return;
+            }
+            final File[] files = MANIFESTS_FOLDER.listFiles((file) -> file.isFile() && !file.getName().endsWith(".tmp"));
+            if (files != null) {
+                final long started = System.currentTimeMillis();
+                for (File file : files) {
+                    try {
+                        reference(Manifest.read(file));
+                    } catch (IOException e) {
+                        System.err.printf("[WARNING][%s#ensureLoaded] Can't read manifest \"%s\": %s%n", ChunkStore.class.getSimpleName(), file.getAbsolutePath(), e);
+                    }
+                }
+                System.out.printf("[INFO ][%s#ensureLoaded] Loaded %d manifests with %d chunks in %d ms%n", ChunkStore.class.getSimpleName(), MANIFESTS.get(), CHUNKS.size(), System.currentTimeMillis() - started);
+            }
+            loaded = true;
+        }
+    }
+    
+    private static void reference(Manifest manifest) {
+        MANIFESTS.incrementAndGet();
+        LOGICAL_BYTES.addAndGet(manifest.length);
+        for (int i = 0; i < manifest.chunkHashes.size(); i++) {
+            final String chunkHash = manifest.chunkHashes.get(i);
+            final ReentrantLock lock = LOCKS.get(chunkHash);
+            lock.lock();
+            try {
+                referenceChunk(chunkHash, manifest.chunkLengths.get(i), 1);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Must only be called while holding the lock of the chunk hash.
+     *
+     * @return The reference count after the change
+     */
+    private static long referenceChunk(String chunkHash, long length, int delta) {
+        final long[] chunk = CHUNKS.computeIfAbsent(chunkHash, (chunkHash_) -> new long[] {0, length});
+        if (chunk[0] == 0 && delta > 0) {
+            PHYSICAL_BYTES.addAndGet(length);
+        }
+        chunk[0] += delta;
+        if (chunk[0] <= 0) {
+            CHUNKS.remove(chunkHash);
+            PHYSICAL_BYTES.addAndGet(-length);
+            return 0;
+        }
+        return chunk[0];
+    }
+    
+    /**
+     * Splits the file into chunks, stores the new ones and writes the manifest for the hash.
+     *
+     * @return The manifest file
+     */
+    public static File store(File file, String hash) throws IOException {
+        ensureLoaded();
+        final Manifest manifest = new Manifest();
+        final MessageDigest messageDigest = Util.getMessageDigestInstance();
+        final byte[] buffer = new byte[2 * CHUNKER.getMaxSize()];
+        int position = 0;
+        int limit = 0;
+        boolean endOfFile = false;
+        try (final InputStream inputStream = new FileInputStream(file)) {
+            while (true) {
+                if (!endOfFile && limit - position < CHUNKER.getMaxSize()) {
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                    final int read = inputStream.readNBytes(buffer, limit, buffer.length - limit);
+                    limit += read;
+                    endOfFile = limit < buffer.length;
+                }
+                if (position >= limit) {
+                    break;
+                }
+                final int length = CHUNKER.cut(buffer, position, limit - position);
+                messageDigest.update(buffer, position, length);
+                final String chunkHash = Util.base64URLencodeToString(messageDigest.digest());
+                storeChunk(chunkHash, buffer, position, length);
+                manifest.add(chunkHash, length);
+                position += length;
+            }
+            final File manifestFile = getManifestFile(hash);
+            final ReentrantLock lock = LOCKS.get(hash);
+            lock.lock();
+            try {
+                if (manifestFile.exists()) {
+                    // Someone else stored the same content meanwhile
+                    release(manifest);
+                    return manifestFile;
+                }
+                manifest.write(manifestFile);
+                MANIFESTS.incrementAndGet();
+                LOGICAL_BYTES.addAndGet(manifest.length);
+            } finally {
+                lock.unlock();
+            }
+            return manifestFile;
+        } catch (IOException | RuntimeException ex) {
+            // Gives back the references of the chunks stored so far
+            release(manifest);
+            throw ex;
+        }
+    }
+    
+    /**
+     * Writes the chunk unless it is already stored, and references it (in one step, so a concurrent delete can't remove it in between).
+     * <p>
+     * New chunks are written to a temporary file on their volume outside the lock, so commits of different content don't wait for each other's writes.
+     */
+    private static void storeChunk(String chunkHash, byte[] buffer, int offset, int length) throws IOException {
+        final ReentrantLock lock = LOCKS.get(chunkHash);
+        lock.lock();
+        try {
+            if (CHUNKS.containsKey(chunkHash) && findChunk(chunkHash) != null) {
+                referenceChunk(chunkHash, length, 1);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        final StorageVolumes.Volume volume = StorageVolumes.place(chunkHash);
+        final File chunkFile = getChunkFile(new File(volume.getFolder(), CHUNKS_FOLDER_NAME), chunkHash);
+        chunkFile.getParentFile().mkdirs();
+        final File tempFile;
+        try {
+            tempFile = File.createTempFile(chunkHash, ".tmp", chunkFile.getParentFile());
+        } catch (IOException ex) {
+            StorageVolumes.reportFailure(chunkFile, ex);
+            throw new VolumeException("Can't create a temporary file in \"" + chunkFile.getParentFile().getAbsolutePath() + "\"", ex);
+        }
+        try {
+            try (final FileOutputStream fileOutputStream = new FileOutputStream(tempFile, false)) {
+                fileOutputStream.write(buffer, offset, length);
+            }
+            lock.lock();
+            try {
+                // Someone else may have stored the same chunk meanwhile
+                if (!CHUNKS.containsKey(chunkHash) || findChunk(chunkHash) == null) {
+                    try {
+                        Files.move(tempFile.toPath(), chunkFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException ex) {
+                        StorageVolumes.reportFailure(chunkFile, ex);
+                        throw new VolumeException("Can't move \"" + tempFile.getAbsolutePath() + "\" to \"" + chunkFile.getAbsolutePath() + "\"", ex);
+                    }
+                }
+                referenceChunk(chunkHash, length, 1);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            tempFile.delete();
+        }
+    }
+    
+    private static void release(Manifest manifest) {
+        for (int i = 0; i < manifest.chunkHashes.size(); i++) {
+            releaseChunk(manifest.chunkHashes.get(i), manifest.chunkLengths.get(i));
+        }
+    }
+    
+    private static void releaseChunk(String chunkHash, long length) {
+        final ReentrantLock lock = LOCKS.get(chunkHash);
+        lock.lock();
+        try {
+            if (referenceChunk(chunkHash, length, -1) == 0) {
+                // Also deletes copies left on other volumes (e.g. from before the chunk was stored again)
+                for (File folder : getChunkFolders()) {
+                    getChunkFile(folder, chunkHash).delete();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Deletes the manifest and every chunk no other manifest uses.
+     */
+    public static boolean delete(File manifestFile) {
+        ensureLoaded();
+        final Manifest manifest;
+        final ReentrantLock lock = LOCKS.get(manifestFile.getName());
+        lock.lock();
+        try {
+            try {
+                manifest = Manifest.read(manifestFile);
+            } catch (IOException e) {
+                return manifestFile.delete();
+            }
+            if (!manifestFile.delete()) {
+                return false;
+            }
+            MANIFESTS.decrementAndGet();
+            LOGICAL_BYTES.addAndGet(-manifest.length);
+        } finally {
+            lock.unlock();
+        }
+        release(manifest);
+        return true;
+    }
+    
+    /**
+     * Reassembles the file, the chunks get opened one after another while reading.
+     */
+    public static InputStream open(File manifestFile) throws IOException {
+        final Manifest manifest = Manifest.read(manifestFile);
+        final Iterator<String> iterator = manifest.chunkHashes.iterator();
+        return new SequenceInputStream(new Enumeration<>() {
+            @Override
+            public boolean hasMoreElements() {
+                return iterator.hasNext();
+            }
+            
+            @Override
+            public InputStream nextElement() {
+                if (!iterator.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final String chunkHash = iterator.next();
+                final File chunkFile = findChunk(chunkHash);
+                try {
+                    if (chunkFile == null) {
+                        throw new FileNotFoundException("Chunk \"" + chunkHash + "\" is missing");
+                    }
+                    final InputStream inputStream = new FileInputStream(chunkFile);
+                    return VERIFY ? new ChunkInputStream(inputStream, chunkHash) : inputStream;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+    
+    /**
+     * @return The hashes of all stored chunks
+     */
+    public static List<String> listChunks() {
+        final Set<String> chunkHashes = new LinkedHashSet<>();
+        for (File folder : getChunkFolders()) {
+            final File[] shards = folder.listFiles(File::isDirectory);
+            if (shards == null) {
+                continue;
+            }
+            for (File shard : shards) {
+                final File[] files = shard.listFiles((file) -> file.isFile() && !file.getName().endsWith(".tmp"));
+                if (files != null) {
+                    for (File file : files) {
+                        chunkHashes.add(file.getName());
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(chunkHashes);
+    }
+    
+    /**
+     * Moves a corrupt chunk away, so the next file containing it stores it again instead of referencing the corrupt one.
+     */
+    public static void quarantineChunk(String chunkHash, File quarantinedFile) throws IOException {
+        final ReentrantLock lock = LOCKS.get(chunkHash);
+        lock.lock();
+        try {
+            final File chunkFile = findChunk(chunkHash);
+            if (chunkFile == null) {
+                throw new FileNotFoundException("Chunk \"" + chunkHash + "\" is missing");
+            }
+            Files.move(chunkFile.toPath(), quarantinedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Reads every manifest, so it is only meant for rare cases like a corrupt chunk.
+     *
+     * @return The hashes of the files containing the chunk
+     */
+    public static List<String> getHashesUsing(String chunkHash) {
+        final List<String> hashes = new ArrayList<>();
+        final File[] files = MANIFESTS_FOLDER.listFiles((file) -> file.isFile() && !file.getName().endsWith(".tmp"));
+        if (files == null) {
+            return hashes;
+        }
+        for (File file : files) {
+            try {
+                if (Manifest.read(file).chunkHashes.contains(chunkHash)) {
+                    hashes.add(file.getName());
+                }
+            } catch (IOException e) {
+                System.err.printf("[WARNING][%s#getHashesUsing] Can't read manifest \"%s\": %s%n", ChunkStore.class.getSimpleName(), file.getAbsolutePath(), e);
+            }
+        }
+        return hashes;
+    }
+    
+    public static long getLength(File manifestFile) {
+        try (final DataInputStream dataInputStream = new DataInputStream(new FileInputStream(manifestFile))) {
+            if (dataInputStream.readInt() != MAGIC) {
+                return -1;
+            }
+            dataInputStream.readInt();
+            return dataInputStream.readLong();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+    
+    public static Map<String, Object> getStats() {
+        ensureLoaded();
+        final long logicalBytes = LOGICAL_BYTES.get();
+        final long physicalBytes = PHYSICAL_BYTES.get();
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", ENABLED);
+        stats.put("min_size", MIN_SIZE);
+        stats.put("avg_size", AVG_SIZE);
+        stats.put("max_size", MAX_SIZE);
+        stats.put("verify", VERIFY);
+        stats.put("files", MANIFESTS.get());
+        stats.put("chunks", CHUNKS.size());
+        stats.put("logical_bytes", logicalBytes);
+        stats.put("physical_bytes", physicalBytes);
+        stats.put("dedup_ratio", physicalBytes == 0 ? 1.0 : (double) logicalBytes / physicalBytes);
+        return stats;
+    }
+    
+    /**
+     * Checks the SHA-256 of the chunk once it was read to the end, so a corrupt chunk fails the read instead of being served.
+     */
+    private static class ChunkInputStream extends FilterInputStream {
+        
+        private final String chunkHash;
+        private final MessageDigest messageDigest = Util.getMessageDigestInstance();
+        private boolean skipped = false;
+        private boolean verified = false;
+        
+        private ChunkInputStream(InputStream inputStream, String chunkHash) {
+            super(inputStream);
+            this.chunkHash = chunkHash;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            if (value < 0) {
+                verify();
+            } else {
+                messageDigest.update((byte) value);
+            }
+            return value;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if (read < 0) {
+                verify();
+            } else {
+                messageDigest.update(buffer, offset, read);
+            }
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes aren't digested, so the chunk can't be checked anymore
+            skipped = true;
+            return super.skip(n);
+        }
+        
+        private void verify() throws IOException {
+            if (skipped || verified) {
+                return;
+            }
+            verified = true;
+            final String actualHash = Util.base64URLencodeToString(messageDigest.digest());
+            if (!chunkHash.equals(actualHash)) {
+                throw new IOException("Chunk \"" + chunkHash + "\" is corrupt, its hash is \"" + actualHash + "\"");
+            }
+        }
+        
+    }
+    
+    private static class Manifest {
+        
+        private final List<String> chunkHashes = new ArrayList<>();
+        private final List<Integer> chunkLengths = new ArrayList<>();
+        private long length = 0;
+        
+        private void add(String chunkHash, int length) {
+            chunkHashes.add(chunkHash);
+            chunkLengths.add(length);
+            this.length += length;
+        }
+        
+        private static Manifest read(File file) throws IOException {
+            try (final DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (dataInputStream.readInt() != MAGIC || dataInputStream.readInt() != VERSION) {
+                    throw new IOException("Not a chunk manifest: " + file.getAbsolutePath());
+                }
+                final Manifest manifest = new Manifest();
+                final long length = dataInputStream.readLong();
+                final int count = dataInputStream.readInt();
+                final byte[] digest = new byte[DIGEST_LENGTH];
+                for (int i = 0; i < count; i++) {
+                    final int chunkLength = dataInputStream.readInt();
+                    dataInputStream.readFully(digest);
+                    manifest.add(Util.base64URLencodeToString(digest), chunkLength);
+                }
+                if (manifest.length != length) {
+                    throw new IOException("Corrupt chunk manifest: " + file.getAbsolutePath());
+                }
+                return manifest;
+            }
+        }
+        
+        private void write(File file) throws IOException {
+            file.getParentFile().mkdirs();
+            final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            try (final DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile, false)))) {
+                dataOutputStream.writeInt(MAGIC);
+                dataOutputStream.writeInt(VERSION);
+                dataOutputStream.writeLong(length);
+                dataOutputStream.writeInt(chunkHashes.size());
+                for (int i = 0; i < chunkHashes.size(); i++) {
+                    dataOutputStream.writeInt(chunkLengths.get(i));
+                    dataOutputStream.write(Util.base64URLdecode(chunkHashes.get(i)));
+                }
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        
+    }
+    
+}
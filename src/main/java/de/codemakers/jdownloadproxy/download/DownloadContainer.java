@@ -19,22 +19,43 @@ package de.codemakers.jdownloadproxy.download;
 
 import de.codemakers.jdownloadproxy.Util;
 
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
 
 public class DownloadContainer {
     
-    private static final int DEFAULT_BUFFER_SIZE = 8192;
-    
     private final DownloadInfo downloadInfo;
-    private transient File file;
+    private transient StoredObject storedObject;
     private transient boolean forceDownload;
+    private transient int priority = Downloader.PRIORITY_NORMAL;
+    private transient String validator = null;
+    private transient volatile OriginFetcher.OriginResponse originResponse = null;
+    private transient volatile boolean suspended = false;
+    private transient volatile boolean cancelled = false;
+    private transient volatile boolean keepPart = false;
+    // Guarded by this, only set while the origin is opened or transferred, so a cancellation never interrupts the hashing or the commit
+    private transient Thread transferThread = null;
+    /**
+     * The subscription of the client which created the download, every client sharing it got its own (see {@link #subscribe(UUID)}).
+     */
+    private final transient UUID subscription = UUID.randomUUID();
+    // Guarded by this, a cancellation removes the subscription of its client, so a repeated cancel of the same client doesn't drop another one
+    private final transient Set<UUID> subscriptions = new HashSet<>(Set.of(subscription));
+    private final transient List<URI> callbacks = new ArrayList<>();
     
     public DownloadContainer(URL url) {
         this(UUID.randomUUID(), url, null);
@@ -57,21 +78,28 @@ public class DownloadContainer {
     }
     
     private boolean checkCache() {
-        Downloader.loadHashes();
-        final URL url = getDownloadInfo().getUrl();
+        for (URL url : MirrorGroups.getEquivalentURLs(getDownloadInfo().getUrl())) {
+            if (checkCache(url)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private boolean checkCache(URL url) {
         if (Downloader.hasHashForURL(url)) {
             final String hash = Downloader.getHashForURL(url);
-            final File file = Downloader.getFileForHash(hash);
+            final StoredObject storedObject = Downloader.getStoredObjectForHash(hash);
             final String filename = Downloader.getFilenameForURL(url);
-            if (file != null && file.exists()) {
-                getDownloadInfo().setTotalBytes(file.length());
-                getDownloadInfo().setReceivedBytes(file.length());
-                finish(file, filename, hash);
+            if (Downloader.isStored(storedObject)) {
+                getDownloadInfo().setTotalBytes(storedObject.getLength());
+                getDownloadInfo().setReceivedBytes(storedObject.getLength());
+                finish(storedObject, filename, hash);
                 return true;
             } else {
                 Downloader.removeHashForURL(url);
                 Downloader.removeFilenameForURL(url);
-                Downloader.saveHashes();
+                Downloader.requestSaveHashes();
             }
         }
         return false;
@@ -81,12 +109,12 @@ public class DownloadContainer {
         return downloadInfo;
     }
     
-    public File getFile() {
-        return file;
+    public StoredObject getStoredObject() {
+        return storedObject;
     }
     
-    public DownloadContainer setFile(File file) {
-        this.file = file;
+    public DownloadContainer setStoredObject(StoredObject storedObject) {
+        this.storedObject = storedObject;
         return this;
     }
     
@@ -99,6 +127,166 @@ public class DownloadContainer {
         return this;
     }
     
+    public int getPriority() {
+        return priority;
+    }
+    
+    public DownloadContainer setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+    
+    /**
+     * Returns the ETag or Last-Modified value the part file was received with, or null if it can't be resumed.
+     */
+    public String getValidator() {
+        return validator;
+    }
+    
+    public DownloadContainer setValidator(String validator) {
+        this.validator = validator;
+        return this;
+    }
+    
+    /**
+     * Stops a running transfer at its current position and puts the download back into {@link DownloadStatus#QUEUED}, without counting it as a failed attempt.
+     *
+     * @return true if a transfer was running
+     */
+    protected boolean suspend() {
+        suspended = true;
+        final OriginFetcher.OriginResponse originResponse = this.originResponse;
+        if (originResponse == null) {
+            return false;
+        }
+        originResponse.close();
+        return true;
+    }
+    
+    /**
+     * Adds another client to an unfinished download, so the same URL is only transferred once at a time.
+     *
+     * @param subscription Identifies the client in {@link #cancel(UUID, boolean)}
+     *
+     * @return false if the download is already done (or cancelled), so a new one has to be created
+     */
+    protected synchronized boolean subscribe(UUID subscription) {
+        if (cancelled || getDownloadInfo().getDownloadStatus().isDone()) {
+            return false;
+        }
+        subscriptions.add(subscription);
+        return true;
+    }
+    
+    /**
+     * @return The subscription of the client which created the download
+     */
+    public UUID getSubscription() {
+        return subscription;
+    }
+    
+    public synchronized int getSubscribers() {
+        return subscriptions.size();
+    }
+    
+    public boolean cancel(boolean keepPart) {
+        return cancel(null, keepPart);
+    }
+    
+    /**
+     * Drops the subscriber and cancels the download once none remain.
+     * <p>
+     * A running transfer is interrupted and its origin connection closed, a queued or retrying download never starts again.
+     *
+     * @param subscription The subscription of the client (see {@link #subscribe(UUID)}), which is only dropped once, no matter how often it cancels.
+     * Without one any subscriber is dropped, so a client repeating the cancellation (e.g. after a timeout) drops another client's subscription as well.
+     * @param keepPart Keeps the part file, so {@link #resume()} can continue at the received bytes, otherwise it gets deleted
+     *
+     * @return true if the download got cancelled, false if it is already done, the subscription was already dropped or other subscribers remain
+     */
+    public synchronized boolean cancel(UUID subscription, boolean keepPart) {
+        if (cancelled || getDownloadInfo().getDownloadStatus().isDone()) {
+            return false;
+        }
+        if (subscription != null ? !subscriptions.remove(subscription) : !subscriptions.remove(subscriptions.iterator().next())) {
+            return false;
+        }
+        if (!subscriptions.isEmpty()) {
+            System.out.printf("[DEBUG][%s#cancel] \"%s\" still has %d subscribers%n", getClass().getSimpleName(), getDownloadInfo().getUrl(), subscriptions.size()); //DEBUG
+            return false;
+        }
+        this.keepPart = keepPart;
+        cancelled = true;
+        final DownloadStatus downloadStatus = getDownloadInfo().getDownloadStatus();
+        if (downloadStatus == DownloadStatus.QUEUED || downloadStatus == DownloadStatus.RETRYING) {
+            // No download thread is working on it, so it's cancelled right here
+            cancelled();
+            return true;
+        }
+        final OriginFetcher.OriginResponse originResponse = this.originResponse;
+        if (originResponse != null) {
+            originResponse.close();
+        }
+        if (transferThread != null) {
+            // Wakes it up while waiting for the origin (e.g. a hedged fetch)
+            transferThread.interrupt();
+        }
+        return true;
+    }
+    
+    /**
+     * Queues a cancelled download again, which continues at its received bytes if the part file was kept and the origin accepts ranges.
+     */
+    public boolean resume() {
+        synchronized (this) {
+            if (getDownloadInfo().getDownloadStatus() != DownloadStatus.CANCELLED) {
+                return false;
+            }
+            cancelled = false;
+            keepPart = false;
+            // Continues for the client which created it
+            subscriptions.add(subscription);
+            getDownloadInfo().setTimestampEnd(null);
+            getDownloadInfo().setDownloadStatus(DownloadStatus.QUEUED);
+        }
+        JobJournal.requestCheckpoint();
+        Downloader.startDownloadContainerAsync(this, getPriority());
+        return true;
+    }
+    
+    /**
+     * Deletes the part file of a cancelled download, which was kept for a {@link #resume()}.
+     */
+    protected void deletePart() {
+        final File tempFile = Downloader.createTempFileForUUID(getDownloadInfo().getUuid());
+        if (tempFile.exists() && !tempFile.delete()) {
+            System.err.printf("[WARNING][%s#deletePart] Can't delete part \"%s\"%n", getClass().getSimpleName(), tempFile.getAbsolutePath()); //DEBUG
+        }
+    }
+    
+    /**
+     * Registers a URL the {@link DownloadInfo} gets POSTed to once the download is finished or errored (see {@link Webhooks}), right away if it already is.
+     */
+    public void addCallback(URI callback) {
+        synchronized (this) {
+            final DownloadStatus downloadStatus = getDownloadInfo().getDownloadStatus();
+            if (downloadStatus != DownloadStatus.FINISHED && downloadStatus != DownloadStatus.ERRORED) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        Webhooks.notify(callback, getDownloadInfo());
+    }
+    
+    private void notifyCallbacks() {
+        final List<URI> callbacks_;
+        synchronized (this) {
+            callbacks_ = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        callbacks_.forEach((callback) -> Webhooks.notify(callback, getDownloadInfo()));
+    }
+    
     public void startAsync() {
         Downloader.startDownloadContainerAsync(this);
     }
@@ -112,12 +300,14 @@ public class DownloadContainer {
     }
     
     public boolean start(boolean forceDownload) {
-        getDownloadInfo().setTimestampStartNow();
-        final DownloadStatus downloadStatus = getDownloadInfo().getDownloadStatus();
-        if (downloadStatus.isDone() || downloadStatus.isLocked()) {
-            return false;
+        synchronized (this) {
+            final DownloadStatus downloadStatus = getDownloadInfo().getDownloadStatus();
+            if (downloadStatus.isDone() || downloadStatus.isLocked()) {
+                return false;
+            }
+            getDownloadInfo().setTimestampStartNow();
+            getDownloadInfo().setDownloadStatus(DownloadStatus.CHECKING);
         }
-        getDownloadInfo().setDownloadStatus(DownloadStatus.CHECKING);
         if (!forceDownload) {
             if (checkCache()) {
                 getDownloadInfo().setDownloadStatus(DownloadStatus.FINISHED);
@@ -134,60 +324,168 @@ public class DownloadContainer {
         return successful;
     }
     
+    /**
+     * Continues a download which is waiting for its next attempt.
+     */
+    protected void retry() {
+        synchronized (this) {
+            if (getDownloadInfo().getDownloadStatus() != DownloadStatus.RETRYING) {
+                return;
+            }
+            if (cancelled) {
+                cancelled();
+                return;
+            }
+            getDownloadInfo().setDownloadStatus(DownloadStatus.DOWNLOADING);
+        }
+        final int attempt = getDownloadInfo().getAttempts() + 1;
+        final boolean successful = download();
+        System.out.println(String.format("[INFO ][%s#retry] Attempt %d was %ssuccessful (\"%s\")", getClass().getSimpleName(), attempt, successful ? "" : "not ", getDownloadInfo().getUrl())); //DEBUG
+    }
+    
     private boolean download() {
         final DownloadInfo downloadInfo = getDownloadInfo();
         final File tempFile = Downloader.createTempFileForUUID(downloadInfo.getUuid());
         final URL url = downloadInfo.getUrl();
-        try {
-            final URLConnection urlConnection = url.openConnection();
-            urlConnection.connect();
-            final long totalBytes = urlConnection.getContentLengthLong();
+        // The part file is extended to the expected length up front, so only the reported progress tells how much of it is valid
+        final long resumeOffset = validator != null && tempFile.exists() ? Math.max(0, downloadInfo.getReceivedBytes()) : 0;
+        if (!beginTransfer()) {
+            fail(new InterruptedIOException("Cancelled before the transfer started"));
+            return false;
+        }
+        try (final OriginFetcher.OriginResponse originResponse = OriginFetcher.openHedged(MirrorGroups.getEquivalentURLs(url), resumeOffset, validator)) {
+            this.originResponse = originResponse;
+            if (suspended || cancelled) {
+                throw new InterruptedIOException((cancelled ? "Cancelled" : "Suspended") + " before the transfer started");
+            }
+            final long offset = originResponse.getOffset();
+            final long contentLength = originResponse.getContentLength();
+            final long totalBytes = contentLength < 0 ? -1 : offset + contentLength;
             downloadInfo.setTotalBytes(totalBytes);
-            try (final InputStream inputStream = urlConnection.getInputStream()) {
+            downloadInfo.setReceivedBytes(offset);
+            // This download is already part of the pending bytes
+            if (totalBytes > 0 && !AdmissionControl.hasSpaceFor(0)) {
+                throw new InsufficientStorageException(String.format("Not enough free disk space for %d Bytes from \"%s\"", totalBytes - offset, originResponse.getUrl()));
+            }
+            validator = originResponse.getValidator();
+            if (offset > 0) {
+                System.out.printf("[DEBUG][%s#download] Resuming \"%s\" at %d Bytes%n", getClass().getSimpleName(), originResponse.getUrl(), offset); //DEBUG
+            }
+            try (final InputStream inputStream = originResponse.getInputStream()) {
                 String filename = url.getFile();
                 final int index = filename.lastIndexOf("/");
                 if (index != -1) {
                     filename = filename.substring(index + 1);
                 }
                 filename = Util.sanitizeFilename(filename);
-                long transferred = 0;
-                try (final FileOutputStream fileOutputStream = new FileOutputStream(tempFile, false)) {
-                    //transferred = inputStream.transferTo(fileOutputStream); //OLD
-                    final byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-                    int read;
-                    while ((read = inputStream.read(buffer, 0, DEFAULT_BUFFER_SIZE)) >= 0) {
-                        fileOutputStream.write(buffer, 0, read);
-                        transferred += read;
-                        downloadInfo.setReceivedBytes(transferred);
+                final long transferred;
+                try (final FileChannel fileChannel = openTempFile(tempFile)) {
+                    if (offset == 0) {
+                        fileChannel.truncate(0);
                     }
+                    transferred = TransferPipeline.transfer(inputStream, fileChannel, offset, totalBytes, downloadInfo::setReceivedBytes);
                 }
-                System.out.printf("[DEBUG][%s#download] Transferred %d Bytes from \"%s\" to \"%s\"%n", getClass().getSimpleName(), transferred, url, tempFile.getAbsolutePath()); //DEBUG
-                final Map.Entry<File, String> entry = Downloader.handleFile(url, tempFile, filename, isForceDownload());
-                if (entry == null) {
-                    error(new NullPointerException("entry is null"));
-                    return false;
+                endTransfer();
+                if (cancelled) {
+                    throw new InterruptedIOException("Cancelled before the commit");
                 }
-                final File file = entry.getKey();
-                if (file == null) {
-                    error(new NullPointerException("file is null"));
+                if (totalBytes >= 0 && transferred < totalBytes) {
+                    throw new EOFException(String.format("Received only %d of %d Bytes from \"%s\"", transferred, totalBytes, originResponse.getUrl()));
+                }
+                System.out.printf("[DEBUG][%s#download] Transferred %d Bytes from \"%s\" to \"%s\"%n", getClass().getSimpleName(), transferred, originResponse.getUrl(), tempFile.getAbsolutePath()); //DEBUG
+                final Map.Entry<StoredObject, String> entry = Downloader.handleFile(url, tempFile, filename, isForceDownload());
+                if (entry == null) {
+                    error(new IOException("Failed storing \"" + tempFile.getAbsolutePath() + "\""));
                     return false;
                 }
-                finish(file, filename, entry.getValue());
+                Downloader.indexEquivalentURLs(url, entry.getValue(), filename);
+                NegativeCache.remove(url);
+                finish(entry.getKey(), filename, entry.getValue());
                 return true;
             }
         } catch (Exception ex) {
-            error(ex);
+            endTransfer();
+            // A cancellation can interrupt a write, which is no failure of the volume
+            if (ex instanceof VolumeException && !cancelled) {
+                // The next attempt gets placed on another volume
+                StorageVolumes.reportFailure(tempFile, ex);
+            }
+            fail(ex);
             return false;
+        } finally {
+            originResponse = null;
+        }
+    }
+    
+    private synchronized boolean beginTransfer() {
+        if (cancelled) {
+            return false;
+        }
+        transferThread = Thread.currentThread();
+        return true;
+    }
+    
+    private void endTransfer() {
+        synchronized (this) {
+            transferThread = null;
+        }
+        // Clears an interrupt of a cancellation, which came in after the transfer already ended
+        Thread.interrupted();
+    }
+    
+    private static FileChannel openTempFile(File tempFile) throws VolumeException {
+        try {
+            return FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException ex) {
+            throw new VolumeException("Can't open \"" + tempFile.getAbsolutePath() + "\"", ex);
+        }
+    }
+    
+    /**
+     * Schedules another attempt if the error is retryable, otherwise the download errors.
+     */
+    private void fail(Exception ex) {
+        if (cancelled) {
+            cancelled();
+            return;
+        }
+        if (suspended) {
+            System.out.printf("[INFO ][%s#fail] Suspended \"%s\" at %d Bytes%n", getClass().getSimpleName(), getDownloadInfo().getUrl(), getDownloadInfo().getReceivedBytes());
+            getDownloadInfo().setDownloadStatus(DownloadStatus.QUEUED);
+            return;
+        }
+        final int attempts = getDownloadInfo().getAttempts() + 1;
+        getDownloadInfo().setAttempts(attempts);
+        if (!RetryPolicy.shouldRetry(ex, attempts)) {
+            NegativeCache.put(getDownloadInfo().getUrl(), ex);
+            error(ex);
+            return;
+        }
+        final long delay = RetryPolicy.getDelay(ex, attempts);
+        System.err.printf("[WARNING][%s#fail] Attempt %d for \"%s\" failed (%s), retrying in %d ms%n", getClass().getSimpleName(), attempts, getDownloadInfo().getUrl(), ex, delay); //DEBUG
+        getDownloadInfo().setDownloadStatus(DownloadStatus.RETRYING);
+        Downloader.scheduleRetry(this, delay);
+    }
+    
+    private void cancelled() {
+        getDownloadInfo().setTimestampEndNow();
+        if (!keepPart) {
+            deletePart();
         }
+        System.out.printf("[INFO ][%s#cancelled] Cancelled \"%s\" at %d Bytes (part kept: %b)%n", getClass().getSimpleName(), getDownloadInfo().getUrl(), getDownloadInfo().getReceivedBytes(), keepPart);
+        getDownloadInfo().setDownloadStatus(DownloadStatus.CANCELLED);
+        JobJournal.requestCheckpoint();
     }
     
-    private void finish(File file, String filename, String hash) {
+    private void finish(StoredObject storedObject, String filename, String hash) {
         getDownloadInfo().setTimestampEndNow();
         System.out.printf("[DEBUG][%s#finish] Finished downloading: \"%s\"%n", getClass().getSimpleName(), getDownloadInfo().getUrl()); //DEBUG
-        setFile(file);
+        setStoredObject(storedObject);
         getDownloadInfo().setFilename(filename);
         getDownloadInfo().setHash(hash);
+        getDownloadInfo().setHashScheme(Downloader.getSchemeForHash(hash));
         getDownloadInfo().setDownloadStatus(DownloadStatus.FINISHED);
+        notifyCallbacks();
     }
     
     private void error(Throwable throwable) {
@@ -196,9 +494,11 @@ public class DownloadContainer {
         if (throwable != null) {
             throwable.printStackTrace(); //DEBUG
         }
-        setFile(null);
+        setStoredObject(null);
         getDownloadInfo().setFilename(null);
+        getDownloadInfo().setError(throwable == null ? null : NegativeCache.describe(throwable));
         getDownloadInfo().setDownloadStatus(DownloadStatus.ERRORED);
+        notifyCallbacks();
     }
     
     @Override
@@ -220,7 +520,7 @@ public class DownloadContainer {
     
     @Override
     public String toString() {
-        return "DownloadContainer{" + "downloadInfo=" + downloadInfo + ", file=" + file + ", forceDownload=" + forceDownload + '}';
+        return "DownloadContainer{" + "downloadInfo=" + downloadInfo + ", storedObject=" + storedObject + ", forceDownload=" + forceDownload + '}';
     }
     
 }
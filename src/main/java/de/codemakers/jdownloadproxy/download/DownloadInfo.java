@@ -23,6 +23,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import de.codemakers.jdownloadproxy.hash.HashScheme;
 
 import java.io.IOException;
 import java.net.URL;
@@ -40,10 +41,13 @@ public class DownloadInfo {
     private String filename;
     private volatile DownloadStatus downloadStatus;
     private String hash;
+    private HashScheme hashScheme = null;
     private ZonedDateTime timestampStart = null;
     private ZonedDateTime timestampEnd = null;
     private long totalBytes = -1;
     private long receivedBytes = -1;
+    private int attempts = 0;
+    private String error = null;
     
     public DownloadInfo(UUID uuid, URL url, DownloadStatus downloadStatus, String filename, String hash) {
         this.uuid = uuid;
@@ -103,6 +107,15 @@ public class DownloadInfo {
         return this;
     }
     
+    public HashScheme getHashScheme() {
+        return hashScheme;
+    }
+    
+    public DownloadInfo setHashScheme(HashScheme hashScheme) {
+        this.hashScheme = hashScheme;
+        return this;
+    }
+    
     public ZonedDateTime getTimestampStart() {
         return timestampStart;
     }
@@ -147,6 +160,24 @@ public class DownloadInfo {
         return this;
     }
     
+    public int getAttempts() {
+        return attempts;
+    }
+    
+    public DownloadInfo setAttempts(int attempts) {
+        this.attempts = attempts;
+        return this;
+    }
+    
+    public String getError() {
+        return error;
+    }
+    
+    public DownloadInfo setError(String error) {
+        this.error = error;
+        return this;
+    }
+    
     @Override
     public boolean equals(Object other) {
         if (this == other) {
@@ -166,7 +197,7 @@ public class DownloadInfo {
     
     @Override
     public String toString() {
-        return "DownloadInfo{" + "uuid=" + uuid + ", url=" + url + ", filename='" + filename + '\'' + ", downloadStatus=" + downloadStatus + ", hash='" + hash + '\'' + ", timestampStart=" + timestampStart + ", timestampEnd=" + timestampEnd + ", totalBytes=" + totalBytes + ", receivedBytes=" + receivedBytes + '}';
+        return "DownloadInfo{" + "uuid=" + uuid + ", url=" + url + ", filename='" + filename + '\'' + ", downloadStatus=" + downloadStatus + ", hash='" + hash + '\'' + ", hashScheme=" + hashScheme + ", timestampStart=" + timestampStart + ", timestampEnd=" + timestampEnd + ", totalBytes=" + totalBytes + ", receivedBytes=" + receivedBytes + ", attempts=" + attempts + ", error='" + error + '\'' + '}';
     }
     
     public static class DownloadInfoSerializer extends StdSerializer<DownloadInfo> {
@@ -184,12 +215,16 @@ public class DownloadInfo {
             jsonGenerator.writeStringField("status", downloadInfo.getDownloadStatus().name());
             jsonGenerator.writeBooleanField("done", downloadInfo.getDownloadStatus().isDone());
             jsonGenerator.writeStringField("hash", downloadInfo.getHash());
-            jsonGenerator.writeStringField("hash_sha256_base64", downloadInfo.getHash());
+            // Only an already known SHA-256, computing it is up to the "/download/sha256" endpoint
+            jsonGenerator.writeStringField("hash_sha256_base64", downloadInfo.getHashScheme() == null ? downloadInfo.getHash() : Downloader.getSha256ForHash(downloadInfo.getHash(), false));
+            jsonGenerator.writeStringField("hash_scheme", downloadInfo.getHashScheme() == null ? null : downloadInfo.getHashScheme().name());
             jsonGenerator.writeStringField("timestamp", downloadInfo.getTimestampStart() == null ? null : downloadInfo.getTimestampStart().format(DateTimeFormatter.ISO_DATE_TIME));
             jsonGenerator.writeStringField("timestamp_start", downloadInfo.getTimestampStart() == null ? null : downloadInfo.getTimestampStart().format(DateTimeFormatter.ISO_DATE_TIME));
             jsonGenerator.writeStringField("timestamp_end", downloadInfo.getTimestampEnd() == null ? null : downloadInfo.getTimestampEnd().format(DateTimeFormatter.ISO_DATE_TIME));
             jsonGenerator.writeStringField("totalBytes", "" + downloadInfo.getTotalBytes());
             jsonGenerator.writeStringField("receivedBytes", "" + downloadInfo.getReceivedBytes());
+            jsonGenerator.writeNumberField("attempts", downloadInfo.getAttempts());
+            jsonGenerator.writeStringField("error", downloadInfo.getError());
             jsonGenerator.writeEndObject();
         }
         
@@ -22,8 +22,10 @@ public enum DownloadStatus {
     QUEUED(false, false),
     CHECKING(false, true),
     DOWNLOADING(false, true),
+    RETRYING(false, true),
     FINISHED(true, false),
     ERRORED(true, false),
+    CANCELLED(true, false),
     UNKNOWN(true, false);
     
     private final boolean done;
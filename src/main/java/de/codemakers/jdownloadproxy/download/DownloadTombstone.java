@@ -0,0 +1,107 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.hash.HashScheme;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.UUID;
+
+/**
+ * Compact remainder of an expired {@link DownloadContainer}, so that status requests for its {@link UUID} can still be answered.
+ */
+public class DownloadTombstone {
+    
+    private final UUID uuid;
+    private final String url;
+    private final DownloadStatus downloadStatus;
+    private final String filename;
+    private final String hash;
+    private final HashScheme hashScheme;
+    private final long totalBytes;
+    private final long timestampStart;
+    private final long timestampEnd;
+    private final String error;
+    
+    public DownloadTombstone(DownloadInfo downloadInfo) {
+        this.uuid = downloadInfo.getUuid();
+        this.url = downloadInfo.getUrl().toString();
+        this.downloadStatus = downloadInfo.getDownloadStatus();
+        this.filename = downloadInfo.getFilename();
+        this.hash = downloadInfo.getHash();
+        this.hashScheme = downloadInfo.getHashScheme();
+        this.totalBytes = downloadInfo.getTotalBytes();
+        this.timestampStart = toEpochMilli(downloadInfo.getTimestampStart());
+        this.timestampEnd = toEpochMilli(downloadInfo.getTimestampEnd());
+        this.error = downloadInfo.getError();
+    }
+    
+    public UUID getUuid() {
+        return uuid;
+    }
+    
+    public String getUrl() {
+        return url;
+    }
+    
+    public DownloadStatus getDownloadStatus() {
+        return downloadStatus;
+    }
+    
+    public DownloadInfo toDownloadInfo() {
+        final URL url;
+        try {
+            url = new URL(this.url);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return null;
+        }
+        final DownloadInfo downloadInfo = new DownloadInfo(uuid, url, downloadStatus, filename, hash);
+        downloadInfo.setHashScheme(hashScheme);
+        downloadInfo.setTotalBytes(totalBytes);
+        downloadInfo.setReceivedBytes(totalBytes);
+        downloadInfo.setTimestampStart(fromEpochMilli(timestampStart));
+        downloadInfo.setTimestampEnd(fromEpochMilli(timestampEnd));
+        downloadInfo.setError(error);
+        return downloadInfo;
+    }
+    
+    private static long toEpochMilli(ZonedDateTime zonedDateTime) {
+        if (zonedDateTime == null) {
+            return -1;
+        }
+        return zonedDateTime.toInstant().toEpochMilli();
+    }
+    
+    private static ZonedDateTime fromEpochMilli(long epochMilli) {
+        if (epochMilli < 0) {
+            return null;
+        }
+        return ZonedDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
+    }
+    
+    @Override
+    public String toString() {
+        return "DownloadTombstone{" + "uuid=" + uuid + ", url='" + url + '\'' + ", downloadStatus=" + downloadStatus + ", filename='" + filename + '\'' + ", hash='" + hash + '\'' + ", hashScheme=" + hashScheme + ", totalBytes=" + totalBytes + ", timestampStart=" + timestampStart + ", timestampEnd=" + timestampEnd + ", error='" + error + '\'' + '}';
+    }
+    
+}
@@ -18,129 +18,319 @@
 package de.codemakers.jdownloadproxy.download;
 
 import de.codemakers.jdownloadproxy.Application;
+import de.codemakers.jdownloadproxy.Config;
 import de.codemakers.jdownloadproxy.Util;
+import de.codemakers.jdownloadproxy.hash.HashEngine;
+import de.codemakers.jdownloadproxy.hash.HashScheme;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InputStream;
 import java.net.URL;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 public class Downloader {
     
-    public static final File DOWNLOADS_FOLDER = new File(Application.APPLICATION_FOLDER, "Downloads");
+    /**
+     * The only folder files are stored in, unless other {@link StorageVolumes} are configured.
+     */
+    public static final File DOWNLOADS_FOLDER = StorageVolumes.DEFAULT_FOLDER;
+    /**
+     * Holds the whole stored files, which are handled as {@link StoredObject}s keyed by their hash (chunked files are handled by their manifest, see {@link #getStoredObjectForHash(String)}).
+     */
+    public static final StorageBackend STORAGE = StorageBackend.fromConfig();
     public static final File URL_HASHES_FILE = new File(Application.APPLICATION_FOLDER, "url_hashes.txt");
     public static final File URL_FILENAMES_FILE = new File(Application.APPLICATION_FOLDER, "url_filenames.txt");
+    public static final File HASH_SCHEMES_FILE = new File(Application.APPLICATION_FOLDER, "hash_schemes.txt");
+    public static final File INDEX_SNAPSHOT_FILE = new File(Application.APPLICATION_FOLDER, "index.bin");
     public static final String TEMPLATE_TEMP_FILE = "temp_%s.part";
     public static final String PATTERN_STRING_TEMP_FILE = "temp_.+\\.part";
     public static final Pattern PATTERN_TEMP_FILE = Pattern.compile(PATTERN_STRING_TEMP_FILE);
     
-    private static final ExecutorService EXECUTOR_SERVICE = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    public static final long RETENTION_FINISHED_TTL = Config.getLong("retention.finished.ttl", TimeUnit.HOURS.toMillis(1));
+    public static final int RETENTION_FINISHED_MAX = Config.getInt("retention.finished.max", 1000);
+    public static final int RETENTION_TOMBSTONES_MAX = Config.getInt("retention.tombstones.max", 10000);
+    public static final long RETENTION_INTERVAL = Config.getLong("retention.interval", TimeUnit.MINUTES.toMillis(1));
     
-    private static final Map<URL, String> URL_HASHES = new ConcurrentHashMap<>();
-    private static final Map<URL, String> URL_FILENAMES = new ConcurrentHashMap<>();
-    private static final Map<String, File> HASH_FILES = new ConcurrentHashMap<>();
+    public static final long DRAIN_TIMEOUT = Config.getLong("shutdown.drain_timeout", TimeUnit.SECONDS.toMillis(30));
+    public static final long INDEX_SAVE_DELAY = Config.getLong("index.save_delay", 1000);
+    public static final int COMMIT_LOCK_STRIPES = Config.getInt("commit.lock_stripes", 256);
     
-    private static final List<DownloadContainer> DOWNLOAD_CONTAINERS = new CopyOnWriteArrayList<>();
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_LOW = 10;
+    
+    /**
+     * Fixed size pool whose queue orders {@link PrioritizedTask}s, so low priority work (e.g. prefetching) only runs when nothing else is waiting.
+     */
+    public static final int DOWNLOAD_THREADS = Config.getInt("download.threads", Runtime.getRuntime().availableProcessors());
+    
+    private static final ThreadPoolExecutor EXECUTOR_SERVICE = new ThreadPoolExecutor(DOWNLOAD_THREADS, DOWNLOAD_THREADS, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+    private static final AtomicLong TASK_SEQUENCE = new AtomicLong();
+    private static final ScheduledExecutorService MAINTENANCE_SERVICE = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, "Downloader-Maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    /**
+     * Keyed by {@link CacheKeys}, so URLs which only differ in irrelevant details share one entry and lookups never resolve host names.
+     */
+    private static final SnapshotMap<String> URL_HASHES = new SnapshotMap<>();
+    private static final SnapshotMap<String> URL_FILENAMES = new SnapshotMap<>();
+    private static final Map<String, StoredObject> HASH_OBJECTS = new ConcurrentHashMap<>();
+    /**
+     * The mapped snapshot the index maps are based on, or null if they were loaded from an older format.
+     */
+    private static volatile IndexSnapshot indexSnapshot = null;
+    private static final Map<String, String> HASH_SHA256S = new ConcurrentHashMap<>();
+    /**
+     * Commits of the same hash (or index changes of the same URL) are serialized, everything else runs in parallel.
+     */
+    private static final StripedLock HASH_LOCKS = new StripedLock(COMMIT_LOCK_STRIPES);
+    private static final StripedLock URL_LOCKS = new StripedLock(COMMIT_LOCK_STRIPES);
+    private static final AtomicLong COMMITS = new AtomicLong();
+    private static final AtomicLong COMMITS_REUSED = new AtomicLong();
+    
+    private static final AtomicInteger RUNNING_DOWNLOADS = new AtomicInteger();
+    private static volatile boolean draining = false;
+    private static final AtomicInteger OPEN_STREAMS = new AtomicInteger();
+    private static final AtomicBoolean SAVE_REQUESTED = new AtomicBoolean();
+    
+    private static final Map<UUID, DownloadContainer> DOWNLOAD_CONTAINERS = new ConcurrentHashMap<>();
+    private static final Map<UUID, DownloadTombstone> DOWNLOAD_TOMBSTONES = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<UUID, DownloadTombstone> eldest) {
+            if (size() <= RETENTION_TOMBSTONES_MAX) {
+                return false;
+            }
+            unindexDownload(eldest.getValue().getUrl(), eldest.getKey());
+            return true;
+        }
+    });
+    /**
+     * The UUIDs of all live and expired downloads by the {@link CacheKeys} of their URLs, so lookups by URL don't have to scan every download.
+     */
+    private static final Map<String, Set<UUID>> DOWNLOAD_UUIDS = new ConcurrentHashMap<>();
     
     static {
-        DOWNLOADS_FOLDER.mkdirs();
+        StorageVolumes.getVolumes().forEach((volume) -> volume.getFolder().mkdirs());
         loadHashes();
+        MAINTENANCE_SERVICE.execute(Downloader::verifyIndex);
+        IntegrityScrubber.start();
         Runtime.getRuntime().addShutdownHook(new Thread(Downloader::saveHashes));
+        if (RETENTION_INTERVAL > 0) {
+            MAINTENANCE_SERVICE.scheduleWithFixedDelay(Downloader::expireDownloadContainers, RETENTION_INTERVAL, RETENTION_INTERVAL, TimeUnit.MILLISECONDS);
+        }
     }
     
     protected static synchronized void loadHashes() {
+        final long started = System.currentTimeMillis();
         URL_HASHES.clear();
         URL_FILENAMES.clear();
-        HASH_FILES.clear();
+        HASH_OBJECTS.clear();
+        // Only indexes written before keys got the prefix of their scheme have schemes
+        final SnapshotMap<HashScheme> hashSchemes = new SnapshotMap<>();
+        indexSnapshot = IndexSnapshot.open(INDEX_SNAPSHOT_FILE);
+        if (indexSnapshot != null) {
+            URL_HASHES.setBase(indexSnapshot.getUrlHashes());
+            URL_FILENAMES.setBase(indexSnapshot.getUrlFilenames());
+            hashSchemes.setBase(indexSnapshot.getHashSchemes());
+        } else if (!IndexSnapshot.readVersion1(INDEX_SNAPSHOT_FILE, URL_HASHES, URL_FILENAMES, hashSchemes)) {
+            loadLegacyHashes(hashSchemes);
+        }
+        if (migrateSchemeKeys(hashSchemes) > 0) {
+            saveHashes();
+        }
+        System.out.printf("[INFO ][%s#loadHashes] Loaded %d URLs in %d ms%n", Downloader.class.getSimpleName(), URL_HASHES.size(), System.currentTimeMillis() - started);
+    }
+    
+    private static void loadLegacyHashes(Map<String, HashScheme> hashSchemes) {
         if (URL_HASHES_FILE.exists()) {
             final Properties properties = new Properties();
             try (final FileInputStream fileInputStream = new FileInputStream(URL_HASHES_FILE)) {
                 properties.load(fileInputStream);
-                properties.forEach((key, value) -> {
-                    try {
-                        URL_HASHES.put(new URL((String) key), (String) value);
-                    } catch (MalformedURLException | IllegalArgumentException e) {
-                        e.printStackTrace();
-                    }
-                });
+                properties.forEach((key, value) -> URL_HASHES.putIfAbsent(CacheKeys.of((String) key), (String) value));
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            System.out.printf("[DEBUG][%s#loadHashes] Loaded URL_HASHES: %s%n", Downloader.class.getSimpleName(), URL_HASHES); //DEBUG
         }
         if (URL_FILENAMES_FILE.exists()) {
             final Properties properties = new Properties();
             try (final FileInputStream fileInputStream = new FileInputStream(URL_FILENAMES_FILE)) {
                 properties.load(fileInputStream);
-                properties.forEach((key, value) -> {
-                    try {
-                        URL_FILENAMES.put(new URL((String) key), (String) value);
-                    } catch (MalformedURLException e) {
-                        e.printStackTrace();
-                    }
-                });
+                properties.forEach((key, value) -> URL_FILENAMES.putIfAbsent(CacheKeys.of((String) key), (String) value));
             } catch (IOException e) {
                 e.printStackTrace();
             }
-            System.out.printf("[DEBUG][%s#loadHashes] Loaded URL_FILENAMES: %s%n", Downloader.class.getSimpleName(), URL_FILENAMES); //DEBUG
         }
-        for (File file : DOWNLOADS_FOLDER.listFiles()) {
-            if (PATTERN_TEMP_FILE.matcher(file.getName()).matches()) {
-                continue;
-            }
-            try {
-                HASH_FILES.put(file.getName(), file);
-            } catch (IllegalArgumentException e) {
+        if (HASH_SCHEMES_FILE.exists()) {
+            final Properties properties = new Properties();
+            try (final FileInputStream fileInputStream = new FileInputStream(HASH_SCHEMES_FILE)) {
+                properties.load(fileInputStream);
+                properties.forEach((key, value) -> hashSchemes.put((String) key, HashScheme.of((String) value, HashScheme.FLAT)));
+            } catch (IOException e) {
                 e.printStackTrace();
             }
         }
-        System.out.printf("[DEBUG][%s#loadHashes] Loaded HASH_FILES: %s%n", Downloader.class.getSimpleName(), HASH_FILES); //DEBUG
     }
     
-    protected static synchronized void saveHashes() {
-        if (URL_HASHES.isEmpty()) {
-            URL_HASHES_FILE.delete();
-        } else {
-            final Properties properties = new Properties();
-            URL_HASHES.forEach((key, value) -> properties.put(key.toString(), value));
-            try (final FileOutputStream fileOutputStream = new FileOutputStream(URL_HASHES_FILE, false)) {
-                properties.store(fileOutputStream, "Changed at");
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * Moves objects stored under the plain digest of another scheme than {@link HashScheme#FLAT} to the key with the prefix of their scheme (see {@link HashScheme#toKey(String)})
+     * and points their URLs there, because a key without a prefix now always means {@link HashScheme#FLAT}.
+     * <p>
+     * URLs of objects which can't be moved are removed, so they get downloaded again instead of being served under the wrong scheme.
+     *
+     * @return The number of migrated keys
+     */
+    protected static int migrateSchemeKeys(Map<String, HashScheme> hashSchemes) {
+        final Map<String, String> keys = new HashMap<>();
+        hashSchemes.forEach((hash, hashScheme) -> {
+            if (hashScheme != null && hashScheme != HashScheme.FLAT && HashScheme.ofKey(hash) == HashScheme.FLAT) {
+                final String key = hashScheme.toKey(hash);
+                keys.put(hash, moveStoredObject(hash, key) ? key : null);
+                HASH_OBJECTS.remove(hash);
             }
+        });
+        if (keys.isEmpty()) {
+            return 0;
         }
-        if (URL_FILENAMES.isEmpty()) {
-            URL_FILENAMES_FILE.delete();
-        } else {
-            final Properties properties = new Properties();
-            URL_FILENAMES.forEach((key, value) -> properties.put(key.toString(), value));
-            try (final FileOutputStream fileOutputStream = new FileOutputStream(URL_FILENAMES_FILE, false)) {
-                properties.store(fileOutputStream, "Changed at");
-            } catch (IOException e) {
-                e.printStackTrace();
+        final List<Map.Entry<String, String>> entries = URL_HASHES.entrySet().stream().filter((entry) -> keys.containsKey(entry.getValue())).map(AbstractMap.SimpleEntry::new).collect(Collectors.toList());
+        for (Map.Entry<String, String> entry : entries) {
+            final String key = keys.get(entry.getValue());
+            if (key != null) {
+                URL_HASHES.put(entry.getKey(), key);
+            } else {
+                URL_HASHES.remove(entry.getKey());
+                URL_FILENAMES.remove(entry.getKey());
             }
         }
+        System.out.printf("[INFO ][%s#migrateSchemeKeys] Migrated %d keys of %d URLs%n", Downloader.class.getSimpleName(), keys.size(), entries.size());
+        return keys.size();
     }
     
+    private static boolean moveStoredObject(String hash, String key) {
+        try {
+            final File manifestFile = ChunkStore.getManifestFile(hash);
+            if (manifestFile.exists()) {
+                Files.move(manifestFile.toPath(), ChunkStore.getManifestFile(key).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            }
+            final StoredObject storedObject = STORAGE.stat(hash);
+            if (storedObject == null) {
+                return false;
+            }
+            if (storedObject.getFile() != null) {
+                // The file system storage renames the file on its volume
+                STORAGE.put(key, storedObject.getFile());
+            } else {
+                try (final InputStream inputStream = STORAGE.get(hash, 0, -1)) {
+                    STORAGE.put(key, inputStream, storedObject.getLength());
+                }
+            }
+            STORAGE.delete(hash);
+            return true;
+        } catch (IOException e) {
+            System.err.printf("[ERROR][%s#moveStoredObject] Can't move \"%s\" to \"%s\": %s%n", Downloader.class.getSimpleName(), hash, key, e);
+            return false;
+        }
+    }
+    
+    /**
+     * Checks the loaded index against the {@link #STORAGE} in the background, so startup does not have to list it (or read the whole {@link IndexSnapshot}).
+     */
+    protected static void verifyIndex() {
+        final long started = System.currentTimeMillis();
+        final IndexSnapshot indexSnapshot_ = indexSnapshot;
+        if (indexSnapshot_ != null && !indexSnapshot_.verify()) {
+            // Only entries changed since the start are left, everything else is downloaded again when requested
+            synchronized (Downloader.class) {
+                indexSnapshot = null;
+                URL_HASHES.setBase(null);
+                URL_FILENAMES.setBase(null);
+            }
+        }
+        final Set<String> hashes;
+        try {
+            hashes = new HashSet<>(STORAGE.list());
+        } catch (IOException e) {
+            System.err.printf("[ERROR][%s#verifyIndex] Can't list the %s storage: %s%n", Downloader.class.getSimpleName(), STORAGE.getName(), e);
+            return;
+        }
+        final Set<String> missing = URL_HASHES.entrySet().stream().filter((entry) -> !hashes.contains(entry.getValue()) && !existsForHash(entry.getValue())).map(Map.Entry::getKey).collect(Collectors.toSet());
+        missing.forEach((key) -> {
+            URL_HASHES.remove(key);
+            URL_FILENAMES.remove(key);
+        });
+        System.out.printf("[INFO ][%s#verifyIndex] Verified %d files and removed %d missing URLs in %d ms%n", Downloader.class.getSimpleName(), hashes.size(), missing.size(), System.currentTimeMillis() - started);
+        if (!missing.isEmpty()) {
+            saveHashes();
+        }
+    }
+    
+    protected static synchronized void saveHashes() {
+        if (URL_HASHES.isEmpty()) {
+            INDEX_SNAPSHOT_FILE.delete();
+        } else if (!IndexSnapshot.write(INDEX_SNAPSHOT_FILE, URL_HASHES, URL_FILENAMES, Collections.emptyMap())) {
+            return;
+        }
+        // The snapshot replaces the properties files, which are only read once to migrate them
+        URL_HASHES_FILE.delete();
+        URL_FILENAMES_FILE.delete();
+        HASH_SCHEMES_FILE.delete();
+    }
+    
+    /**
+     * Saves the index after {@link #INDEX_SAVE_DELAY} milliseconds, so a burst of removals writes it once instead of once per removal (the shutdown hook saves anything still pending).
+     */
+    protected static void requestSaveHashes() {
+        if (INDEX_SAVE_DELAY <= 0) {
+            saveHashes();
+            return;
+        }
+        if (SAVE_REQUESTED.compareAndSet(false, true)) {
+            MAINTENANCE_SERVICE.schedule(() -> {
+                SAVE_REQUESTED.set(false);
+                saveHashes();
+            }, INDEX_SAVE_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    /**
+     * Returns the part file of the download on the volume it is placed on (see {@link StorageVolumes#getTempFile(UUID, String)}).
+     */
     public static File createTempFileForUUID(UUID uuid) {
-        return new File(DOWNLOADS_FOLDER, String.format(TEMPLATE_TEMP_FILE, uuid.toString()));
+        return StorageVolumes.getTempFile(uuid, String.format(TEMPLATE_TEMP_FILE, uuid.toString()));
     }
     
-    public static File createFileForHash(String hash) {
-        return new File(DOWNLOADS_FOLDER, hash);
+    /**
+     * Returns the whole (not chunked) stored file of the hash, or null if there is none.
+     */
+    private static StoredObject statStored(String hash) {
+        try {
+            return STORAGE.stat(hash);
+        } catch (IOException e) {
+            System.err.printf("[WARNING][%s#statStored] Can't stat \"%s\" in the %s storage: %s%n", Downloader.class.getSimpleName(), hash, STORAGE.getName(), e);
+            return null;
+        }
     }
     
     public static boolean hasHashForURL(URL url) {
-        return URL_HASHES.containsKey(url);
+        return URL_HASHES.containsKey(CacheKeys.of(url));
     }
     
     public static boolean hasFilenameForHash(String hash) {
@@ -148,119 +338,474 @@ public class Downloader {
     }
     
     public static boolean hasFileForHash(String hash) {
-        return HASH_FILES.containsKey(hash);
+        return getStoredObjectForHash(hash) != null;
     }
     
     public static String getHashForURL(URL url) {
-        return URL_HASHES.get(url);
+        if (url == null) {
+            return null;
+        }
+        return URL_HASHES.get(CacheKeys.of(url));
     }
     
     public static void setHashForURL(URL url, String hash) {
-        URL_HASHES.put(url, hash);
+        URL_HASHES.put(CacheKeys.of(url), hash);
     }
     
     public static boolean removeHashForURL(URL url) {
-        return URL_HASHES.remove(url) != null;
+        return URL_HASHES.remove(CacheKeys.of(url)) != null;
     }
     
     public static String getFilenameForURL(URL url) {
-        return URL_FILENAMES.get(url);
+        return URL_FILENAMES.get(CacheKeys.of(url));
     }
     
     public static void setFilenameForURL(URL url, String filename) {
-        URL_FILENAMES.put(url, filename);
+        if (filename == null) {
+            URL_FILENAMES.remove(CacheKeys.of(url));
+        } else {
+            URL_FILENAMES.put(CacheKeys.of(url), filename);
+        }
     }
     
     public static boolean removeFilenameForURL(URL url) {
-        return URL_FILENAMES.remove(url) != null;
+        return URL_FILENAMES.remove(CacheKeys.of(url)) != null;
     }
     
-    public static File getFileForHash(String hash) {
-        return HASH_FILES.get(hash);
+    /**
+     * Rebuilds every key with the current {@link CacheKeys} rules, merging entries which now share a key (the first one wins).
+     */
+    protected static synchronized void rekeyIndex() {
+        int merged = 0;
+        for (String key : new ArrayList<>(URL_HASHES.keySet())) {
+            final String key_ = CacheKeys.of(key);
+            if (key_.equals(key)) {
+                continue;
+            }
+            final String hash = URL_HASHES.remove(key);
+            final String filename = URL_FILENAMES.remove(key);
+            if (hash == null || URL_HASHES.putIfAbsent(key_, hash) != null) {
+                merged++;
+                continue;
+            }
+            if (filename != null) {
+                URL_FILENAMES.put(key_, filename);
+            }
+        }
+        DOWNLOAD_UUIDS.clear();
+        DOWNLOAD_CONTAINERS.values().stream().map(DownloadContainer::getDownloadInfo).forEach((downloadInfo) -> indexDownload(downloadInfo.getUrl().toString(), downloadInfo.getUuid()));
+        synchronized (DOWNLOAD_TOMBSTONES) {
+            DOWNLOAD_TOMBSTONES.forEach((uuid, downloadTombstone) -> indexDownload(downloadTombstone.getUrl(), uuid));
+        }
+        System.out.printf("[INFO ][%s#rekeyIndex] Rebuilt the keys of %d URLs, %d were merged%n", Downloader.class.getSimpleName(), URL_HASHES.size(), merged);
+        saveHashes();
     }
     
-    public static void setFileForHash(String hash, File file) {
-        HASH_FILES.put(hash, file);
+    /**
+     * Returns the stored file of the hash, which is either a whole object in the {@link #STORAGE} or the chunk manifest (see {@link #isManifest(StoredObject)}), or null if there is none.
+     * <p>
+     * Stored files are never changed, only replaced by the same content, so the length of the returned object stays valid.
+     */
+    public static StoredObject getStoredObjectForHash(String hash) {
+        if (hash == null) {
+            return null;
+        }
+        final StoredObject storedObject = HASH_OBJECTS.get(hash);
+        if (storedObject != null) {
+            return storedObject;
+        }
+        StoredObject storedObject_ = statStored(hash);
+        if (storedObject_ == null) {
+            storedObject_ = statManifest(hash);
+            if (storedObject_ == null) {
+                return null;
+            }
+        }
+        HASH_OBJECTS.put(hash, storedObject_);
+        return storedObject_;
     }
     
-    protected static Map.Entry<File, String> handleFile(URL url, File tempFile, String filename, boolean forceDownload) {
-        final Map.Entry<File, String> entry = processTempFile(tempFile, forceDownload);
-        if (entry == null) {
+    private static StoredObject statManifest(String hash) {
+        final File manifestFile = ChunkStore.getManifestFile(hash);
+        if (!manifestFile.exists()) {
             return null;
         }
-        if (entry.getValue() == null) {
-            return new AbstractMap.SimpleEntry<>(tempFile, null);
+        return new StoredObject(hash, ChunkStore.getLength(manifestFile), manifestFile.lastModified(), manifestFile);
+    }
+    
+    /**
+     * Returns true if the file of the stored object is not the content, but the chunk manifest of it (see {@link ChunkStore}).
+     */
+    public static boolean isManifest(StoredObject storedObject) {
+        return ChunkStore.isManifest(storedObject.getFile());
+    }
+    
+    /**
+     * Checks if a stored object (as returned by {@link #getStoredObjectForHash(String)}) still exists.
+     */
+    public static boolean isStored(StoredObject storedObject) {
+        if (storedObject == null) {
+            return false;
         }
-        if (!addHashAndFilenameToURL(url, entry.getValue(), filename)) {
+        return isManifest(storedObject) ? storedObject.getFile().exists() : statStored(storedObject.getKey()) != null;
+    }
+    
+    private static boolean existsForHash(String hash) {
+        return statStored(hash) != null || ChunkStore.getManifestFile(hash).exists();
+    }
+    
+    /**
+     * Deletes a stored object (and the chunks only it uses).
+     */
+    private static boolean deleteStoredObject(StoredObject storedObject) {
+        final String hash = storedObject.getKey();
+        HotTier.invalidate(hash);
+        HASH_SHA256S.remove(hash);
+        if (isManifest(storedObject)) {
+            return ChunkStore.delete(storedObject.getFile());
+        }
+        try {
+            return STORAGE.delete(hash);
+        } catch (IOException e) {
+            System.err.printf("[WARNING][%s#deleteStoredObject] Can't delete \"%s\" from the %s storage: %s%n", Downloader.class.getSimpleName(), hash, STORAGE.getName(), e);
+            return false;
+        }
+    }
+    
+    public static void setStoredObjectForHash(String hash, StoredObject storedObject) {
+        HASH_OBJECTS.put(hash, storedObject);
+    }
+    
+    /**
+     * Returns the lock commits of the hash hold, so others (e.g. the {@link IntegrityScrubber}) can change its stored object without racing a commit.
+     */
+    protected static ReentrantLock getHashLock(String hash) {
+        return HASH_LOCKS.get(hash);
+    }
+    
+    /**
+     * Returns the {@link HashScheme} a stored file was hashed with, which is part of its key (see {@link HashScheme#ofKey(String)}).
+     */
+    public static HashScheme getSchemeForHash(String hash) {
+        if (hash == null) {
             return null;
         }
-        saveHashes();
+        return HashScheme.ofKey(hash);
+    }
+    
+    /**
+     * Returns the SHA-256 (base64url) of a stored file, which is the hash itself for {@link HashScheme#FLAT} files.
+     * For every other scheme it is computed on the first request and kept in memory afterwards.
+     *
+     * @param compute false to only return an already known SHA-256
+     */
+    public static String getSha256ForHash(String hash, boolean compute) {
+        if (hash == null) {
+            return null;
+        }
+        if (getSchemeForHash(hash) == HashScheme.FLAT) {
+            return hash;
+        }
+        final String sha256 = HASH_SHA256S.get(hash);
+        if (sha256 != null || !compute) {
+            return sha256;
+        }
+        final StoredObject storedObject = getStoredObjectForHash(hash);
+        if (storedObject == null) {
+            return null;
+        }
+        final byte[] hashBytes;
+        if (storedObject.getFile() != null && !isManifest(storedObject)) {
+            hashBytes = HashEngine.hashFile(storedObject.getFile(), HashScheme.FLAT);
+        } else {
+            try {
+                hashBytes = Util.hashStream(readStoredObject(storedObject));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        if (hashBytes == null) {
+            return null;
+        }
+        final String sha256_ = Util.base64URLencodeToString(hashBytes);
+        HASH_SHA256S.put(hash, sha256_);
+        return sha256_;
+    }
+    
+    /**
+     * Commits a finished part file as the stored object of its hash and points the URL to it.
+     */
+    protected static Map.Entry<StoredObject, String> handleFile(URL url, File tempFile, String filename, boolean forceDownload) {
+        final Map.Entry<StoredObject, String> entry = processTempFile(url, tempFile, filename, forceDownload);
+        if (entry == null) {
+            return null;
+        }
+        requestSaveHashes();
         return entry;
     }
     
-    private static Map.Entry<File, String> processTempFile(File tempFile, boolean forceDownload) {
+    /**
+     * Hashes the part file and moves it into place, or deletes it if an object with the same hash already exists.
+     * <p>
+     * Only the commit itself holds the lock of the hash (hashing happens before), so commits of different content run in parallel,
+     * while a concurrent commit of identical content finds the object of the first one and reuses it.
+     * The URL is pointed to the object before the lock is released, so a concurrent {@link #removeFile(StoredObject, URL, boolean)} sees it as referenced.
+     */
+    private static Map.Entry<StoredObject, String> processTempFile(URL url, File tempFile, String filename, boolean forceDownload) {
         if (tempFile == null || !tempFile.exists()) {
             return null;
         }
-        final byte[] hashBytes = Util.hashFile(tempFile);
+        final HashScheme hashScheme = HashEngine.DEFAULT_SCHEME;
+        final byte[] hashBytes = HashEngine.hashFile(tempFile, hashScheme);
         if (hashBytes == null) {
             return null;
         }
-        final String hash = Util.base64URLencodeToString(hashBytes);
-        final File file = createFileForHash(hash);
+        // Only objects hashed with the same scheme can be reused
+        final String hash = hashScheme.toKey(Util.base64URLencodeToString(hashBytes));
+        final ReentrantLock lock = HASH_LOCKS.get(hash);
+        lock.lock();
+        StoredObject storedObject;
         try {
+            final StoredObject existingObject = statStored(hash);
+            // Files stored before chunking got enabled stay whole
+            final boolean chunked = ChunkStore.ENABLED && existingObject == null;
             tempFile.deleteOnExit();
-            if (!file.exists() || forceDownload) {
-                if (file.exists() && !file.delete()) {
-                    System.err.printf("[WARNING][%s#processTempFile] Can't delete old \"%s\"%n", Downloader.class.getSimpleName(), file.getAbsolutePath()); //DEBUG
-                }
-                switch (1) {
-                    case 0:
-                        Files.move(tempFile.toPath(), file.toPath());
-                        break;
-                    case 1:
-                        Files.copy(tempFile.toPath(), file.toPath());
-                        break;
-                    case 2:
-                        try (final FileInputStream fileInputStream = new FileInputStream(tempFile)) {
-                            try (final FileOutputStream fileOutputStream = new FileOutputStream(file, false)) {
-                                fileInputStream.transferTo(fileOutputStream);
-                            }
-                        }
-                        break;
+            COMMITS.incrementAndGet();
+            final StoredObject manifest = chunked ? statManifest(hash) : null;
+            if (!forceDownload && (chunked ? manifest != null : existingObject != null)) {
+                COMMITS_REUSED.incrementAndGet();
+                storedObject = chunked ? manifest : existingObject;
+                System.out.printf("[INFO ][%s#processTempFile] \"%s\" already exists and gets reused%n", Downloader.class.getSimpleName(), hash);
+            } else if (chunked) {
+                if (manifest != null && !deleteStoredObject(manifest)) {
+                    System.err.printf("[WARNING][%s#processTempFile] Can't delete old \"%s\"%n", Downloader.class.getSimpleName(), manifest.getFile().getAbsolutePath()); //DEBUG
                 }
+                ChunkStore.store(tempFile, hash);
+                storedObject = statManifest(hash);
             } else {
-                System.out.printf("[INFO ][%s#processTempFile] File \"%s\" already exists and shouldn't be overridden%n", Downloader.class.getSimpleName(), file.getAbsolutePath());
+                HotTier.invalidate(hash);
+                // The file system storage renames the part file on its volume, so nobody sees a partial file and streams still reading an old file keep their content
+                STORAGE.put(hash, tempFile);
+                storedObject = statStored(hash);
             }
-            if (!tempFile.delete()) {
+            if (storedObject == null) {
+                throw new IOException("Stored \"" + hash + "\" vanished right away");
+            }
+            if (tempFile.exists() && !tempFile.delete()) {
                 System.err.printf("[WARNING][%s#processTempFile] Can't delete part \"%s\"%n", Downloader.class.getSimpleName(), tempFile.getAbsolutePath()); //DEBUG
             }
+            setStoredObjectForHash(hash, storedObject);
+            // A concurrent download of the same URL may have committed first, the newer content replaces it
+            indexURL(url, hash, filename, true);
         } catch (Exception ex) {
-            System.err.printf("[ERROR][%s#processTempFile] Failed moving \"%s\" to \"%s\"%n", Downloader.class.getSimpleName(), tempFile.getAbsolutePath(), file.getAbsolutePath()); //DEBUG
+            System.err.printf("[ERROR][%s#processTempFile] Failed storing \"%s\" as \"%s\"%n", Downloader.class.getSimpleName(), tempFile.getAbsolutePath(), hash); //DEBUG
             ex.printStackTrace();
-            return new AbstractMap.SimpleEntry<>(tempFile, null);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+        return new AbstractMap.SimpleEntry<>(storedObject, hash);
+    }
+    
+    /**
+     * Indexes the content under every mirror URL of the given URL, which are not already indexed.
+     */
+    protected static void indexEquivalentURLs(URL url, String hash, String filename) {
+        boolean changed = false;
+        for (URL equivalentURL : MirrorGroups.getEquivalentURLs(url)) {
+            changed |= indexURL(equivalentURL, hash, filename, false);
+        }
+        if (changed) {
+            requestSaveHashes();
         }
-        setFileForHash(hash, file);
-        return new AbstractMap.SimpleEntry<>(file, hash);
     }
     
-    private static boolean addHashAndFilenameToURL(URL url, String hash, String filename) {
-        if (url == null || hash == null || hasHashForURL(url)) {
+    /**
+     * Points the URL to the hash, the hash and filename are changed together under the lock of the URL.
+     *
+     * @param replace Replaces a different hash the URL already points to
+     *
+     * @return true if the URL points to the hash afterwards
+     */
+    private static boolean indexURL(URL url, String hash, String filename, boolean replace) {
+        if (url == null || hash == null) {
             return false;
         }
-        setHashForURL(url, hash);
-        setFilenameForURL(url, filename);
-        return true;
+        final String key = CacheKeys.of(url);
+        final ReentrantLock lock = URL_LOCKS.get(key);
+        lock.lock();
+        try {
+            final String hash_ = URL_HASHES.get(key);
+            if (hash.equals(hash_)) {
+                return true;
+            }
+            if (hash_ != null && !replace) {
+                return false;
+            }
+            URL_HASHES.put(key, hash);
+            if (filename == null) {
+                URL_FILENAMES.remove(key);
+            } else {
+                URL_FILENAMES.put(key, filename);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
     }
     
     public static void startDownloadContainerAsync(DownloadContainer downloadContainer) {
-        EXECUTOR_SERVICE.submit(downloadContainer::startVoid);
+        startDownloadContainerAsync(downloadContainer, PRIORITY_NORMAL);
+    }
+    
+    public static void startDownloadContainerAsync(DownloadContainer downloadContainer, int priority) {
+        downloadContainer.setPriority(priority);
+        execute(priority, downloadContainer::startVoid);
+    }
+    
+    /**
+     * Queues the retry of the download after the delay, so the waiting doesn't block one of the download threads.
+     */
+    protected static void scheduleRetry(DownloadContainer downloadContainer, long delay) {
+        MAINTENANCE_SERVICE.schedule(() -> execute(downloadContainer.getPriority(), downloadContainer::retry), delay, TimeUnit.MILLISECONDS);
+    }
+    
+    private static void execute(int priority, Runnable runnable) {
+        if (draining) {
+            // The download stays in the JobJournal and gets queued again after the restart
+            return;
+        }
+        // execute instead of submit, because submit would wrap the task into a FutureTask, which the PriorityBlockingQueue can't order
+        EXECUTOR_SERVICE.execute(new PrioritizedTask(priority, () -> {
+            RUNNING_DOWNLOADS.incrementAndGet();
+            try {
+                runnable.run();
+            } finally {
+                RUNNING_DOWNLOADS.decrementAndGet();
+            }
+        }));
+    }
+    
+    /**
+     * Checks if the URL is cached and its file is still present.
+     */
+    public static boolean isFresh(URL url) {
+        return getStoredObjectForHash(getHashForURL(url)) != null;
+    }
+    
+    /**
+     * Returns the number of running downloads plus the number of files currently being served.
+     */
+    public static int getLoad() {
+        return RUNNING_DOWNLOADS.get() + OPEN_STREAMS.get();
+    }
+    
+    /**
+     * Returns the number of downloads waiting for a download thread.
+     */
+    public static int getQueuedDownloads() {
+        return EXECUTOR_SERVICE.getQueue().size();
+    }
+    
+    public static int getRunningDownloads() {
+        return RUNNING_DOWNLOADS.get();
+    }
+    
+    public static int getRetryingDownloads() {
+        return (int) DOWNLOAD_CONTAINERS.values().stream().filter((downloadContainer) -> downloadContainer.getDownloadInfo().getDownloadStatus() == DownloadStatus.RETRYING).count();
+    }
+    
+    /**
+     * Returns the number of bytes unfinished downloads are still expected to write.
+     */
+    public static long getPendingBytes() {
+        return DOWNLOAD_CONTAINERS.values().stream().map(DownloadContainer::getDownloadInfo).filter((downloadInfo) -> !downloadInfo.getDownloadStatus().isDone() && downloadInfo.getTotalBytes() > 0).mapToLong((downloadInfo) -> downloadInfo.getTotalBytes() - Math.max(0, downloadInfo.getReceivedBytes())).sum();
     }
     
     public static DownloadContainer createDownloadContainer(URL url, boolean forceDownload) {
-        final DownloadContainer downloadContainer = new DownloadContainer(url);
+        return createDownloadContainer(UUID.randomUUID(), url, forceDownload);
+    }
+    
+    public static DownloadContainer createDownloadContainer(UUID uuid, URL url, boolean forceDownload) {
+        final DownloadContainer downloadContainer = new DownloadContainer(uuid, url);
         downloadContainer.setForceDownload(forceDownload);
-        DOWNLOAD_CONTAINERS.add(downloadContainer);
+        DOWNLOAD_CONTAINERS.put(uuid, downloadContainer);
+        indexDownload(url.toString(), uuid);
+        JobJournal.requestCheckpoint();
+        return downloadContainer;
+    }
+    
+    /**
+     * Subscribes to an unfinished download of a URL with the same {@link CacheKeys cache key}, so concurrent requests for it share one transfer.
+     *
+     * @return The shared download, or null if there is none and a new one has to be created
+     */
+    public static DownloadContainer joinDownloadContainer(URL url) {
+        return joinDownloadContainer(url, UUID.randomUUID());
+    }
+    
+    /**
+     * @param subscription Identifies the client when it cancels (see {@link DownloadContainer#cancel(UUID, boolean)})
+     */
+    public static DownloadContainer joinDownloadContainer(URL url, UUID subscription) {
+        for (DownloadContainer downloadContainer : getDownloadContainers(url)) {
+            // Forced downloads are explicitly not shared
+            if (!downloadContainer.isForceDownload() && downloadContainer.subscribe(subscription)) {
+                return downloadContainer;
+            }
+        }
+        return null;
+    }
+    
+    public static boolean isDraining() {
+        return draining;
+    }
+    
+    /**
+     * Stops accepting and starting downloads, suspends all running transfers and checkpoints them in the {@link JobJournal}, so they resume after the restart.
+     *
+     * @param timeout Maximum time in milliseconds to wait for the download threads (e.g. a download which is being hashed)
+     *
+     * @return Number of suspended transfers
+     */
+    public static int drain(long timeout) {
+        draining = true;
+        // Queued downloads are already in the journal
+        EXECUTOR_SERVICE.getQueue().clear();
+        int suspended = 0;
+        for (DownloadContainer downloadContainer : DOWNLOAD_CONTAINERS.values()) {
+            if (downloadContainer.suspend()) {
+                suspended++;
+            }
+        }
+        final long deadline = System.currentTimeMillis() + timeout;
+        while (RUNNING_DOWNLOADS.get() > 0 && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        JobJournal.checkpoint();
+        saveHashes();
+        System.out.printf("[INFO ][%s#drain] Suspended %d transfers, %d downloads still running%n", Downloader.class.getSimpleName(), suspended, RUNNING_DOWNLOADS.get());
+        return suspended;
+    }
+    
+    /**
+     * Creates a download, which already errored with the given reason, so it never occupies a download thread.
+     */
+    public static DownloadContainer createErroredDownloadContainer(URL url, String error) {
+        final DownloadContainer downloadContainer = new DownloadContainer(url);
+        final DownloadInfo downloadInfo = downloadContainer.getDownloadInfo();
+        downloadInfo.setTimestampStartNow();
+        downloadInfo.setTimestampEnd(downloadInfo.getTimestampStart());
+        downloadInfo.setError(error);
+        downloadInfo.setDownloadStatus(DownloadStatus.ERRORED);
+        DOWNLOAD_CONTAINERS.put(downloadInfo.getUuid(), downloadContainer);
+        indexDownload(url.toString(), downloadInfo.getUuid());
         return downloadContainer;
     }
     
@@ -268,34 +813,333 @@ public class Downloader {
         if (uuid == null) {
             return null;
         }
-        return DOWNLOAD_CONTAINERS.stream().filter((downloadContainer) -> uuid.equals(downloadContainer.getDownloadInfo().getUuid())).findAny().orElse(null);
+        return DOWNLOAD_CONTAINERS.get(uuid);
     }
     
     public static boolean removeDownloadContainer(UUID uuid) {
         if (uuid == null) {
             return false;
         }
-        return DOWNLOAD_CONTAINERS.removeIf((downloadContainer) -> uuid.equals(downloadContainer.getDownloadInfo().getUuid()));
+        final DownloadTombstone downloadTombstone = DOWNLOAD_TOMBSTONES.remove(uuid);
+        if (downloadTombstone != null) {
+            unindexDownload(downloadTombstone.getUrl(), uuid);
+        }
+        final DownloadContainer downloadContainer = DOWNLOAD_CONTAINERS.remove(uuid);
+        if (downloadContainer == null) {
+            return false;
+        }
+        unindexDownload(downloadContainer.getDownloadInfo().getUrl().toString(), uuid);
+        if (downloadContainer.getDownloadInfo().getDownloadStatus() == DownloadStatus.CANCELLED) {
+            downloadContainer.deletePart();
+        }
+        return true;
+    }
+    
+    private static void indexDownload(String url, UUID uuid) {
+        DOWNLOAD_UUIDS.compute(CacheKeys.of(url), (key, uuids) -> {
+            if (uuids == null) {
+                uuids = ConcurrentHashMap.newKeySet();
+            }
+            uuids.add(uuid);
+            return uuids;
+        });
+    }
+    
+    private static void unindexDownload(String url, UUID uuid) {
+        DOWNLOAD_UUIDS.computeIfPresent(CacheKeys.of(url), (key, uuids) -> {
+            uuids.remove(uuid);
+            return uuids.isEmpty() ? null : uuids;
+        });
+    }
+    
+    /**
+     * Returns the {@link DownloadInfo} of a live {@link DownloadContainer} or, if it has already expired, the one restored from its {@link DownloadTombstone}.
+     */
+    public static DownloadInfo getDownloadInfo(UUID uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        final DownloadContainer downloadContainer = DOWNLOAD_CONTAINERS.get(uuid);
+        if (downloadContainer != null) {
+            return downloadContainer.getDownloadInfo();
+        }
+        final DownloadTombstone downloadTombstone = DOWNLOAD_TOMBSTONES.get(uuid);
+        if (downloadTombstone == null) {
+            return null;
+        }
+        return downloadTombstone.toDownloadInfo();
+    }
+    
+    /**
+     * Returns the {@link DownloadInfo}s of all live and expired downloads whose URL has the same {@link CacheKeys cache key}.
+     */
+    public static List<DownloadInfo> getDownloadInfos(URL url) {
+        return getDownloadUuids(url).stream().map(Downloader::getDownloadInfo).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+    
+    /**
+     * Returns the live {@link DownloadContainer}s whose URL has the same {@link CacheKeys cache key}.
+     */
+    public static List<DownloadContainer> getDownloadContainers(URL url) {
+        return getDownloadUuids(url).stream().map(DOWNLOAD_CONTAINERS::get).filter(Objects::nonNull).collect(Collectors.toList());
+    }
+    
+    private static Set<UUID> getDownloadUuids(URL url) {
+        // Looked up by the cache key, because URL#equals may resolve the hosts
+        return DOWNLOAD_UUIDS.getOrDefault(CacheKeys.of(url), Collections.emptySet());
+    }
+    
+    /**
+     * Replaces a finished {@link DownloadContainer} with its {@link DownloadTombstone}.
+     */
+    public static boolean expireDownloadContainer(DownloadContainer downloadContainer) {
+        if (downloadContainer == null || !downloadContainer.getDownloadInfo().isDone()) {
+            return false;
+        }
+        final UUID uuid = downloadContainer.getDownloadInfo().getUuid();
+        if (DOWNLOAD_CONTAINERS.remove(uuid) == null) {
+            return false;
+        }
+        DOWNLOAD_TOMBSTONES.put(uuid, new DownloadTombstone(downloadContainer.getDownloadInfo()));
+        if (downloadContainer.getDownloadInfo().getDownloadStatus() == DownloadStatus.CANCELLED) {
+            // Can't be resumed anymore
+            downloadContainer.deletePart();
+        }
+        return true;
+    }
+    
+    protected static void expireDownloadContainers() {
+        try {
+            final List<DownloadContainer> doneDownloadContainers = DOWNLOAD_CONTAINERS.values().stream().filter((downloadContainer) -> downloadContainer.getDownloadInfo().isDone()).sorted(Comparator.comparing(Downloader::getTimestampEndMillis)).collect(Collectors.toList());
+            final long expiredBefore = System.currentTimeMillis() - RETENTION_FINISHED_TTL;
+            int expired = 0;
+            int remaining = doneDownloadContainers.size();
+            for (DownloadContainer downloadContainer : doneDownloadContainers) {
+                if ((RETENTION_FINISHED_MAX < 0 || remaining <= RETENTION_FINISHED_MAX) && (RETENTION_FINISHED_TTL < 0 || getTimestampEndMillis(downloadContainer) >= expiredBefore)) {
+                    break;
+                }
+                if (expireDownloadContainer(downloadContainer)) {
+                    expired++;
+                }
+                remaining--;
+            }
+            if (expired > 0) {
+                System.out.printf("[DEBUG][%s#expireDownloadContainers] Expired %d DownloadContainers (%d remaining)%n", Downloader.class.getSimpleName(), expired, DOWNLOAD_CONTAINERS.size()); //DEBUG
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    private static long getTimestampEndMillis(DownloadContainer downloadContainer) {
+        final DownloadInfo downloadInfo = downloadContainer.getDownloadInfo();
+        if (downloadInfo.getTimestampEnd() == null) {
+            return Long.MIN_VALUE;
+        }
+        return downloadInfo.getTimestampEnd().toInstant().toEpochMilli();
+    }
+    
+    /**
+     * Opens a cached file, which counts towards the load until it gets closed.
+     */
+    public static InputStream openInputStream(StoredObject storedObject) throws IOException {
+        final InputStream inputStream = openStoredObject(storedObject);
+        OPEN_STREAMS.incrementAndGet();
+        return new ReadCompletionInputStream(inputStream, null, OPEN_STREAMS::decrementAndGet);
+    }
+    
+    private static InputStream openStoredObject(StoredObject storedObject) throws IOException {
+        final InputStream inputStream = HotTier.open(storedObject);
+        if (inputStream != null) {
+            return inputStream;
+        }
+        return readStoredObject(storedObject);
+    }
+    
+    /**
+     * Reads a stored object from the {@link #STORAGE} (or its chunks), bypassing the {@link HotTier}.
+     */
+    protected static InputStream readStoredObject(StoredObject storedObject) throws IOException {
+        if (isManifest(storedObject)) {
+            return ChunkStore.open(storedObject.getFile());
+        }
+        return STORAGE.get(storedObject.getKey(), 0, -1);
+    }
+    
+    /**
+     * Opens the file of a finished {@link DownloadContainer}, optionally removing the file once the stream has been read completely.
+     * <p>
+     * The stream is read by the thread sending the response, so the removal is handed to the {@link StorageExecutor}.
+     */
+    public static InputStream openInputStream(DownloadContainer downloadContainer, boolean deleteAfterRead) throws IOException {
+        final StoredObject storedObject = downloadContainer.getStoredObject();
+        final InputStream inputStream = openStoredObject(storedObject);
+        OPEN_STREAMS.incrementAndGet();
+        if (!deleteAfterRead) {
+            return new ReadCompletionInputStream(inputStream, null, OPEN_STREAMS::decrementAndGet);
+        }
+        final Runnable remove = () -> {
+            // Expired first, so it doesn't count as a download still using the file
+            expireDownloadContainer(downloadContainer);
+            removeFile(storedObject, downloadContainer.getDownloadInfo().getUrl(), true);
+        };
+        return new ReadCompletionInputStream(inputStream, () -> {
+            if (!StorageExecutor.execute(remove)) {
+                remove.run();
+            }
+        }, OPEN_STREAMS::decrementAndGet);
     }
     
-    public static boolean removeFile(File file, URL url, boolean delete) {
-        if (file == null || url == null) {
+    /**
+     * Opens a range of the file of a finished {@link DownloadContainer}, for ranged (e.g. parallel or resumed) client reads.
+     *
+     * @param length Number of bytes after the offset (or a negative value for the rest of the file)
+     */
+    public static InputStream openInputStream(DownloadContainer downloadContainer, long offset, long length) throws IOException {
+        final StoredObject storedObject = downloadContainer.getStoredObject();
+        InputStream inputStream = HotTier.open(storedObject);
+        if (inputStream == null && isManifest(storedObject)) {
+            inputStream = ChunkStore.open(storedObject.getFile());
+        }
+        if (inputStream == null) {
+            // The backend seeks itself, the limit only guards against stores which ignore the range
+            inputStream = new LimitedInputStream(STORAGE.get(storedObject.getKey(), offset, length), 0, length);
+        } else {
+            inputStream = new LimitedInputStream(inputStream, offset, length);
+        }
+        OPEN_STREAMS.incrementAndGet();
+        return new ReadCompletionInputStream(inputStream, null, OPEN_STREAMS::decrementAndGet);
+    }
+    
+    /**
+     * Removes the URL from the index and optionally deletes its stored file.
+     * <p>
+     * Files are shared by every URL with the same content, so the file is only deleted if no other URL points to it and no live {@link DownloadContainer} uses it (e.g. a client which has not fetched it yet).
+     * Otherwise only the URL is removed.
+     *
+     * @return false if the file should have been deleted, but is still stored
+     */
+    public static boolean removeFile(StoredObject storedObject, URL url, boolean delete) {
+        if (storedObject == null || url == null) {
             return false;
         }
-        final String hash = file.getName();
-        Downloader.removeHashForURL(url);
-        Downloader.removeFilenameForURL(url);
-        Downloader.createFileForHash(hash);
-        if (delete && file.exists()) {
-            file.delete();
+        final String hash = storedObject.getKey();
+        final String key = CacheKeys.of(url);
+        final ReentrantLock urlLock = URL_LOCKS.get(key);
+        urlLock.lock();
+        try {
+            URL_HASHES.remove(key);
+            URL_FILENAMES.remove(key);
+        } finally {
+            urlLock.unlock();
+        }
+        if (delete) {
+            // Serialized with commits of the same hash, so a concurrent commit never reuses a file which is being deleted
+            final ReentrantLock hashLock = HASH_LOCKS.get(hash);
+            hashLock.lock();
+            try {
+                if (isReferenced(hash)) {
+                    System.out.printf("[DEBUG][%s#removeFile] \"%s\" is still used, only \"%s\" gets removed%n", Downloader.class.getSimpleName(), hash, url); //DEBUG
+                } else if (isStored(storedObject)) {
+                    deleteStoredObject(storedObject);
+                    HASH_OBJECTS.remove(hash);
+                }
+            } finally {
+                hashLock.unlock();
+            }
+        }
+        requestSaveHashes();
+        System.out.printf("[DEBUG][%s#removeFile] Removed \"%s\" and \"%s\" (delete: %b)%n", Downloader.class.getSimpleName(), hash, url, delete);
+        return !(delete && isStored(storedObject));
+    }
+    
+    /**
+     * Must be called while holding the lock of the hash, so no commit can point a URL to it meanwhile.
+     *
+     * @return true if any URL points to the hash or any live {@link DownloadContainer} has its file
+     */
+    private static boolean isReferenced(String hash) {
+        for (DownloadContainer downloadContainer : DOWNLOAD_CONTAINERS.values()) {
+            final StoredObject storedObject = downloadContainer.getStoredObject();
+            if (storedObject != null && hash.equals(storedObject.getKey())) {
+                return true;
+            }
         }
-        Downloader.saveHashes();
-        System.out.printf("[DEBUG][%s#removeFile] Removed \"%s\" and \"%s\" (delete: %b)%n", Downloader.class.getSimpleName(), file.getAbsolutePath(), url, delete);
-        return !(delete && file.exists());
+        return URL_HASHES.containsValue(hash);
     }
     
-    public static List<DownloadContainer> getDownloadContainers() {
-        return DOWNLOAD_CONTAINERS;
+    /**
+     * Removes a stored file and every URL pointing to it from the index, returning the number of removed URLs.
+     */
+    public static int removeHash(String hash) {
+        if (hash == null) {
+            return 0;
+        }
+        final ReentrantLock hashLock = HASH_LOCKS.get(hash);
+        hashLock.lock();
+        try {
+            final Set<String> keys = URL_HASHES.entrySet().stream().filter((entry) -> hash.equals(entry.getValue())).map(Map.Entry::getKey).collect(Collectors.toSet());
+            int removed = 0;
+            for (String key : keys) {
+                final ReentrantLock urlLock = URL_LOCKS.get(key);
+                urlLock.lock();
+                try {
+                    // The URL may have been pointed to new content meanwhile
+                    if (URL_HASHES.remove(key, hash)) {
+                        URL_FILENAMES.remove(key);
+                        removed++;
+                    }
+                } finally {
+                    urlLock.unlock();
+                }
+            }
+            HASH_OBJECTS.remove(hash);
+            HASH_SHA256S.remove(hash);
+            HotTier.invalidate(hash);
+            requestSaveHashes();
+            return removed;
+        } finally {
+            hashLock.unlock();
+        }
+    }
+    
+    public static Map<String, Object> getCommitStats() {
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("lock_stripes", HASH_LOCKS.getStripes());
+        stats.put("commits", COMMITS.get());
+        stats.put("reused", COMMITS_REUSED.get());
+        return stats;
+    }
+    
+    public static Collection<DownloadContainer> getDownloadContainers() {
+        return DOWNLOAD_CONTAINERS.values();
+    }
+    
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        
+        private final int priority;
+        private final long sequence = TASK_SEQUENCE.getAndIncrement();
+        private final Runnable runnable;
+        
+        private PrioritizedTask(int priority, Runnable runnable) {
+            this.priority = priority;
+            this.runnable = runnable;
+        }
+        
+        @Override
+        public void run() {
+            runnable.run();
+        }
+        
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            final int result = Integer.compare(priority, other.priority);
+            if (result != 0) {
+                return result;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+        
     }
     
 }
@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Stores every object as a file named by its key on one of the {@link StorageVolumes}.
+ * <p>
+ * A part file is committed by renaming it on its own volume, streams are written to a temporary file on the volume placed by the key first,
+ * so an object is never visible half written. Ranges are read with positional reads, so they don't share a channel position.
+ */
+public class FileSystemBackend implements StorageBackend {
+    
+    @Override
+    public String getName() {
+        return "filesystem";
+    }
+    
+    @Override
+    public void put(String key, File source) throws IOException {
+        final StorageVolumes.Volume volume = StorageVolumes.getVolume(source);
+        if (volume == null) {
+            try (final InputStream inputStream = new FileInputStream(source)) {
+                put(key, inputStream, source.length());
+            }
+            return;
+        }
+        final File file = new File(volume.getFolder(), key);
+        move(source, file);
+        deleteOtherCopies(key, file);
+    }
+    
+    @Override
+    public void put(String key, InputStream inputStream, long length) throws IOException {
+        final StorageVolumes.Volume volume = StorageVolumes.place(key);
+        final File file = new File(volume.getFolder(), key);
+        final File tempFile;
+        try {
+            tempFile = File.createTempFile("put", ".tmp", volume.getFolder());
+        } catch (IOException ex) {
+            StorageVolumes.reportFailure(file, ex);
+            throw new VolumeException("Can't create a temporary file in \"" + volume.getFolder().getAbsolutePath() + "\"", ex);
+        }
+        try {
+            try {
+                Files.copy(inputStream, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                // Can't tell if reading or writing failed, so the volume stays in
+                throw new IOException("Can't write \"" + tempFile.getAbsolutePath() + "\"", ex);
+            }
+            move(tempFile, file);
+        } finally {
+            tempFile.delete();
+        }
+        deleteOtherCopies(key, file);
+    }
+    
+    private static void move(File source, File file) throws VolumeException {
+        try {
+            Files.move(source.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            StorageVolumes.reportFailure(file, ex);
+            throw new VolumeException("Can't move \"" + source.getAbsolutePath() + "\" to \"" + file.getAbsolutePath() + "\"", ex);
+        }
+    }
+    
+    /**
+     * Deletes copies of the object on other volumes (e.g. from before it was stored again), so there is only one.
+     */
+    private static void deleteOtherCopies(String key, File file) {
+        for (StorageVolumes.Volume volume : StorageVolumes.getVolumes()) {
+            final File file_ = new File(volume.getFolder(), key);
+            if (!file_.equals(file) && file_.exists() && !file_.delete()) {
+                System.err.printf("[WARNING][%s#deleteOtherCopies] Can't delete old \"%s\"%n", FileSystemBackend.class.getSimpleName(), file_.getAbsolutePath());
+            }
+        }
+    }
+    
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        final File file = StorageVolumes.findFile(key);
+        if (file == null) {
+            throw new FileNotFoundException(key);
+        }
+        if (offset <= 0 && length < 0) {
+            return new FileInputStream(file);
+        }
+        final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        final long end = length < 0 ? Long.MAX_VALUE : offset + length;
+        return new RangeInputStream(fileChannel, Math.max(0, offset), end);
+    }
+    
+    @Override
+    public StoredObject stat(String key) {
+        final File file = StorageVolumes.findFile(key);
+        if (file == null) {
+            return null;
+        }
+        return new StoredObject(key, file.length(), file.lastModified(), file);
+    }
+    
+    @Override
+    public boolean delete(String key) {
+        boolean deleted = false;
+        for (StorageVolumes.Volume volume : StorageVolumes.getVolumes()) {
+            deleted |= new File(volume.getFolder(), key).delete();
+        }
+        return deleted;
+    }
+    
+    /**
+     * Lists every file of the volumes except part files and temporary files.
+     */
+    @Override
+    public List<String> list() {
+        return StorageVolumes.listFiles((file) -> file.isFile() && !file.getName().endsWith(".tmp") && !Downloader.PATTERN_TEMP_FILE.matcher(file.getName()).matches()).stream().map(File::getName).distinct().collect(Collectors.toList());
+    }
+    
+    private static class RangeInputStream extends InputStream {
+        
+        private final FileChannel fileChannel;
+        private final long end;
+        private long position;
+        
+        private RangeInputStream(FileChannel fileChannel, long position, long end) {
+            this.fileChannel = fileChannel;
+            this.position = position;
+            this.end = end;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            final byte[] buffer = new byte[1];
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xFF;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            final int read = fileChannel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, end - position)), position);
+            if (read < 0) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = Math.max(0, Math.min(n, Math.min(end, fileChannel.size()) - position));
+            position += skipped;
+            return skipped;
+        }
+        
+        /**
+         * Netty sizes the chunks of a streamed response by this, so it must not stay at 0 (which would send 1 byte chunks).
+         */
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(0, Math.min(end, fileChannel.size()) - position));
+        }
+        
+        @Override
+        public void close() throws IOException {
+            fileChannel.close();
+        }
+        
+    }
+    
+}
@@ -0,0 +1,231 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the most frequently requested small files in direct (off-heap) memory.
+ * <p>
+ * Access frequencies are counted for every request (and halved every {@link #SAMPLE_SIZE} requests, so old popularity fades).
+ * A file is only admitted once it was requested {@link #MIN_HITS} times, and only if it is more popular than the entries it would evict.
+ * Stored files are immutable (their name is their hash), so entries only have to be invalidated when the file gets removed.
+ */
+public class HotTier {
+    
+    public static final boolean ENABLED = Config.getBoolean("hot.enabled", true);
+    public static final long MAX_BYTES = Config.getLong("hot.max_bytes", 16L * 1024 * 1024);
+    public static final int MAX_FILE_SIZE = Config.getInt("hot.max_file_size", 256 * 1024);
+    public static final int MIN_HITS = Config.getInt("hot.min_hits", 2);
+    public static final int SAMPLE_SIZE = Config.getInt("hot.sample_size", 10000);
+    
+    private static final Map<String, ByteBuffer> ENTRIES = new ConcurrentHashMap<>();
+    private static final Map<String, Integer> FREQUENCIES = new HashMap<>();
+    /**
+     * Hashes which are read outside of the lock by {@link #admit(StoredObject, int, int, Callable)}, mapped to true once they got invalidated meanwhile (guarded by the class).
+     */
+    private static final Map<String, Boolean> LOADING = new HashMap<>();
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong ADMISSIONS = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+    private static long bytes = 0;
+    private static int accesses = 0;
+    
+    /**
+     * Serves the file from memory if it is (or just became) hot.
+     *
+     * @return null if the file has to be read from disk
+     */
+    public static InputStream open(StoredObject storedObject) {
+        if (!ENABLED || storedObject == null) {
+            return null;
+        }
+        final String hash = storedObject.getKey();
+        final int frequency = recordAccess(hash);
+        final ByteBuffer byteBuffer = ENTRIES.get(hash);
+        if (byteBuffer != null) {
+            HITS.incrementAndGet();
+            return new ByteBufferInputStream(byteBuffer.duplicate());
+        }
+        MISSES.incrementAndGet();
+        if (frequency < MIN_HITS) {
+            return null;
+        }
+        final long length = storedObject.getLength();
+        if (length < 0 || length > MAX_FILE_SIZE || length > MAX_BYTES) {
+            return null;
+        }
+        final ByteBuffer loaded = admit(storedObject, (int) length, frequency, () -> Downloader.readStoredObject(storedObject));
+        return loaded == null ? null : new ByteBufferInputStream(loaded.duplicate());
+    }
+    
+    private static synchronized int recordAccess(String hash) {
+        if (++accesses >= SAMPLE_SIZE) {
+            accesses = 0;
+            FREQUENCIES.replaceAll((hash_, frequency) -> frequency / 2);
+            // Entries stay counted, so they can't be pushed out by a single request for something else
+            FREQUENCIES.entrySet().removeIf((entry) -> entry.getValue() == 0 && !ENTRIES.containsKey(entry.getKey()));
+        }
+        return FREQUENCIES.merge(hash, 1, Integer::sum);
+    }
+    
+    /**
+     * Reads the file into memory, unless it is not popular enough or got invalidated while being read.
+     *
+     * @param reader Opens the file, only called outside of the lock
+     *
+     * @return null if the file was not admitted
+     */
+    protected static ByteBuffer admit(StoredObject storedObject, int length, int frequency, Callable<InputStream> reader) {
+        final String hash = storedObject.getKey();
+        synchronized (HotTier.class) {
+            final ByteBuffer present = ENTRIES.get(hash);
+            if (present != null) {
+                return present;
+            }
+            // Another request is loading it already, this one reads it from disk
+            if (LOADING.containsKey(hash)) {
+                return null;
+            }
+            // Evicts the least frequently used entries, but only while they are less popular than the new one
+            while (bytes + length > MAX_BYTES) {
+                final String victim = ENTRIES.keySet().stream().min((hash1, hash2) -> Integer.compare(FREQUENCIES.getOrDefault(hash1, 0), FREQUENCIES.getOrDefault(hash2, 0))).orElse(null);
+                if (victim == null || FREQUENCIES.getOrDefault(victim, 0) >= frequency) {
+                    return null;
+                }
+                remove(victim);
+                EVICTIONS.incrementAndGet();
+            }
+            // Reserved before reading, so concurrent admissions can't overshoot
+            bytes += length;
+            LOADING.put(hash, false);
+        }
+        final ByteBuffer byteBuffer = ByteBuffer.allocateDirect(length);
+        try (final InputStream inputStream = reader.call()) {
+            final byte[] buffer = new byte[Math.min(length, 64 * 1024)];
+            int read;
+            while (byteBuffer.hasRemaining() && (read = inputStream.read(buffer, 0, Math.min(buffer.length, byteBuffer.remaining()))) != -1) {
+                byteBuffer.put(buffer, 0, read);
+            }
+        } catch (Exception e) {
+            synchronized (HotTier.class) {
+                LOADING.remove(hash);
+                bytes -= length;
+            }
+            return null;
+        }
+        synchronized (HotTier.class) {
+            // An invalidation while reading means the file got removed or replaced, so the read content must not be put back
+            if (Boolean.TRUE.equals(LOADING.remove(hash)) || byteBuffer.hasRemaining()) {
+                bytes -= length;
+                return null;
+            }
+            byteBuffer.flip();
+            ENTRIES.put(hash, byteBuffer.asReadOnlyBuffer());
+            ADMISSIONS.incrementAndGet();
+        }
+        return byteBuffer;
+    }
+    
+    private static void remove(String hash) {
+        final ByteBuffer byteBuffer = ENTRIES.remove(hash);
+        if (byteBuffer != null) {
+            bytes -= byteBuffer.capacity();
+        }
+    }
+    
+    /**
+     * Drops the file from memory, must be called whenever a stored file gets removed.
+     */
+    public static synchronized void invalidate(String hash) {
+        if (hash == null) {
+            return;
+        }
+        remove(hash);
+        FREQUENCIES.remove(hash);
+        LOADING.computeIfPresent(hash, (hash_, invalidated) -> true);
+    }
+    
+    public static synchronized Map<String, Object> getStats() {
+        final long hits = HITS.get();
+        final long misses = MISSES.get();
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", ENABLED);
+        stats.put("entries", ENTRIES.size());
+        stats.put("bytes", bytes);
+        stats.put("max_bytes", MAX_BYTES);
+        stats.put("max_file_size", MAX_FILE_SIZE);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hit_ratio", hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+        stats.put("admissions", ADMISSIONS.get());
+        stats.put("evictions", EVICTIONS.get());
+        return stats;
+    }
+    
+    private static class ByteBufferInputStream extends InputStream {
+        
+        private final ByteBuffer byteBuffer;
+        
+        private ByteBufferInputStream(ByteBuffer byteBuffer) {
+            this.byteBuffer = byteBuffer;
+        }
+        
+        @Override
+        public int read() {
+            return byteBuffer.hasRemaining() ? byteBuffer.get() & 0xFF : -1;
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!byteBuffer.hasRemaining()) {
+                return -1;
+            }
+            final int read = Math.min(length, byteBuffer.remaining());
+            byteBuffer.get(bytes, offset, read);
+            return read;
+        }
+        
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, byteBuffer.remaining()));
+            byteBuffer.position(byteBuffer.position() + skipped);
+            return skipped;
+        }
+        
+        @Override
+        public int available() {
+            return byteBuffer.remaining();
+        }
+        
+    }
+    
+}
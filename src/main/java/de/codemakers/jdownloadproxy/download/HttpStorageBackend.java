@@ -0,0 +1,214 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Stores objects on a plain HTTP object store, e.g. a WebDAV folder or a bucket behind a gateway which handles the authentication.
+ * <p>
+ * Objects are {@code PUT}, {@code GET} (with a "Range" header for ranges), {@code HEAD} and {@code DELETE} at the base URL followed by their key,
+ * a {@code GET} of the base URL itself lists the keys, one per line.
+ * <p>
+ * A request times out if the store doesn't answer within {@link #TIMEOUT} milliseconds. This includes sending the body,
+ * so a {@code PUT} gets another second per {@link #MIN_UPLOAD_RATE} Bytes of its body (and no timeout at all if its length is unknown).
+ */
+public class HttpStorageBackend implements StorageBackend {
+    
+    public static final long TIMEOUT = Config.getLong("storage.http.timeout", TimeUnit.SECONDS.toMillis(30));
+    public static final long MIN_UPLOAD_RATE = Config.getLong("storage.http.min_upload_rate", 1024 * 1024);
+    
+    private final URI baseUri;
+    private final long timeout;
+    private final long minUploadRate;
+    private final HttpClient httpClient;
+    
+    public HttpStorageBackend(URI baseUri) {
+        this(baseUri, TIMEOUT, MIN_UPLOAD_RATE);
+    }
+    
+    protected HttpStorageBackend(URI baseUri, long timeout, long minUploadRate) {
+        this.baseUri = baseUri.toString().endsWith("/") ? baseUri : URI.create(baseUri + "/");
+        this.timeout = timeout;
+        this.minUploadRate = minUploadRate;
+        this.httpClient = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(timeout)).build();
+    }
+    
+    public URI getBaseUri() {
+        return baseUri;
+    }
+    
+    @Override
+    public String getName() {
+        return "http";
+    }
+    
+    private URI toUri(String key) {
+        return baseUri.resolve(URLEncoder.encode(key, StandardCharsets.UTF_8));
+    }
+    
+    @Override
+    public void put(String key, File source) throws IOException {
+        checkStatus(key, send(HttpRequest.newBuilder(toUri(key)).PUT(HttpRequest.BodyPublishers.ofFile(source.toPath())), HttpResponse.BodyHandlers.discarding(), getUploadTimeout(source.length())));
+    }
+    
+    @Override
+    public void put(String key, InputStream inputStream, long length) throws IOException {
+        final HttpRequest.BodyPublisher bodyPublisher;
+        if (length == 0) {
+            bodyPublisher = HttpRequest.BodyPublishers.noBody();
+        } else if (length < 0) {
+            bodyPublisher = HttpRequest.BodyPublishers.ofInputStream(() -> inputStream);
+        } else {
+            // A known length is sent as Content-Length instead of chunks, which not every object store accepts
+            bodyPublisher = HttpRequest.BodyPublishers.fromPublisher(HttpRequest.BodyPublishers.ofInputStream(() -> inputStream), length);
+        }
+        checkStatus(key, send(HttpRequest.newBuilder(toUri(key)).PUT(bodyPublisher), HttpResponse.BodyHandlers.discarding(), getUploadTimeout(length)));
+    }
+    
+    /**
+     * Returns the timeout for a request with a body of the given length, or -1 if it has none.
+     */
+    protected long getUploadTimeout(long length) {
+        if (length < 0 || minUploadRate <= 0) {
+            return -1;
+        }
+        return timeout + TimeUnit.SECONDS.toMillis(length / minUploadRate);
+    }
+    
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(toUri(key)).GET();
+        if (offset > 0 || length >= 0) {
+            requestBuilder.header("Range", "bytes=" + Math.max(0, offset) + "-" + (length < 0 ? "" : String.valueOf(Math.max(0, offset) + length - 1)));
+        }
+        final HttpResponse<InputStream> response = send(requestBuilder, HttpResponse.BodyHandlers.ofInputStream());
+        try {
+            checkStatus(key, response);
+            if (response.statusCode() != 206 && offset > 0) {
+                // The store ignored the range, so the part before it is skipped here
+                skip(response.body(), offset);
+            }
+            return response.body();
+        } catch (IOException | RuntimeException ex) {
+            response.body().close();
+            throw ex;
+        }
+    }
+    
+    @Override
+    public StoredObject stat(String key) throws IOException {
+        final HttpResponse<Void> response = send(HttpRequest.newBuilder(toUri(key)).method("HEAD", HttpRequest.BodyPublishers.noBody()), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return null;
+        }
+        checkStatus(key, response);
+        final long length = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+        final long lastModified = response.headers().firstValue("Last-Modified").map(HttpStorageBackend::parseDate).orElse(0L);
+        return new StoredObject(key, length, lastModified, null);
+    }
+    
+    @Override
+    public boolean delete(String key) throws IOException {
+        final HttpResponse<Void> response = send(HttpRequest.newBuilder(toUri(key)).DELETE(), HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) {
+            return false;
+        }
+        checkStatus(key, response);
+        return true;
+    }
+    
+    @Override
+    public List<String> list() throws IOException {
+        final HttpResponse<String> response = send(HttpRequest.newBuilder(baseUri).GET(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        checkStatus("", response);
+        return Arrays.stream(response.body().split("\\R")).map(String::trim).filter((key) -> !key.isEmpty()).collect(Collectors.toList());
+    }
+    
+    private <T> HttpResponse<T> send(HttpRequest.Builder requestBuilder, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        return send(requestBuilder, bodyHandler, timeout);
+    }
+    
+    /**
+     * @param timeout Milliseconds until the response headers have to arrive, -1 waits as long as the connection is alive
+     */
+    private <T> HttpResponse<T> send(HttpRequest.Builder requestBuilder, HttpResponse.BodyHandler<T> bodyHandler, long timeout) throws IOException {
+        if (timeout >= 0) {
+            requestBuilder.timeout(Duration.ofMillis(timeout));
+        }
+        try {
+            return httpClient.send(requestBuilder.build(), bodyHandler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + baseUri);
+        }
+    }
+    
+    private static void checkStatus(String key, HttpResponse<?> response) throws IOException {
+        if (response.statusCode() == 404) {
+            throw new FileNotFoundException(key);
+        }
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            throw new IOException(String.format("Object store returned HTTP response code %d for \"%s\"", response.statusCode(), response.uri()));
+        }
+    }
+    
+    private static void skip(InputStream inputStream, long bytes) throws IOException {
+        while (bytes > 0) {
+            final long skipped = inputStream.skip(bytes);
+            if (skipped <= 0) {
+                if (inputStream.read() < 0) {
+                    throw new IOException("Object ended before the requested offset");
+                }
+                bytes--;
+            } else {
+                bytes -= skipped;
+            }
+        }
+    }
+    
+    private static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return 0;
+        }
+    }
+    
+}
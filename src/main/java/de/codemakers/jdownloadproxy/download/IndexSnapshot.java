@@ -0,0 +1,451 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.hash.HashScheme;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of the URL index, which is mapped and only decoded entry by entry when it is looked up (see {@link SnapshotMap}).
+ * <p>
+ * Layout: {@code MAGIC (int), VERSION (int), key count (int), filename count (int), scheme count (int), [key record offset (int)]*, [scheme record offset (int)]*, [cache key (see CacheKeys), hash, filename]*, [hash, scheme ordinal (byte)]*, CRC32 of everything before (long)}.
+ * Strings are stored as their UTF-8 length (int, {@code -1} for {@code null}) followed by the bytes. Both record sections are sorted by the unsigned bytes of their first string, so a lookup is a binary search over the offsets.
+ * <p>
+ * The scheme section is only filled in snapshots from before keys got the prefix of their scheme (see {@link HashScheme#toKey(String)}), which get migrated when loaded.
+ * <p>
+ * Version 1 snapshots (unsorted, without offsets) are still read, but decoded completely, once, until the next save replaces them.
+ */
+public class IndexSnapshot {
+    
+    public static final int MAGIC = 0x4A445058; // "JDPX"
+    public static final int VERSION = 2;
+    private static final int VERSION_1 = 1;
+    private static final int HEADER_SIZE = Integer.BYTES * 5;
+    
+    private final File file;
+    private final MappedByteBuffer mappedByteBuffer;
+    private final int urls;
+    private final int filenames;
+    private final int schemes;
+    
+    private IndexSnapshot(File file, MappedByteBuffer mappedByteBuffer, int urls, int filenames, int schemes) {
+        this.file = file;
+        this.mappedByteBuffer = mappedByteBuffer;
+        this.urls = urls;
+        this.filenames = filenames;
+        this.schemes = schemes;
+    }
+    
+    /**
+     * Maps the snapshot and checks its header, the entries are not touched (see {@link #verify()}).
+     *
+     * @return The snapshot, or null if there is none, it is invalid or of version 1 (see {@link #readVersion1(File, Map, Map, Map)})
+     */
+    public static IndexSnapshot open(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            if (mappedByteBuffer.remaining() < Integer.BYTES * 2 + Long.BYTES || mappedByteBuffer.getInt(0) != MAGIC) {
+                System.err.printf("[WARNING][%s#open] \"%s\" is not an index snapshot%n", IndexSnapshot.class.getSimpleName(), file.getAbsolutePath());
+                return null;
+            }
+            final int version = mappedByteBuffer.getInt(Integer.BYTES);
+            if (version == VERSION_1) {
+                return null;
+            }
+            if (version != VERSION) {
+                System.err.printf("[WARNING][%s#open] Unsupported index snapshot version %d in \"%s\"%n", IndexSnapshot.class.getSimpleName(), version, file.getAbsolutePath());
+                return null;
+            }
+            final int urls = mappedByteBuffer.getInt(Integer.BYTES * 2);
+            final int filenames = mappedByteBuffer.getInt(Integer.BYTES * 3);
+            final int schemes = mappedByteBuffer.getInt(Integer.BYTES * 4);
+            if (urls < 0 || filenames < 0 || filenames > urls || schemes < 0 || HEADER_SIZE + ((long) urls + schemes) * Integer.BYTES > mappedByteBuffer.limit() - Long.BYTES) {
+                System.err.printf("[WARNING][%s#open] Index snapshot \"%s\" is corrupted%n", IndexSnapshot.class.getSimpleName(), file.getAbsolutePath());
+                return null;
+            }
+            return new IndexSnapshot(file, mappedByteBuffer, urls, filenames, schemes);
+        } catch (IOException | IndexOutOfBoundsException e) {
+            System.err.printf("[ERROR][%s#open] Failed opening index snapshot \"%s\"%n", IndexSnapshot.class.getSimpleName(), file.getAbsolutePath());
+            e.printStackTrace();
+        }
+        return null;
+    }
+    
+    /**
+     * Checks the CRC32 of the whole snapshot, which reads every page of it, so it is done in the background instead of in {@link #open(File)}.
+     */
+    public boolean verify() {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(mappedByteBuffer.duplicate().position(0).limit(mappedByteBuffer.limit() - Long.BYTES));
+        if (crc32.getValue() != mappedByteBuffer.getLong(mappedByteBuffer.limit() - Long.BYTES)) {
+            System.err.printf("[ERROR][%s#verify] Index snapshot \"%s\" is corrupted%n", IndexSnapshot.class.getSimpleName(), file.getAbsolutePath());
+            return false;
+        }
+        return true;
+    }
+    
+    public SnapshotMap.Base<String> getUrlHashes() {
+        return new Section<>(HEADER_SIZE, urls, urls) {
+            @Override
+            protected String decode(int position) {
+                return readString(position);
+            }
+            
+            @Override
+            protected boolean hasValue(int position) {
+                return true;
+            }
+        };
+    }
+    
+    public SnapshotMap.Base<String> getUrlFilenames() {
+        return new Section<>(HEADER_SIZE, urls, filenames) {
+            @Override
+            protected String decode(int position) {
+                return readString(skipString(position));
+            }
+            
+            @Override
+            protected boolean hasValue(int position) {
+                return mappedByteBuffer.getInt(skipString(position)) >= 0;
+            }
+        };
+    }
+    
+    public SnapshotMap.Base<HashScheme> getHashSchemes() {
+        final HashScheme[] hashSchemes = HashScheme.values();
+        return new Section<>(HEADER_SIZE + urls * Integer.BYTES, schemes, schemes) {
+            @Override
+            protected HashScheme decode(int position) {
+                final int ordinal = mappedByteBuffer.get(position);
+                return ordinal >= 0 && ordinal < hashSchemes.length ? hashSchemes[ordinal] : null;
+            }
+            
+            @Override
+            protected boolean hasValue(int position) {
+                return true;
+            }
+        };
+    }
+    
+    private String readString(int position) {
+        final int length = mappedByteBuffer.getInt(position);
+        if (length < 0) {
+            return null;
+        }
+        final ByteBuffer slice = mappedByteBuffer.duplicate();
+        slice.limit(position + Integer.BYTES + length).position(position + Integer.BYTES);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+    
+    private int skipString(int position) {
+        return position + Integer.BYTES + Math.max(0, mappedByteBuffer.getInt(position));
+    }
+    
+    /**
+     * Compares the string at the position with the bytes like {@link Arrays#compareUnsigned(byte[], byte[])}, without decoding it.
+     */
+    private int compareString(int position, byte[] bytes) {
+        final int length = mappedByteBuffer.getInt(position);
+        final int common = Math.min(length, bytes.length);
+        for (int i = 0; i < common; i++) {
+            final int comparison = Byte.compareUnsigned(mappedByteBuffer.get(position + Integer.BYTES + i), bytes[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return length - bytes.length;
+    }
+    
+    /**
+     * One sorted record section, the value of a record is decoded from the position after its key.
+     */
+    private abstract class Section<V> implements SnapshotMap.Base<V> {
+        
+        private final int offsets;
+        private final int count;
+        private final int size;
+        
+        private Section(int offsets, int count, int size) {
+            this.offsets = offsets;
+            this.count = count;
+            this.size = size;
+        }
+        
+        protected abstract V decode(int position);
+        
+        protected abstract boolean hasValue(int position);
+        
+        private int find(String key) {
+            final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                final int middle = (low + high) >>> 1;
+                final int position = mappedByteBuffer.getInt(offsets + middle * Integer.BYTES);
+                final int comparison = compareString(position, bytes);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return position;
+                }
+            }
+            return -1;
+        }
+        
+        @Override
+        public V get(String key) {
+            try {
+                final int position = find(key);
+                return position < 0 ? null : decode(skipString(position));
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                // A corrupted snapshot is reported by verify
+                return null;
+            }
+        }
+        
+        @Override
+        public boolean containsKey(String key) {
+            try {
+                final int position = find(key);
+                return position >= 0 && hasValue(skipString(position));
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                return false;
+            }
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+        
+        @Override
+        public Iterator<Map.Entry<String, V>> iterator() {
+            return new Iterator<>() {
+                private int index = 0;
+                private Map.Entry<String, V> next = null;
+                
+                @Override
+                public boolean hasNext() {
+                    while (next == null && index < count) {
+                        final int position = mappedByteBuffer.getInt(offsets + index++ * Integer.BYTES);
+                        final V value = decode(skipString(position));
+                        if (value != null) {
+                            next = new AbstractMap.SimpleImmutableEntry<>(readString(position), value);
+                        }
+                    }
+                    return next != null;
+                }
+                
+                @Override
+                public Map.Entry<String, V> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    final Map.Entry<String, V> entry = next;
+                    next = null;
+                    return entry;
+                }
+            };
+        }
+        
+    }
+    
+    /**
+     * Reads a version 1 snapshot completely, rebuilding every URL key with the current {@link CacheKeys} rules.
+     */
+    public static boolean readVersion1(File file, Map<String, String> urlHashes, Map<String, String> urlFilenames, Map<String, HashScheme> hashSchemes) {
+        if (!file.exists()) {
+            return false;
+        }
+        try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            // Anything else was already reported by open
+            if (mappedByteBuffer.remaining() < Integer.BYTES * 2 + Long.BYTES || mappedByteBuffer.getInt() != MAGIC || mappedByteBuffer.getInt() != VERSION_1) {
+                return false;
+            }
+            final CRC32 crc32 = new CRC32();
+            crc32.update(mappedByteBuffer.duplicate().position(0).limit(mappedByteBuffer.limit() - Long.BYTES));
+            if (crc32.getValue() != mappedByteBuffer.getLong(mappedByteBuffer.limit() - Long.BYTES)) {
+                System.err.printf("[WARNING][%s#readVersion1] Index snapshot \"%s\" is corrupted%n", IndexSnapshot.class.getSimpleName(), file.getAbsolutePath());
+                return false;
+            }
+            final int urls = mappedByteBuffer.getInt();
+            for (int i = 0; i < urls; i++) {
+                final String url = readString(mappedByteBuffer);
+                final String hash = readString(mappedByteBuffer);
+                final String filename = readString(mappedByteBuffer);
+                final String key = CacheKeys.of(url);
+                if (urlHashes.putIfAbsent(key, hash) == null && filename != null) {
+                    urlFilenames.put(key, filename);
+                }
+            }
+            final int schemes = mappedByteBuffer.getInt();
+            final HashScheme[] hashSchemes_ = HashScheme.values();
+            for (int i = 0; i < schemes; i++) {
+                final String hash = readString(mappedByteBuffer);
+                final int ordinal = mappedByteBuffer.get();
+                if (ordinal >= 0 && ordinal < hashSchemes_.length) {
+                    hashSchemes.put(hash, hashSchemes_[ordinal]);
+                }
+            }
+            return true;
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+            System.err.printf("[ERROR][%s#readVersion1] Failed reading index snapshot \"%s\"%n", IndexSnapshot.class.getSimpleName(), file.getAbsolutePath());
+            e.printStackTrace();
+            urlHashes.clear();
+            urlFilenames.clear();
+            hashSchemes.clear();
+        }
+        return false;
+    }
+    
+    /**
+     * Writes the snapshot to a temporary file first and then replaces the old one, so a crash never leaves a half written snapshot behind.
+     */
+    public static boolean write(File file, Map<String, String> urlHashes, Map<String, String> urlFilenames, Map<String, HashScheme> hashSchemes) {
+        final List<byte[][]> urlRecords = new ArrayList<>();
+        int filenames = 0;
+        for (Map.Entry<String, String> entry : urlHashes.entrySet()) {
+            final String filename = urlFilenames.get(entry.getKey());
+            urlRecords.add(new byte[][] {toBytes(entry.getKey()), toBytes(entry.getValue()), toBytes(filename)});
+            if (filename != null) {
+                filenames++;
+            }
+        }
+        final List<byte[][]> schemeRecords = new ArrayList<>();
+        for (Map.Entry<String, HashScheme> entry : hashSchemes.entrySet()) {
+            schemeRecords.add(new byte[][] {toBytes(entry.getKey()), {(byte) entry.getValue().ordinal()}});
+        }
+        final Comparator<byte[][]> comparator = (record, record_) -> Arrays.compareUnsigned(record[0], record_[0]);
+        urlRecords.sort(comparator);
+        schemeRecords.sort(comparator);
+        final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        final CRC32 crc32 = new CRC32();
+        try (final FileOutputStream fileOutputStream = new FileOutputStream(tempFile, false)) {
+            final DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(fileOutputStream, crc32), 64 * 1024));
+            dataOutputStream.writeInt(MAGIC);
+            dataOutputStream.writeInt(VERSION);
+            dataOutputStream.writeInt(urlRecords.size());
+            dataOutputStream.writeInt(filenames);
+            dataOutputStream.writeInt(schemeRecords.size());
+            long position = HEADER_SIZE + (long) (urlRecords.size() + schemeRecords.size()) * Integer.BYTES;
+            for (byte[][] record : urlRecords) {
+                dataOutputStream.writeInt(toOffset(position));
+                position += getStringSize(record[0]) + getStringSize(record[1]) + getStringSize(record[2]);
+            }
+            for (byte[][] record : schemeRecords) {
+                dataOutputStream.writeInt(toOffset(position));
+                position += getStringSize(record[0]) + Byte.BYTES;
+            }
+            // The end of the last record has to be addressable as well
+            toOffset(position);
+            for (byte[][] record : urlRecords) {
+                writeString(dataOutputStream, record[0]);
+                writeString(dataOutputStream, record[1]);
+                writeString(dataOutputStream, record[2]);
+            }
+            for (byte[][] record : schemeRecords) {
+                writeString(dataOutputStream, record[0]);
+                dataOutputStream.write(record[1]);
+            }
+            dataOutputStream.flush();
+            new DataOutputStream(fileOutputStream).writeLong(crc32.getValue());
+        } catch (IOException e) {
+            System.err.printf("[ERROR][%s#write] Failed writing index snapshot \"%s\"%n", IndexSnapshot.class.getSimpleName(), tempFile.getAbsolutePath());
+            e.printStackTrace();
+            tempFile.delete();
+            return false;
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+        }
+        return false;
+    }
+    
+    /**
+     * Offsets are ints, because a snapshot is mapped as one buffer, which can't be larger than 2 GiB anyway.
+     */
+    private static int toOffset(long position) throws IOException {
+        if (position > Integer.MAX_VALUE - Long.BYTES) {
+            throw new IOException("Index snapshot would exceed 2 GiB");
+        }
+        return (int) position;
+    }
+    
+    private static byte[] toBytes(String string) {
+        return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static long getStringSize(byte[] bytes) {
+        return Integer.BYTES + (bytes == null ? 0 : bytes.length);
+    }
+    
+    private static String readString(ByteBuffer byteBuffer) {
+        final int length = byteBuffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        final ByteBuffer slice = byteBuffer.slice();
+        slice.limit(length);
+        byteBuffer.position(byteBuffer.position() + length);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+    
+    private static void writeString(DataOutputStream dataOutputStream, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            dataOutputStream.writeInt(-1);
+            return;
+        }
+        dataOutputStream.writeInt(bytes.length);
+        dataOutputStream.write(bytes);
+    }
+    
+}
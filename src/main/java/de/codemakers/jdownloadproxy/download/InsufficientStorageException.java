@@ -15,18 +15,17 @@
  *
  */
 
-package de.codemakers.jdownloadproxy;
+package de.codemakers.jdownloadproxy.download;
 
-import io.micronaut.http.MediaType;
-import io.micronaut.http.annotation.Get;
-import io.micronaut.http.annotation.PathVariable;
-import io.micronaut.http.client.annotation.Client;
-import io.micronaut.http.server.types.files.StreamedFile;
+import java.io.IOException;
 
-@Client("/download")
-public interface DownloadClient {
+/**
+ * Thrown if a download doesn't fit on the disk, which is neither the fault of the origin nor fixed by retrying right away.
+ */
+public class InsufficientStorageException extends IOException {
     
-    @Get(processes = MediaType.APPLICATION_OCTET_STREAM)
-    StreamedFile download(@PathVariable(name = "url", defaultValue = "DEFAULT") String url);
+    public InsufficientStorageException(String message) {
+        super(message);
+    }
     
 }
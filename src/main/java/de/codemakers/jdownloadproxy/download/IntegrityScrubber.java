@@ -0,0 +1,434 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Application;
+import de.codemakers.jdownloadproxy.Config;
+import de.codemakers.jdownloadproxy.Util;
+import de.codemakers.jdownloadproxy.hash.HashEngine;
+import de.codemakers.jdownloadproxy.hash.HashScheme;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+
+/**
+ * Re-hashes the objects of the {@link Downloader#STORAGE} and the chunks of the {@link ChunkStore} in the background and quarantines everything whose content no longer matches its name.
+ * <p>
+ * Reads are limited to {@link #RATE} bytes per second and pause while {@link Downloader#getLoad()} is above {@link #MAX_LOAD}.
+ * The name of the last checked file is kept in {@link #CURSOR_FILE}, so a pass continues where it stopped after a restart.
+ */
+public class IntegrityScrubber {
+    
+    public static final File QUARANTINE_FOLDER = new File(Application.APPLICATION_FOLDER, "Quarantine");
+    public static final File CURSOR_FILE = new File(Application.APPLICATION_FOLDER, "scrub_cursor.txt");
+    public static final boolean ENABLED = Config.getBoolean("scrub.enabled", true);
+    public static final long RATE = Config.getLong("scrub.rate", 16 * 1024 * 1024);
+    public static final int MAX_LOAD = Config.getInt("scrub.max_load", 2);
+    public static final long INTERVAL = Config.getLong("scrub.interval", TimeUnit.DAYS.toMillis(1));
+    public static final long INITIAL_DELAY = Config.getLong("scrub.initial_delay", TimeUnit.MINUTES.toMillis(5));
+    public static final long CURSOR_SAVE_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+    public static final long PAUSE_MILLIS = 1000;
+    /**
+     * Files modified more recently than this may still be written, so they are left for the next pass.
+     */
+    public static final long MIN_AGE = Config.getLong("scrub.min_age", TimeUnit.MINUTES.toMillis(1));
+    public static final int MAX_FINDINGS = 100;
+    /**
+     * Chunks of the {@link ChunkStore} are checked in the same pass, their names get this prefix (which no object key contains).
+     */
+    public static final String CHUNK_PREFIX = "chunks/";
+    
+    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, "IntegrityScrubber");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+    private static final AtomicBoolean STARTED = new AtomicBoolean(false);
+    private static final AtomicBoolean RUNNING = new AtomicBoolean(false);
+    private static final Deque<Finding> FINDINGS = new ArrayDeque<>();
+    
+    private static volatile String cursor = null;
+    private static volatile String currentHash = null;
+    private static volatile boolean paused = false;
+    private static volatile long passFiles = 0;
+    private static volatile long passFilesChecked = 0;
+    private static volatile long passBytesChecked = 0;
+    private static volatile long passesCompleted = 0;
+    private static volatile long mismatches = 0;
+    private static volatile ZonedDateTime timestampPassStart = null;
+    private static volatile ZonedDateTime timestampPassEnd = null;
+    
+    public static void start() {
+        if (!ENABLED || !STARTED.compareAndSet(false, true)) {
+            return;
+        }
+        cursor = loadCursor();
+        SCHEDULED_EXECUTOR_SERVICE.scheduleWithFixedDelay(IntegrityScrubber::runPass, INITIAL_DELAY, INTERVAL, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Starts a pass right away, unless one is already running.
+     */
+    public static boolean trigger() {
+        if (RUNNING.get()) {
+            return false;
+        }
+        SCHEDULED_EXECUTOR_SERVICE.execute(IntegrityScrubber::runPass);
+        return true;
+    }
+    
+    protected static void runPass() {
+        if (!RUNNING.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final List<String> names = new ArrayList<>(Downloader.STORAGE.list());
+            ChunkStore.listChunks().forEach((chunkHash) -> names.add(CHUNK_PREFIX + chunkHash));
+            Collections.sort(names);
+            final String cursor_ = cursor;
+            timestampPassStart = ZonedDateTime.now();
+            timestampPassEnd = null;
+            passFiles = names.size();
+            passFilesChecked = 0;
+            passBytesChecked = 0;
+            final Throttle throttle = new Throttle();
+            long lastCursorSave = System.currentTimeMillis();
+            for (String name : names) {
+                if (cursor_ != null && name.compareTo(cursor_) <= 0) {
+                    passFilesChecked++;
+                    continue;
+                }
+                currentHash = name;
+                passBytesChecked += name.startsWith(CHUNK_PREFIX) ? scrubChunk(name.substring(CHUNK_PREFIX.length()), throttle) : scrubObject(name, throttle);
+                passFilesChecked++;
+                cursor = name;
+                if (System.currentTimeMillis() - lastCursorSave >= CURSOR_SAVE_INTERVAL) {
+                    saveCursor(cursor);
+                    lastCursorSave = System.currentTimeMillis();
+                }
+            }
+            cursor = null;
+            saveCursor(null);
+            passesCompleted++;
+            timestampPassEnd = ZonedDateTime.now();
+            System.out.printf("[INFO ][%s#runPass] Checked %d files, %d mismatches so far%n", IntegrityScrubber.class.getSimpleName(), passFilesChecked, mismatches);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            saveCursor(cursor);
+        } finally {
+            currentHash = null;
+            paused = false;
+            RUNNING.set(false);
+        }
+    }
+    
+    /**
+     * Objects which aren't local files (see {@link StoredObject#getFile()}) are read through the {@link Downloader#STORAGE} into a copy, which gets quarantined if it doesn't match.
+     *
+     * @return The number of bytes checked
+     */
+    private static long scrubObject(String hash, Throttle throttle) throws IOException {
+        final StoredObject storedObject = Downloader.STORAGE.stat(hash);
+        if (storedObject == null || System.currentTimeMillis() - storedObject.getLastModified() < MIN_AGE) {
+            return 0;
+        }
+        final HashScheme hashScheme = Downloader.getSchemeForHash(hash);
+        final File file;
+        if (storedObject.getFile() != null) {
+            file = storedObject.getFile();
+        } else {
+            try {
+                file = copy(hash, throttle);
+            } catch (FileNotFoundException e) {
+                return 0;
+            }
+        }
+        try {
+            final byte[] hashBytes = HashEngine.hashFile(file, hashScheme, file == storedObject.getFile() ? throttle : null);
+            if (hashBytes == null) {
+                // The file vanished or could not be read, which is not a mismatch
+                return 0;
+            }
+            final String actualHash = hashScheme.toKey(Util.base64URLencodeToString(hashBytes));
+            if (!hash.equals(actualHash)) {
+                quarantineObject(storedObject, file, actualHash, hashScheme);
+            }
+            return storedObject.getLength();
+        } finally {
+            if (file != storedObject.getFile()) {
+                file.delete();
+            }
+        }
+    }
+    
+    private static File copy(String hash, Throttle throttle) throws IOException {
+        QUARANTINE_FOLDER.mkdirs();
+        final File file = File.createTempFile("scrub", ".tmp", QUARANTINE_FOLDER);
+        try (final InputStream inputStream = Downloader.STORAGE.get(hash, 0, -1); final OutputStream outputStream = new FileOutputStream(file, false)) {
+            final byte[] buffer = new byte[Util.HASH_BUFFER_SIZE];
+            int read;
+            while ((read = inputStream.read(buffer)) >= 0) {
+                outputStream.write(buffer, 0, read);
+                throttle.accept(read);
+            }
+        } catch (IOException ex) {
+            file.delete();
+            throw ex;
+        }
+        return file;
+    }
+    
+    /**
+     * Holds the lock of the hash (see {@link Downloader#getHashLock(String)}), so a commit replacing the object meanwhile is not quarantined instead.
+     */
+    private static void quarantineObject(StoredObject storedObject, File file, String actualHash, HashScheme hashScheme) throws IOException {
+        final String hash = storedObject.getKey();
+        final ReentrantLock lock = Downloader.getHashLock(hash);
+        lock.lock();
+        try {
+            final StoredObject storedObject_ = Downloader.STORAGE.stat(hash);
+            if (storedObject_ == null || storedObject_.getLastModified() != storedObject.getLastModified() || storedObject_.getLength() != storedObject.getLength()) {
+                return;
+            }
+            mismatches++;
+            final File quarantinedFile = quarantine(file, hash);
+            if (file != storedObject.getFile()) {
+                Downloader.STORAGE.delete(hash);
+            }
+            final int removedUrls = Downloader.removeHash(hash);
+            System.err.printf("[WARNING][%s#quarantineObject] \"%s\" has hash \"%s\", quarantined to \"%s\" and removed %d URLs%n", IntegrityScrubber.class.getSimpleName(), hash, actualHash, quarantinedFile == null ? null : quarantinedFile.getAbsolutePath(), removedUrls);
+            addFinding(new Finding(hash, actualHash, hashScheme, false, storedObject.getLength(), quarantinedFile, removedUrls, ZonedDateTime.now()));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * A corrupt chunk breaks every file containing it, so their manifests get deleted together with their URLs.
+     *
+     * @return The number of bytes checked
+     */
+    private static long scrubChunk(String chunkHash, Throttle throttle) {
+        final File file = ChunkStore.findChunk(chunkHash);
+        if (file == null || System.currentTimeMillis() - file.lastModified() < MIN_AGE) {
+            return 0;
+        }
+        final long size = file.length();
+        final byte[] hashBytes = HashEngine.hashFile(file, HashScheme.FLAT, throttle);
+        if (hashBytes == null) {
+            return 0;
+        }
+        final String actualHash = Util.base64URLencodeToString(hashBytes);
+        if (chunkHash.equals(actualHash)) {
+            return size;
+        }
+        mismatches++;
+        File quarantinedFile = getQuarantinedFile(CHUNK_PREFIX.replace('/', '_') + chunkHash);
+        try {
+            ChunkStore.quarantineChunk(chunkHash, quarantinedFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            quarantinedFile = null;
+        }
+        int removedUrls = 0;
+        for (String hash : ChunkStore.getHashesUsing(chunkHash)) {
+            final ReentrantLock lock = Downloader.getHashLock(hash);
+            lock.lock();
+            try {
+                removedUrls += Downloader.removeHash(hash);
+                ChunkStore.delete(ChunkStore.getManifestFile(hash));
+            } finally {
+                lock.unlock();
+            }
+        }
+        System.err.printf("[WARNING][%s#scrubChunk] Chunk \"%s\" has hash \"%s\", quarantined to \"%s\" and removed %d URLs%n", IntegrityScrubber.class.getSimpleName(), chunkHash, actualHash, quarantinedFile == null ? null : quarantinedFile.getAbsolutePath(), removedUrls);
+        addFinding(new Finding(chunkHash, actualHash, HashScheme.FLAT, true, size, quarantinedFile, removedUrls, ZonedDateTime.now()));
+        return size;
+    }
+    
+    private static void addFinding(Finding finding) {
+        synchronized (FINDINGS) {
+            FINDINGS.addFirst(finding);
+            while (FINDINGS.size() > MAX_FINDINGS) {
+                FINDINGS.removeLast();
+            }
+        }
+    }
+    
+    private static File getQuarantinedFile(String name) {
+        QUARANTINE_FOLDER.mkdirs();
+        return new File(QUARANTINE_FOLDER, name + "_" + System.currentTimeMillis());
+    }
+    
+    private static File quarantine(File file, String name) {
+        final File quarantinedFile = getQuarantinedFile(name);
+        try {
+            Files.move(file.toPath(), quarantinedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return quarantinedFile;
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (!file.delete()) {
+                System.err.printf("[ERROR][%s#quarantine] Can't remove \"%s\"%n", IntegrityScrubber.class.getSimpleName(), file.getAbsolutePath());
+            }
+        }
+        return null;
+    }
+    
+    private static String loadCursor() {
+        if (!CURSOR_FILE.exists()) {
+            return null;
+        }
+        try {
+            final String cursor = new String(Files.readAllBytes(CURSOR_FILE.toPath()), StandardCharsets.UTF_8).trim();
+            return cursor.isEmpty() ? null : cursor;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+    
+    private static void saveCursor(String cursor) {
+        try {
+            if (cursor == null) {
+                Files.deleteIfExists(CURSOR_FILE.toPath());
+            } else {
+                Files.write(CURSOR_FILE.toPath(), cursor.getBytes(StandardCharsets.UTF_8));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    public static Map<String, Object> getStatus() {
+        final Map<String, Object> status = new LinkedHashMap<>();
+        status.put("enabled", ENABLED);
+        status.put("running", RUNNING.get());
+        status.put("paused", paused);
+        status.put("rate", RATE);
+        status.put("max_load", MAX_LOAD);
+        status.put("load", Downloader.getLoad());
+        status.put("cursor", cursor);
+        status.put("current", currentHash);
+        status.put("pass_files", passFiles);
+        status.put("pass_files_checked", passFilesChecked);
+        status.put("pass_bytes_checked", passBytesChecked);
+        status.put("timestamp_pass_start", format(timestampPassStart));
+        status.put("timestamp_pass_end", format(timestampPassEnd));
+        status.put("passes_completed", passesCompleted);
+        status.put("mismatches", mismatches);
+        final List<Map<String, Object>> findings = new ArrayList<>();
+        synchronized (FINDINGS) {
+            FINDINGS.forEach((finding) -> findings.add(finding.toMap()));
+        }
+        status.put("findings", findings);
+        return status;
+    }
+    
+    private static String format(ZonedDateTime zonedDateTime) {
+        return zonedDateTime == null ? null : zonedDateTime.format(DateTimeFormatter.ISO_DATE_TIME);
+    }
+    
+    /**
+     * Limits the read rate and blocks while the proxy is busy serving.
+     */
+    private static class Throttle implements LongConsumer {
+        
+        private final long started = System.nanoTime();
+        private long bytes = 0;
+        private long pausedNanos = 0;
+        
+        @Override
+        public void accept(long read) {
+            bytes += read;
+            try {
+                while (Downloader.getLoad() > MAX_LOAD) {
+                    paused = true;
+                    final long pauseStarted = System.nanoTime();
+                    Thread.sleep(PAUSE_MILLIS);
+                    pausedNanos += System.nanoTime() - pauseStarted;
+                }
+                paused = false;
+                if (RATE > 0) {
+                    final long expectedNanos = bytes * 1_000_000_000L / RATE;
+                    final long elapsedNanos = System.nanoTime() - started - pausedNanos;
+                    if (expectedNanos > elapsedNanos) {
+                        TimeUnit.NANOSECONDS.sleep(expectedNanos - elapsedNanos);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        
+    }
+    
+    private static class Finding {
+        
+        private final String hash;
+        private final String actualHash;
+        private final HashScheme hashScheme;
+        private final boolean chunk;
+        private final long size;
+        private final File quarantinedFile;
+        private final int removedUrls;
+        private final ZonedDateTime timestamp;
+        
+        private Finding(String hash, String actualHash, HashScheme hashScheme, boolean chunk, long size, File quarantinedFile, int removedUrls, ZonedDateTime timestamp) {
+            this.hash = hash;
+            this.actualHash = actualHash;
+            this.hashScheme = hashScheme;
+            this.chunk = chunk;
+            this.size = size;
+            this.quarantinedFile = quarantinedFile;
+            this.removedUrls = removedUrls;
+            this.timestamp = timestamp;
+        }
+        
+        private Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("hash", hash);
+            map.put("actual_hash", actualHash);
+            map.put("hash_scheme", hashScheme.name());
+            map.put("chunk", chunk);
+            map.put("size", size);
+            map.put("quarantined_file", quarantinedFile == null ? null : quarantinedFile.getAbsolutePath());
+            map.put("removed_urls", removedUrls);
+            map.put("timestamp", format(timestamp));
+            return map;
+        }
+        
+    }
+    
+}
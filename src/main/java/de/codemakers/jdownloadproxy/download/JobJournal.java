@@ -0,0 +1,209 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Application;
+import de.codemakers.jdownloadproxy.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Persists every unfinished download in {@link #JOBS_FILE}, so it can be queued again (with the same {@link UUID}) after a restart.
+ * <p>
+ * The journal is a snapshot of all unfinished downloads, one per line, rewritten whenever a download got added and every {@link #INTERVAL} milliseconds while something changed.
+ * Besides the options it holds the received bytes and the validator of the part file, so transfers resume where the last checkpoint left them.
+ */
+public class JobJournal {
+    
+    public static final File JOBS_FILE = new File(Application.APPLICATION_FOLDER, "jobs.txt");
+    public static final long INTERVAL = Config.getLong("journal.interval", TimeUnit.SECONDS.toMillis(1));
+    
+    private static final String HEADER = "# uuid\turl\tforce_download\tpriority\tattempts\treceived_bytes\tvalidator";
+    private static final String NONE = "-";
+    
+    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, "JobJournal");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicBoolean CHECKPOINT_REQUESTED = new AtomicBoolean();
+    private static String lastWritten = null;
+    
+    static {
+        if (INTERVAL > 0) {
+            SCHEDULED_EXECUTOR_SERVICE.scheduleWithFixedDelay(JobJournal::checkpoint, INTERVAL, INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(JobJournal::checkpoint));
+    }
+    
+    /**
+     * Queues every download of the journal again, returning the number of recovered downloads.
+     */
+    public static synchronized int recover() {
+        if (!JOBS_FILE.exists()) {
+            return 0;
+        }
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(JOBS_FILE.toPath(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.printf("[ERROR][%s#recover] Can't read journal \"%s\"%n", JobJournal.class.getSimpleName(), JOBS_FILE.getAbsolutePath());
+            e.printStackTrace();
+            return 0;
+        }
+        int recovered = 0;
+        for (Job job : readJournal(lines)) {
+            if (Downloader.getDownloadContainer(job.uuid) != null) {
+                continue;
+            }
+            final DownloadContainer downloadContainer = Downloader.createDownloadContainer(job.uuid, job.url, job.forceDownload);
+            final DownloadInfo downloadInfo = downloadContainer.getDownloadInfo();
+            downloadInfo.setAttempts(job.attempts);
+            if (job.validator != null && Downloader.createTempFileForUUID(job.uuid).exists()) {
+                downloadInfo.setReceivedBytes(job.receivedBytes);
+                downloadContainer.setValidator(job.validator);
+            }
+            Downloader.startDownloadContainerAsync(downloadContainer, job.priority);
+            recovered++;
+        }
+        System.out.printf("[INFO ][%s#recover] Recovered %d downloads%n", JobJournal.class.getSimpleName(), recovered);
+        return recovered;
+    }
+    
+    /**
+     * Checkpoints the journal soon, multiple requests before it got written are coalesced.
+     */
+    public static void requestCheckpoint() {
+        if (CHECKPOINT_REQUESTED.compareAndSet(false, true)) {
+            SCHEDULED_EXECUTOR_SERVICE.execute(JobJournal::checkpoint);
+        }
+    }
+    
+    /**
+     * Writes all unfinished downloads to the journal, unless nothing changed since the last checkpoint.
+     */
+    public static synchronized void checkpoint() {
+        CHECKPOINT_REQUESTED.set(false);
+        try {
+            final String journal = createJournal();
+            if (journal.equals(lastWritten)) {
+                return;
+            }
+            final File tempFile = new File(JOBS_FILE.getParentFile(), JOBS_FILE.getName() + ".tmp");
+            Files.write(tempFile.toPath(), journal.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile.toPath(), JOBS_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastWritten = journal;
+        } catch (Exception ex) {
+            System.err.printf("[ERROR][%s#checkpoint] Failed writing journal \"%s\"%n", JobJournal.class.getSimpleName(), JOBS_FILE.getAbsolutePath());
+            ex.printStackTrace();
+        }
+    }
+    
+    private static String createJournal() {
+        return createJournal(Downloader.getDownloadContainers());
+    }
+    
+    protected static String createJournal(Collection<DownloadContainer> downloadContainers) {
+        final List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        for (DownloadContainer downloadContainer : downloadContainers) {
+            if (!downloadContainer.getDownloadInfo().getDownloadStatus().isDone()) {
+                lines.add(Job.of(downloadContainer).toLine());
+            }
+        }
+        return String.join("\n", lines) + "\n";
+    }
+    
+    /**
+     * Parses the lines of a journal, malformed ones are skipped.
+     */
+    protected static List<Job> readJournal(List<String> lines) {
+        final List<Job> jobs = new ArrayList<>();
+        for (String line : lines) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                jobs.add(Job.parse(line));
+            } catch (MalformedURLException | IllegalArgumentException e) {
+                System.err.printf("[WARNING][%s#readJournal] Skipping malformed line \"%s\": %s%n", JobJournal.class.getSimpleName(), line, e);
+            }
+        }
+        return jobs;
+    }
+    
+    /**
+     * One line of the journal.
+     */
+    protected static class Job {
+        
+        protected final UUID uuid;
+        protected final URL url;
+        protected final boolean forceDownload;
+        protected final int priority;
+        protected final int attempts;
+        protected final long receivedBytes;
+        /**
+         * The validator of the part file, or null if it can't be resumed.
+         */
+        protected final String validator;
+        
+        protected Job(UUID uuid, URL url, boolean forceDownload, int priority, int attempts, long receivedBytes, String validator) {
+            this.uuid = uuid;
+            this.url = url;
+            this.forceDownload = forceDownload;
+            this.priority = priority;
+            this.attempts = attempts;
+            this.receivedBytes = receivedBytes;
+            this.validator = validator == null || validator.isEmpty() ? null : validator;
+        }
+        
+        protected static Job of(DownloadContainer downloadContainer) {
+            final DownloadInfo downloadInfo = downloadContainer.getDownloadInfo();
+            return new Job(downloadInfo.getUuid(), downloadInfo.getUrl(), downloadContainer.isForceDownload(), downloadContainer.getPriority(), downloadInfo.getAttempts(), Math.max(0, downloadInfo.getReceivedBytes()), downloadContainer.getValidator());
+        }
+        
+        protected static Job parse(String line) throws MalformedURLException {
+            final String[] fields = line.split("\t");
+            if (fields.length < 7) {
+                throw new IllegalArgumentException("Expected 7 fields, but got " + fields.length);
+            }
+            return new Job(UUID.fromString(fields[0]), new URL(fields[1]), Boolean.parseBoolean(fields[2]), Integer.parseInt(fields[3]), Integer.parseInt(fields[4]), Long.parseLong(fields[5]), NONE.equals(fields[6]) ? null : fields[6]);
+        }
+        
+        protected String toLine() {
+            return String.join("\t", uuid.toString(), url.toString(), String.valueOf(forceDownload), String.valueOf(priority), String.valueOf(attempts), String.valueOf(receivedBytes), validator == null ? NONE : validator);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,99 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Skips the bytes before an offset and ends the stream after a number of bytes, for sources which can't seek.
+ */
+public class LimitedInputStream extends FilterInputStream {
+    
+    private long offset;
+    private long remaining;
+    
+    /**
+     * @param length Number of bytes after the offset (or a negative value for all of them)
+     */
+    public LimitedInputStream(InputStream inputStream, long offset, long length) {
+        super(inputStream);
+        this.offset = Math.max(0, offset);
+        this.remaining = length < 0 ? Long.MAX_VALUE : length;
+    }
+    
+    private void skipOffset() throws IOException {
+        while (offset > 0) {
+            final long skipped = super.skip(offset);
+            if (skipped > 0) {
+                offset -= skipped;
+            } else if (super.read() >= 0) {
+                offset--;
+            } else {
+                throw new IOException("Stream ended " + offset + " Bytes before the offset");
+            }
+        }
+    }
+    
+    @Override
+    public int read() throws IOException {
+        final byte[] buffer = new byte[1];
+        return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xFF;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        skipOffset();
+        if (remaining <= 0) {
+            return -1;
+        }
+        final int read = super.read(buffer, offset, (int) Math.min(length, remaining));
+        if (read > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+        skipOffset();
+        final long skipped = super.skip(Math.min(n, remaining));
+        remaining -= Math.max(0, skipped);
+        return skipped;
+    }
+    
+    /**
+     * Skips to the offset first, because Netty sizes the chunks of a streamed response by this (see {@link FileSystemBackend}).
+     */
+    @Override
+    public int available() throws IOException {
+        skipOffset();
+        return (int) Math.min(super.available(), remaining);
+    }
+    
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+    
+}
@@ -0,0 +1,95 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps all objects on the heap, for tests and benchmarks which shouldn't depend on (or leave anything on) a disk.
+ */
+public class MemoryBackend implements StorageBackend {
+    
+    private final Map<String, StoredContent> objects = new ConcurrentHashMap<>();
+    
+    @Override
+    public String getName() {
+        return "memory";
+    }
+    
+    @Override
+    public void put(String key, File source) throws IOException {
+        objects.put(key, new StoredContent(Files.readAllBytes(source.toPath())));
+    }
+    
+    @Override
+    public void put(String key, InputStream inputStream, long length) throws IOException {
+        objects.put(key, new StoredContent(inputStream.readAllBytes()));
+    }
+    
+    @Override
+    public InputStream get(String key, long offset, long length) throws IOException {
+        final StoredContent storedContent = objects.get(key);
+        if (storedContent == null) {
+            throw new FileNotFoundException(key);
+        }
+        final int offset_ = (int) Math.min(Math.max(0, offset), storedContent.data.length);
+        final int length_ = (int) (length < 0 ? storedContent.data.length - offset_ : Math.min(length, storedContent.data.length - offset_));
+        return new ByteArrayInputStream(storedContent.data, offset_, length_);
+    }
+    
+    @Override
+    public StoredObject stat(String key) {
+        final StoredContent storedContent = objects.get(key);
+        if (storedContent == null) {
+            return null;
+        }
+        return new StoredObject(key, storedContent.data.length, storedContent.lastModified, null);
+    }
+    
+    @Override
+    public boolean delete(String key) {
+        return objects.remove(key) != null;
+    }
+    
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(objects.keySet());
+    }
+    
+    private static class StoredContent {
+        
+        private final byte[] data;
+        private final long lastModified = System.currentTimeMillis();
+        
+        private StoredContent(byte[] data) {
+            this.data = data;
+        }
+        
+    }
+    
+}
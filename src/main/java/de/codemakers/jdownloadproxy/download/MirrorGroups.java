@@ -0,0 +1,144 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Application;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * Groups of equivalent URL prefixes (e.g. {@code https://mirror-a.example/dist/} and {@code https://mirror-b.example/pub/dist/}).
+ * <p>
+ * The groups are stored in {@link #MIRRORS_FILE}, one group per line with its prefixes separated by whitespace.
+ */
+public class MirrorGroups {
+    
+    public static final File MIRRORS_FILE = new File(Application.APPLICATION_FOLDER, "mirrors.txt");
+    
+    private static final List<List<String>> GROUPS = new CopyOnWriteArrayList<>();
+    
+    static {
+        load();
+    }
+    
+    protected static synchronized void load() {
+        GROUPS.clear();
+        if (!MIRRORS_FILE.exists()) {
+            return;
+        }
+        try {
+            for (String line : Files.readAllLines(MIRRORS_FILE.toPath(), StandardCharsets.UTF_8)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                final List<String> prefixes = Arrays.asList(line.split("\\s+"));
+                if (prefixes.size() >= 2) {
+                    GROUPS.add(Collections.unmodifiableList(prefixes));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    protected static synchronized void save() {
+        try {
+            Files.write(MIRRORS_FILE.toPath(), GROUPS.stream().map((prefixes) -> String.join(" ", prefixes)).collect(Collectors.toList()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    
+    public static List<List<String>> getGroups() {
+        return Collections.unmodifiableList(GROUPS);
+    }
+    
+    public static synchronized boolean addGroup(List<String> prefixes) {
+        final List<String> prefixes_ = prefixes.stream().map(String::trim).filter((prefix) -> !prefix.isEmpty()).distinct().collect(Collectors.toList());
+        if (prefixes_.size() < 2) {
+            return false;
+        }
+        for (String prefix : prefixes_) {
+            try {
+                new URL(prefix);
+            } catch (MalformedURLException e) {
+                return false;
+            }
+        }
+        GROUPS.add(Collections.unmodifiableList(prefixes_));
+        save();
+        return true;
+    }
+    
+    public static synchronized boolean removeGroup(int index) {
+        if (index < 0 || index >= GROUPS.size()) {
+            return false;
+        }
+        GROUPS.remove(index);
+        save();
+        return true;
+    }
+    
+    /**
+     * Returns the URL itself followed by the same path under every equivalent prefix.
+     */
+    public static List<URL> getEquivalentURLs(URL url) {
+        final List<URL> urls = new ArrayList<>();
+        urls.add(url);
+        final String url_ = url.toString();
+        // Compared as Strings, because URL#equals may resolve the hosts
+        final Set<String> seen = new HashSet<>();
+        seen.add(url_);
+        for (List<String> prefixes : GROUPS) {
+            final String prefix = prefixes.stream().filter(url_::startsWith).findFirst().orElse(null);
+            if (prefix == null) {
+                continue;
+            }
+            final String path = url_.substring(prefix.length());
+            for (String mirror : prefixes) {
+                if (mirror.equals(prefix)) {
+                    continue;
+                }
+                if (!seen.add(mirror + path)) {
+                    continue;
+                }
+                try {
+                    urls.add(new URL(mirror + path));
+                } catch (MalformedURLException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return urls;
+    }
+    
+}
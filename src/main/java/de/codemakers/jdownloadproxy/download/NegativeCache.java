@@ -0,0 +1,215 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers recently failed URLs, so requests for them can be answered without contacting the origin again.
+ * <p>
+ * How long a failure is remembered depends on its {@link ErrorClass}, a TTL of 0 disables caching for that class.
+ */
+public class NegativeCache {
+    
+    public enum ErrorClass {
+        NOT_FOUND("negative.ttl.not_found", TimeUnit.MINUTES.toMillis(5)),
+        CLIENT_ERROR("negative.ttl.client_error", TimeUnit.MINUTES.toMillis(1)),
+        SERVER_ERROR("negative.ttl.server_error", TimeUnit.SECONDS.toMillis(30)),
+        TIMEOUT("negative.ttl.timeout", TimeUnit.SECONDS.toMillis(30)),
+        UNKNOWN_HOST("negative.ttl.unknown_host", TimeUnit.MINUTES.toMillis(1)),
+        OTHER("negative.ttl.other", TimeUnit.SECONDS.toMillis(10));
+        
+        private final long ttl;
+        
+        ErrorClass(String key, long defaultTtl) {
+            this.ttl = Config.getLong(key, defaultTtl);
+        }
+        
+        public long getTtl() {
+            return ttl;
+        }
+        
+        public static ErrorClass of(Throwable throwable) {
+            if (throwable instanceof OriginException) {
+                final int responseCode = ((OriginException) throwable).getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE) {
+                    return NOT_FOUND;
+                }
+                if (responseCode >= 500 || responseCode == 429) {
+                    return SERVER_ERROR;
+                }
+                return CLIENT_ERROR;
+            }
+            // Classified like the RetryPolicy does, because the HttpClient wraps the causes
+            if (RetryPolicy.isTimeout(throwable)) {
+                return TIMEOUT;
+            }
+            if (RetryPolicy.isUnknownHost(throwable)) {
+                return UNKNOWN_HOST;
+            }
+            return OTHER;
+        }
+        
+    }
+    
+    public static final int MAX_ENTRIES = Config.getInt("negative.max", 10000);
+    
+    private static final Map<String, Entry> ENTRIES = Collections.synchronizedMap(new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, NegativeCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    });
+    
+    /**
+     * Remembers the failure of the URL, unless its error class shouldn't be cached.
+     */
+    public static void put(URL url, Throwable throwable) {
+        put(url, throwable, System.currentTimeMillis());
+    }
+    
+    protected static void put(URL url, Throwable throwable, long now) {
+        // A full disk is not the fault of the origin
+        if (url == null || throwable == null || throwable instanceof InsufficientStorageException) {
+            return;
+        }
+        final ErrorClass errorClass = ErrorClass.of(throwable);
+        if (errorClass.getTtl() <= 0) {
+            return;
+        }
+        final String url_ = url.toString();
+        synchronized (ENTRIES) {
+            // Re-inserted, so the map stays ordered by the time of the failure
+            ENTRIES.remove(url_);
+            ENTRIES.put(url_, new Entry(url_, errorClass, describe(throwable), now + errorClass.getTtl()));
+        }
+    }
+    
+    /**
+     * Returns the cached failure of the URL, or null if there is none or it expired.
+     */
+    public static Entry get(URL url) {
+        return get(url, System.currentTimeMillis());
+    }
+    
+    protected static Entry get(URL url, long now) {
+        final String url_ = url.toString();
+        synchronized (ENTRIES) {
+            final Entry entry = ENTRIES.get(url_);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired(now)) {
+                ENTRIES.remove(url_);
+                return null;
+            }
+            return entry;
+        }
+    }
+    
+    public static boolean remove(URL url) {
+        return ENTRIES.remove(url.toString()) != null;
+    }
+    
+    /**
+     * Removes every entry and returns how many there were.
+     */
+    public static int clear() {
+        synchronized (ENTRIES) {
+            final int size = ENTRIES.size();
+            ENTRIES.clear();
+            return size;
+        }
+    }
+    
+    public static List<Entry> getEntries() {
+        synchronized (ENTRIES) {
+            ENTRIES.values().removeIf(Entry::isExpired);
+            return new ArrayList<>(ENTRIES.values());
+        }
+    }
+    
+    public static String describe(Throwable throwable) {
+        if (throwable instanceof OriginException) {
+            return throwable.getMessage();
+        }
+        if (throwable.getMessage() == null) {
+            return throwable.getClass().getSimpleName();
+        }
+        return throwable.getClass().getSimpleName() + ": " + throwable.getMessage();
+    }
+    
+    public static class Entry {
+        
+        private final String url;
+        private final ErrorClass errorClass;
+        private final String reason;
+        private final long expires;
+        
+        public Entry(String url, ErrorClass errorClass, String reason, long expires) {
+            this.url = url;
+            this.errorClass = errorClass;
+            this.reason = reason;
+            this.expires = expires;
+        }
+        
+        public String getUrl() {
+            return url;
+        }
+        
+        public ErrorClass getErrorClass() {
+            return errorClass;
+        }
+        
+        public String getReason() {
+            return reason;
+        }
+        
+        public long getExpires() {
+            return expires;
+        }
+        
+        public boolean isExpired() {
+            return isExpired(System.currentTimeMillis());
+        }
+        
+        public boolean isExpired(long now) {
+            return now >= expires;
+        }
+        
+        public Map<String, Object> toMap() {
+            final Map<String, Object> map = new LinkedHashMap<>();
+            map.put("url", url);
+            map.put("error_class", errorClass.name());
+            map.put("reason", reason);
+            map.put("expires_in", Math.max(0, expires - System.currentTimeMillis()));
+            return map;
+        }
+        
+    }
+    
+}
@@ -0,0 +1,288 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Fetches from all origins through one shared {@link HttpClient}, which keeps the connections to every host alive (per host) and reuses them.
+ * <p>
+ * At most {@link #MAX_CONNECTIONS_PER_HOST} requests run against a host at the same time, which bounds the number of connections it gets.
+ * HTTP/2 is negotiated (via ALPN for https) if {@link #HTTP2} is enabled, and then all requests to the host share one connection.
+ * The {@link HostPool}s only hold these limits and statistics, at most {@link #MAX_HOSTS} of them are kept and idle ones expire after {@link #HOST_IDLE_TIMEOUT} milliseconds.
+ */
+public class OriginClients {
+    
+    public static final int CONNECT_TIMEOUT = Config.getInt("origin.connect_timeout", (int) TimeUnit.SECONDS.toMillis(30));
+    public static final int READ_TIMEOUT = Config.getInt("origin.read_timeout", (int) TimeUnit.SECONDS.toMillis(60));
+    public static final int MAX_CONNECTIONS_PER_HOST = Config.getInt("origin.max_connections_per_host", 8);
+    public static final boolean HTTP2 = Config.getBoolean("origin.http2", true);
+    public static final long KEEP_ALIVE = Config.getLong("origin.keep_alive", TimeUnit.MINUTES.toSeconds(5));
+    public static final int MAX_HOSTS = Config.getInt("origin.max_hosts", 1024);
+    public static final long HOST_IDLE_TIMEOUT = Config.getLong("origin.host_idle_timeout", TimeUnit.MINUTES.toMillis(10));
+    
+    private static final Map<String, HostPool> HOST_POOLS = new ConcurrentHashMap<>();
+    private static final AtomicLong HOSTS_EVICTED = new AtomicLong();
+    private static final HttpClient HTTP_CLIENT = createHttpClient();
+    
+    private static HttpClient createHttpClient() {
+        // Read once by the HttpClient implementation, so it has to be set before the client gets built
+        if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+            System.setProperty("jdk.httpclient.keepalive.timeout", String.valueOf(KEEP_ALIVE));
+        }
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return HttpClient.newBuilder()
+                .version(HTTP2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(Executors.newCachedThreadPool((runnable) -> {
+                    final Thread thread = new Thread(runnable, "OriginClient-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }))
+                .build();
+    }
+    
+    public static HostPool getHostPool(URI uri) {
+        final String hostKey = toHostKey(uri);
+        HostPool hostPool = HOST_POOLS.get(hostKey);
+        if (hostPool == null) {
+            hostPool = HOST_POOLS.computeIfAbsent(hostKey, HostPool::new);
+            if (HOST_POOLS.size() > MAX_HOSTS) {
+                evictHostPools();
+            }
+        }
+        hostPool.touch();
+        return hostPool;
+    }
+    
+    /**
+     * Removes pools without requests in flight which were idle for too long, and then the least recently used idle ones until at most {@link #MAX_HOSTS} are left.
+     * <p>
+     * A pool which was just handed out is the most recently used one, so it is the last candidate.
+     */
+    protected static synchronized void evictHostPools() {
+        final long now = System.currentTimeMillis();
+        final List<HostPool> idleHostPools = HOST_POOLS.values().stream().filter(HostPool::isIdle).sorted(Comparator.comparingLong(HostPool::getLastUsed)).collect(Collectors.toList());
+        for (HostPool hostPool : idleHostPools) {
+            if (HOST_POOLS.size() <= MAX_HOSTS && now - hostPool.getLastUsed() < HOST_IDLE_TIMEOUT) {
+                break;
+            }
+            if (HOST_POOLS.remove(hostPool.getHostKey(), hostPool)) {
+                HOSTS_EVICTED.incrementAndGet();
+            }
+        }
+    }
+    
+    private static String toHostKey(URI uri) {
+        int port = uri.getPort();
+        if (port == -1) {
+            port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+        }
+        return uri.getScheme().toLowerCase() + "://" + uri.getHost().toLowerCase() + ":" + port;
+    }
+    
+    public static Map<String, Object> getStats() {
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("connect_timeout", CONNECT_TIMEOUT);
+        stats.put("read_timeout", READ_TIMEOUT);
+        stats.put("max_connections_per_host", MAX_CONNECTIONS_PER_HOST);
+        stats.put("http2", HTTP2);
+        stats.put("keep_alive", KEEP_ALIVE);
+        evictHostPools();
+        stats.put("max_hosts", MAX_HOSTS);
+        stats.put("hosts_evicted", HOSTS_EVICTED.get());
+        final Map<String, Object> hosts = new LinkedHashMap<>();
+        HOST_POOLS.values().stream().sorted((hostPool1, hostPool2) -> hostPool1.getHostKey().compareTo(hostPool2.getHostKey())).forEach((hostPool) -> hosts.put(hostPool.getHostKey(), hostPool.getStats()));
+        stats.put("hosts", hosts);
+        return stats;
+    }
+    
+    public static class HostPool {
+        
+        private final String hostKey;
+        private final Semaphore permits = new Semaphore(MAX_CONNECTIONS_PER_HOST, true);
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong http1Responses = new AtomicLong();
+        private final AtomicLong http2Responses = new AtomicLong();
+        private final AtomicLong headerNanos = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger peakInFlight = new AtomicInteger();
+        private volatile long lastUsed = System.currentTimeMillis();
+        
+        private HostPool(String hostKey) {
+            this.hostKey = hostKey;
+        }
+        
+        public String getHostKey() {
+            return hostKey;
+        }
+        
+        public long getLastUsed() {
+            return lastUsed;
+        }
+        
+        private void touch() {
+            lastUsed = System.currentTimeMillis();
+        }
+        
+        public boolean isIdle() {
+            return inFlight.get() == 0;
+        }
+        
+        /**
+         * Sends the request once a connection slot is free and returns as soon as the response headers arrived.
+         * <p>
+         * The slot stays taken until the returned body got closed.
+         */
+        public HttpResponse<InputStream> send(HttpRequest.Builder requestBuilder) throws IOException {
+            try {
+                if (!permits.tryAcquire(CONNECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException(String.format("No free connection to %s within %d ms", hostKey, CONNECT_TIMEOUT));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a connection to " + hostKey);
+            }
+            final int inFlight_ = inFlight.incrementAndGet();
+            peakInFlight.accumulateAndGet(inFlight_, Math::max);
+            requests.incrementAndGet();
+            final long started = System.nanoTime();
+            final CompletableFuture<HttpResponse<InputStream>> future;
+            try {
+                if (hostKey.startsWith("http://")) {
+                    // Cleartext HTTP/2 would need an upgrade, which many origins don't handle well
+                    requestBuilder.version(HttpClient.Version.HTTP_1_1);
+                }
+                future = HTTP_CLIENT.sendAsync(requestBuilder.timeout(Duration.ofMillis(READ_TIMEOUT)).build(), (responseInfo) -> new PooledBodyInputStream(READ_TIMEOUT));
+            } catch (RuntimeException ex) {
+                failures.incrementAndGet();
+                release();
+                throw ex;
+            }
+            final HttpResponse<InputStream> response;
+            try {
+                response = future.get();
+            } catch (ExecutionException ex) {
+                failures.incrementAndGet();
+                release();
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            } catch (InterruptedException e) {
+                failures.incrementAndGet();
+                // The exchange can't be aborted, so its body gets closed once it arrived, which drops the connection (and gives the slot back)
+                future.whenComplete((response_, ex) -> {
+                    if (response_ == null) {
+                        release();
+                        return;
+                    }
+                    try {
+                        response_.body().close();
+                    } catch (IOException ex_) {
+                        // Nothing to do, the connection gets dropped anyway
+                    }
+                });
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + hostKey);
+            }
+            headerNanos.addAndGet(System.nanoTime() - started);
+            if (response.version() == HttpClient.Version.HTTP_2) {
+                http2Responses.incrementAndGet();
+            } else {
+                http1Responses.incrementAndGet();
+            }
+            return response;
+        }
+        
+        private void release() {
+            touch();
+            inFlight.decrementAndGet();
+            permits.release();
+        }
+        
+        public Map<String, Object> getStats() {
+            final long requests_ = requests.get();
+            final Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("requests", requests_);
+            stats.put("failures", failures.get());
+            stats.put("in_flight", inFlight.get());
+            stats.put("peak_in_flight", peakInFlight.get());
+            stats.put("http1_responses", http1Responses.get());
+            stats.put("http2_responses", http2Responses.get());
+            stats.put("idle_ms", isIdle() ? System.currentTimeMillis() - lastUsed : 0);
+            stats.put("avg_time_to_headers_ms", requests_ == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(headerNanos.get() / requests_));
+            return stats;
+        }
+        
+        /**
+         * Gives the connection slot back once the body got closed.
+         */
+        private class PooledBodyInputStream extends BodyInputStream {
+            
+            private boolean released = false;
+            
+            private PooledBodyInputStream(long readTimeout) {
+                super(readTimeout);
+            }
+            
+            @Override
+            public void close() {
+                super.close();
+                synchronized (this) {
+                    if (released) {
+                        return;
+                    }
+                    released = true;
+                }
+                release();
+            }
+            
+        }
+        
+    }
+    
+}
@@ -0,0 +1,47 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown if an origin answered with an unusable HTTP response.
+ */
+public class OriginException extends IOException {
+    
+    private final int responseCode;
+    private final long retryAfter;
+    
+    public OriginException(String message, int responseCode, long retryAfter) {
+        super(message);
+        this.responseCode = responseCode;
+        this.retryAfter = retryAfter;
+    }
+    
+    public int getResponseCode() {
+        return responseCode;
+    }
+    
+    /**
+     * Returns the delay requested by the origin with a "Retry-After" header in milliseconds, or -1.
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+    
+}
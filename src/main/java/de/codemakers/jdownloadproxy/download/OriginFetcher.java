@@ -0,0 +1,354 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens origin connections through the {@link OriginClients}, optionally hedged across equivalent mirrors.
+ * <p>
+ * A hedged fetch starts with the first URL and, whenever no first byte arrived within {@link #HEDGE_DELAY} milliseconds (or an attempt failed),
+ * starts the next one. The first attempt delivering a byte wins and all others get closed.
+ */
+public class OriginFetcher {
+    
+    public static final long HEDGE_DELAY = Config.getLong("mirror.hedge_delay", 500);
+    
+    private static final ExecutorService HEDGE_EXECUTOR_SERVICE = Executors.newCachedThreadPool((runnable) -> {
+        final Thread thread = new Thread(runnable, "OriginFetcher-Hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicLong HEDGED_FETCHES = new AtomicLong();
+    private static final AtomicLong HEDGES_STARTED = new AtomicLong();
+    private static final AtomicLong HEDGES_WON = new AtomicLong();
+    
+    /**
+     * Opens the URL and waits for the first byte of the body.
+     */
+    public static OriginResponse open(URL url) throws IOException {
+        return open(url, 0, null);
+    }
+    
+    /**
+     * Opens the URL from the given offset and waits for the first byte of the body.
+     *
+     * @param validator ETag or Last-Modified value of the already received bytes, the origin sends the whole body if it doesn't match anymore
+     */
+    private static OriginResponse open(URL url, long offset, String validator) throws IOException {
+        final String protocol = url.getProtocol().toLowerCase();
+        if (!protocol.equals("http") && !protocol.equals("https")) {
+            return openConnection(url);
+        }
+        final HttpRequest.Builder requestBuilder = HttpRequest.newBuilder(toURI(url)).GET();
+        if (offset > 0 && validator != null) {
+            requestBuilder.header("Range", "bytes=" + offset + "-");
+            requestBuilder.header("If-Range", validator);
+        }
+        final HttpResponse<InputStream> response = OriginClients.getHostPool(toURI(url)).send(requestBuilder);
+        try {
+            final HttpHeaders headers = response.headers();
+            final long offset_ = checkResponse(url, response.statusCode(), headers, offset);
+            final long contentLength = headers.firstValueAsLong("Content-Length").orElse(-1);
+            final String eTag = headers.firstValue("ETag").orElse(null);
+            // Weak ETags can't be used for range requests
+            final String validator_ = eTag != null && !eTag.startsWith("W/") ? eTag : headers.firstValue("Last-Modified").orElse(null);
+            return new OriginResponse(url, peek(response.body()), offset_, contentLength, validator_);
+        } catch (IOException | RuntimeException ex) {
+            response.body().close();
+            throw ex;
+        }
+    }
+    
+    /**
+     * Fallback for protocols the {@link java.net.http.HttpClient} doesn't support (e.g. ftp or file), which can't be resumed.
+     */
+    private static OriginResponse openConnection(URL url) throws IOException {
+        final URLConnection urlConnection = url.openConnection();
+        urlConnection.setConnectTimeout(OriginClients.CONNECT_TIMEOUT);
+        urlConnection.setReadTimeout(OriginClients.READ_TIMEOUT);
+        urlConnection.connect();
+        final InputStream inputStream = urlConnection.getInputStream();
+        try {
+            return new OriginResponse(url, peek(inputStream), 0, urlConnection.getContentLengthLong(), null);
+        } catch (IOException | RuntimeException ex) {
+            inputStream.close();
+            throw ex;
+        }
+    }
+    
+    private static URI toURI(URL url) throws MalformedURLException {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException e) {
+            try {
+                // Quotes the characters, which are allowed in a URL, but not in a URI (e.g. spaces)
+                return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(), url.getPath(), url.getQuery(), url.getRef());
+            } catch (URISyntaxException e2) {
+                throw new MalformedURLException(e2.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Blocks until the first byte of the body arrived.
+     */
+    private static InputStream peek(InputStream inputStream) throws IOException {
+        final PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream, 1);
+        final int first = pushbackInputStream.read();
+        if (first != -1) {
+            pushbackInputStream.unread(first);
+        }
+        return pushbackInputStream;
+    }
+    
+    /**
+     * Returns the offset the body starts at.
+     */
+    private static long checkResponse(URL url, int responseCode, HttpHeaders headers, long offset) throws IOException {
+        if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+            final String contentRange = headers.firstValue("Content-Range").orElse(null);
+            if (contentRange == null || !contentRange.startsWith("bytes " + offset + "-")) {
+                throw new OriginException(String.format("Unexpected Content-Range \"%s\" from \"%s\"", contentRange, url), responseCode, -1);
+            }
+            return offset;
+        }
+        if (responseCode >= 400) {
+            throw new OriginException(String.format("Server returned HTTP response code %d for \"%s\"", responseCode, url), responseCode, parseRetryAfter(headers.firstValue("Retry-After").orElse(null)));
+        }
+        return 0;
+    }
+    
+    private static long parseRetryAfter(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0, ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException e2) {
+                return -1;
+            }
+        }
+    }
+    
+    /**
+     * Opens the first URL which delivers a first byte, hedging to the next URL after {@link #HEDGE_DELAY} milliseconds.
+     *
+     * @param urls Equivalent URLs, the preferred one first
+     */
+    public static OriginResponse openHedged(List<URL> urls) throws IOException {
+        return openHedged(urls, 0, null);
+    }
+    
+    /**
+     * Like {@link #openHedged(List)}, but asks for the body starting at the offset (see {@link OriginResponse#getOffset()} for what the origin actually sent).
+     */
+    public static OriginResponse openHedged(List<URL> urls, long offset, String validator) throws IOException {
+        if (urls.size() <= 1 || HEDGE_DELAY < 0) {
+            return open(urls.get(0), offset, validator);
+        }
+        HEDGED_FETCHES.incrementAndGet();
+        final HedgedFetch hedgedFetch = new HedgedFetch(offset, validator);
+        int started = 0;
+        int failed = 0;
+        IOException lastException = null;
+        try {
+            hedgedFetch.start(urls.get(started++));
+            while (true) {
+                final Object result;
+                if (started < urls.size()) {
+                    result = hedgedFetch.results.poll(HEDGE_DELAY, TimeUnit.MILLISECONDS);
+                } else {
+                    result = hedgedFetch.results.take();
+                }
+                if (result == null) {
+                    HEDGES_STARTED.incrementAndGet();
+                    System.out.printf("[DEBUG][%s#openHedged] No first byte from \"%s\" after %d ms, hedging to \"%s\"%n", OriginFetcher.class.getSimpleName(), urls.get(0), HEDGE_DELAY, urls.get(started)); //DEBUG
+                    hedgedFetch.start(urls.get(started++));
+                    continue;
+                }
+                if (result instanceof OriginResponse) {
+                    final OriginResponse originResponse = (OriginResponse) result;
+                    if (originResponse.getUrl() != urls.get(0)) {
+                        HEDGES_WON.incrementAndGet();
+                    }
+                    hedgedFetch.finish(originResponse);
+                    return originResponse;
+                }
+                failed++;
+                lastException = (IOException) result;
+                if (started < urls.size()) {
+                    hedgedFetch.start(urls.get(started++));
+                } else if (failed >= started) {
+                    throw lastException;
+                }
+            }
+        } catch (InterruptedException e) {
+            hedgedFetch.finish(null);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + urls.get(0));
+        }
+    }
+    
+    public static long getHedgedFetches() {
+        return HEDGED_FETCHES.get();
+    }
+    
+    public static long getHedgesStarted() {
+        return HEDGES_STARTED.get();
+    }
+    
+    public static long getHedgesWon() {
+        return HEDGES_WON.get();
+    }
+    
+    private static class HedgedFetch {
+        
+        private final BlockingQueue<Object> results = new LinkedBlockingQueue<>();
+        private final long offset;
+        private final String validator;
+        private boolean finished = false;
+        
+        private HedgedFetch(long offset, String validator) {
+            this.offset = offset;
+            this.validator = validator;
+        }
+        
+        private void start(URL url) {
+            HEDGE_EXECUTOR_SERVICE.execute(() -> {
+                Object result;
+                try {
+                    result = open(url, offset, validator);
+                } catch (IOException ex) {
+                    result = ex;
+                } catch (RuntimeException ex) {
+                    result = new IOException(ex);
+                }
+                synchronized (this) {
+                    if (finished) {
+                        // Lost the race, so the connection is given back right away
+                        if (result instanceof OriginResponse) {
+                            ((OriginResponse) result).close();
+                        }
+                        return;
+                    }
+                    results.add(result);
+                }
+            });
+        }
+        
+        /**
+         * Closes every finished attempt except the winner, attempts still running get closed once they finish.
+         */
+        private synchronized void finish(OriginResponse winner) {
+            finished = true;
+            Object result;
+            while ((result = results.poll()) != null) {
+                if (result instanceof OriginResponse && result != winner) {
+                    ((OriginResponse) result).close();
+                }
+            }
+        }
+        
+    }
+    
+    public static class OriginResponse implements Closeable {
+        
+        private final URL url;
+        private final InputStream inputStream;
+        private final long offset;
+        private final long contentLength;
+        private final String validator;
+        
+        public OriginResponse(URL url, InputStream inputStream, long offset, long contentLength, String validator) {
+            this.url = url;
+            this.inputStream = inputStream;
+            this.offset = offset;
+            this.contentLength = contentLength;
+            this.validator = validator;
+        }
+        
+        public URL getUrl() {
+            return url;
+        }
+        
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+        
+        /**
+         * Returns the offset of the first byte of the body, which is 0 unless the origin accepted a range request.
+         */
+        public long getOffset() {
+            return offset;
+        }
+        
+        /**
+         * Returns the length of the body (not including the offset), or -1 if unknown.
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+        
+        /**
+         * Returns a strong ETag or the Last-Modified value, which can be used to resume the body later on, or null.
+         */
+        public String getValidator() {
+            return validator;
+        }
+        
+        @Override
+        public void close() {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                // Nothing to do, the connection gets dropped anyway
+            }
+        }
+        
+    }
+    
+}
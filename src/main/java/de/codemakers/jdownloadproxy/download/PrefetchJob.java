@@ -0,0 +1,309 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A manifest of URLs that should be in the cache, optionally re-run every {@link #getInterval()} milliseconds.
+ */
+public class PrefetchJob {
+    
+    public enum State {
+        SCHEDULED,
+        RUNNING,
+        DONE,
+        CANCELLED
+    }
+    
+    private final UUID uuid = UUID.randomUUID();
+    private final List<URL> urls;
+    private final File manifestFile;
+    private final long interval;
+    // Runs are synchronized on the job, the status is read without blocking on them
+    private final List<UUID> downloadUuids = Collections.synchronizedList(new ArrayList<>());
+    private volatile List<URL> deferredUrls = new ArrayList<>();
+    private boolean deferredScheduled = false;
+    private volatile State state = State.SCHEDULED;
+    private volatile boolean queueing = false;
+    private volatile ScheduledFuture<?> scheduledFuture = null;
+    private volatile int invalid = 0;
+    private volatile int skipped = 0;
+    private volatile int deferred = 0;
+    private volatile int runs = 0;
+    private volatile ZonedDateTime timestampRun = null;
+    
+    public PrefetchJob(List<URL> urls, int invalid, long interval) {
+        this.urls = urls;
+        this.manifestFile = null;
+        this.invalid = invalid;
+        this.interval = interval;
+    }
+    
+    /**
+     * The manifest file is read again on every run.
+     */
+    public PrefetchJob(File manifestFile, long interval) {
+        this.urls = null;
+        this.manifestFile = manifestFile;
+        this.interval = interval;
+    }
+    
+    public static List<String> parseManifest(String manifest) {
+        final List<String> lines = new ArrayList<>();
+        for (String line : manifest.split("\\R")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            lines.add(line);
+        }
+        return lines;
+    }
+    
+    public UUID getUuid() {
+        return uuid;
+    }
+    
+    public long getInterval() {
+        return interval;
+    }
+    
+    public State getState() {
+        boolean active = false;
+        for (UUID downloadUuid : getDownloadUuids()) {
+            final DownloadInfo downloadInfo = Downloader.getDownloadInfo(downloadUuid);
+            if (downloadInfo != null && isActive(downloadInfo.getDownloadStatus())) {
+                active = true;
+                break;
+            }
+        }
+        return getState(active);
+    }
+    
+    /**
+     * A running job is done once all of its downloads are, this is derived when reading instead of being set, so reads don't have to wait for a run.
+     */
+    private State getState(boolean active) {
+        final State state = this.state;
+        if (state == State.RUNNING && !queueing && !active && deferredUrls.isEmpty()) {
+            return interval > 0 ? State.SCHEDULED : State.DONE;
+        }
+        return state;
+    }
+    
+    private static boolean isActive(DownloadStatus downloadStatus) {
+        switch (downloadStatus) {
+            case FINISHED:
+            case ERRORED:
+            case UNKNOWN:
+            case CANCELLED:
+                return false;
+            default:
+                return true;
+        }
+    }
+    
+    private List<UUID> getDownloadUuids() {
+        synchronized (downloadUuids) {
+            return new ArrayList<>(downloadUuids);
+        }
+    }
+    
+    public PrefetchJob setState(State state) {
+        this.state = state;
+        return this;
+    }
+    
+    public ScheduledFuture<?> getScheduledFuture() {
+        return scheduledFuture;
+    }
+    
+    public PrefetchJob setScheduledFuture(ScheduledFuture<?> scheduledFuture) {
+        this.scheduledFuture = scheduledFuture;
+        return this;
+    }
+    
+    /**
+     * Queues every URL of the manifest, which is not fresh in the cache, with {@link Downloader#PRIORITY_LOW}.
+     */
+    protected synchronized void run() {
+        if (state == State.CANCELLED) {
+            return;
+        }
+        queueing = true;
+        try {
+            state = State.RUNNING;
+            timestampRun = ZonedDateTime.now();
+            runs++;
+            downloadUuids.clear();
+            skipped = 0;
+            queue(loadUrls());
+        } finally {
+            queueing = false;
+        }
+        System.out.printf("[INFO ][%s#run] Prefetch job %s queued %d URLs, skipped %d fresh ones and deferred %d%n", getClass().getSimpleName(), uuid, downloadUuids.size(), skipped, deferred);
+    }
+    
+    /**
+     * Queues the URLs which were deferred by the last run, because the {@link AdmissionControl} had no room for them.
+     */
+    protected synchronized void runDeferred() {
+        deferredScheduled = false;
+        if (state == State.CANCELLED || deferredUrls.isEmpty()) {
+            return;
+        }
+        final int queued = downloadUuids.size();
+        queueing = true;
+        try {
+            queue(deferredUrls);
+        } finally {
+            queueing = false;
+        }
+        System.out.printf("[INFO ][%s#runDeferred] Prefetch job %s queued %d deferred URLs and deferred %d again%n", getClass().getSimpleName(), uuid, downloadUuids.size() - queued, deferred); //DEBUG
+    }
+    
+    private void queue(List<URL> urls) {
+        final List<URL> deferredUrls = new ArrayList<>();
+        AdmissionControl.Rejection rejection = null;
+        for (URL url : urls) {
+            if (Downloader.isFresh(url)) {
+                skipped++;
+                continue;
+            }
+            final DownloadContainer sharedDownloadContainer = Downloader.joinDownloadContainer(url);
+            if (sharedDownloadContainer != null) {
+                downloadUuids.add(sharedDownloadContainer.getDownloadInfo().getUuid());
+                continue;
+            }
+            // Once rejected, the rest is deferred as well, instead of asking again for every URL
+            if (rejection == null) {
+                rejection = admit();
+            }
+            if (rejection != null) {
+                deferredUrls.add(url);
+                continue;
+            }
+            final DownloadContainer downloadContainer = Downloader.createDownloadContainer(url, false);
+            downloadUuids.add(downloadContainer.getDownloadInfo().getUuid());
+            Downloader.startDownloadContainerAsync(downloadContainer, Downloader.PRIORITY_LOW);
+        }
+        this.deferredUrls = deferredUrls;
+        deferred = deferredUrls.size();
+        if (rejection != null && !deferredScheduled) {
+            // Tried again once there should be room, so a job without an interval doesn't lose them
+            deferredScheduled = Prefetcher.scheduleDeferred(this, rejection.getRetryAfter());
+        }
+    }
+    
+    /**
+     * Prefetching only gets the low priority budget of the {@link AdmissionControl}, so it never pushes out client requests.
+     *
+     * @return null if another download may be queued
+     */
+    protected AdmissionControl.Rejection admit() {
+        return AdmissionControl.admit(-1, Downloader.PRIORITY_LOW);
+    }
+    
+    private List<URL> loadUrls() {
+        if (manifestFile == null) {
+            return urls;
+        }
+        final List<URL> urls = new ArrayList<>();
+        invalid = 0;
+        try {
+            for (String line : parseManifest(new String(Files.readAllBytes(manifestFile.toPath()), StandardCharsets.UTF_8))) {
+                try {
+                    urls.add(new URL(line));
+                } catch (MalformedURLException e) {
+                    invalid++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.printf("[ERROR][%s#loadUrls] Can't read manifest \"%s\"%n", getClass().getSimpleName(), manifestFile.getAbsolutePath());
+            e.printStackTrace();
+        }
+        return urls;
+    }
+    
+    public Map<String, Object> getStatus() {
+        final List<UUID> downloadUuids = getDownloadUuids();
+        int queued = 0;
+        int running = 0;
+        int finished = 0;
+        int errored = 0;
+        int cancelled = 0;
+        long totalBytes = 0;
+        long receivedBytes = 0;
+        for (UUID downloadUuid : downloadUuids) {
+            final DownloadInfo downloadInfo = Downloader.getDownloadInfo(downloadUuid);
+            if (downloadInfo == null) {
+                continue;
+            }
+            switch (downloadInfo.getDownloadStatus()) {
+                case QUEUED:
+                    queued++;
+                    break;
+                case FINISHED:
+                    finished++;
+                    break;
+                case ERRORED:
+                case UNKNOWN:
+                    errored++;
+                    break;
+                case CANCELLED:
+                    cancelled++;
+                    break;
+                default:
+                    running++;
+                    break;
+            }
+            totalBytes += Math.max(0, downloadInfo.getTotalBytes());
+            receivedBytes += Math.max(0, downloadInfo.getReceivedBytes());
+        }
+        final Map<String, Object> status = new LinkedHashMap<>();
+        status.put("uuid", uuid.toString());
+        status.put("state", getState(queued > 0 || running > 0).name());
+        status.put("manifest", manifestFile == null ? null : manifestFile.getAbsolutePath());
+        status.put("interval", interval);
+        status.put("runs", runs);
+        status.put("timestamp_run", timestampRun == null ? null : timestampRun.format(DateTimeFormatter.ISO_DATE_TIME));
+        status.put("invalid", invalid);
+        status.put("skipped", skipped);
+        status.put("deferred", deferred);
+        status.put("queued", queued);
+        status.put("running", running);
+        status.put("finished", finished);
+        status.put("errored", errored);
+        status.put("cancelled", cancelled);
+        status.put("totalBytes", totalBytes);
+        status.put("receivedBytes", receivedBytes);
+        status.put("downloads", downloadUuids.stream().map(UUID::toString).toArray());
+        return status;
+    }
+    
+}
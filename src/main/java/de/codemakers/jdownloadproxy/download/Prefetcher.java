@@ -0,0 +1,152 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Application;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+public class Prefetcher {
+    
+    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, "Prefetcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final Map<UUID, PrefetchJob> PREFETCH_JOBS = new ConcurrentHashMap<>();
+    
+    public static PrefetchJob createPrefetchJob(String manifest, long delay, long interval) {
+        final List<URL> urls = new ArrayList<>();
+        int invalid = 0;
+        for (String line : PrefetchJob.parseManifest(manifest)) {
+            try {
+                urls.add(new URL(line));
+            } catch (MalformedURLException e) {
+                invalid++;
+            }
+        }
+        return schedule(new PrefetchJob(urls, invalid, interval), delay);
+    }
+    
+    /**
+     * Relative paths are resolved against the {@link Application#APPLICATION_FOLDER}.
+     */
+    public static PrefetchJob createPrefetchJob(File manifestFile, long delay, long interval) {
+        manifestFile = getManifestFile(manifestFile);
+        if (manifestFile == null || !manifestFile.isFile()) {
+            return null;
+        }
+        return schedule(new PrefetchJob(manifestFile, interval), delay);
+    }
+    
+    /**
+     * Resolves a manifest file, relative paths against the {@link Application#APPLICATION_FOLDER}.
+     *
+     * @return The canonical file, or null if the path contains ".." or the file is not inside the {@link Application#APPLICATION_FOLDER}
+     */
+    public static File getManifestFile(File manifestFile) {
+        try {
+            for (Path name : manifestFile.toPath()) {
+                if ("..".equals(name.toString())) {
+                    return null;
+                }
+            }
+            final File applicationFolder = Application.APPLICATION_FOLDER.getCanonicalFile();
+            // Canonical, so a symbolic link can't point out of the application folder either
+            final File file = (manifestFile.isAbsolute() ? manifestFile : new File(applicationFolder, manifestFile.getPath())).getCanonicalFile();
+            if (file.equals(applicationFolder) || !file.toPath().startsWith(applicationFolder.toPath())) {
+                return null;
+            }
+            return file;
+        } catch (IOException | InvalidPathException ex) {
+            return null;
+        }
+    }
+    
+    protected static PrefetchJob schedule(PrefetchJob prefetchJob, long delay) {
+        PREFETCH_JOBS.put(prefetchJob.getUuid(), prefetchJob);
+        final ScheduledFuture<?> scheduledFuture;
+        if (prefetchJob.getInterval() > 0) {
+            scheduledFuture = SCHEDULED_EXECUTOR_SERVICE.scheduleWithFixedDelay(prefetchJob::run, Math.max(0, delay), prefetchJob.getInterval(), TimeUnit.MILLISECONDS);
+        } else {
+            scheduledFuture = SCHEDULED_EXECUTOR_SERVICE.schedule(prefetchJob::run, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        }
+        prefetchJob.setScheduledFuture(scheduledFuture);
+        return prefetchJob;
+    }
+    
+    /**
+     * Runs the deferred URLs of the job again after the delay.
+     *
+     * @return false if the job is no longer known
+     */
+    protected static boolean scheduleDeferred(PrefetchJob prefetchJob, long delay) {
+        if (!PREFETCH_JOBS.containsKey(prefetchJob.getUuid())) {
+            return false;
+        }
+        SCHEDULED_EXECUTOR_SERVICE.schedule(prefetchJob::runDeferred, Math.max(0, delay), TimeUnit.MILLISECONDS);
+        return true;
+    }
+    
+    public static PrefetchJob getPrefetchJob(UUID uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        return PREFETCH_JOBS.get(uuid);
+    }
+    
+    public static Collection<PrefetchJob> getPrefetchJobs() {
+        return PREFETCH_JOBS.values();
+    }
+    
+    /**
+     * Stops further runs, downloads which were already queued are not affected.
+     */
+    public static boolean cancelPrefetchJob(UUID uuid) {
+        final PrefetchJob prefetchJob = getPrefetchJob(uuid);
+        if (prefetchJob == null) {
+            return false;
+        }
+        prefetchJob.setState(PrefetchJob.State.CANCELLED);
+        if (prefetchJob.getScheduledFuture() != null) {
+            prefetchJob.getScheduledFuture().cancel(false);
+        }
+        return true;
+    }
+    
+    public static boolean removePrefetchJob(UUID uuid) {
+        cancelPrefetchJob(uuid);
+        return PREFETCH_JOBS.remove(uuid) != null;
+    }
+    
+}
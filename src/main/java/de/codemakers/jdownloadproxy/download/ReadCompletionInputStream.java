@@ -0,0 +1,85 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Runs a callback when the stream gets closed after it was read until the end (so an aborted client transfer does not trigger it),
+ * and another one whenever it gets closed.
+ */
+public class ReadCompletionInputStream extends FilterInputStream {
+    
+    private final Runnable onCompletion;
+    private final Runnable onClose;
+    private boolean completed = false;
+    private boolean closed = false;
+    
+    public ReadCompletionInputStream(InputStream inputStream, Runnable onCompletion) {
+        this(inputStream, onCompletion, null);
+    }
+    
+    public ReadCompletionInputStream(InputStream inputStream, Runnable onCompletion, Runnable onClose) {
+        super(inputStream);
+        this.onCompletion = onCompletion;
+        this.onClose = onClose;
+    }
+    
+    @Override
+    public int read() throws IOException {
+        final int read = super.read();
+        if (read == -1) {
+            completed = true;
+        }
+        return read;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        final int read = super.read(buffer, offset, length);
+        if (read == -1) {
+            completed = true;
+        }
+        return read;
+    }
+    
+    public boolean isCompleted() {
+        return completed;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            super.close();
+        } finally {
+            if (onClose != null) {
+                onClose.run();
+            }
+        }
+        if (completed && onCompletion != null) {
+            onCompletion.run();
+        }
+    }
+    
+}
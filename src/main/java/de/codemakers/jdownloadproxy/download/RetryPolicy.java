@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether a failed origin fetch should be retried and how long to wait before.
+ * <p>
+ * Timeouts, resets, truncated bodies, 408, 429 and 5xx responses are retryable, everything else (e.g. other 4xx responses, unknown hosts or failed TLS handshakes) is fatal.
+ * The exceptions are classified by their whole cause chain, because the {@link java.net.http.HttpClient} wraps them (e.g. an unknown host is a {@link java.net.ConnectException} caused by an {@link UnresolvedAddressException}).
+ * The delay grows exponentially from {@link #BASE_DELAY} up to {@link #MAX_DELAY}, and the upper half of it is randomized, so clients failing together don't retry together.
+ */
+public class RetryPolicy {
+    
+    public static final int MAX_ATTEMPTS = Config.getInt("retry.max_attempts", 5);
+    public static final long BASE_DELAY = Config.getLong("retry.base_delay", TimeUnit.SECONDS.toMillis(1));
+    public static final long MAX_DELAY = Config.getLong("retry.max_delay", TimeUnit.MINUTES.toMillis(1));
+    
+    public static boolean isRetryable(Throwable throwable) {
+        if (throwable instanceof OriginException) {
+            final int responseCode = ((OriginException) throwable).getResponseCode();
+            return responseCode >= 500 || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT || responseCode == 429;
+        }
+        if (isUnknownHost(throwable) || isHandshakeFailure(throwable) || throwable instanceof MalformedURLException || throwable instanceof InsufficientStorageException) {
+            return false;
+        }
+        // Timeouts, refused or reset connections and truncated bodies
+        return throwable instanceof IOException;
+    }
+    
+    public static boolean isUnknownHost(Throwable throwable) {
+        return hasCause(throwable, UnknownHostException.class) || hasCause(throwable, UnresolvedAddressException.class);
+    }
+    
+    public static boolean isTimeout(Throwable throwable) {
+        return hasCause(throwable, SocketTimeoutException.class) || hasCause(throwable, HttpTimeoutException.class);
+    }
+    
+    /**
+     * Checks if the TLS handshake failed (e.g. an untrusted or expired certificate), which fails again on every attempt.
+     */
+    public static boolean isHandshakeFailure(Throwable throwable) {
+        return hasCause(throwable, SSLHandshakeException.class);
+    }
+    
+    private static boolean hasCause(Throwable throwable, Class<? extends Throwable> clazz) {
+        // Bounded, in case of a cyclic cause chain
+        for (int i = 0; throwable != null && i < 16; i++) {
+            if (clazz.isInstance(throwable)) {
+                return true;
+            }
+            throwable = throwable.getCause();
+        }
+        return false;
+    }
+    
+    /**
+     * Checks if another attempt is allowed after the given number of failed attempts.
+     */
+    public static boolean shouldRetry(Throwable throwable, int attempts) {
+        return attempts < MAX_ATTEMPTS && isRetryable(throwable);
+    }
+    
+    /**
+     * Returns the delay before the next attempt in milliseconds.
+     *
+     * @param attempts Number of failed attempts so far (at least 1)
+     */
+    public static long getDelay(Throwable throwable, int attempts) {
+        final long backoff = Math.min(MAX_DELAY, BASE_DELAY << Math.min(30, Math.max(0, attempts - 1)));
+        final long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        if (throwable instanceof OriginException) {
+            final long retryAfter = ((OriginException) throwable).getRetryAfter();
+            if (retryAfter > delay) {
+                return Math.min(MAX_DELAY, retryAfter);
+            }
+        }
+        return delay;
+    }
+    
+}
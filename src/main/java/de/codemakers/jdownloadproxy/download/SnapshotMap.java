@@ -0,0 +1,252 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A map over an immutable {@link Base} (e.g. an {@link IndexSnapshot}), whose entries are only decoded when they are looked up.
+ * <p>
+ * Changes are kept in an overlay, base entries which were removed are shadowed by tombstones in it. Every change of a key runs in one {@link ConcurrentHashMap#compute(Object, java.util.function.BiFunction)} of the overlay, so the overlay and the base never disagree for a reader. Null keys and values are not supported.
+ */
+public class SnapshotMap<V> extends AbstractMap<String, V> {
+    
+    private static final Object TOMBSTONE = new Object();
+    
+    private final Map<String, Object> overlay = new ConcurrentHashMap<>();
+    private volatile Base<V> base = null;
+    
+    /**
+     * Replaces the base, the entries put so far stay on top of it, removals only applied to the old one.
+     */
+    public void setBase(Base<V> base) {
+        this.base = base;
+        overlay.values().removeIf((value) -> value == TOMBSTONE);
+    }
+    
+    private V getBase(String key) {
+        final Base<V> base_ = base;
+        return base_ == null ? null : base_.get(key);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private V resolve(String key, Object value) {
+        if (value == TOMBSTONE) {
+            return null;
+        }
+        return value != null ? (V) value : getBase(key);
+    }
+    
+    @Override
+    public V get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        return resolve((String) key, overlay.get(key));
+    }
+    
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+    
+    @Override
+    public V put(String key, V value) {
+        Objects.requireNonNull(value);
+        final Object[] previous = new Object[1];
+        overlay.compute(key, (key_, value_) -> {
+            previous[0] = resolve(key_, value_);
+            return value;
+        });
+        return cast(previous[0]);
+    }
+    
+    @Override
+    public V putIfAbsent(String key, V value) {
+        Objects.requireNonNull(value);
+        final Object[] previous = new Object[1];
+        overlay.compute(key, (key_, value_) -> {
+            previous[0] = resolve(key_, value_);
+            return previous[0] == null ? value : value_;
+        });
+        return cast(previous[0]);
+    }
+    
+    @Override
+    public V remove(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        final Object[] previous = new Object[1];
+        overlay.compute((String) key, (key_, value_) -> {
+            final V value = getBase(key_);
+            previous[0] = value_ == null ? value : resolve(key_, value_);
+            return value != null ? TOMBSTONE : null;
+        });
+        return cast(previous[0]);
+    }
+    
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof String) || value == null) {
+            return false;
+        }
+        final boolean[] removed = new boolean[1];
+        overlay.compute((String) key, (key_, value_) -> {
+            if (!value.equals(resolve(key_, value_))) {
+                return value_;
+            }
+            removed[0] = true;
+            return getBase(key_) != null ? TOMBSTONE : null;
+        });
+        return removed[0];
+    }
+    
+    @Override
+    public void clear() {
+        base = null;
+        overlay.clear();
+    }
+    
+    /**
+     * Counts the base entries and corrects them by the overlay, without decoding the base.
+     */
+    @Override
+    public int size() {
+        final Base<V> base_ = base;
+        int size = base_ == null ? 0 : base_.size();
+        for (Map.Entry<String, Object> entry : overlay.entrySet()) {
+            if (entry.getValue() == TOMBSTONE) {
+                size--;
+            } else if (base_ == null || !base_.containsKey(entry.getKey())) {
+                size++;
+            }
+        }
+        return size;
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+    
+    /**
+     * Iterates the overlay first and then decodes the base entries one by one, skipping those the overlay shadows.
+     */
+    @Override
+    public Set<Map.Entry<String, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<String, V>> iterator() {
+                return new EntryIterator();
+            }
+            
+            @Override
+            public int size() {
+                return SnapshotMap.this.size();
+            }
+        };
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <V> V cast(Object value) {
+        return (V) value;
+    }
+    
+    private class EntryIterator implements Iterator<Map.Entry<String, V>> {
+        
+        private final Iterator<Map.Entry<String, Object>> overlayIterator = overlay.entrySet().iterator();
+        private final Base<V> base_ = base;
+        private Iterator<Map.Entry<String, V>> baseIterator = null;
+        private Map.Entry<String, V> next = null;
+        private Map.Entry<String, V> last = null;
+        
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (overlayIterator.hasNext()) {
+                    final Map.Entry<String, Object> entry = overlayIterator.next();
+                    if (entry.getValue() != TOMBSTONE) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(entry.getKey(), cast(entry.getValue()));
+                    }
+                    continue;
+                }
+                if (base_ == null) {
+                    return false;
+                }
+                if (baseIterator == null) {
+                    baseIterator = base_.iterator();
+                }
+                if (!baseIterator.hasNext()) {
+                    return false;
+                }
+                final Map.Entry<String, V> entry = baseIterator.next();
+                if (!overlay.containsKey(entry.getKey())) {
+                    next = entry;
+                }
+            }
+            return true;
+        }
+        
+        @Override
+        public Map.Entry<String, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next = null;
+            return last;
+        }
+        
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            SnapshotMap.this.remove(last.getKey());
+            last = null;
+        }
+        
+    }
+    
+    /**
+     * Read only entries, which are decoded on every lookup.
+     */
+    public interface Base<V> {
+        
+        V get(String key);
+        
+        boolean containsKey(String key);
+        
+        int size();
+        
+        /**
+         * Decodes the entries one by one, entries without a value are skipped.
+         */
+        Iterator<Map.Entry<String, V>> iterator();
+        
+    }
+    
+}
@@ -0,0 +1,89 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Stores the whole (not chunked) downloaded files as objects under their hash.
+ * <p>
+ * Part files are always written locally (see {@link StorageVolumes}), a backend only gets finished content.
+ * The backend is chosen with {@code storage.backend}: {@code filesystem} (default, see {@link FileSystemBackend}),
+ * {@code memory} (see {@link MemoryBackend}) or {@code http} with {@code storage.http.url} (see {@link HttpStorageBackend}).
+ */
+public interface StorageBackend {
+    
+    static StorageBackend fromConfig() {
+        final String backend = Config.getString("storage.backend", "filesystem").toLowerCase();
+        switch (backend) {
+            case "filesystem":
+                return new FileSystemBackend();
+            case "memory":
+                return new MemoryBackend();
+            case "http":
+                return new HttpStorageBackend(URI.create(Config.getString("storage.http.url", "http://localhost:9100/")));
+            default:
+                throw new IllegalArgumentException("Unknown storage backend \"" + backend + "\"");
+        }
+    }
+    
+    String getName();
+    
+    /**
+     * Stores the content of a local file, replacing an existing object.
+     * <p>
+     * The source may be moved (if the backend can, e.g. by a rename on the same disk), so the caller must not use it afterwards, only delete it if it still exists.
+     */
+    void put(String key, File source) throws IOException;
+    
+    /**
+     * Stores the content of the stream, replacing an existing object.
+     *
+     * @param length Length of the content, or a negative value if unknown
+     */
+    void put(String key, InputStream inputStream, long length) throws IOException;
+    
+    /**
+     * Opens a range of an object.
+     *
+     * @param length Number of bytes to read, or a negative value to read to the end
+     *
+     * @throws java.io.FileNotFoundException If there is no such object
+     */
+    InputStream get(String key, long offset, long length) throws IOException;
+    
+    /**
+     * @return The object, or null if there is none
+     */
+    StoredObject stat(String key) throws IOException;
+    
+    /**
+     * @return true if the object existed and was deleted
+     */
+    boolean delete(String key) throws IOException;
+    
+    List<String> list() throws IOException;
+    
+}
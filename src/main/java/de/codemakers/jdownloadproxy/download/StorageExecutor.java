@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool for the blocking storage work of requests (opening and hashing files, deleting them, writing the index), so the Netty event loop threads never wait on a disk.
+ * <p>
+ * At most {@link #THREADS} tasks run and {@link #MAX_QUEUED} wait, everything beyond that is rejected with a {@link RejectedExecutionException}, which the controllers answer with 503.
+ */
+public class StorageExecutor {
+    
+    public static final int THREADS = Config.getInt("io.threads", Math.max(4, Runtime.getRuntime().availableProcessors()));
+    public static final int MAX_QUEUED = Config.getInt("io.max_queued", 1000);
+    
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+    private static final ThreadPoolExecutor EXECUTOR_SERVICE = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(Math.max(1, MAX_QUEUED)), (runnable) -> {
+        final Thread thread = new Thread(runnable, "StorageExecutor-" + THREAD_NUMBER.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicLong REJECTED = new AtomicLong();
+    
+    static {
+        EXECUTOR_SERVICE.allowCoreThreadTimeOut(true);
+    }
+    
+    /**
+     * Runs the callable on the pool, the returned future fails with a {@link RejectedExecutionException} right away if the pool is saturated.
+     */
+    public static <T> CompletableFuture<T> supply(Callable<T> callable) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            EXECUTOR_SERVICE.execute(() -> {
+                try {
+                    future.complete(callable.call());
+                } catch (Throwable ex) {
+                    future.completeExceptionally(ex);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            REJECTED.incrementAndGet();
+            future.completeExceptionally(ex);
+        }
+        return future;
+    }
+    
+    /**
+     * Runs the runnable on the pool.
+     *
+     * @return false if the pool is saturated and the runnable was not accepted
+     */
+    public static boolean execute(Runnable runnable) {
+        try {
+            EXECUTOR_SERVICE.execute(() -> {
+                try {
+                    runnable.run();
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException ex) {
+            REJECTED.incrementAndGet();
+            return false;
+        }
+    }
+    
+    public static Map<String, Object> getStats() {
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("threads", THREADS);
+        stats.put("max_queued", MAX_QUEUED);
+        stats.put("active", EXECUTOR_SERVICE.getActiveCount());
+        stats.put("queued", EXECUTOR_SERVICE.getQueue().size());
+        stats.put("completed", EXECUTOR_SERVICE.getCompletedTaskCount());
+        stats.put("rejected", REJECTED.get());
+        return stats;
+    }
+    
+}
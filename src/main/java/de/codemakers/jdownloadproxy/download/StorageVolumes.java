@@ -0,0 +1,339 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Application;
+import de.codemakers.jdownloadproxy.Config;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * The folders downloads are stored in, usually one per disk, configured as {@code storage.volumes} (separated by commas, each optionally followed by {@code =weight}).
+ * <p>
+ * Every download is placed on a volume by weighted rendezvous hashing of its UUID (the content hash isn't known before the transfer finished),
+ * its part file and the stored file stay on that volume, so the commit is a rename. Without a weight, a volume is weighted by its capacity.
+ * A volume with less than {@link #MIN_FREE_SPACE} usable or which failed an I/O operation takes no new downloads,
+ * failed volumes are probed again every {@link #CHECK_INTERVAL} milliseconds. Stored files are found on every volume.
+ */
+public class StorageVolumes {
+    
+    public static final File DEFAULT_FOLDER = new File(Application.APPLICATION_FOLDER, "Downloads");
+    public static final long MIN_FREE_SPACE = Config.getLong("storage.min_free_space", 256L * 1024 * 1024);
+    public static final long CHECK_INTERVAL = Config.getLong("storage.check_interval", TimeUnit.SECONDS.toMillis(30));
+    
+    private static final List<Volume> VOLUMES = parseVolumes(Config.getString("storage.volumes", ""));
+    private static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+        final Thread thread = new Thread(runnable, "StorageVolumes-Check");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    static {
+        VOLUMES.forEach(Volume::probe);
+        if (CHECK_INTERVAL > 0) {
+            SCHEDULED_EXECUTOR_SERVICE.scheduleWithFixedDelay(StorageVolumes::check, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    protected static List<Volume> parseVolumes(String volumes) {
+        final List<Volume> volumes_ = new ArrayList<>();
+        for (String volume : volumes.split(",")) {
+            volume = volume.trim();
+            if (volume.isEmpty()) {
+                continue;
+            }
+            double weight = -1;
+            final int index = volume.lastIndexOf('=');
+            if (index > 0) {
+                try {
+                    weight = Double.parseDouble(volume.substring(index + 1).trim());
+                    volume = volume.substring(0, index).trim();
+                } catch (NumberFormatException e) {
+                    // Part of the path
+                }
+            }
+            volumes_.add(new Volume(new File(volume), weight));
+        }
+        if (volumes_.isEmpty()) {
+            volumes_.add(new Volume(DEFAULT_FOLDER, -1));
+        }
+        return Collections.unmodifiableList(volumes_);
+    }
+    
+    public static List<Volume> getVolumes() {
+        return VOLUMES;
+    }
+    
+    /**
+     * Returns the volume the download gets placed on, which is the writable volume with the highest weighted rendezvous score for the UUID.
+     * <p>
+     * If no volume is writable, the one with the most usable space is returned (the download will then most likely fail).
+     */
+    public static Volume place(UUID uuid) {
+        return place(VOLUMES, uuid);
+    }
+    
+    protected static Volume place(List<Volume> volumes, UUID uuid) {
+        Volume best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (Volume volume : volumes) {
+            if (!volume.isWritable()) {
+                continue;
+            }
+            final double score = volume.score(uuid);
+            if (score > bestScore) {
+                best = volume;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            return volumes.stream().max((volume, other) -> Long.compare(volume.usableSpace, other.usableSpace)).orElseThrow();
+        }
+        return best;
+    }
+    
+    /**
+     * Returns the volume for content which doesn't belong to a download (e.g. put into a {@link StorageBackend} as a stream), placed by the key instead.
+     */
+    public static Volume place(String key) {
+        return place(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)));
+    }
+    
+    /**
+     * Returns the volume the file is directly in, or null if it isn't in one.
+     */
+    public static Volume getVolume(File file) {
+        if (file == null) {
+            return null;
+        }
+        final File folder = file.getAbsoluteFile().getParentFile();
+        for (Volume volume : VOLUMES) {
+            if (volume.folder.equals(folder)) {
+                return volume;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the part file of the download, an existing one on a writable volume (e.g. of a suspended download) is preferred over a new placement.
+     */
+    public static File getTempFile(UUID uuid, String filename) {
+        for (Volume volume : VOLUMES) {
+            final File file = new File(volume.folder, filename);
+            if (volume.isWritable() && file.exists()) {
+                return file;
+            }
+        }
+        final Volume volume = place(uuid);
+        volume.placed.incrementAndGet();
+        return new File(volume.folder, filename);
+    }
+    
+    /**
+     * Returns the file with the name on any volume, or null if there is none.
+     */
+    public static File findFile(String filename) {
+        for (Volume volume : VOLUMES) {
+            final File file = new File(volume.folder, filename);
+            if (file.exists()) {
+                return file;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the files of all volumes.
+     */
+    public static List<File> listFiles(FileFilter fileFilter) {
+        final List<File> files = new ArrayList<>();
+        for (Volume volume : VOLUMES) {
+            final File[] files_ = volume.folder.listFiles(fileFilter);
+            if (files_ != null) {
+                Collections.addAll(files, files_);
+            }
+        }
+        return files;
+    }
+    
+    /**
+     * Measures the usable space of all volumes and returns the sum of the writable ones.
+     */
+    public static long refresh() {
+        long usableSpace = 0;
+        for (Volume volume : VOLUMES) {
+            volume.refresh();
+            if (volume.isWritable()) {
+                usableSpace += volume.usableSpace;
+            }
+        }
+        return usableSpace;
+    }
+    
+    /**
+     * Takes the volume of the file out of placement until it passes a probe again.
+     */
+    public static void reportFailure(File file, Throwable throwable) {
+        final Volume volume = getVolume(file);
+        if (volume != null) {
+            volume.fail(throwable);
+        }
+    }
+    
+    protected static void check() {
+        try {
+            for (Volume volume : VOLUMES) {
+                if (volume.failure != null && System.currentTimeMillis() - volume.timestampFailure >= CHECK_INTERVAL) {
+                    volume.probe();
+                } else {
+                    volume.refresh();
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+    }
+    
+    public static List<Map<String, Object>> getStats() {
+        return VOLUMES.stream().map(Volume::getStats).collect(Collectors.toList());
+    }
+    
+    public static class Volume {
+        
+        private final File folder;
+        private final double weight;
+        private final long seed;
+        private final AtomicLong placed = new AtomicLong();
+        private volatile long usableSpace = 0;
+        private volatile long totalSpace = 0;
+        private volatile String failure = null;
+        private volatile long timestampFailure = 0;
+        
+        private Volume(File folder, double weight) {
+            this.folder = folder.getAbsoluteFile();
+            this.weight = weight;
+            this.seed = mix(this.folder.getPath().hashCode());
+        }
+        
+        public File getFolder() {
+            return folder;
+        }
+        
+        /**
+         * Returns the configured weight, or the capacity in GiB if none was configured.
+         */
+        public double getWeight() {
+            if (weight >= 0) {
+                return weight;
+            }
+            return Math.max(1, totalSpace / (1024.0 * 1024 * 1024));
+        }
+        
+        public boolean isFailed() {
+            return failure != null;
+        }
+        
+        public boolean isFull() {
+            return usableSpace < MIN_FREE_SPACE;
+        }
+        
+        public boolean isWritable() {
+            return !isFailed() && !isFull() && getWeight() > 0;
+        }
+        
+        /**
+         * Weighted rendezvous score, the volume with the highest one gets the download.
+         */
+        private double score(UUID uuid) {
+            final long hash = mix(uuid.getMostSignificantBits() ^ mix(uuid.getLeastSignificantBits() ^ seed));
+            // Uniform in (0, 1)
+            final double uniform = ((hash >>> 11) + 0.5) / (1L << 53);
+            return -getWeight() / Math.log(uniform);
+        }
+        
+        private void refresh() {
+            usableSpace = folder.getUsableSpace();
+            totalSpace = folder.getTotalSpace();
+        }
+        
+        /**
+         * Creates the folder and writes a file to it, a volume which passes is no longer failed.
+         */
+        protected void probe() {
+            try {
+                Files.createDirectories(folder.toPath());
+                final File file = File.createTempFile("probe", ".tmp", folder);
+                Files.write(file.toPath(), new byte[] {1});
+                Files.delete(file.toPath());
+                if (failure != null) {
+                    System.out.printf("[INFO ][%s#probe] Volume \"%s\" is back%n", StorageVolumes.class.getSimpleName(), folder.getAbsolutePath());
+                }
+                failure = null;
+            } catch (IOException | RuntimeException ex) {
+                fail(ex);
+            }
+            refresh();
+        }
+        
+        protected void fail(Throwable throwable) {
+            if (failure == null) {
+                System.err.printf("[ERROR][%s#fail] Taking volume \"%s\" out: %s%n", StorageVolumes.class.getSimpleName(), folder.getAbsolutePath(), throwable);
+            }
+            failure = String.valueOf(throwable);
+            timestampFailure = System.currentTimeMillis();
+        }
+        
+        private Map<String, Object> getStats() {
+            final Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("folder", folder.getAbsolutePath());
+            stats.put("weight", getWeight());
+            stats.put("state", isFailed() ? "FAILED" : isFull() ? "FULL" : "OK");
+            stats.put("failure", failure);
+            stats.put("usable_bytes", usableSpace);
+            stats.put("total_bytes", totalSpace);
+            stats.put("placed", placed.get());
+            return stats;
+        }
+        
+    }
+    
+    private static long mix(long value) {
+        // SplitMix64 finalizer
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+    
+}
@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.File;
+
+/**
+ * Metadata of an object in a {@link StorageBackend}.
+ */
+public class StoredObject {
+    
+    private final String key;
+    private final long length;
+    private final long lastModified;
+    private final File file;
+    
+    public StoredObject(String key, long length, long lastModified, File file) {
+        this.key = key;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.file = file;
+    }
+    
+    public String getKey() {
+        return key;
+    }
+    
+    public long getLength() {
+        return length;
+    }
+    
+    /**
+     * Returns the time of the last modification in milliseconds since the epoch, or 0 if unknown.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+    
+    /**
+     * Returns the local file holding the content, or null if the backend doesn't store objects as local files.
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    @Override
+    public String toString() {
+        return "StoredObject{" + "key='" + key + '\'' + ", length=" + length + ", lastModified=" + lastModified + ", file=" + file + '}';
+    }
+    
+}
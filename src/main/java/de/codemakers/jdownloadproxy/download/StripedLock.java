@@ -0,0 +1,50 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks keys are spread over, so equal keys always share a lock, while unrelated keys rarely contend.
+ */
+public class StripedLock {
+    
+    private final ReentrantLock[] locks;
+    
+    /**
+     * @param stripes Number of locks, rounded up to the next power of two
+     */
+    public StripedLock(int stripes) {
+        locks = new ReentrantLock[Math.max(1, Integer.highestOneBit(Math.max(1, stripes) - 1) << 1)];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+    
+    public ReentrantLock get(Object key) {
+        final int hashCode = key.hashCode();
+        // Spreads the high bits, because only the low ones select the stripe
+        return locks[(hashCode ^ (hashCode >>> 16)) & (locks.length - 1)];
+    }
+    
+    public int getStripes() {
+        return locks.length;
+    }
+    
+}
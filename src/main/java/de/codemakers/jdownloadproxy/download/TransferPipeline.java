@@ -0,0 +1,235 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * Copies an {@link InputStream} into a {@link FileChannel} through pooled heap buffers, which it reads into directly.
+ * <p>
+ * Every buffer is filled completely before it gets written, so many small network reads are coalesced into one write.
+ * The buffer size starts at {@link #MIN_BUFFER_SIZE} and grows (up to {@link #MAX_BUFFER_SIZE}) until one buffer holds about {@link #TARGET_FILL_MILLIS} of the measured throughput.
+ * Released buffers are kept for the next transfer as long as the pool holds less than {@link #MAX_POOLED_BYTES}.
+ * Progress is reported at most every {@link #PROGRESS_INTERVAL} milliseconds.
+ */
+public class TransferPipeline {
+    
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = Config.getInt("transfer.max_buffer_size", 4 * 1024 * 1024);
+    public static final long MAX_POOLED_BYTES = Config.getLong("transfer.max_pooled_bytes", 8 * 1024 * 1024);
+    public static final long TARGET_FILL_MILLIS = 50;
+    public static final long PROGRESS_INTERVAL = 250;
+    public static final boolean EXTEND_TARGET = Config.getBoolean("transfer.extend_target", true);
+    
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(Integer.highestOneBit(Math.max(MAX_BUFFER_SIZE, MIN_BUFFER_SIZE)) / MIN_BUFFER_SIZE) + 1;
+    private static final List<Queue<ByteBuffer>> BUFFER_POOL = new ArrayList<>(SIZE_CLASSES);
+    private static final AtomicLong POOLED_BYTES = new AtomicLong();
+    
+    static {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            BUFFER_POOL.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+    
+    /**
+     * Transfers everything from the stream to the target, starting at the given position.
+     * <p>
+     * The stream reads straight into the array of a pooled heap buffer, a stream wrapped by {@link java.nio.channels.Channels#newChannel(InputStream)} would copy every 8 KiB through an array of its own first.
+     *
+     * @param totalBytes Expected length (or a negative value if unknown), the target gets extended to it and truncated to the actual length afterwards
+     *
+     * @return Number of bytes in the target (including the ones before the position)
+     */
+    public static long transfer(InputStream source, FileChannel target, long position, long totalBytes, LongConsumer progress) throws IOException {
+        return transfer(new InputStreamChannel(source), target, position, totalBytes, progress);
+    }
+    
+    private static long transfer(ReadableByteChannel source, FileChannel target, long position, long totalBytes, LongConsumer progress) throws IOException {
+        if (EXTEND_TARGET && totalBytes > target.size()) {
+            extendTarget(target, totalBytes);
+        }
+        int sizeClass = 0;
+        ByteBuffer byteBuffer = acquire(sizeClass);
+        long lastProgress = System.nanoTime();
+        try {
+            while (true) {
+                final long fillStarted = System.nanoTime();
+                boolean endOfStream = false;
+                while (byteBuffer.hasRemaining()) {
+                    if (source.read(byteBuffer) < 0) {
+                        endOfStream = true;
+                        break;
+                    }
+                }
+                final long fillNanos = System.nanoTime() - fillStarted;
+                byteBuffer.flip();
+                final int filled = byteBuffer.remaining();
+                position = write(target, byteBuffer, position);
+                if (progress != null && (endOfStream || System.nanoTime() - lastProgress >= TimeUnit.MILLISECONDS.toNanos(PROGRESS_INTERVAL))) {
+                    progress.accept(position);
+                    lastProgress = System.nanoTime();
+                }
+                if (endOfStream) {
+                    break;
+                }
+                final int nextSizeClass = chooseSizeClass(filled, fillNanos, sizeClass);
+                if (nextSizeClass != sizeClass) {
+                    release(byteBuffer, sizeClass);
+                    sizeClass = nextSizeClass;
+                    byteBuffer = acquire(sizeClass);
+                } else {
+                    byteBuffer.clear();
+                }
+            }
+        } catch (IOException ex) {
+            // Everything up to the position is written, so a retry can resume from there
+            if (progress != null) {
+                progress.accept(position);
+            }
+            throw ex;
+        } finally {
+            release(byteBuffer, sizeClass);
+        }
+        try {
+            if (target.size() > position) {
+                target.truncate(position);
+            }
+        } catch (IOException ex) {
+            throw new VolumeException("Can't truncate the target to " + position + " Bytes", ex);
+        }
+        return position;
+    }
+    
+    /**
+     * Writes the whole buffer, failures are thrown as {@link VolumeException}s, so they can be told apart from failures of the source.
+     *
+     * @return The position after the written bytes
+     */
+    private static long write(FileChannel target, ByteBuffer byteBuffer, long position) throws VolumeException {
+        try {
+            while (byteBuffer.hasRemaining()) {
+                position += target.write(byteBuffer, position);
+            }
+            return position;
+        } catch (IOException ex) {
+            throw new VolumeException("Can't write to the target at " + position + " Bytes", ex);
+        }
+    }
+    
+    /**
+     * Sets the length of the target to the expected length up front by writing its last byte, so the file system knows the final size early (e.g. for delayed allocation).
+     * <p>
+     * This doesn't reserve the space, the file stays sparse on most file systems (there is no portable fallocate in Java).
+     * The space of unfinished downloads is accounted by the {@link AdmissionControl} instead.
+     */
+    private static void extendTarget(FileChannel target, long totalBytes) {
+        try {
+            target.write(ByteBuffer.allocate(1), totalBytes - 1);
+        } catch (IOException e) {
+            System.err.printf("[WARNING][%s#extendTarget] Can't extend the target to %d Bytes: %s%n", TransferPipeline.class.getSimpleName(), totalBytes, e);
+        }
+    }
+    
+    private static int chooseSizeClass(int filled, long fillNanos, int sizeClass) {
+        if (filled < bufferSize(sizeClass) || sizeClass + 1 >= SIZE_CLASSES) {
+            return sizeClass;
+        }
+        // The buffer was filled faster than the target time, so a bigger one saves writes without delaying progress much
+        if (fillNanos < TimeUnit.MILLISECONDS.toNanos(TARGET_FILL_MILLIS) / 2) {
+            return sizeClass + 1;
+        }
+        return sizeClass;
+    }
+    
+    private static int bufferSize(int sizeClass) {
+        return MIN_BUFFER_SIZE << sizeClass;
+    }
+    
+    private static ByteBuffer acquire(int sizeClass) {
+        final ByteBuffer byteBuffer = BUFFER_POOL.get(sizeClass).poll();
+        if (byteBuffer != null) {
+            POOLED_BYTES.addAndGet(-byteBuffer.capacity());
+            return byteBuffer.clear();
+        }
+        return ByteBuffer.allocate(bufferSize(sizeClass));
+    }
+    
+    private static void release(ByteBuffer byteBuffer, int sizeClass) {
+        // Reserved first, so concurrent releases can't exceed the limit together
+        if (POOLED_BYTES.addAndGet(byteBuffer.capacity()) > MAX_POOLED_BYTES) {
+            POOLED_BYTES.addAndGet(-byteBuffer.capacity());
+            return;
+        }
+        BUFFER_POOL.get(sizeClass).offer(byteBuffer);
+    }
+    
+    protected static long getPooledBytes() {
+        return POOLED_BYTES.get();
+    }
+    
+    /**
+     * Reads a stream into the arrays of heap buffers, without a buffer in between.
+     * <p>
+     * Like the channels of {@link java.nio.channels.Channels#newChannel(InputStream)}, an interrupt ends the transfer, but the stream is left open (it belongs to the caller).
+     */
+    private static class InputStreamChannel implements ReadableByteChannel {
+        
+        private final InputStream inputStream;
+        
+        private InputStreamChannel(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+        
+        @Override
+        public int read(ByteBuffer byteBuffer) throws IOException {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new ClosedByInterruptException();
+            }
+            final int read = inputStream.read(byteBuffer.array(), byteBuffer.arrayOffset() + byteBuffer.position(), byteBuffer.remaining());
+            if (read > 0) {
+                byteBuffer.position(byteBuffer.position() + read);
+            }
+            return read;
+        }
+        
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        
+        @Override
+        public void close() {
+        }
+        
+    }
+    
+}
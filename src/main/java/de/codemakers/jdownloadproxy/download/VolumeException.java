@@ -0,0 +1,32 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import java.io.IOException;
+
+/**
+ * Thrown if a local file of a download can't be written, which takes its volume out of the {@link StorageVolumes} and is retried on another one.
+ */
+public class VolumeException extends IOException {
+    
+    public VolumeException(String message, Throwable cause) {
+        super(message, cause);
+    }
+    
+}
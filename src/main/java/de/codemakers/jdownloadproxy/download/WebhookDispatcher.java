@@ -0,0 +1,220 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Delivers {@link DownloadInfo}s to callback URLs on its own threads, so a slow receiver never holds up a download thread.
+ * <p>
+ * Deliveries to the same host are collected for the batch delay and then POSTed as one JSON array per callback URL, one batch per host at a time.
+ * A failed batch is retried with exponential backoff, at most {@code maxQueued} deliveries wait at once, further ones are dropped.
+ */
+public class WebhookDispatcher {
+    
+    private final int maxQueued;
+    private final long batchDelay;
+    private final int maxBatch;
+    private final int maxAttempts;
+    private final long retryDelay;
+    private final long maxRetryDelay;
+    private final Duration timeout;
+    private final ScheduledThreadPoolExecutor executor;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper = DownloadInfo.DownloadInfoSerializer.createObjectMapper();
+    private final Map<String, HostQueue> hostQueues = new ConcurrentHashMap<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    
+    public WebhookDispatcher(int threads, int maxQueued, long batchDelay, int maxBatch, int maxAttempts, long retryDelay, long maxRetryDelay, long timeout) {
+        this.maxQueued = maxQueued;
+        this.batchDelay = batchDelay;
+        this.maxBatch = Math.max(1, maxBatch);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = retryDelay;
+        this.maxRetryDelay = maxRetryDelay;
+        this.timeout = Duration.ofMillis(timeout);
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), (runnable) -> {
+            final Thread thread = new Thread(runnable, "WebhookDispatcher-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpClient = HttpClient.newBuilder().connectTimeout(this.timeout).build();
+    }
+    
+    /**
+     * Queues the delivery of the {@link DownloadInfo} to the callback URL.
+     *
+     * @return false if too many deliveries are waiting and this one got dropped
+     */
+    public boolean dispatch(URI callback, DownloadInfo downloadInfo) {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            System.err.printf("[WARNING][%s#dispatch] Too many queued webhooks, dropped the one for %s to \"%s\"%n", getClass().getSimpleName(), downloadInfo.getUuid(), callback);
+            return false;
+        }
+        enqueue(new Delivery(callback, downloadInfo));
+        return true;
+    }
+    
+    private void enqueue(Delivery delivery) {
+        hostQueues.computeIfAbsent(getHostKey(delivery.callback), (key) -> new HostQueue()).add(delivery);
+    }
+    
+    private static String getHostKey(URI callback) {
+        return callback.getScheme() + "://" + callback.getHost() + ":" + callback.getPort();
+    }
+    
+    private long getBackoff(int attempts) {
+        return Math.min(maxRetryDelay, retryDelay << Math.min(30, attempts - 1));
+    }
+    
+    /**
+     * POSTs the deliveries, which all have the same callback URL, as one JSON array.
+     */
+    private void post(URI callback, List<Delivery> deliveries) {
+        batches.incrementAndGet();
+        String failure;
+        try {
+            final byte[] body = objectMapper.writeValueAsBytes(deliveries.stream().map((delivery) -> delivery.downloadInfo).collect(Collectors.toList()));
+            final HttpRequest request = HttpRequest.newBuilder(callback).timeout(timeout).header("Content-Type", "application/json").POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+            int statusCode;
+            try {
+                statusCode = httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            } catch (IOException ex) {
+                // Mostly a kept-alive connection the receiver closed meanwhile, so it's tried once more right away on a new one (deliveries are at least once anyway)
+                statusCode = httpClient.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+            }
+            if (statusCode >= 200 && statusCode < 300) {
+                delivered.addAndGet(deliveries.size());
+                queued.addAndGet(-deliveries.size());
+                return;
+            }
+            failure = "HTTP response code " + statusCode;
+        } catch (IOException ex) {
+            failure = ex.toString();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failure = ex.toString();
+        }
+        for (Delivery delivery : deliveries) {
+            delivery.attempts++;
+            if (delivery.attempts >= maxAttempts) {
+                queued.decrementAndGet();
+                dropped.incrementAndGet();
+                System.err.printf("[ERROR][%s#post] Giving up on the webhook for %s to \"%s\" after %d attempts: %s%n", getClass().getSimpleName(), delivery.downloadInfo.getUuid(), callback, delivery.attempts, failure);
+                continue;
+            }
+            retried.incrementAndGet();
+            executor.schedule(() -> enqueue(delivery), getBackoff(delivery.attempts), TimeUnit.MILLISECONDS);
+        }
+        System.err.printf("[WARNING][%s#post] Webhook batch of %d to \"%s\" failed: %s%n", getClass().getSimpleName(), deliveries.size(), callback, failure);
+    }
+    
+    public Map<String, Object> getStats() {
+        final Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", queued.get());
+        stats.put("max_queued", maxQueued);
+        stats.put("hosts", hostQueues.size());
+        stats.put("delivered", delivered.get());
+        stats.put("batches", batches.get());
+        stats.put("retried", retried.get());
+        stats.put("dropped", dropped.get());
+        return stats;
+    }
+    
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    private static class Delivery {
+        
+        private final URI callback;
+        private final DownloadInfo downloadInfo;
+        private int attempts = 0;
+        
+        private Delivery(URI callback, DownloadInfo downloadInfo) {
+            this.callback = callback;
+            this.downloadInfo = downloadInfo;
+        }
+        
+    }
+    
+    private class HostQueue {
+        
+        private final List<Delivery> deliveries = new ArrayList<>();
+        private boolean flushing = false;
+        
+        private synchronized void add(Delivery delivery) {
+            deliveries.add(delivery);
+            if (!flushing) {
+                flushing = true;
+                executor.schedule(this::flush, batchDelay, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        private void flush() {
+            final List<Delivery> batch;
+            synchronized (this) {
+                final List<Delivery> head = deliveries.subList(0, Math.min(deliveries.size(), maxBatch));
+                batch = new ArrayList<>(head);
+                head.clear();
+            }
+            try {
+                final Map<URI, List<Delivery>> byCallback = new LinkedHashMap<>();
+                for (Delivery delivery : batch) {
+                    byCallback.computeIfAbsent(delivery.callback, (callback) -> new ArrayList<>()).add(delivery);
+                }
+                byCallback.forEach(WebhookDispatcher.this::post);
+            } finally {
+                synchronized (this) {
+                    // Deliveries which came in meanwhile are already late, so they are not delayed again
+                    if (deliveries.isEmpty()) {
+                        flushing = false;
+                    } else {
+                        executor.execute(this::flush);
+                    }
+                }
+            }
+        }
+        
+    }
+    
+}
@@ -0,0 +1,67 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Config;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+
+/**
+ * Completion callbacks, which POST the {@link DownloadInfo} of a download once it is {@link DownloadStatus#FINISHED} or {@link DownloadStatus#ERRORED}, so clients don't have to poll its status.
+ */
+public class Webhooks {
+    
+    public static final int THREADS = Config.getInt("webhook.threads", 2);
+    public static final int MAX_QUEUED = Config.getInt("webhook.max_queued", 10000);
+    public static final long BATCH_DELAY = Config.getLong("webhook.batch_delay", 200);
+    public static final int MAX_BATCH = Config.getInt("webhook.max_batch", 100);
+    public static final int MAX_ATTEMPTS = Config.getInt("webhook.max_attempts", 8);
+    public static final long RETRY_DELAY = Config.getLong("webhook.retry_delay", 1000);
+    public static final long MAX_RETRY_DELAY = Config.getLong("webhook.max_retry_delay", 60000);
+    public static final long TIMEOUT = Config.getLong("webhook.timeout", 10000);
+    
+    private static final WebhookDispatcher DISPATCHER = new WebhookDispatcher(THREADS, MAX_QUEUED, BATCH_DELAY, MAX_BATCH, MAX_ATTEMPTS, RETRY_DELAY, MAX_RETRY_DELAY, TIMEOUT);
+    
+    /**
+     * Parses a callback URL, only absolute http and https URLs are accepted.
+     *
+     * @return The callback URL, or null if it is not valid
+     */
+    public static URI parseCallback(String callback) {
+        try {
+            final URI uri = new URI(callback);
+            if (uri.getHost() == null || !("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme()))) {
+                return null;
+            }
+            return uri;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+    
+    public static boolean notify(URI callback, DownloadInfo downloadInfo) {
+        return DISPATCHER.dispatch(callback, downloadInfo);
+    }
+    
+    public static Map<String, Object> getStats() {
+        return DISPATCHER.getStats();
+    }
+    
+}
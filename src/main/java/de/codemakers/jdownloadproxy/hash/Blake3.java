@@ -0,0 +1,702 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.hash;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Incremental BLAKE3 hasher (32 byte output, no key or derive mode).
+ * <p>
+ * BLAKE3 is a Merkle tree over 1 KiB chunks, so aligned subtrees can be hashed independently (see {@link #hashSubtree(ByteBuffer, long)}) and appended with {@link #appendSubtree(byte[], long)}.
+ * The last chunk always stays in the chunk state, because only it knows whether it is the root.
+ */
+public class Blake3 {
+    
+    public static final int OUT_LEN = 32;
+    public static final int BLOCK_LEN = 64;
+    public static final int CHUNK_LEN = 1024;
+    
+    private static final int CHUNK_START = 1;
+    private static final int CHUNK_END = 1 << 1;
+    private static final int PARENT = 1 << 2;
+    private static final int ROOT = 1 << 3;
+    
+    private static final int[] IV = {0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19};
+    
+    private final int[][] cvStack = new int[54][];
+    private int cvStackLength = 0;
+    private final int[] blockWords = new int[16];
+    private final byte[] block = new byte[BLOCK_LEN];
+    private int[] chunkCv = IV.clone();
+    private long chunkCounter = 0;
+    private int blockLength = 0;
+    private int blocksCompressed = 0;
+    
+    public static byte[] hash(byte[] data) {
+        final Blake3 blake3 = new Blake3();
+        blake3.update(ByteBuffer.wrap(data));
+        return blake3.digest();
+    }
+    
+    public void update(ByteBuffer byteBuffer) {
+        final ByteBuffer input = byteBuffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        byteBuffer.position(byteBuffer.limit());
+        while (input.hasRemaining()) {
+            if (chunkLength() == CHUNK_LEN) {
+                // The chunk is complete and more input follows, so it is not the root
+                final int[] cv = chunkOutput().chainingValue();
+                addChunkChainingValue(cv, chunkCounter + 1);
+                resetChunk(chunkCounter + 1);
+            }
+            // Whole blocks are compressed straight from the input, unless they could be the last block of the chunk
+            while (blockLength == 0 && blocksCompressed < CHUNK_LEN / BLOCK_LEN - 1 && input.remaining() > BLOCK_LEN) {
+                for (int i = 0; i < 16; i++) {
+                    blockWords[i] = input.getInt();
+                }
+                compress(chunkCv, blockWords, chunkCounter, BLOCK_LEN, chunkFlags(), chunkCv);
+                blocksCompressed++;
+            }
+            if (!input.hasRemaining() || chunkLength() == CHUNK_LEN) {
+                continue;
+            }
+            if (blockLength == BLOCK_LEN) {
+                wordsOf(block, blockWords);
+                compress(chunkCv, blockWords, chunkCounter, BLOCK_LEN, chunkFlags(), chunkCv);
+                blocksCompressed++;
+                blockLength = 0;
+            }
+            final int take = Math.min(BLOCK_LEN - blockLength, input.remaining());
+            input.get(block, blockLength, take);
+            blockLength += take;
+        }
+    }
+    
+    public void update(byte[] data, int offset, int length) {
+        update(ByteBuffer.wrap(data, offset, length));
+    }
+    
+    public byte[] digest() {
+        Output output = chunkOutput();
+        for (int i = cvStackLength - 1; i >= 0; i--) {
+            output = parentOutput(cvStack[i], output.chainingValue());
+        }
+        return output.rootBytes();
+    }
+    
+    /**
+     * Appends the chaining value of a subtree, which must start at the current (empty and aligned) chunk and be followed by more input.
+     *
+     * @param chunks Number of chunks in the subtree, a power of two
+     */
+    public void appendSubtree(byte[] chainingValue, long chunks) {
+        if (chunkLength() != 0 || Long.bitCount(chunks) != 1 || (chunkCounter & (chunks - 1)) != 0) {
+            throw new IllegalStateException("Subtree is not aligned");
+        }
+        int[] cv = new int[8];
+        wordsOf(chainingValue, cv);
+        long totalChunks = (chunkCounter + chunks) >>> Long.numberOfTrailingZeros(chunks);
+        while ((totalChunks & 1) == 0) {
+            cv = parentOutput(cvStack[--cvStackLength], cv).chainingValue();
+            totalChunks >>>= 1;
+        }
+        cvStack[cvStackLength++] = cv;
+        resetChunk(chunkCounter + chunks);
+    }
+    
+    /**
+     * Returns the (non root) chaining value of a subtree of full chunks.
+     *
+     * @param byteBuffer   Content of the subtree, whose length must be a power of two number of chunks
+     * @param chunkCounter Index of the first chunk of the subtree within the whole content
+     */
+    public static byte[] hashSubtree(ByteBuffer byteBuffer, long chunkCounter) {
+        final long chunks = byteBuffer.remaining() / CHUNK_LEN;
+        if (chunks == 0 || Long.bitCount(chunks) != 1 || byteBuffer.remaining() % CHUNK_LEN != 0) {
+            throw new IllegalArgumentException("Subtree must be a power of two number of chunks");
+        }
+        final Blake3 blake3 = new Blake3();
+        blake3.resetChunk(chunkCounter);
+        blake3.update(byteBuffer);
+        // The chunk state holds the last chunk, which has to be merged like every other one
+        int[] cv = blake3.chunkOutput().chainingValue();
+        for (int i = blake3.cvStackLength - 1; i >= 0; i--) {
+            cv = blake3.parentOutput(blake3.cvStack[i], cv).chainingValue();
+        }
+        return bytesOf(cv);
+    }
+    
+    private void addChunkChainingValue(int[] cv, long totalChunks) {
+        while ((totalChunks & 1) == 0) {
+            cv = parentOutput(cvStack[--cvStackLength], cv).chainingValue();
+            totalChunks >>>= 1;
+        }
+        cvStack[cvStackLength++] = cv;
+    }
+    
+    private void resetChunk(long chunkCounter) {
+        this.chunkCv = IV.clone();
+        this.chunkCounter = chunkCounter;
+        this.blockLength = 0;
+        this.blocksCompressed = 0;
+    }
+    
+    private int chunkLength() {
+        return blocksCompressed * BLOCK_LEN + blockLength;
+    }
+    
+    private int chunkFlags() {
+        return blocksCompressed == 0 ? CHUNK_START : 0;
+    }
+    
+    private Output chunkOutput() {
+        final byte[] lastBlock = new byte[BLOCK_LEN];
+        System.arraycopy(block, 0, lastBlock, 0, blockLength);
+        final int[] words = new int[16];
+        wordsOf(lastBlock, words);
+        return new Output(chunkCv, words, chunkCounter, blockLength, chunkFlags() | CHUNK_END);
+    }
+    
+    private Output parentOutput(int[] left, int[] right) {
+        final int[] words = new int[16];
+        System.arraycopy(left, 0, words, 0, 8);
+        System.arraycopy(right, 0, words, 8, 8);
+        return new Output(IV, words, 0, BLOCK_LEN, PARENT);
+    }
+    
+    /**
+     * Compresses one block into the new chaining value (the output may be the input chaining value).
+     * <p>
+     * The state and the message are kept in local variables and the 7 rounds are unrolled with the message permutation already applied, because array accesses in the rounds would dominate the time.
+     */
+    private static void compress(int[] cv, int[] message, long counter, int blockLength, int flags, int[] out) {
+        int v0 = cv[0], v1 = cv[1], v2 = cv[2], v3 = cv[3], v4 = cv[4], v5 = cv[5], v6 = cv[6], v7 = cv[7];
+        int v8 = IV[0], v9 = IV[1], v10 = IV[2], v11 = IV[3], v12 = (int) counter, v13 = (int) (counter >>> 32), v14 = blockLength, v15 = flags;
+        final int m0 = message[0], m1 = message[1], m2 = message[2], m3 = message[3], m4 = message[4], m5 = message[5], m6 = message[6], m7 = message[7];
+        final int m8 = message[8], m9 = message[9], m10 = message[10], m11 = message[11], m12 = message[12], m13 = message[13], m14 = message[14], m15 = message[15];
+        // Round 1
+        v0 += v4 + m0;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m1;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m2;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m3;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m4;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m5;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m6;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m7;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m8;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m9;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m10;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m11;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m12;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m13;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m14;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m15;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // Round 2
+        v0 += v4 + m2;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m6;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m3;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m10;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m7;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m0;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m4;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m13;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m1;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m11;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m12;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m5;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m9;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m14;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m15;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m8;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // Round 3
+        v0 += v4 + m3;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m4;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m10;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m12;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m13;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m2;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m7;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m14;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m6;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m5;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m9;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m0;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m11;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m15;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m8;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m1;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // Round 4
+        v0 += v4 + m10;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m7;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m12;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m9;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m14;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m3;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m13;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m15;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m4;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m0;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m11;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m2;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m5;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m8;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m1;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m6;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // Round 5
+        v0 += v4 + m12;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m13;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m9;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m11;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m15;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m10;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m14;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m8;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m7;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m2;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m5;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m3;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m0;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m1;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m6;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m4;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // Round 6
+        v0 += v4 + m9;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m14;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m11;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m5;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m8;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m12;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m15;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m1;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m13;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m3;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m0;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m10;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m2;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m6;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m4;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m7;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        // Round 7
+        v0 += v4 + m11;
+        v12 = Integer.rotateRight(v12 ^ v0, 16);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 12);
+        v0 += v4 + m15;
+        v12 = Integer.rotateRight(v12 ^ v0, 8);
+        v8 += v12;
+        v4 = Integer.rotateRight(v4 ^ v8, 7);
+        v1 += v5 + m5;
+        v13 = Integer.rotateRight(v13 ^ v1, 16);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 12);
+        v1 += v5 + m0;
+        v13 = Integer.rotateRight(v13 ^ v1, 8);
+        v9 += v13;
+        v5 = Integer.rotateRight(v5 ^ v9, 7);
+        v2 += v6 + m1;
+        v14 = Integer.rotateRight(v14 ^ v2, 16);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 12);
+        v2 += v6 + m9;
+        v14 = Integer.rotateRight(v14 ^ v2, 8);
+        v10 += v14;
+        v6 = Integer.rotateRight(v6 ^ v10, 7);
+        v3 += v7 + m8;
+        v15 = Integer.rotateRight(v15 ^ v3, 16);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 12);
+        v3 += v7 + m6;
+        v15 = Integer.rotateRight(v15 ^ v3, 8);
+        v11 += v15;
+        v7 = Integer.rotateRight(v7 ^ v11, 7);
+        v0 += v5 + m14;
+        v15 = Integer.rotateRight(v15 ^ v0, 16);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 12);
+        v0 += v5 + m10;
+        v15 = Integer.rotateRight(v15 ^ v0, 8);
+        v10 += v15;
+        v5 = Integer.rotateRight(v5 ^ v10, 7);
+        v1 += v6 + m2;
+        v12 = Integer.rotateRight(v12 ^ v1, 16);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 12);
+        v1 += v6 + m12;
+        v12 = Integer.rotateRight(v12 ^ v1, 8);
+        v11 += v12;
+        v6 = Integer.rotateRight(v6 ^ v11, 7);
+        v2 += v7 + m3;
+        v13 = Integer.rotateRight(v13 ^ v2, 16);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 12);
+        v2 += v7 + m4;
+        v13 = Integer.rotateRight(v13 ^ v2, 8);
+        v8 += v13;
+        v7 = Integer.rotateRight(v7 ^ v8, 7);
+        v3 += v4 + m7;
+        v14 = Integer.rotateRight(v14 ^ v3, 16);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 12);
+        v3 += v4 + m13;
+        v14 = Integer.rotateRight(v14 ^ v3, 8);
+        v9 += v14;
+        v4 = Integer.rotateRight(v4 ^ v9, 7);
+        out[0] = v0 ^ v8;
+        out[1] = v1 ^ v9;
+        out[2] = v2 ^ v10;
+        out[3] = v3 ^ v11;
+        out[4] = v4 ^ v12;
+        out[5] = v5 ^ v13;
+        out[6] = v6 ^ v14;
+        out[7] = v7 ^ v15;
+    }
+    
+    private static void wordsOf(byte[] bytes, int[] words) {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < words.length; i++) {
+            words[i] = byteBuffer.getInt();
+        }
+    }
+    
+    private static byte[] bytesOf(int[] words) {
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(words.length * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        for (int word : words) {
+            byteBuffer.putInt(word);
+        }
+        return byteBuffer.array();
+    }
+    
+    private static class Output {
+        
+        private final int[] inputCv;
+        private final int[] blockWords;
+        private final long counter;
+        private final int blockLength;
+        private final int flags;
+        
+        private Output(int[] inputCv, int[] blockWords, long counter, int blockLength, int flags) {
+            this.inputCv = inputCv;
+            this.blockWords = blockWords;
+            this.counter = counter;
+            this.blockLength = blockLength;
+            this.flags = flags;
+        }
+        
+        private int[] chainingValue() {
+            final int[] cv = new int[8];
+            compress(inputCv, blockWords, counter, blockLength, flags, cv);
+            return cv;
+        }
+        
+        private byte[] rootBytes() {
+            final int[] out = new int[8];
+            compress(inputCv, blockWords, 0, blockLength, flags | ROOT, out);
+            return bytesOf(out);
+        }
+        
+    }
+    
+}
@@ -0,0 +1,85 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.hash;
+
+import java.util.SplittableRandom;
+
+/**
+ * Content-defined chunking with a gear rolling hash.
+ * <p>
+ * A chunk ends where the top bits of the rolling hash are all zero, which only depends on the last 64 bytes.
+ * So inserting or removing bytes only changes the chunks around the edit, and all following chunks stay the same.
+ */
+public class Chunker {
+    
+    /**
+     * Random, but fixed (chunk boundaries have to stay the same across restarts and versions).
+     */
+    private static final long[] GEAR = createGear(0x4A445043L);
+    
+    private final int minSize;
+    private final int maxSize;
+    private final long mask;
+    
+    /**
+     * @param avgSize Rounded to a power of two, chunks are on average about that much longer than the minimum size
+     */
+    public Chunker(int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || avgSize <= 0 || maxSize < minSize) {
+            throw new IllegalArgumentException(String.format("Invalid chunk sizes: min=%d, avg=%d, max=%d", minSize, avgSize, maxSize));
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        final int bits = Math.max(1, 31 - Integer.numberOfLeadingZeros(avgSize));
+        this.mask = ((1L << bits) - 1) << (Long.SIZE - bits);
+    }
+    
+    private static long[] createGear(long seed) {
+        final SplittableRandom splittableRandom = new SplittableRandom(seed);
+        final long[] gear = new long[256];
+        for (int i = 0; i < gear.length; i++) {
+            gear[i] = splittableRandom.nextLong();
+        }
+        return gear;
+    }
+    
+    public int getMaxSize() {
+        return maxSize;
+    }
+    
+    /**
+     * Returns the length of the chunk starting at the offset.
+     *
+     * @param length Available bytes, at least {@link #getMaxSize()} unless the data ends before
+     */
+    public int cut(byte[] data, int offset, int length) {
+        final int end = Math.min(length, maxSize);
+        if (end <= minSize) {
+            return end;
+        }
+        long hash = 0;
+        for (int i = minSize; i < end; i++) {
+            hash = (hash << 1) + GEAR[data[offset + i] & 0xFF];
+            if ((hash & mask) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+    
+}
@@ -0,0 +1,233 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.hash;
+
+import de.codemakers.jdownloadproxy.Config;
+import de.codemakers.jdownloadproxy.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Hashes files through large memory mapped regions (or a direct buffer for small files) instead of small heap buffers.
+ * <p>
+ * In {@link HashScheme#TREE} mode the file is split into {@link #TREE_CHUNK_SIZE} chunks, which are hashed in parallel on a {@link ForkJoinPool}.
+ * Every leaf is {@code H(0x00 || chunk)} and the result is {@code H(0x01 || leaf_0 || ... || leaf_n)}, so it differs from the {@link HashScheme#FLAT} hash of the same content.
+ * <p>
+ * In {@link HashScheme#BLAKE3} mode every {@link #TREE_CHUNK_SIZE} region except the last one is a BLAKE3 subtree, which are hashed in parallel as well.
+ * The result is the standard BLAKE3 digest of the content.
+ */
+public class HashEngine {
+    
+    /**
+     * Part of the {@link HashScheme#TREE} definition, so it must not be changed (stored hashes could no longer be verified).
+     */
+    public static final int TREE_CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final HashScheme DEFAULT_SCHEME = HashScheme.of(Config.getString("hash.scheme", null), HashScheme.FLAT);
+    public static final long MAPPED_REGION_SIZE = Config.getLong("hash.region_size", 64 * 1024 * 1024);
+    public static final long MAPPING_THRESHOLD = Config.getLong("hash.mapping_threshold", 1024 * 1024);
+    public static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+    
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+    private static final ForkJoinPool FORK_JOIN_POOL = new ForkJoinPool(Config.getInt("hash.parallelism", Runtime.getRuntime().availableProcessors()));
+    private static final ThreadLocal<ByteBuffer> DIRECT_BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE));
+    
+    public static byte[] hashFile(File file) {
+        return hashFile(file, DEFAULT_SCHEME);
+    }
+    
+    public static byte[] hashFile(File file, HashScheme hashScheme) {
+        return hashFile(file, hashScheme, null);
+    }
+    
+    /**
+     * Hashes a file, optionally reporting every block read to a throttle.
+     * <p>
+     * With a throttle the file is read sequentially through the direct buffer (no mapping and no parallel tree leaves), so the reported blocks are small and the throttle can actually limit the I/O rate.
+     */
+    public static byte[] hashFile(File file, HashScheme hashScheme, LongConsumer throttle) {
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            switch (hashScheme) {
+                case FLAT:
+                    return hashFlat(fileChannel, throttle);
+                case TREE:
+                    return hashTree(fileChannel, throttle);
+                case BLAKE3:
+                    return hashBlake3(fileChannel, throttle);
+                default:
+                    throw new IllegalArgumentException("Unsupported HashScheme " + hashScheme);
+            }
+        } catch (IOException | UncheckedIOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+    
+    private static byte[] hashFlat(FileChannel fileChannel, LongConsumer throttle) throws IOException {
+        final MessageDigest messageDigest = Util.getMessageDigestInstance();
+        if (messageDigest == null) {
+            return null;
+        }
+        update(messageDigest::update, fileChannel, 0, fileChannel.size(), throttle);
+        return messageDigest.digest();
+    }
+    
+    private static byte[] hashTree(FileChannel fileChannel, LongConsumer throttle) throws IOException {
+        final long size = fileChannel.size();
+        final int chunks = (int) Math.max(1, (size + TREE_CHUNK_SIZE - 1) / TREE_CHUNK_SIZE);
+        final byte[][] leaves = new byte[chunks][];
+        if (throttle == null) {
+            FORK_JOIN_POOL.invoke(new LeafAction(fileChannel, HashScheme.TREE, leaves, 0, chunks));
+        } else {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                leaves[chunk] = hashLeaf(fileChannel, chunk, throttle);
+            }
+        }
+        final MessageDigest messageDigest = Util.getMessageDigestInstance();
+        if (messageDigest == null) {
+            return null;
+        }
+        messageDigest.update(NODE_PREFIX);
+        for (byte[] leaf : leaves) {
+            if (leaf == null) {
+                return null;
+            }
+            messageDigest.update(leaf);
+        }
+        return messageDigest.digest();
+    }
+    
+    private static byte[] hashLeaf(FileChannel fileChannel, int chunk, LongConsumer throttle) throws IOException {
+        final MessageDigest messageDigest = Util.getMessageDigestInstance();
+        if (messageDigest == null) {
+            return null;
+        }
+        messageDigest.update(LEAF_PREFIX);
+        final long position = (long) chunk * TREE_CHUNK_SIZE;
+        update(messageDigest::update, fileChannel, position, Math.min(TREE_CHUNK_SIZE, fileChannel.size() - position), throttle);
+        return messageDigest.digest();
+    }
+    
+    private static byte[] hashBlake3(FileChannel fileChannel, LongConsumer throttle) throws IOException {
+        final long size = fileChannel.size();
+        final Blake3 blake3 = new Blake3();
+        if (throttle != null) {
+            update(blake3::update, fileChannel, 0, size, throttle);
+            return blake3.digest();
+        }
+        // The last region stays in the hasher, because the root is computed from it
+        final int subtrees = (int) (size <= 0 ? 0 : (size - 1) / TREE_CHUNK_SIZE);
+        final byte[][] chainingValues = new byte[subtrees][];
+        if (subtrees > 0) {
+            FORK_JOIN_POOL.invoke(new LeafAction(fileChannel, HashScheme.BLAKE3, chainingValues, 0, subtrees));
+        }
+        for (byte[] chainingValue : chainingValues) {
+            if (chainingValue == null) {
+                return null;
+            }
+            blake3.appendSubtree(chainingValue, TREE_CHUNK_SIZE / Blake3.CHUNK_LEN);
+        }
+        final long position = (long) subtrees * TREE_CHUNK_SIZE;
+        update(blake3::update, fileChannel, position, size - position, null);
+        return blake3.digest();
+    }
+    
+    private static byte[] hashSubtree(FileChannel fileChannel, int chunk) throws IOException {
+        final long position = (long) chunk * TREE_CHUNK_SIZE;
+        return Blake3.hashSubtree(fileChannel.map(FileChannel.MapMode.READ_ONLY, position, TREE_CHUNK_SIZE), position / Blake3.CHUNK_LEN);
+    }
+    
+    private static void update(Consumer<ByteBuffer> digest, FileChannel fileChannel, long position, long length, LongConsumer throttle) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        if (length < MAPPING_THRESHOLD || throttle != null) {
+            final ByteBuffer byteBuffer = DIRECT_BUFFERS.get();
+            final long end = position + length;
+            while (position < end) {
+                byteBuffer.clear();
+                byteBuffer.limit((int) Math.min(byteBuffer.capacity(), end - position));
+                final int read = fileChannel.read(byteBuffer, position);
+                if (read < 0) {
+                    break;
+                }
+                position += read;
+                byteBuffer.flip();
+                digest.accept(byteBuffer);
+                if (throttle != null) {
+                    throttle.accept(read);
+                }
+            }
+            return;
+        }
+        final long end = position + length;
+        while (position < end) {
+            final long regionSize = Math.min(MAPPED_REGION_SIZE, end - position);
+            final MappedByteBuffer mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+            digest.accept(mappedByteBuffer);
+            position += regionSize;
+        }
+    }
+    
+    private static class LeafAction extends RecursiveAction {
+        
+        private final FileChannel fileChannel;
+        private final HashScheme hashScheme;
+        private final byte[][] leaves;
+        private final int from;
+        private final int to;
+        
+        private LeafAction(FileChannel fileChannel, HashScheme hashScheme, byte[][] leaves, int from, int to) {
+            this.fileChannel = fileChannel;
+            this.hashScheme = hashScheme;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    leaves[from] = hashScheme == HashScheme.BLAKE3 ? hashSubtree(fileChannel, from) : hashLeaf(fileChannel, from, null);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new LeafAction(fileChannel, hashScheme, leaves, from, middle), new LeafAction(fileChannel, hashScheme, leaves, middle, to));
+        }
+        
+    }
+    
+}
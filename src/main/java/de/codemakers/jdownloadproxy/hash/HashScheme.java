@@ -0,0 +1,83 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.hash;
+
+/**
+ * Stored objects are keyed by their digest with the prefix of its scheme (see {@link #toKey(String)}),
+ * so digests of different schemes live in separate key spaces and content crafted to collide across schemes can't replace other content.
+ */
+public enum HashScheme {
+    
+    /**
+     * Plain digest over the whole content (equal to hashing the stream).
+     * Its keys have no prefix, like every key stored before there were schemes.
+     */
+    FLAT(""),
+    /**
+     * Digest over the digests of fixed size chunks, which are hashed in parallel (see {@link HashEngine}).
+     */
+    TREE("t."),
+    /**
+     * {@link Blake3} digest over the whole content, whose subtrees are hashed in parallel (see {@link HashEngine}).
+     * It is not a SHA-256 digest, which gets computed on demand instead.
+     */
+    BLAKE3("b.");
+    
+    /**
+     * Contains a dot, which never occurs in a base64url digest (a colon would not be allowed in file names on every file system).
+     */
+    private final String keyPrefix;
+    
+    HashScheme(String keyPrefix) {
+        this.keyPrefix = keyPrefix;
+    }
+    
+    /**
+     * @param digest The base64url encoded digest
+     *
+     * @return The key an object with this digest is stored under
+     */
+    public String toKey(String digest) {
+        return keyPrefix + digest;
+    }
+    
+    /**
+     * @return The scheme the key was made with, which is {@link #FLAT} for keys without a prefix
+     */
+    public static HashScheme ofKey(String key) {
+        for (HashScheme hashScheme : values()) {
+            if (!hashScheme.keyPrefix.isEmpty() && key.startsWith(hashScheme.keyPrefix)) {
+                return hashScheme;
+            }
+        }
+        return FLAT;
+    }
+    
+    public static HashScheme of(String name, HashScheme defaultValue) {
+        if (name == null || name.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.printf("[WARNING][%s#of] Unknown HashScheme \"%s\"%n", HashScheme.class.getSimpleName(), name);
+            return defaultValue;
+        }
+    }
+    
+}
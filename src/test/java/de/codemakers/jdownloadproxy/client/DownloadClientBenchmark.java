@@ -0,0 +1,168 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.client;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micronaut.context.ApplicationContext;
+import io.micronaut.runtime.server.EmbeddedServer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+
+/**
+ * Measures the {@link DownloadClient} against the embedded server, which caches files from a local origin.
+ * <p>
+ * Only runs with "-Dbenchmark=true" (e.g. {@code ./gradlew benchmark}), the size of the big file is set with "-Dbenchmark.size" (in bytes).
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class DownloadClientBenchmark {
+    
+    private static final int SIZE = Integer.getInteger("benchmark.size", 64 * 1024 * 1024);
+    private static final int SMALL_SIZE = 16 * 1024;
+    private static final int SMALL_FILES = 200;
+    private static final int RUNS = 5;
+    
+    private static HttpServer origin;
+    private static EmbeddedServer server;
+    private static URI serverUri;
+    private static String originUrl;
+    private static UUID uuid;
+    
+    @BeforeAll
+    public static void start() throws IOException {
+        final byte[] data = new byte[SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        origin = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        origin.setExecutor(Executors.newCachedThreadPool());
+        origin.createContext("/", (httpExchange) -> {
+            try (final OutputStream outputStream = httpExchange.getResponseBody()) {
+                // The HttpServer closes kept-alive connections after some responses without saying so, which makes the client reuse closed connections
+                httpExchange.getResponseHeaders().set("Connection", "close");
+                final int length = httpExchange.getRequestURI().getPath().startsWith("/small/") ? SMALL_SIZE : data.length;
+                httpExchange.sendResponseHeaders(200, length);
+                outputStream.write(data, 0, length);
+            }
+        });
+        origin.start();
+        originUrl = "http://127.0.0.1:" + origin.getAddress().getPort();
+        server = ApplicationContext.run(EmbeddedServer.class, Collections.singletonMap("micronaut.server.port", -1));
+        serverUri = server.getURI();
+        try (final DownloadClient downloadClient = new DownloadClient(serverUri)) {
+            uuid = downloadClient.add(new URL(originUrl + "/big"), true, null);
+            Assertions.assertTrue(downloadClient.await(uuid, 300_000).isFinished());
+        }
+    }
+    
+    @AfterAll
+    public static void stop() {
+        if (server != null) {
+            server.stop();
+        }
+        if (origin != null) {
+            origin.stop(0);
+        }
+    }
+    
+    @Test
+    public void benchmarkGet() throws IOException {
+        final Path path = Files.createTempFile("DownloadClientBenchmark", ".bin");
+        try {
+            for (int connections : new int[] {1, 2, 4, 8}) {
+                try (final DownloadClient downloadClient = new DownloadClient(serverUri, connections, Math.max(1024 * 1024, SIZE / 16), DownloadClient.DEFAULT_MAX_ATTEMPTS, DownloadClient.DEFAULT_RETRY_DELAY, DownloadClient.DEFAULT_TIMEOUT)) {
+                    report("get to file, " + connections + " connections", SIZE, measure(() -> downloadClient.get(uuid, path)));
+                }
+            }
+            try (final DownloadClient downloadClient = new DownloadClient(serverUri)) {
+                report("get to channel, sequential", SIZE, measure(() -> downloadClient.get(uuid, Channels.newChannel(OutputStream.nullOutputStream()))));
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+    
+    @Test
+    public void benchmarkAdd() throws IOException {
+        try (final DownloadClient downloadClient = new DownloadClient(serverUri)) {
+            final List<URL> urls = new ArrayList<>();
+            for (int i = 0; i < SMALL_FILES; i++) {
+                urls.add(new URL(originUrl + "/small/" + i));
+            }
+            final List<UUID> uuids = new ArrayList<>();
+            long started = System.nanoTime();
+            for (URL url : urls) {
+                uuids.add(downloadClient.add(url, true, null));
+            }
+            System.out.printf("[INFO ][%s#benchmarkAdd] add, one request per URL: %d URLs in %.1f ms%n", getClass().getSimpleName(), urls.size(), (System.nanoTime() - started) / 1_000_000.0);
+            started = System.nanoTime();
+            final List<DownloadClient.AddResult> addResults = downloadClient.addAll(urls, true, null);
+            System.out.printf("[INFO ][%s#benchmarkAdd] addAll, one request: %d URLs in %.1f ms%n", getClass().getSimpleName(), urls.size(), (System.nanoTime() - started) / 1_000_000.0);
+            addResults.stream().filter(DownloadClient.AddResult::isAdded).map(DownloadClient.AddResult::getUuid).forEach(uuids::add);
+            for (UUID uuid : uuids) {
+                Assertions.assertTrue(downloadClient.await(uuid, 60_000).isDone());
+            }
+        }
+    }
+    
+    /**
+     * @return Nanoseconds of every run (after one warmup run)
+     */
+    private static long[] measure(Run run) throws IOException {
+        run.run();
+        final long[] nanos = new long[RUNS];
+        for (int i = 0; i < RUNS; i++) {
+            final long started = System.nanoTime();
+            run.run();
+            nanos[i] = System.nanoTime() - started;
+        }
+        return nanos;
+    }
+    
+    private static void report(String name, long bytes, long[] nanos) {
+        Arrays.sort(nanos);
+        final long median = nanos[nanos.length / 2];
+        System.out.printf("[INFO ][%s#report] %s: median %.1f ms, %.1f MiB/s (min %.1f ms, max %.1f ms)%n", DownloadClientBenchmark.class.getSimpleName(), name, median / 1_000_000.0, bytes / 1024.0 / 1024.0 / (median / 1_000_000_000.0), nanos[0] / 1_000_000.0, nanos[nanos.length - 1] / 1_000_000.0);
+    }
+    
+    private interface Run {
+        
+        void run() throws IOException;
+        
+    }
+    
+}
@@ -0,0 +1,235 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DownloadClientTest {
+    
+    private static final UUID UUID_FINISHED = UUID.randomUUID();
+    
+    private final byte[] data = createData(1_000_000);
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final AtomicInteger cuts = new AtomicInteger();
+    private volatile boolean ignoreRanges = false;
+    private volatile String hashSha256Base64;
+    private ExecutorService executorService;
+    private HttpServer httpServer;
+    private DownloadClient downloadClient;
+    
+    @BeforeEach
+    public void startServer() throws Exception {
+        hashSha256Base64 = Base64.getUrlEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(data));
+        executorService = Executors.newCachedThreadPool();
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.setExecutor(executorService);
+        httpServer.createContext("/download/", (httpExchange) -> {
+            try {
+                handle(httpExchange);
+            } finally {
+                httpExchange.close();
+            }
+        });
+        httpServer.start();
+        downloadClient = new DownloadClient(URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort()), 3, 100_000, 5, 10, Duration.ofSeconds(10));
+    }
+    
+    @AfterEach
+    public void stopServer() {
+        downloadClient.close();
+        httpServer.stop(0);
+        executorService.shutdownNow();
+    }
+    
+    @Test
+    public void testAddStatusRemove() throws IOException {
+        final UUID uuid = downloadClient.add(new URL("http://example.com/a.bin"));
+        Assertions.assertEquals(UUID_FINISHED, uuid);
+        final DownloadClient.ResponseException responseException = Assertions.assertThrows(DownloadClient.ResponseException.class, () -> downloadClient.add(new URL("http://example.com/reject")));
+        Assertions.assertEquals(429, responseException.getStatus());
+        Assertions.assertEquals(7, responseException.getRetryAfterSeconds());
+        final List<DownloadClient.AddResult> addResults = downloadClient.addAll(Arrays.asList(new URL("http://example.com/a.bin"), new URL("http://example.com/reject")));
+        Assertions.assertEquals(2, addResults.size());
+        Assertions.assertEquals(UUID_FINISHED, addResults.get(0).getUuid());
+        Assertions.assertFalse(addResults.get(1).isAdded());
+        Assertions.assertEquals(429, addResults.get(1).getStatus());
+        final DownloadClient.Status status = downloadClient.await(uuid, 1000);
+        Assertions.assertTrue(status.isFinished());
+        Assertions.assertEquals(data.length, status.getTotalBytes());
+        Assertions.assertEquals(hashSha256Base64, status.getHashSha256Base64());
+        Assertions.assertNull(downloadClient.status(UUID.randomUUID()));
+        Assertions.assertTrue(downloadClient.remove(uuid, true));
+    }
+    
+    @Test
+    public void testParallelGetResumes() throws IOException {
+        cuts.set(4);
+        final Path path = Files.createTempFile("DownloadClientTest", ".bin");
+        try {
+            Files.write(path, new byte[data.length * 2]);
+            downloadClient.get(UUID_FINISHED, path);
+            Assertions.assertArrayEquals(data, Files.readAllBytes(path));
+            Assertions.assertTrue(cuts.get() <= 0);
+            // 10 parts plus the resumed ones
+            Assertions.assertTrue(ranges.size() >= 14, ranges::toString);
+            Assertions.assertTrue(ranges.contains("bytes=900000-999999"), ranges::toString);
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+    
+    @Test
+    public void testSequentialGetResumes() throws IOException {
+        cuts.set(2);
+        hashSha256Base64 = null;
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        downloadClient.get(UUID_FINISHED, Channels.newChannel(byteArrayOutputStream));
+        Assertions.assertArrayEquals(data, byteArrayOutputStream.toByteArray());
+        Assertions.assertEquals(2, ranges.size(), ranges::toString);
+    }
+    
+    @Test
+    public void testIgnoredRanges() throws IOException {
+        cuts.set(1);
+        ignoreRanges = true;
+        final Path path = Files.createTempFile("DownloadClientTest", ".bin");
+        try {
+            downloadClient.get(UUID_FINISHED, path);
+            Assertions.assertArrayEquals(data, Files.readAllBytes(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+    
+    @Test
+    public void testHashMismatch() throws IOException {
+        hashSha256Base64 = Base64.getUrlEncoder().encodeToString(new byte[32]);
+        final Path path = Files.createTempFile("DownloadClientTest", ".bin");
+        Assertions.assertThrows(DownloadClient.HashMismatchException.class, () -> downloadClient.get(UUID_FINISHED, path));
+        Assertions.assertFalse(Files.exists(path));
+        Assertions.assertThrows(FileNotFoundException.class, () -> downloadClient.get(UUID.randomUUID(), path));
+    }
+    
+    /**
+     * Serves one finished download the way the "/download" endpoints do, the first {@link #cuts} responses of "/get" end after half of their bytes.
+     */
+    private void handle(HttpExchange httpExchange) throws IOException {
+        // The HttpServer closes kept-alive connections after some responses without saying so, which makes the client reuse closed connections
+        httpExchange.getResponseHeaders().set("Connection", "close");
+        final String path = httpExchange.getRequestURI().getPath().substring("/download/".length());
+        final String query = httpExchange.getRequestURI().getQuery() == null ? "" : httpExchange.getRequestURI().getQuery();
+        final boolean known = path.endsWith("/" + UUID_FINISHED);
+        if (path.equals("add") && httpExchange.getRequestMethod().equals("POST")) {
+            final StringBuilder stringBuilder = new StringBuilder("[");
+            for (String url : new String(httpExchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+                stringBuilder.append(stringBuilder.length() > 1 ? "," : "").append(url.contains("reject") ? String.format("{\"url\":\"%s\",\"status\":429,\"error\":\"Queue is full\"}", url) : String.format("{\"url\":\"%s\",\"status\":200,\"uuid\":\"%s\"}", url, UUID_FINISHED));
+            }
+            send(httpExchange, 200, stringBuilder.append("]").toString());
+        } else if (path.equals("add")) {
+            if (query.contains("reject")) {
+                httpExchange.getResponseHeaders().set("Retry-After", "7");
+                send(httpExchange, 429, "Queue is full");
+            } else {
+                send(httpExchange, 200, UUID_FINISHED.toString());
+            }
+        } else if (!known) {
+            httpExchange.sendResponseHeaders(404, -1);
+        } else if (path.startsWith("status/")) {
+            send(httpExchange, 200, String.format("{\"uuid\":\"%s\",\"status\":\"FINISHED\",\"done\":true,\"hash_sha256_base64\":%s,\"totalBytes\":\"%d\",\"receivedBytes\":\"%d\"}", UUID_FINISHED, hashSha256Base64 == null ? "null" : "\"" + hashSha256Base64 + "\"", data.length, data.length));
+        } else if (path.startsWith("sha256/")) {
+            send(httpExchange, 200, String.format("{\"uuid\":\"%s\",\"hash_sha256_base64\":\"%s\"}", UUID_FINISHED, Base64.getUrlEncoder().encodeToString(sha256(data))));
+        } else if (path.startsWith("remove/")) {
+            send(httpExchange, 200, "{\"removed\": true, \"deleted\": true}");
+        } else if (path.startsWith("get/")) {
+            int first = 0;
+            int last = data.length - 1;
+            final String range = httpExchange.getRequestHeaders().getFirst("Range");
+            if (range != null && !ignoreRanges) {
+                ranges.add(range);
+                final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                first = Integer.parseInt(bounds[0]);
+                last = bounds[1].isEmpty() ? data.length - 1 : Math.min(data.length - 1, Integer.parseInt(bounds[1]));
+                httpExchange.getResponseHeaders().set("Content-Range", "bytes " + first + "-" + last + "/" + data.length);
+            }
+            final int length = last - first + 1;
+            httpExchange.sendResponseHeaders(range != null && !ignoreRanges ? 206 : 200, length);
+            try (final OutputStream outputStream = httpExchange.getResponseBody()) {
+                if (cuts.getAndDecrement() > 0) {
+                    outputStream.write(data, first, length / 2);
+                    outputStream.flush();
+                    // Closing the exchange with bytes missing drops the connection
+                    return;
+                }
+                outputStream.write(data, first, length);
+            }
+        } else {
+            httpExchange.sendResponseHeaders(404, -1);
+        }
+    }
+    
+    private static void send(HttpExchange httpExchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        httpExchange.sendResponseHeaders(status, bytes.length);
+        httpExchange.getResponseBody().write(bytes);
+    }
+    
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (Exception ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return data;
+    }
+    
+}
@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+public class AdmissionControlTest {
+    
+    private static final long FREE_SPACE = AdmissionControl.MIN_FREE_SPACE + 1000;
+    
+    @Test
+    public void testAdmitted() {
+        Assertions.assertNull(AdmissionControl.admit(-1, Downloader.PRIORITY_NORMAL, false, 0, 0, FREE_SPACE, 0));
+        Assertions.assertNull(AdmissionControl.admit(1000, Downloader.PRIORITY_NORMAL, false, AdmissionControl.MAX_QUEUED - 1, AdmissionControl.MAX_QUEUED - 1, FREE_SPACE, 0));
+    }
+    
+    @Test
+    public void testQueueFull() {
+        final AdmissionControl.Rejection rejection = AdmissionControl.admit(-1, Downloader.PRIORITY_NORMAL, false, AdmissionControl.MAX_QUEUED, AdmissionControl.MAX_QUEUED, FREE_SPACE, 0);
+        Assertions.assertNotNull(rejection);
+        Assertions.assertEquals(429, rejection.getStatus());
+        Assertions.assertEquals(AdmissionControl.RETRY_AFTER_QUEUE, rejection.getRetryAfter());
+        Assertions.assertEquals(5, rejection.getRetryAfterSeconds());
+    }
+    
+    @Test
+    public void testTooManyActive() {
+        // Running and retrying downloads count as well, even if the queue is empty
+        final AdmissionControl.Rejection rejection = AdmissionControl.admit(-1, Downloader.PRIORITY_NORMAL, false, 0, AdmissionControl.MAX_ACTIVE, FREE_SPACE, 0);
+        Assertions.assertNotNull(rejection);
+        Assertions.assertEquals(429, rejection.getStatus());
+        Assertions.assertNull(AdmissionControl.admit(-1, Downloader.PRIORITY_NORMAL, false, 0, AdmissionControl.MAX_ACTIVE - 1, FREE_SPACE, 0));
+    }
+    
+    @Test
+    public void testLowPriorityBudget() {
+        Assertions.assertTrue(AdmissionControl.MAX_QUEUED_LOW < AdmissionControl.MAX_QUEUED);
+        Assertions.assertTrue(AdmissionControl.MAX_ACTIVE_LOW < AdmissionControl.MAX_ACTIVE);
+        Assertions.assertNull(AdmissionControl.admit(-1, Downloader.PRIORITY_LOW, false, AdmissionControl.MAX_QUEUED_LOW - 1, AdmissionControl.MAX_QUEUED_LOW - 1, FREE_SPACE, 0));
+        // Prefetching stops at its own budget, where client requests are still admitted
+        Assertions.assertEquals(429, AdmissionControl.admit(-1, Downloader.PRIORITY_LOW, false, AdmissionControl.MAX_QUEUED_LOW, AdmissionControl.MAX_QUEUED_LOW, FREE_SPACE, 0).getStatus());
+        Assertions.assertNull(AdmissionControl.admit(-1, Downloader.PRIORITY_NORMAL, false, AdmissionControl.MAX_QUEUED_LOW, AdmissionControl.MAX_QUEUED_LOW, FREE_SPACE, 0));
+        Assertions.assertEquals(429, AdmissionControl.admit(-1, Downloader.PRIORITY_LOW, false, 0, AdmissionControl.MAX_ACTIVE_LOW, FREE_SPACE, 0).getStatus());
+        Assertions.assertNull(AdmissionControl.admit(-1, Downloader.PRIORITY_NORMAL, false, 0, AdmissionControl.MAX_ACTIVE_LOW, FREE_SPACE, 0));
+    }
+    
+    @Test
+    public void testDiskFull() {
+        // The expected size and the pending bytes of other downloads count against the free space
+        final AdmissionControl.Rejection rejection = AdmissionControl.admit(1001, Downloader.PRIORITY_NORMAL, false, 0, 0, FREE_SPACE, 0);
+        Assertions.assertNotNull(rejection);
+        Assertions.assertEquals(503, rejection.getStatus());
+        Assertions.assertEquals(60, rejection.getRetryAfterSeconds());
+        Assertions.assertEquals(503, AdmissionControl.admit(-1, Downloader.PRIORITY_NORMAL, false, 0, 0, FREE_SPACE, 1001).getStatus());
+        // A full queue is reported first, the client should slow down rather than go elsewhere
+        Assertions.assertEquals(429, AdmissionControl.admit(1001, Downloader.PRIORITY_NORMAL, false, AdmissionControl.MAX_QUEUED, AdmissionControl.MAX_QUEUED, FREE_SPACE, 0).getStatus());
+    }
+    
+    @Test
+    public void testDraining() {
+        final AdmissionControl.Rejection rejection = AdmissionControl.admit(-1, Downloader.PRIORITY_NORMAL, true, 0, 0, FREE_SPACE, 0);
+        Assertions.assertNotNull(rejection);
+        Assertions.assertEquals(503, rejection.getStatus());
+        Assertions.assertEquals(AdmissionControl.RETRY_AFTER_QUEUE, rejection.getRetryAfter());
+    }
+    
+    @Test
+    public void testRetryAfterSeconds() {
+        Assertions.assertEquals(1, new AdmissionControl.Rejection(429, 0, null).getRetryAfterSeconds());
+        Assertions.assertEquals(1, new AdmissionControl.Rejection(429, 1, null).getRetryAfterSeconds());
+        Assertions.assertEquals(1, new AdmissionControl.Rejection(429, 1000, null).getRetryAfterSeconds());
+        Assertions.assertEquals(2, new AdmissionControl.Rejection(429, 1001, null).getRetryAfterSeconds());
+    }
+    
+}
@@ -0,0 +1,237 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+public class ArchiveWriterTest {
+    
+    private static final int BLOCK_SIZE = 512;
+    
+    @Test
+    public void testZip() throws IOException {
+        final Map<String, byte[]> files = createFiles();
+        final List<String> hashes = new ArrayList<>();
+        try {
+            final List<ArchiveWriter.Entry> entries = ArchiveWriter.resolveEntries(store(files, hashes));
+            Assertions.assertEquals(files.size(), entries.size());
+            final Map<String, byte[]> read = new LinkedHashMap<>();
+            try (final ZipInputStream zipInputStream = new ZipInputStream(ArchiveWriter.open(entries, ArchiveWriter.Format.ZIP), StandardCharsets.UTF_8)) {
+                ZipEntry zipEntry;
+                while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                    read.put(zipEntry.getName(), zipInputStream.readAllBytes());
+                }
+            }
+            assertFiles(files, read);
+        } finally {
+            remove(hashes);
+        }
+    }
+    
+    @Test
+    public void testTar() throws IOException {
+        final Map<String, byte[]> files = createFiles();
+        final List<String> hashes = new ArrayList<>();
+        try {
+            final List<ArchiveWriter.Entry> entries = ArchiveWriter.resolveEntries(store(files, hashes));
+            final Map<String, byte[]> read = new LinkedHashMap<>();
+            try (final DataInputStream dataInputStream = new DataInputStream(ArchiveWriter.open(entries, ArchiveWriter.Format.TAR))) {
+                Map<String, String> records = new HashMap<>();
+                while (true) {
+                    final byte[] header = new byte[BLOCK_SIZE];
+                    dataInputStream.readFully(header);
+                    if (isZero(header)) {
+                        // The end of the archive is marked by two empty blocks
+                        dataInputStream.readFully(header);
+                        Assertions.assertTrue(isZero(header));
+                        break;
+                    }
+                    assertChecksum(header);
+                    Assertions.assertEquals("ustar\u000000", new String(header, 257, 8, StandardCharsets.US_ASCII));
+                    final byte[] data = readData(dataInputStream, parseOctal(header, 124, 12));
+                    if (header[156] == 'x') {
+                        records = parsePaxRecords(data);
+                        continue;
+                    }
+                    Assertions.assertEquals('0', header[156]);
+                    final String name = records.getOrDefault("path", parseName(header));
+                    read.put(name, data);
+                    records = new HashMap<>();
+                }
+                Assertions.assertEquals(-1, dataInputStream.read());
+            }
+            assertFiles(files, read);
+        } finally {
+            remove(hashes);
+        }
+    }
+    
+    @Test
+    public void testTarPaxRecords() throws IOException {
+        final String name = "pax-" + "x".repeat(200) + ".bin";
+        final long size = ArchiveWriter.TarOutputStream.MAX_OCTAL_SIZE + 1;
+        final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        // Only the headers, the data of such an entry would be too large for a test
+        new ArchiveWriter.TarOutputStream(byteArrayOutputStream).putNextEntry(name, size, 0);
+        final byte[] bytes = byteArrayOutputStream.toByteArray();
+        final byte[] paxHeader = Arrays.copyOfRange(bytes, 0, BLOCK_SIZE);
+        assertChecksum(paxHeader);
+        Assertions.assertEquals('x', paxHeader[156]);
+        final int paxLength = (int) parseOctal(paxHeader, 124, 12);
+        final Map<String, String> records = parsePaxRecords(Arrays.copyOfRange(bytes, BLOCK_SIZE, BLOCK_SIZE + paxLength));
+        Assertions.assertEquals(name, records.get("path"));
+        Assertions.assertEquals(String.valueOf(size), records.get("size"));
+        final int offset = BLOCK_SIZE + (paxLength + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        Assertions.assertEquals(offset + BLOCK_SIZE, bytes.length);
+        final byte[] header = Arrays.copyOfRange(bytes, offset, offset + BLOCK_SIZE);
+        assertChecksum(header);
+        Assertions.assertEquals('0', header[156]);
+        Assertions.assertEquals(ArchiveWriter.TarOutputStream.MAX_OCTAL_SIZE, parseOctal(header, 124, 12));
+        Assertions.assertEquals(name.substring(0, 100), parseName(header));
+    }
+    
+    private static Map<String, byte[]> createFiles() {
+        // Random, so no earlier run left the same content behind
+        final Random random = new Random();
+        final Map<String, byte[]> files = new LinkedHashMap<>();
+        for (String name : new String[] {"archive-" + UUID.randomUUID() + ".txt", "archive-" + "y".repeat(120) + ".bin", "empty.txt"}) {
+            final byte[] data = new byte[name.equals("empty.txt") ? 0 : 1000 + random.nextInt(2000)];
+            random.nextBytes(data);
+            files.put(name, data);
+        }
+        return files;
+    }
+    
+    private static List<String> store(Map<String, byte[]> files, List<String> hashes) throws IOException {
+        final List<String> urls = new ArrayList<>();
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            final URL url = new URL("http://example.com/archive/" + UUID.randomUUID());
+            final File tempFile = Downloader.createTempFileForUUID(UUID.randomUUID());
+            tempFile.getParentFile().mkdirs();
+            Files.write(tempFile.toPath(), file.getValue());
+            hashes.add(Downloader.handleFile(url, tempFile, file.getKey(), false).getValue());
+            urls.add(url.toString());
+        }
+        return urls;
+    }
+    
+    private static void remove(List<String> hashes) throws IOException {
+        for (String hash : hashes) {
+            Downloader.removeHash(hash);
+            Downloader.STORAGE.delete(hash);
+        }
+    }
+    
+    private static void assertFiles(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+        Assertions.assertEquals(new ArrayList<>(expected.keySet()), new ArrayList<>(actual.keySet()));
+        for (Map.Entry<String, byte[]> file : expected.entrySet()) {
+            Assertions.assertArrayEquals(file.getValue(), actual.get(file.getKey()), file.getKey());
+        }
+    }
+    
+    private static void assertChecksum(byte[] header) {
+        long checksum = 0;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            // The checksum field counts as spaces
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xFF;
+        }
+        Assertions.assertEquals(checksum, parseOctal(header, 148, 8));
+    }
+    
+    private static long parseOctal(byte[] header, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length && header[i] >= '0' && header[i] <= '7'; i++) {
+            value = value * 8 + (header[i] - '0');
+        }
+        return value;
+    }
+    
+    private static String parseName(byte[] header) {
+        int length = 0;
+        while (length < 100 && header[length] != 0) {
+            length++;
+        }
+        return new String(header, 0, length, StandardCharsets.UTF_8);
+    }
+    
+    private static byte[] readData(InputStream inputStream, long size) throws IOException {
+        final byte[] data = inputStream.readNBytes((int) size);
+        Assertions.assertEquals(size, data.length);
+        // Entries are padded to whole blocks
+        final int remainder = (int) (size % BLOCK_SIZE);
+        if (remainder != 0) {
+            Assertions.assertTrue(isZero(inputStream.readNBytes(BLOCK_SIZE - remainder)));
+        }
+        return data;
+    }
+    
+    private static Map<String, String> parsePaxRecords(byte[] data) {
+        final Map<String, String> records = new HashMap<>();
+        int offset = 0;
+        while (offset < data.length) {
+            final int space = indexOf(data, (byte) ' ', offset);
+            final int length = Integer.parseInt(new String(data, offset, space - offset, StandardCharsets.US_ASCII));
+            // The length counts the whole record, including its own digits and the newline
+            Assertions.assertEquals('\n', data[offset + length - 1]);
+            final String record = new String(data, space + 1, offset + length - space - 2, StandardCharsets.UTF_8);
+            final int index = record.indexOf('=');
+            records.put(record.substring(0, index), record.substring(index + 1));
+            offset += length;
+        }
+        return records;
+    }
+    
+    private static int indexOf(byte[] data, byte b, int offset) {
+        for (int i = offset; i < data.length; i++) {
+            if (data[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static boolean isZero(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+}
@@ -0,0 +1,66 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class CacheKeysTest {
+    
+    @Test
+    public void testNormalization() {
+        final List<CacheKeys.Rule> rules = List.of();
+        Assertions.assertEquals("http://example.com/", canonicalize("HTTP://Example.COM:80", rules));
+        Assertions.assertEquals("https://example.com:8443/a/c?x=%2F", canonicalize("https://example.com:8443/a/b/../c?x=%2f#fragment", rules));
+        Assertions.assertEquals("https://user@example.com/file", canonicalize("https://user@example.com:443/file", rules));
+    }
+    
+    @Test
+    public void testRules() {
+        final List<CacheKeys.Rule> rules = createRules("* drop utm_* fbclid", "cdn.example.com sort", "*.amazonaws.com strip-signature", "downloads.example.com keep id");
+        Assertions.assertEquals("https://example.com/f?a=1", canonicalize("https://example.com/f?utm_source=x&a=1&fbclid=y", rules));
+        Assertions.assertEquals("https://example.com/f", canonicalize("https://example.com/f?UTM_Medium=x", rules));
+        Assertions.assertEquals("https://cdn.example.com/f?a=1&b=2&b=1", canonicalize("https://cdn.example.com/f?b=2&a=1&b=1", rules));
+        Assertions.assertEquals("https://bucket.s3.amazonaws.com/f?versionId=3", canonicalize("https://bucket.s3.amazonaws.com/f?X-Amz-Signature=abc&versionId=3&X-Amz-Expires=60", rules));
+        Assertions.assertEquals("https://downloads.example.com/get?id=7", canonicalize("https://downloads.example.com/get?session=1&id=7&token=2", rules));
+        // Rules only apply to their hosts
+        Assertions.assertEquals("https://example.org/f?b=2&a=1&X-Amz-Signature=abc", canonicalize("https://example.org/f?b=2&a=1&X-Amz-Signature=abc", rules));
+    }
+    
+    @Test
+    public void testInvalidRules() {
+        Assertions.assertNull(CacheKeys.Rule.parse("example.com"));
+        Assertions.assertNull(CacheKeys.Rule.parse("example.com rename a"));
+        Assertions.assertNull(CacheKeys.Rule.parse("example.com drop"));
+        Assertions.assertEquals("*.example.com strip-signature token", CacheKeys.Rule.parse("*.Example.com  STRIP-SIGNATURE token").toString());
+    }
+    
+    private static List<CacheKeys.Rule> createRules(String... lines) {
+        return Stream.of(lines).map(CacheKeys.Rule::parse).collect(Collectors.toList());
+    }
+    
+    private static String canonicalize(String uri, List<CacheKeys.Rule> rules) {
+        return CacheKeys.canonicalize(URI.create(uri), rules);
+    }
+    
+}
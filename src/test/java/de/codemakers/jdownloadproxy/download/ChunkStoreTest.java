@@ -0,0 +1,135 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Util;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class ChunkStoreTest {
+    
+    @Test
+    public void testPlacedOnVolume() throws IOException {
+        final byte[] data = createData(10_000);
+        final String chunkHash = Util.base64URLencodeToString(Util.hashStream(new ByteArrayInputStream(data)));
+        final String hash = "chunks" + UUID.randomUUID();
+        final File file = createFile(data);
+        try {
+            final File manifestFile = ChunkStore.store(file, hash);
+            final File chunkFile = ChunkStore.findChunk(chunkHash);
+            Assertions.assertNotNull(chunkFile);
+            Assertions.assertNotNull(StorageVolumes.getVolume(chunkFile.getParentFile().getParentFile()));
+            try (final InputStream inputStream = ChunkStore.open(manifestFile)) {
+                Assertions.assertArrayEquals(data, inputStream.readAllBytes());
+            }
+            Assertions.assertTrue(ChunkStore.delete(manifestFile));
+            Assertions.assertNull(ChunkStore.findChunk(chunkHash));
+        } finally {
+            ChunkStore.delete(ChunkStore.getManifestFile(hash));
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testCorruptChunkFailsRead() throws IOException {
+        final byte[] data = createData(10_000);
+        final String chunkHash = Util.base64URLencodeToString(Util.hashStream(new ByteArrayInputStream(data)));
+        final String hash = "chunks" + UUID.randomUUID();
+        final File file = createFile(data);
+        try {
+            final File manifestFile = ChunkStore.store(file, hash);
+            try (final RandomAccessFile randomAccessFile = new RandomAccessFile(ChunkStore.findChunk(chunkHash), "rw")) {
+                randomAccessFile.seek(data.length / 2);
+                randomAccessFile.write(data[data.length / 2] ^ 0xFF);
+            }
+            try (final InputStream inputStream = ChunkStore.open(manifestFile)) {
+                Assertions.assertThrows(IOException.class, inputStream::readAllBytes);
+            }
+        } finally {
+            ChunkStore.delete(ChunkStore.getManifestFile(hash));
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testConcurrentStoreAndDelete() throws Exception {
+        final int files = 16;
+        // Every file shares the same chunk, which must only be deleted with the last manifest
+        final byte[] data = createData(10_000);
+        final String chunkHash = Util.base64URLencodeToString(Util.hashStream(new ByteArrayInputStream(data)));
+        final File file = createFile(data);
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newFixedThreadPool(files);
+        final List<Future<File>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < files; i++) {
+                final String hash = "chunks" + UUID.randomUUID();
+                futures.add(executorService.submit(() -> {
+                    countDownLatch.await();
+                    final File manifestFile = ChunkStore.store(file, hash);
+                    try (final InputStream inputStream = ChunkStore.open(manifestFile)) {
+                        Assertions.assertArrayEquals(data, inputStream.readAllBytes());
+                    }
+                    return manifestFile;
+                }));
+            }
+            countDownLatch.countDown();
+            final List<File> manifestFiles = new ArrayList<>();
+            for (Future<File> future : futures) {
+                manifestFiles.add(future.get());
+            }
+            for (int i = 0; i < manifestFiles.size(); i++) {
+                Assertions.assertNotNull(ChunkStore.findChunk(chunkHash));
+                Assertions.assertTrue(ChunkStore.delete(manifestFiles.get(i)));
+            }
+            Assertions.assertNull(ChunkStore.findChunk(chunkHash));
+        } finally {
+            executorService.shutdownNow();
+            file.delete();
+        }
+    }
+    
+    private static byte[] createData(int size) {
+        // Random, so no earlier run left the same content behind
+        final byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+    
+    private static File createFile(byte[] data) throws IOException {
+        final File file = File.createTempFile("chunks", ".tmp");
+        Files.write(file.toPath(), data);
+        return file;
+    }
+    
+}
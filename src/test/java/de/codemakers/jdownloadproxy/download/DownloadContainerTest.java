@@ -0,0 +1,170 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DownloadContainerTest {
+    
+    private static final int CHUNK_SIZE = 1024;
+    private static final int CHUNKS = 10_000;
+    
+    @Test
+    public void testCancelLastSubscriberInterruptsTransfer() throws Exception {
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final HttpServer httpServer = createTricklingServer(0, new CountDownLatch(1), disconnected);
+        DownloadContainer downloadContainer = null;
+        try {
+            final URL url = new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/cancelled");
+            downloadContainer = Downloader.createDownloadContainer(url, false);
+            Downloader.startDownloadContainerAsync(downloadContainer);
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (downloadContainer.getDownloadInfo().getReceivedBytes() <= 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assertions.assertTrue(downloadContainer.getDownloadInfo().getReceivedBytes() > 0);
+            Assertions.assertSame(downloadContainer, Downloader.joinDownloadContainer(url));
+            Assertions.assertEquals(2, downloadContainer.getSubscribers());
+            // The other subscriber still wants it
+            Assertions.assertFalse(downloadContainer.cancel(false));
+            Assertions.assertEquals(1, downloadContainer.getSubscribers());
+            Assertions.assertEquals(DownloadStatus.DOWNLOADING, downloadContainer.getDownloadInfo().getDownloadStatus());
+            Assertions.assertTrue(downloadContainer.cancel(false));
+            awaitDone(downloadContainer);
+            Assertions.assertEquals(DownloadStatus.CANCELLED, downloadContainer.getDownloadInfo().getDownloadStatus());
+            Assertions.assertTrue(downloadContainer.getDownloadInfo().getReceivedBytes() < (long) CHUNK_SIZE * CHUNKS);
+            // The origin connection is dropped instead of being read to the end
+            Assertions.assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            Assertions.assertFalse(Downloader.createTempFileForUUID(downloadContainer.getDownloadInfo().getUuid()).exists());
+            // Cancelled downloads are not joined anymore
+            Assertions.assertNull(Downloader.joinDownloadContainer(url));
+        } finally {
+            if (downloadContainer != null) {
+                Downloader.removeDownloadContainer(downloadContainer.getDownloadInfo().getUuid());
+            }
+            httpServer.stop(0);
+        }
+    }
+    
+    @Test
+    public void testCancelIsIdempotentPerSubscriber() throws Exception {
+        final HttpServer httpServer = createTricklingServer(0, new CountDownLatch(1), new CountDownLatch(1));
+        DownloadContainer downloadContainer = null;
+        try {
+            final URL url = new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/shared");
+            downloadContainer = Downloader.createDownloadContainer(url, false);
+            Downloader.startDownloadContainerAsync(downloadContainer);
+            final UUID subscription = UUID.randomUUID();
+            final UUID subscription_ = UUID.randomUUID();
+            Assertions.assertSame(downloadContainer, Downloader.joinDownloadContainer(url, subscription));
+            Assertions.assertSame(downloadContainer, Downloader.joinDownloadContainer(url, subscription_));
+            Assertions.assertEquals(3, downloadContainer.getSubscribers());
+            // A retried cancel of the same client only drops it once
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertFalse(downloadContainer.cancel(subscription, false));
+                Assertions.assertEquals(2, downloadContainer.getSubscribers());
+            }
+            Assertions.assertFalse(downloadContainer.cancel(UUID.randomUUID(), false));
+            Assertions.assertEquals(2, downloadContainer.getSubscribers());
+            // Without a subscription any client is dropped, every time
+            Assertions.assertFalse(downloadContainer.cancel(false));
+            Assertions.assertEquals(1, downloadContainer.getSubscribers());
+            Assertions.assertFalse(downloadContainer.getDownloadInfo().isDone());
+            // Either the creator or the other client is left
+            Assertions.assertTrue(downloadContainer.cancel(downloadContainer.getSubscription(), false) || downloadContainer.cancel(subscription_, false));
+            awaitDone(downloadContainer);
+            Assertions.assertEquals(DownloadStatus.CANCELLED, downloadContainer.getDownloadInfo().getDownloadStatus());
+            Assertions.assertFalse(downloadContainer.cancel(subscription_, false));
+        } finally {
+            if (downloadContainer != null) {
+                Downloader.removeDownloadContainer(downloadContainer.getDownloadInfo().getUuid());
+            }
+            httpServer.stop(0);
+        }
+    }
+    
+    @Test
+    public void testCancelWhileWaitingForHeaders() throws Exception {
+        final CountDownLatch requested = new CountDownLatch(1);
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        final HttpServer httpServer = createTricklingServer(500, requested, disconnected);
+        DownloadContainer downloadContainer = null;
+        try {
+            final URL url = new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/cancelled");
+            downloadContainer = Downloader.createDownloadContainer(url, false);
+            Downloader.startDownloadContainerAsync(downloadContainer);
+            Assertions.assertTrue(requested.await(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(downloadContainer.cancel(false));
+            awaitDone(downloadContainer);
+            Assertions.assertEquals(DownloadStatus.CANCELLED, downloadContainer.getDownloadInfo().getDownloadStatus());
+            // The response, which arrives after the cancellation, is not left open
+            Assertions.assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+        } finally {
+            if (downloadContainer != null) {
+                Downloader.removeDownloadContainer(downloadContainer.getDownloadInfo().getUuid());
+            }
+            httpServer.stop(0);
+        }
+    }
+    
+    /**
+     * Trickles the body after the header delay, so the download is still running when it gets cancelled.
+     */
+    private static HttpServer createTricklingServer(long headerDelay, CountDownLatch requested, CountDownLatch disconnected) throws IOException {
+        final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", (httpExchange) -> {
+            requested.countDown();
+            try {
+                Thread.sleep(headerDelay);
+                httpExchange.getResponseHeaders().set("Connection", "close");
+                httpExchange.sendResponseHeaders(200, (long) CHUNK_SIZE * CHUNKS);
+                try (final OutputStream outputStream = httpExchange.getResponseBody()) {
+                    final byte[] chunk = new byte[CHUNK_SIZE];
+                    for (int i = 0; i < CHUNKS; i++) {
+                        outputStream.write(chunk);
+                        outputStream.flush();
+                        Thread.sleep(10);
+                    }
+                }
+            } catch (IOException | InterruptedException ex) {
+                disconnected.countDown();
+            }
+        });
+        httpServer.start();
+        return httpServer;
+    }
+    
+    private static void awaitDone(DownloadContainer downloadContainer) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5_000;
+        while (!downloadContainer.getDownloadInfo().isDone() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+    }
+    
+}
@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class HotTierTest {
+    
+    @Test
+    public void testAdmitAndInvalidate() throws Exception {
+        final byte[] data = createData(1000);
+        final StoredObject storedObject = new StoredObject("hot" + UUID.randomUUID(), data.length, System.currentTimeMillis(), null);
+        final long bytes = getBytes();
+        final ByteBuffer byteBuffer = HotTier.admit(storedObject, data.length, HotTier.MIN_HITS, () -> new ByteArrayInputStream(data));
+        Assertions.assertNotNull(byteBuffer);
+        final byte[] read = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(read);
+        Assertions.assertArrayEquals(data, read);
+        Assertions.assertEquals(bytes + data.length, getBytes());
+        HotTier.invalidate(storedObject.getKey());
+        Assertions.assertEquals(bytes, getBytes());
+    }
+    
+    @Test
+    public void testInvalidateWhileLoading() throws Exception {
+        final byte[] data = createData(1000);
+        final StoredObject storedObject = new StoredObject("hot" + UUID.randomUUID(), data.length, System.currentTimeMillis(), null);
+        final long bytes = getBytes();
+        final int entries = getEntries();
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch invalidated = new CountDownLatch(1);
+        // Blocks the load after it reserved its space, until the file got invalidated
+        final CompletableFuture<ByteBuffer> future = CompletableFuture.supplyAsync(() -> HotTier.admit(storedObject, data.length, HotTier.MIN_HITS, () -> {
+            reading.countDown();
+            Assertions.assertTrue(invalidated.await(10, TimeUnit.SECONDS));
+            return new ByteArrayInputStream(data);
+        }));
+        Assertions.assertTrue(reading.await(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(bytes + data.length, getBytes());
+        // A second request while loading reads from disk instead of loading it again
+        Assertions.assertNull(HotTier.admit(storedObject, data.length, HotTier.MIN_HITS, () -> {
+            throw new AssertionError("Loaded twice");
+        }));
+        HotTier.invalidate(storedObject.getKey());
+        invalidated.countDown();
+        // The stale content must neither be served nor stay in memory
+        Assertions.assertNull(future.get(10, TimeUnit.SECONDS));
+        Assertions.assertEquals(bytes, getBytes());
+        Assertions.assertEquals(entries, getEntries());
+        // Once the invalidation is handled, the file can be admitted again
+        Assertions.assertNotNull(HotTier.admit(storedObject, data.length, HotTier.MIN_HITS, () -> new ByteArrayInputStream(data)));
+        HotTier.invalidate(storedObject.getKey());
+        Assertions.assertEquals(bytes, getBytes());
+    }
+    
+    @Test
+    public void testFailedLoadReleasesSpace() {
+        final StoredObject storedObject = new StoredObject("hot" + UUID.randomUUID(), 1000, System.currentTimeMillis(), null);
+        final long bytes = getBytes();
+        Assertions.assertNull(HotTier.admit(storedObject, 1000, HotTier.MIN_HITS, () -> {
+            throw new IOException("Gone");
+        }));
+        // A file which is shorter than its recorded length is not admitted either
+        Assertions.assertNull(HotTier.admit(storedObject, 1000, HotTier.MIN_HITS, () -> InputStream.nullInputStream()));
+        Assertions.assertEquals(bytes, getBytes());
+    }
+    
+    private static byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+    
+    private static long getBytes() {
+        return (long) HotTier.getStats().get("bytes");
+    }
+    
+    private static int getEntries() {
+        return (int) HotTier.getStats().get("entries");
+    }
+    
+}
@@ -0,0 +1,159 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.hash.HashScheme;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+public class IndexSnapshotTest {
+    
+    @TempDir
+    File folder;
+    
+    @Test
+    public void testRoundTrip() {
+        final Map<String, String> urlHashes = new HashMap<>();
+        final Map<String, String> urlFilenames = new HashMap<>();
+        final Map<String, HashScheme> hashSchemes = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            urlHashes.put("http://example.com/" + i + (i % 7 == 0 ? "/\u00E4" : ""), "hash" + (i % 100));
+            if (i % 3 == 0) {
+                urlFilenames.put("http://example.com/" + i + (i % 7 == 0 ? "/\u00E4" : ""), "file" + i);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            hashSchemes.put("hash" + i, i % 2 == 0 ? HashScheme.FLAT : HashScheme.TREE);
+        }
+        final File file = new File(folder, "index.bin");
+        Assertions.assertTrue(IndexSnapshot.write(file, urlHashes, urlFilenames, hashSchemes));
+        final IndexSnapshot indexSnapshot = IndexSnapshot.open(file);
+        Assertions.assertNotNull(indexSnapshot);
+        Assertions.assertTrue(indexSnapshot.verify());
+        final SnapshotMap<String> urlHashes_ = new SnapshotMap<>();
+        final SnapshotMap<String> urlFilenames_ = new SnapshotMap<>();
+        final SnapshotMap<HashScheme> hashSchemes_ = new SnapshotMap<>();
+        urlHashes_.setBase(indexSnapshot.getUrlHashes());
+        urlFilenames_.setBase(indexSnapshot.getUrlFilenames());
+        hashSchemes_.setBase(indexSnapshot.getHashSchemes());
+        Assertions.assertEquals(urlHashes, new HashMap<>(urlHashes_));
+        Assertions.assertEquals(urlFilenames, new HashMap<>(urlFilenames_));
+        Assertions.assertEquals(hashSchemes, new HashMap<>(hashSchemes_));
+        urlHashes.forEach((key, value) -> Assertions.assertEquals(value, urlHashes_.get(key)));
+        Assertions.assertEquals("file0", urlFilenames_.get("http://example.com/0/\u00E4"));
+        Assertions.assertNull(urlFilenames_.get("http://example.com/1"));
+        Assertions.assertFalse(urlFilenames_.containsKey("http://example.com/1"));
+        Assertions.assertNull(urlHashes_.get("http://example.com/1000"));
+        Assertions.assertEquals(HashScheme.TREE, hashSchemes_.get("hash99"));
+    }
+    
+    @Test
+    public void testOverlay() {
+        final File file = new File(folder, "index.bin");
+        Assertions.assertTrue(IndexSnapshot.write(file, Map.of("a", "1", "b", "2", "c", "3"), Map.of("a", "x"), Map.of()));
+        final SnapshotMap<String> snapshotMap = new SnapshotMap<>();
+        snapshotMap.setBase(IndexSnapshot.open(file).getUrlHashes());
+        Assertions.assertEquals(3, snapshotMap.size());
+        Assertions.assertEquals("1", snapshotMap.put("a", "4"));
+        Assertions.assertEquals("4", snapshotMap.get("a"));
+        Assertions.assertEquals("2", snapshotMap.remove("b"));
+        Assertions.assertNull(snapshotMap.get("b"));
+        Assertions.assertFalse(snapshotMap.remove("c", "1"));
+        Assertions.assertTrue(snapshotMap.remove("c", "3"));
+        Assertions.assertNull(snapshotMap.putIfAbsent("d", "5"));
+        Assertions.assertEquals("5", snapshotMap.putIfAbsent("d", "6"));
+        Assertions.assertNull(snapshotMap.putIfAbsent("b", "7"));
+        Assertions.assertEquals(Map.of("a", "4", "b", "7", "d", "5"), new HashMap<>(snapshotMap));
+        Assertions.assertEquals(3, snapshotMap.size());
+        snapshotMap.keySet().removeIf("a"::equals);
+        Assertions.assertEquals(Map.of("b", "7", "d", "5"), new HashMap<>(snapshotMap));
+        // The new entries survive a base change, the removal of "a" only applied to the old base
+        snapshotMap.setBase(null);
+        Assertions.assertEquals(Map.of("b", "7", "d", "5"), new HashMap<>(snapshotMap));
+        snapshotMap.clear();
+        Assertions.assertTrue(snapshotMap.isEmpty());
+    }
+    
+    @Test
+    public void testCorrupted() throws IOException {
+        final File file = new File(folder, "index.bin");
+        Assertions.assertTrue(IndexSnapshot.write(file, Map.of("a", "1"), Map.of(), Map.of()));
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(randomAccessFile.length() - Long.BYTES - 1);
+            randomAccessFile.write('2');
+        }
+        final IndexSnapshot indexSnapshot = IndexSnapshot.open(file);
+        Assertions.assertNotNull(indexSnapshot);
+        Assertions.assertFalse(indexSnapshot.verify());
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(Integer.BYTES * 2);
+        }
+        Assertions.assertNull(IndexSnapshot.open(file));
+    }
+    
+    @Test
+    public void testMigrateSchemeKeys() throws IOException {
+        // Random, so no earlier run left the same content behind
+        final byte[] data = new byte[10_000];
+        new Random().nextBytes(data);
+        final URL url = new URL("http://example.com/legacy/" + UUID.randomUUID());
+        final File tempFile = Downloader.createTempFileForUUID(UUID.randomUUID());
+        tempFile.getParentFile().mkdirs();
+        Files.write(tempFile.toPath(), data);
+        final String hash = Downloader.handleFile(url, tempFile, "legacy", false).getValue();
+        Assertions.assertEquals(HashScheme.FLAT, Downloader.getSchemeForHash(hash));
+        // Pretends the object was stored under its plain TREE digest, like before keys got the prefix of their scheme
+        final String key = HashScheme.TREE.toKey(hash);
+        try {
+            Assertions.assertEquals(1, Downloader.migrateSchemeKeys(Map.of(hash, HashScheme.TREE)));
+            Assertions.assertEquals(key, Downloader.getHashForURL(url));
+            Assertions.assertEquals(HashScheme.TREE, Downloader.getSchemeForHash(key));
+            Assertions.assertNull(Downloader.STORAGE.stat(hash));
+            try (final InputStream inputStream = Downloader.openInputStream(Downloader.getStoredObjectForHash(key))) {
+                Assertions.assertArrayEquals(data, inputStream.readAllBytes());
+            }
+            // The same digest of another scheme is another key, so the TREE object is not reused for FLAT content
+            final long reused = (long) Downloader.getCommitStats().get("reused");
+            final File tempFile_ = Downloader.createTempFileForUUID(UUID.randomUUID());
+            Files.write(tempFile_.toPath(), data);
+            Assertions.assertEquals(hash, Downloader.handleFile(url, tempFile_, "legacy", false).getValue());
+            Assertions.assertEquals(reused, (long) Downloader.getCommitStats().get("reused"));
+            Assertions.assertNotNull(Downloader.STORAGE.stat(key));
+            Assertions.assertEquals(0, Downloader.migrateSchemeKeys(Map.of(key, HashScheme.TREE, hash, HashScheme.FLAT)));
+        } finally {
+            Downloader.removeHash(hash);
+            Downloader.removeHash(key);
+            Downloader.STORAGE.delete(hash);
+            Downloader.STORAGE.delete(key);
+            tempFile.delete();
+        }
+    }
+    
+}
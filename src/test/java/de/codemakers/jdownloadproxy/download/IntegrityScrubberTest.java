@@ -0,0 +1,100 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import de.codemakers.jdownloadproxy.Util;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class IntegrityScrubberTest {
+    
+    @Test
+    public void testCorruptObject() throws IOException {
+        final byte[] data = createData(10_000);
+        final URL url = new URL("http://example.com/scrub/" + UUID.randomUUID());
+        final File tempFile = Downloader.createTempFileForUUID(UUID.randomUUID());
+        tempFile.getParentFile().mkdirs();
+        Files.write(tempFile.toPath(), data);
+        final String hash = Downloader.handleFile(url, tempFile, "scrub", false).getValue();
+        try {
+            final File file = Downloader.STORAGE.stat(hash).getFile();
+            corrupt(file);
+            final long mismatches = (long) IntegrityScrubber.getStatus().get("mismatches");
+            IntegrityScrubber.runPass();
+            Assertions.assertEquals(mismatches + 1, (long) IntegrityScrubber.getStatus().get("mismatches"));
+            Assertions.assertNull(Downloader.STORAGE.stat(hash));
+            Assertions.assertNull(Downloader.getHashForURL(url));
+            Assertions.assertFalse(file.exists());
+        } finally {
+            Downloader.removeHash(hash);
+            Downloader.STORAGE.delete(hash);
+        }
+    }
+    
+    @Test
+    public void testCorruptChunk() throws IOException {
+        final byte[] data = createData(10_000);
+        // Smaller than the minimum chunk size, so it is a single chunk
+        final String chunkHash = Util.base64URLencodeToString(Util.hashStream(new ByteArrayInputStream(data)));
+        final String hash = "scrub" + UUID.randomUUID();
+        final File file = File.createTempFile("scrub", ".tmp");
+        try {
+            Files.write(file.toPath(), data);
+            final File manifestFile = ChunkStore.store(file, hash);
+            Assertions.assertEquals(1, ChunkStore.getHashesUsing(chunkHash).size());
+            corrupt(ChunkStore.findChunk(chunkHash));
+            IntegrityScrubber.runPass();
+            Assertions.assertNull(ChunkStore.findChunk(chunkHash));
+            Assertions.assertFalse(manifestFile.exists());
+            Assertions.assertTrue(ChunkStore.getHashesUsing(chunkHash).isEmpty());
+        } finally {
+            ChunkStore.delete(ChunkStore.getManifestFile(hash));
+            file.delete();
+        }
+    }
+    
+    private static byte[] createData(int size) {
+        // Random, so no earlier run left the same content behind
+        final byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+    
+    /**
+     * Flips a byte and backdates the file, so the scrubber doesn't skip it as still being written.
+     */
+    private static void corrupt(File file) throws IOException {
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            final int value = randomAccessFile.read();
+            randomAccessFile.seek(0);
+            randomAccessFile.write(value ^ 0xFF);
+        }
+        Assertions.assertTrue(file.setLastModified(System.currentTimeMillis() - IntegrityScrubber.MIN_AGE - TimeUnit.MINUTES.toMillis(1)));
+    }
+    
+}
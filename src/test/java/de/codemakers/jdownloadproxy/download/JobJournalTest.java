@@ -0,0 +1,140 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+public class JobJournalTest {
+    
+    @Test
+    public void testRoundTrip() throws IOException {
+        final DownloadContainer resumable = new DownloadContainer(UUID.randomUUID(), new URL("http://example.com/resumable?a=1&b=2"));
+        resumable.setForceDownload(true).setPriority(5).setValidator("\"etag-1\"");
+        resumable.getDownloadInfo().setAttempts(2).setReceivedBytes(123456);
+        final DownloadContainer fresh = new DownloadContainer(UUID.randomUUID(), new URL("http://example.com/fresh"));
+        fresh.getDownloadInfo().setReceivedBytes(-1);
+        final DownloadContainer finished = new DownloadContainer(UUID.randomUUID(), new URL("http://example.com/finished"));
+        finished.getDownloadInfo().setDownloadStatus(DownloadStatus.FINISHED);
+        final String journal = JobJournal.createJournal(Arrays.asList(resumable, fresh, finished));
+        final List<JobJournal.Job> jobs = JobJournal.readJournal(Arrays.asList(journal.split("\n")));
+        // Finished downloads are not journaled
+        Assertions.assertEquals(2, jobs.size());
+        final JobJournal.Job job = jobs.get(0);
+        Assertions.assertEquals(resumable.getDownloadInfo().getUuid(), job.uuid);
+        Assertions.assertEquals(resumable.getDownloadInfo().getUrl(), job.url);
+        Assertions.assertTrue(job.forceDownload);
+        Assertions.assertEquals(5, job.priority);
+        Assertions.assertEquals(2, job.attempts);
+        Assertions.assertEquals(123456, job.receivedBytes);
+        Assertions.assertEquals("\"etag-1\"", job.validator);
+        final JobJournal.Job job_ = jobs.get(1);
+        Assertions.assertEquals(fresh.getDownloadInfo().getUuid(), job_.uuid);
+        Assertions.assertFalse(job_.forceDownload);
+        Assertions.assertEquals(0, job_.receivedBytes);
+        Assertions.assertNull(job_.validator);
+        // Writing what was read gives the same journal
+        final List<String> lines = new ArrayList<>();
+        jobs.forEach((job__) -> lines.add(job__.toLine()));
+        Assertions.assertEquals(Arrays.asList(journal.split("\n")).subList(1, 3), lines);
+    }
+    
+    @Test
+    public void testSkipsMalformedLines() {
+        final String uuid = UUID.randomUUID().toString();
+        final List<JobJournal.Job> jobs = JobJournal.readJournal(Arrays.asList(
+                "# comment",
+                "",
+                uuid + "\thttp://example.com/a\tfalse\t0\t0\t0\t-",
+                uuid + "\thttp://example.com/b\tfalse\t0\t0",
+                "not-a-uuid\thttp://example.com/c\tfalse\t0\t0\t0\t-",
+                uuid + "\tnot a url\tfalse\t0\t0\t0\t-",
+                uuid + "\thttp://example.com/d\tfalse\tx\t0\t0\t-"
+        ));
+        Assertions.assertEquals(1, jobs.size());
+        Assertions.assertEquals("http://example.com/a", jobs.get(0).url.toString());
+    }
+    
+    @Test
+    public void testCheckpointAndRecover() throws Exception {
+        final byte[] data = new byte[10_000];
+        new Random().nextBytes(data);
+        final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", (httpExchange) -> {
+            httpExchange.getResponseHeaders().set("Connection", "close");
+            httpExchange.sendResponseHeaders(200, data.length);
+            try (final OutputStream outputStream = httpExchange.getResponseBody()) {
+                outputStream.write(data);
+            }
+        });
+        httpServer.start();
+        final UUID uuid = UUID.randomUUID();
+        try {
+            final URL url = new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/recovered");
+            // Registered, but never started, like a download which was still queued when the process died
+            Downloader.createDownloadContainer(uuid, url, false).setPriority(Downloader.PRIORITY_NORMAL + 1).getDownloadInfo().setAttempts(1);
+            JobJournal.checkpoint();
+            final byte[] journal = Files.readAllBytes(JobJournal.JOBS_FILE.toPath());
+            final List<JobJournal.Job> jobs = JobJournal.readJournal(Arrays.asList(new String(journal, StandardCharsets.UTF_8).split("\n")));
+            Assertions.assertTrue(jobs.stream().anyMatch((job) -> job.uuid.equals(uuid) && job.url.equals(url) && job.priority == Downloader.PRIORITY_NORMAL + 1));
+            // Known downloads are not recovered twice
+            Assertions.assertEquals(0, JobJournal.recover());
+            // Holds off the background checkpoints, which would drop the removed download from the journal before it gets recovered
+            synchronized (JobJournal.class) {
+                Downloader.removeDownloadContainer(uuid);
+                // The journal as it was left behind by the dead process
+                Files.write(JobJournal.JOBS_FILE.toPath(), journal);
+                Assertions.assertEquals(1, JobJournal.recover());
+            }
+            final DownloadContainer downloadContainer = Downloader.getDownloadContainer(uuid);
+            Assertions.assertNotNull(downloadContainer);
+            Assertions.assertEquals(Downloader.PRIORITY_NORMAL + 1, downloadContainer.getPriority());
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (!downloadContainer.getDownloadInfo().isDone() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assertions.assertEquals(DownloadStatus.FINISHED, downloadContainer.getDownloadInfo().getDownloadStatus());
+            try (final InputStream inputStream = Downloader.openInputStream(downloadContainer.getStoredObject())) {
+                Assertions.assertArrayEquals(data, inputStream.readAllBytes());
+            }
+        } finally {
+            final DownloadContainer downloadContainer = Downloader.getDownloadContainer(uuid);
+            if (downloadContainer != null) {
+                Downloader.removeHash(downloadContainer.getDownloadInfo().getHash());
+                Downloader.removeDownloadContainer(uuid);
+            }
+            JobJournal.checkpoint();
+            httpServer.stop(0);
+        }
+    }
+    
+}
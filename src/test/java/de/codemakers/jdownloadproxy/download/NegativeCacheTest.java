@@ -0,0 +1,97 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.http.HttpTimeoutException;
+
+public class NegativeCacheTest {
+    
+    @AfterEach
+    public void clear() {
+        NegativeCache.clear();
+    }
+    
+    @Test
+    public void testErrorClasses() {
+        Assertions.assertEquals(NegativeCache.ErrorClass.NOT_FOUND, NegativeCache.ErrorClass.of(new OriginException("Not Found", 404, -1)));
+        Assertions.assertEquals(NegativeCache.ErrorClass.NOT_FOUND, NegativeCache.ErrorClass.of(new OriginException("Gone", 410, -1)));
+        Assertions.assertEquals(NegativeCache.ErrorClass.SERVER_ERROR, NegativeCache.ErrorClass.of(new OriginException("Bad Gateway", 502, -1)));
+        Assertions.assertEquals(NegativeCache.ErrorClass.SERVER_ERROR, NegativeCache.ErrorClass.of(new OriginException("Too Many Requests", 429, -1)));
+        Assertions.assertEquals(NegativeCache.ErrorClass.CLIENT_ERROR, NegativeCache.ErrorClass.of(new OriginException("Forbidden", 403, -1)));
+        Assertions.assertEquals(NegativeCache.ErrorClass.TIMEOUT, NegativeCache.ErrorClass.of(new SocketTimeoutException()));
+        Assertions.assertEquals(NegativeCache.ErrorClass.TIMEOUT, NegativeCache.ErrorClass.of(new HttpTimeoutException("request timed out")));
+        Assertions.assertEquals(NegativeCache.ErrorClass.OTHER, NegativeCache.ErrorClass.of(new FileNotFoundException()));
+    }
+    
+    @Test
+    public void testUnknownHost() throws IOException {
+        // The .invalid TLD never resolves (RFC 6761)
+        final URL url = new URL("http://unknown-host.invalid/file");
+        final IOException ex = Assertions.assertThrows(IOException.class, () -> OriginFetcher.open(url).close());
+        Assertions.assertEquals(NegativeCache.ErrorClass.UNKNOWN_HOST, NegativeCache.ErrorClass.of(ex), ex.toString());
+        NegativeCache.put(url, ex);
+        Assertions.assertEquals(NegativeCache.ErrorClass.UNKNOWN_HOST, NegativeCache.get(url).getErrorClass());
+    }
+    
+    @Test
+    public void testTtl() throws IOException {
+        final URL url = new URL("http://example.com/missing");
+        final long now = System.currentTimeMillis();
+        NegativeCache.put(url, new OriginException("Not Found", 404, -1), now);
+        final NegativeCache.Entry entry = NegativeCache.get(url, now);
+        Assertions.assertNotNull(entry);
+        Assertions.assertEquals(NegativeCache.ErrorClass.NOT_FOUND, entry.getErrorClass());
+        Assertions.assertEquals(now + NegativeCache.ErrorClass.NOT_FOUND.getTtl(), entry.getExpires());
+        Assertions.assertNotNull(NegativeCache.get(url, entry.getExpires() - 1));
+        Assertions.assertNull(NegativeCache.get(url, entry.getExpires()));
+        // Expired entries are dropped on lookup
+        Assertions.assertNull(NegativeCache.get(url, now));
+    }
+    
+    @Test
+    public void testIgnoresFullDisk() throws IOException {
+        final URL url = new URL("http://example.com/big");
+        NegativeCache.put(url, new InsufficientStorageException("Disk full"));
+        Assertions.assertNull(NegativeCache.get(url));
+    }
+    
+    @Test
+    public void testEvictsEldest() throws IOException {
+        for (int i = 0; i < NegativeCache.MAX_ENTRIES + 10; i++) {
+            NegativeCache.put(new URL("http://example.com/" + i), new OriginException("Not Found", 404, -1));
+        }
+        Assertions.assertEquals(NegativeCache.MAX_ENTRIES, NegativeCache.getEntries().size());
+        Assertions.assertNull(NegativeCache.get(new URL("http://example.com/9")));
+        Assertions.assertNotNull(NegativeCache.get(new URL("http://example.com/10")));
+        // A repeated failure moves the URL to the end again
+        NegativeCache.put(new URL("http://example.com/10"), new OriginException("Not Found", 404, -1));
+        NegativeCache.put(new URL("http://example.com/new"), new OriginException("Not Found", 404, -1));
+        Assertions.assertNotNull(NegativeCache.get(new URL("http://example.com/10")));
+        Assertions.assertNull(NegativeCache.get(new URL("http://example.com/11")));
+    }
+    
+}
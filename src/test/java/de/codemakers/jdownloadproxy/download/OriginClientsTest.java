@@ -0,0 +1,111 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class OriginClientsTest {
+    
+    @Test
+    public void testConnectionsAreReused() throws Exception {
+        final Set<Integer> ports = ConcurrentHashMap.newKeySet();
+        // Without "Connection: close", so the connection can be kept alive
+        final HttpServer httpServer = createServer(ports);
+        try {
+            final URL url = new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/reuse");
+            for (int i = 0; i < 5; i++) {
+                try (final OriginFetcher.OriginResponse originResponse = OriginFetcher.open(url)) {
+                    Assertions.assertEquals("/reuse", new String(originResponse.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+                }
+            }
+            Assertions.assertEquals(1, ports.size());
+            final Map<String, Object> stats = getStats(httpServer);
+            Assertions.assertEquals(5L, stats.get("requests"));
+            Assertions.assertEquals(5L, stats.get("http1_responses"));
+            Assertions.assertEquals(0, stats.get("in_flight"));
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+    
+    @Test
+    public void testConnectionsPerHostAreBounded() throws Exception {
+        final HttpServer httpServer = createServer(ConcurrentHashMap.newKeySet());
+        final List<OriginFetcher.OriginResponse> originResponses = new ArrayList<>();
+        try {
+            final URL url = new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/bounded");
+            for (int i = 0; i < OriginClients.MAX_CONNECTIONS_PER_HOST; i++) {
+                originResponses.add(OriginFetcher.open(url));
+            }
+            Assertions.assertEquals(OriginClients.MAX_CONNECTIONS_PER_HOST, getStats(httpServer).get("in_flight"));
+            // Every slot is taken by a body which is still open, so the next request waits for one
+            final CompletableFuture<OriginFetcher.OriginResponse> future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return OriginFetcher.open(url);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            Assertions.assertThrows(TimeoutException.class, () -> future.get(500, TimeUnit.MILLISECONDS));
+            originResponses.remove(0).close();
+            originResponses.add(future.get(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(OriginClients.MAX_CONNECTIONS_PER_HOST, getStats(httpServer).get("peak_in_flight"));
+        } finally {
+            originResponses.forEach(OriginFetcher.OriginResponse::close);
+            httpServer.stop(0);
+        }
+        Assertions.assertEquals(0, getStats(httpServer).get("in_flight"));
+    }
+    
+    private static HttpServer createServer(Set<Integer> ports) throws IOException {
+        final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", (httpExchange) -> {
+            ports.add(httpExchange.getRemoteAddress().getPort());
+            final byte[] body = httpExchange.getRequestURI().getPath().getBytes(StandardCharsets.UTF_8);
+            httpExchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream outputStream = httpExchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        httpServer.start();
+        return httpServer;
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> getStats(HttpServer httpServer) {
+        final Map<String, Object> hosts = (Map<String, Object>) OriginClients.getStats().get("hosts");
+        return (Map<String, Object>) hosts.get("http://127.0.0.1:" + httpServer.getAddress().getPort());
+    }
+    
+}
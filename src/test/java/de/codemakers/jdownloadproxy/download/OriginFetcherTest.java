@@ -0,0 +1,143 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class OriginFetcherTest {
+    
+    @Test
+    public void testEquivalentURLs() throws IOException {
+        final String id = UUID.randomUUID().toString();
+        final List<String> prefixes = List.of("http://a-" + id + ".example/dist/", "http://b-" + id + ".example/pub/dist/", "http://c-" + id + ".example/");
+        Assertions.assertTrue(MirrorGroups.addGroup(prefixes));
+        final String hash = "mirrors" + UUID.randomUUID();
+        try {
+            final URL url = new URL(prefixes.get(1) + "file.txt");
+            final List<URL> urls = MirrorGroups.getEquivalentURLs(url);
+            Assertions.assertEquals(3, urls.size());
+            Assertions.assertEquals(url.toString(), urls.get(0).toString());
+            Assertions.assertEquals(prefixes.get(0) + "file.txt", urls.get(1).toString());
+            Assertions.assertEquals(prefixes.get(2) + "file.txt", urls.get(2).toString());
+            Assertions.assertEquals(List.of(new URL("http://d-" + id + ".example/dist/file.txt")), MirrorGroups.getEquivalentURLs(new URL("http://d-" + id + ".example/dist/file.txt")));
+            // A finished download is found under every mirror
+            Downloader.indexEquivalentURLs(url, hash, "file.txt");
+            for (URL url_ : urls) {
+                Assertions.assertEquals(hash, Downloader.getHashForURL(url_));
+            }
+        } finally {
+            Downloader.removeHash(hash);
+            Assertions.assertTrue(MirrorGroups.removeGroup(MirrorGroups.getGroups().indexOf(prefixes)));
+        }
+    }
+    
+    @Test
+    public void testSlowOriginIsHedged() throws Exception {
+        final HttpServer slowServer = createServer("slow", OriginFetcher.HEDGE_DELAY * 4, 200);
+        final HttpServer fastServer = createServer("fast", 0, 200);
+        try {
+            final long hedgesStarted = OriginFetcher.getHedgesStarted();
+            final long hedgesWon = OriginFetcher.getHedgesWon();
+            final long started = System.currentTimeMillis();
+            try (final OriginFetcher.OriginResponse originResponse = OriginFetcher.openHedged(List.of(createURL(slowServer), createURL(fastServer)))) {
+                Assertions.assertEquals(createURL(fastServer).toString(), originResponse.getUrl().toString());
+                Assertions.assertEquals("fast", new String(originResponse.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+            }
+            Assertions.assertTrue(System.currentTimeMillis() - started < OriginFetcher.HEDGE_DELAY * 4);
+            // The slow origin hasn't answered yet
+            Assertions.assertEquals(1, getInFlight(slowServer));
+            Assertions.assertEquals(hedgesStarted + 1, OriginFetcher.getHedgesStarted());
+            Assertions.assertEquals(hedgesWon + 1, OriginFetcher.getHedgesWon());
+            // The losing request gets closed once it answers, which gives its connection slot back
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (getInFlight(slowServer) != 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            Assertions.assertEquals(0, getInFlight(slowServer));
+            Assertions.assertEquals(0, getInFlight(fastServer));
+        } finally {
+            slowServer.stop(0);
+            fastServer.stop(0);
+        }
+    }
+    
+    @Test
+    public void testFailedOriginIsHedgedRightAway() throws Exception {
+        final HttpServer failingServer = createServer("failing", 0, 503);
+        final HttpServer server = createServer("ok", 0, 200);
+        try {
+            final long started = System.currentTimeMillis();
+            try (final OriginFetcher.OriginResponse originResponse = OriginFetcher.openHedged(List.of(createURL(failingServer), createURL(server)))) {
+                Assertions.assertEquals(createURL(server).toString(), originResponse.getUrl().toString());
+                Assertions.assertEquals("ok", new String(originResponse.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+            }
+            // Without waiting for the hedge delay
+            Assertions.assertTrue(System.currentTimeMillis() - started < OriginFetcher.HEDGE_DELAY + 1000);
+            // Once every mirror failed, the last failure is thrown
+            final OriginException originException = Assertions.assertThrows(OriginException.class, () -> OriginFetcher.openHedged(List.of(createURL(failingServer), createURL(failingServer))));
+            Assertions.assertEquals(503, originException.getResponseCode());
+        } finally {
+            failingServer.stop(0);
+            server.stop(0);
+        }
+    }
+    
+    private static HttpServer createServer(String body, long delay, int responseCode) throws IOException {
+        final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", (httpExchange) -> {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            httpExchange.getResponseHeaders().set("Connection", "close");
+            httpExchange.sendResponseHeaders(responseCode, bytes.length);
+            try (final OutputStream outputStream = httpExchange.getResponseBody()) {
+                outputStream.write(bytes);
+            } catch (IOException e) {
+                // The losing request may be gone already
+            }
+        });
+        httpServer.start();
+        return httpServer;
+    }
+    
+    private static URL createURL(HttpServer httpServer) throws IOException {
+        return new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/hedge");
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static int getInFlight(HttpServer httpServer) {
+        final Map<String, Object> hosts = (Map<String, Object>) OriginClients.getStats().get("hosts");
+        final Map<String, Object> stats = (Map<String, Object>) hosts.get("http://127.0.0.1:" + httpServer.getAddress().getPort());
+        return stats == null ? 0 : (int) stats.get("in_flight");
+    }
+    
+}
@@ -0,0 +1,142 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.sun.net.httpserver.HttpServer;
+import de.codemakers.jdownloadproxy.Application;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefetchJobTest {
+    
+    @Test
+    public void testDeferredUrlsAreRetried() throws Exception {
+        final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", (httpExchange) -> {
+            final byte[] body = httpExchange.getRequestURI().getPath().getBytes(StandardCharsets.UTF_8);
+            httpExchange.getResponseHeaders().set("Connection", "close");
+            httpExchange.sendResponseHeaders(200, body.length);
+            try (final OutputStream outputStream = httpExchange.getResponseBody()) {
+                outputStream.write(body);
+            }
+        });
+        httpServer.start();
+        final List<URL> urls = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            urls.add(new URL("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/prefetch-" + UUID.randomUUID()));
+        }
+        final AtomicInteger admissions = new AtomicInteger();
+        // Only the first admission is rejected, like a queue which was full for a moment
+        final PrefetchJob prefetchJob = new PrefetchJob(urls, 0, 0) {
+            @Override
+            protected AdmissionControl.Rejection admit() {
+                if (admissions.getAndIncrement() == 0) {
+                    return new AdmissionControl.Rejection(AdmissionControl.STATUS_TOO_MANY_REQUESTS, 1000, "Queue is full");
+                }
+                return null;
+            }
+        };
+        try {
+            // Registered, but run right here instead of by the schedule
+            Prefetcher.schedule(prefetchJob, Long.MAX_VALUE);
+            prefetchJob.run();
+            Map<String, Object> status = prefetchJob.getStatus();
+            Assertions.assertEquals(3, status.get("deferred"));
+            Assertions.assertEquals(0, ((Object[]) status.get("downloads")).length);
+            // A job without an interval is not done as long as URLs are deferred
+            Assertions.assertEquals(PrefetchJob.State.RUNNING.name(), status.get("state"));
+            final long deadline = System.currentTimeMillis() + 10_000;
+            while (!PrefetchJob.State.DONE.name().equals(prefetchJob.getStatus().get("state")) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            status = prefetchJob.getStatus();
+            Assertions.assertEquals(PrefetchJob.State.DONE.name(), status.get("state"));
+            Assertions.assertEquals(0, status.get("deferred"));
+            Assertions.assertEquals(3, status.get("finished"));
+            for (URL url : urls) {
+                Assertions.assertTrue(Downloader.isFresh(url));
+            }
+        } finally {
+            Prefetcher.removePrefetchJob(prefetchJob.getUuid());
+            for (URL url : urls) {
+                for (DownloadContainer downloadContainer : Downloader.getDownloadContainers(url)) {
+                    Downloader.removeHash(downloadContainer.getDownloadInfo().getHash());
+                    Downloader.removeDownloadContainer(downloadContainer.getDownloadInfo().getUuid());
+                }
+            }
+            httpServer.stop(0);
+        }
+    }
+    
+    @Test
+    public void testManifestFileMustBeInApplicationFolder() throws Exception {
+        final File applicationFolder = Application.APPLICATION_FOLDER.getCanonicalFile();
+        Assertions.assertEquals(new File(applicationFolder, "prefetch.txt"), Prefetcher.getManifestFile(new File("prefetch.txt")));
+        Assertions.assertEquals(new File(applicationFolder, "prefetch.txt"), Prefetcher.getManifestFile(new File(applicationFolder, "prefetch.txt")));
+        Assertions.assertNull(Prefetcher.getManifestFile(new File("/etc/passwd")));
+        Assertions.assertNull(Prefetcher.getManifestFile(new File("../prefetch.txt")));
+        Assertions.assertNull(Prefetcher.getManifestFile(new File("manifests/../../prefetch.txt")));
+        Assertions.assertNull(Prefetcher.getManifestFile(new File(applicationFolder, "../prefetch.txt")));
+        Assertions.assertNull(Prefetcher.getManifestFile(applicationFolder));
+        Assertions.assertNull(Prefetcher.createPrefetchJob(new File("/etc/passwd"), 0, 0));
+    }
+    
+    @Test
+    public void testStatusDoesNotWaitForRun() throws Exception {
+        final PrefetchJob prefetchJob = new PrefetchJob(new ArrayList<>(), 0, 0);
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // Holds the monitor of the job, like a run which is stuck queueing
+        final Thread thread = new Thread(() -> {
+            synchronized (prefetchJob) {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        try {
+            Assertions.assertTrue(locked.await(10, TimeUnit.SECONDS));
+            final Map<String, Object> status = CompletableFuture.supplyAsync(prefetchJob::getStatus).get(10, TimeUnit.SECONDS);
+            Assertions.assertEquals(PrefetchJob.State.SCHEDULED.name(), status.get("state"));
+            Assertions.assertEquals(PrefetchJob.State.SCHEDULED, prefetchJob.getState());
+        } finally {
+            release.countDown();
+            thread.join();
+        }
+    }
+    
+}
@@ -0,0 +1,172 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.time.ZonedDateTime;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.BooleanSupplier;
+
+public class RetentionTest {
+    
+    @Test
+    public void testDeleteAfterRead() throws Exception {
+        // Random, so no earlier run left the same content behind
+        final byte[] data = new byte[100_000];
+        new Random().nextBytes(data);
+        final HttpServer httpServer = createServer(data);
+        DownloadContainer downloadContainer = null;
+        DownloadContainer downloadContainer_ = null;
+        String hash = null;
+        try {
+            final String base = "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/";
+            // Two URLs with the same content share one stored file
+            downloadContainer = download(new URL(base + UUID.randomUUID()));
+            downloadContainer_ = download(new URL(base + UUID.randomUUID()));
+            hash = downloadContainer.getStoredObject().getKey();
+            Assertions.assertEquals(hash, downloadContainer_.getStoredObject().getKey());
+            final URL url = downloadContainer.getDownloadInfo().getUrl();
+            final URL url_ = downloadContainer_.getDownloadInfo().getUrl();
+            readAndDelete(downloadContainer);
+            // Gives a wrong deletion, which would follow the removal of the URL, the time to happen
+            Thread.sleep(200);
+            Assertions.assertNull(Downloader.getHashForURL(url));
+            Assertions.assertEquals(hash, Downloader.getHashForURL(url_));
+            Assertions.assertNotNull(Downloader.STORAGE.stat(hash));
+            // Still answers with a tombstone
+            Assertions.assertNull(Downloader.getDownloadContainer(downloadContainer.getDownloadInfo().getUuid()));
+            Assertions.assertEquals(DownloadStatus.FINISHED, Downloader.getDownloadInfo(downloadContainer.getDownloadInfo().getUuid()).getDownloadStatus());
+            // The live download of the other URL still uses the file, even without an URL pointing to it
+            Assertions.assertFalse(Downloader.removeFile(downloadContainer_.getStoredObject(), url_, true));
+            Assertions.assertNull(Downloader.getHashForURL(url_));
+            Assertions.assertNotNull(Downloader.STORAGE.stat(hash));
+            readAndDelete(downloadContainer_);
+            final StoredObject storedObject = downloadContainer_.getStoredObject();
+            await(() -> !Downloader.isStored(storedObject));
+        } finally {
+            if (downloadContainer != null) {
+                Downloader.removeDownloadContainer(downloadContainer.getDownloadInfo().getUuid());
+            }
+            if (downloadContainer_ != null) {
+                Downloader.removeDownloadContainer(downloadContainer_.getDownloadInfo().getUuid());
+            }
+            if (hash != null) {
+                Downloader.removeHash(hash);
+                Downloader.STORAGE.delete(hash);
+            }
+            httpServer.stop(0);
+        }
+    }
+    
+    @Test
+    public void testExpiry() throws Exception {
+        final URL url = new URL("http://example.com/expired/" + UUID.randomUUID());
+        final DownloadContainer downloadContainer = Downloader.createErroredDownloadContainer(url, "expired");
+        final DownloadContainer downloadContainer_ = Downloader.createErroredDownloadContainer(url, "kept");
+        final UUID uuid = downloadContainer.getDownloadInfo().getUuid();
+        final UUID uuid_ = downloadContainer_.getDownloadInfo().getUuid();
+        try {
+            downloadContainer.getDownloadInfo().setTimestampEnd(ZonedDateTime.now().minusNanos((Downloader.RETENTION_FINISHED_TTL + 60_000) * 1_000_000));
+            Downloader.expireDownloadContainers();
+            Assertions.assertNull(Downloader.getDownloadContainer(uuid));
+            Assertions.assertSame(downloadContainer_, Downloader.getDownloadContainer(uuid_));
+            final DownloadInfo downloadInfo = Downloader.getDownloadInfo(uuid);
+            Assertions.assertEquals(DownloadStatus.ERRORED, downloadInfo.getDownloadStatus());
+            Assertions.assertEquals("expired", downloadInfo.getError());
+            Assertions.assertEquals(2, Downloader.getDownloadInfos(url).size());
+            // Only the live one can still be used
+            Assertions.assertEquals(1, Downloader.getDownloadContainers(url).size());
+            Assertions.assertTrue(Downloader.removeDownloadContainer(uuid_));
+            Assertions.assertFalse(Downloader.removeDownloadContainer(uuid));
+            Assertions.assertNull(Downloader.getDownloadInfo(uuid));
+            Assertions.assertTrue(Downloader.getDownloadInfos(url).isEmpty());
+        } finally {
+            Downloader.removeDownloadContainer(uuid);
+            Downloader.removeDownloadContainer(uuid_);
+        }
+    }
+    
+    @Test
+    public void testTombstoneLimit() throws Exception {
+        final URL url = new URL("http://example.com/tombstones/" + UUID.randomUUID());
+        final DownloadContainer first = Downloader.createErroredDownloadContainer(url, "first");
+        Assertions.assertTrue(Downloader.expireDownloadContainer(first));
+        for (int i = 0; i < Downloader.RETENTION_TOMBSTONES_MAX; i++) {
+            Assertions.assertTrue(Downloader.expireDownloadContainer(Downloader.createErroredDownloadContainer(url, "next")));
+        }
+        // The oldest tombstone got dropped and unindexed, the newest ones still answer
+        Assertions.assertNull(Downloader.getDownloadInfo(first.getDownloadInfo().getUuid()));
+        Assertions.assertEquals(Downloader.RETENTION_TOMBSTONES_MAX, Downloader.getDownloadInfos(url).size());
+        // Unfinished downloads never expire
+        final DownloadContainer queued = Downloader.createDownloadContainer(new URL("http://example.com/queued/" + UUID.randomUUID()), false);
+        try {
+            Assertions.assertFalse(Downloader.expireDownloadContainer(queued));
+        } finally {
+            Downloader.removeDownloadContainer(queued.getDownloadInfo().getUuid());
+        }
+    }
+    
+    private static DownloadContainer download(URL url) throws InterruptedException {
+        final DownloadContainer downloadContainer = Downloader.createDownloadContainer(url, false);
+        Downloader.startDownloadContainerAsync(downloadContainer);
+        await(() -> downloadContainer.getDownloadInfo().isDone());
+        Assertions.assertEquals(DownloadStatus.FINISHED, downloadContainer.getDownloadInfo().getDownloadStatus());
+        return downloadContainer;
+    }
+    
+    /**
+     * The removal runs on the {@link StorageExecutor} after the stream has been read completely.
+     */
+    private static void readAndDelete(DownloadContainer downloadContainer) throws IOException, InterruptedException {
+        try (final InputStream inputStream = Downloader.openInputStream(downloadContainer, true)) {
+            inputStream.readAllBytes();
+        }
+        await(() -> Downloader.getDownloadContainer(downloadContainer.getDownloadInfo().getUuid()) == null && Downloader.getHashForURL(downloadContainer.getDownloadInfo().getUrl()) == null);
+    }
+    
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Assertions.assertTrue(condition.getAsBoolean());
+    }
+    
+    private static HttpServer createServer(byte[] data) throws IOException {
+        final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", (httpExchange) -> {
+            httpExchange.getResponseHeaders().set("Connection", "close");
+            httpExchange.sendResponseHeaders(200, data.length);
+            try (final OutputStream outputStream = httpExchange.getResponseBody()) {
+                outputStream.write(data);
+            }
+        });
+        httpServer.start();
+        return httpServer;
+    }
+    
+}
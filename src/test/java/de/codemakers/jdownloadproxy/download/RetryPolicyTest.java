@@ -0,0 +1,108 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.net.ssl.SSLHandshakeException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.net.http.HttpTimeoutException;
+
+public class RetryPolicyTest {
+    
+    @Test
+    public void testClassification() {
+        Assertions.assertTrue(RetryPolicy.isRetryable(new OriginException("Internal Server Error", 500, -1)));
+        Assertions.assertTrue(RetryPolicy.isRetryable(new OriginException("Service Unavailable", 503, -1)));
+        Assertions.assertTrue(RetryPolicy.isRetryable(new OriginException("Request Timeout", 408, -1)));
+        Assertions.assertTrue(RetryPolicy.isRetryable(new OriginException("Too Many Requests", 429, -1)));
+        Assertions.assertTrue(RetryPolicy.isRetryable(new SocketTimeoutException()));
+        Assertions.assertTrue(RetryPolicy.isRetryable(new ConnectException()));
+        Assertions.assertTrue(RetryPolicy.isRetryable(new EOFException()));
+        Assertions.assertFalse(RetryPolicy.isRetryable(new OriginException("Not Found", 404, -1)));
+        Assertions.assertFalse(RetryPolicy.isRetryable(new OriginException("Forbidden", 403, -1)));
+        Assertions.assertFalse(RetryPolicy.isRetryable(new UnknownHostException()));
+        Assertions.assertFalse(RetryPolicy.isRetryable(new MalformedURLException()));
+        Assertions.assertFalse(RetryPolicy.isRetryable(new InsufficientStorageException("Disk full")));
+        Assertions.assertFalse(RetryPolicy.isRetryable(new IllegalStateException()));
+    }
+    
+    @Test
+    public void testCauseChain() {
+        final ConnectException connectException = new ConnectException();
+        connectException.initCause(new SSLHandshakeException("PKIX path building failed"));
+        Assertions.assertTrue(RetryPolicy.isHandshakeFailure(connectException));
+        Assertions.assertFalse(RetryPolicy.isRetryable(connectException));
+        Assertions.assertTrue(RetryPolicy.isTimeout(new HttpTimeoutException("request timed out")));
+        Assertions.assertTrue(RetryPolicy.isRetryable(new HttpTimeoutException("request timed out")));
+        Assertions.assertTrue(RetryPolicy.isTimeout(new IOException(new SocketTimeoutException())));
+        Assertions.assertFalse(RetryPolicy.isUnknownHost(new ConnectException()));
+    }
+    
+    @Test
+    public void testUnknownHost() {
+        // The .invalid TLD never resolves (RFC 6761)
+        final IOException ex = Assertions.assertThrows(IOException.class, () -> OriginFetcher.open(new URL("http://unknown-host.invalid/file")).close());
+        // Not an UnknownHostException, but a ConnectException caused by an UnresolvedAddressException
+        Assertions.assertTrue(RetryPolicy.isUnknownHost(ex), ex.toString());
+        Assertions.assertFalse(RetryPolicy.isRetryable(ex));
+    }
+    
+    @Test
+    public void testAttempts() {
+        final OriginException originException = new OriginException("Bad Gateway", 502, -1);
+        Assertions.assertTrue(RetryPolicy.shouldRetry(originException, 1));
+        Assertions.assertTrue(RetryPolicy.shouldRetry(originException, RetryPolicy.MAX_ATTEMPTS - 1));
+        Assertions.assertFalse(RetryPolicy.shouldRetry(originException, RetryPolicy.MAX_ATTEMPTS));
+        Assertions.assertFalse(RetryPolicy.shouldRetry(new OriginException("Not Found", 404, -1), 1));
+    }
+    
+    @Test
+    public void testBackoff() {
+        final OriginException originException = new OriginException("Bad Gateway", 502, -1);
+        for (int attempts = 1; attempts <= 40; attempts++) {
+            final long backoff = Math.min(RetryPolicy.MAX_DELAY, RetryPolicy.BASE_DELAY << Math.min(30, attempts - 1));
+            for (int i = 0; i < 100; i++) {
+                final long delay = RetryPolicy.getDelay(originException, attempts);
+                // Only the upper half is randomized
+                Assertions.assertTrue(delay >= backoff / 2 && delay <= backoff, attempts + ": " + delay);
+            }
+        }
+        Assertions.assertTrue(RetryPolicy.getDelay(originException, 40) <= RetryPolicy.MAX_DELAY);
+        Assertions.assertTrue(RetryPolicy.getDelay(originException, 0) <= RetryPolicy.BASE_DELAY);
+    }
+    
+    @Test
+    public void testRetryAfter() {
+        final long retryAfter = RetryPolicy.BASE_DELAY * 10;
+        Assertions.assertEquals(retryAfter, RetryPolicy.getDelay(new OriginException("Service Unavailable", 503, retryAfter), 1));
+        // A shorter Retry-After doesn't cut the backoff short
+        final long delay = RetryPolicy.getDelay(new OriginException("Service Unavailable", 503, 1), 3);
+        Assertions.assertTrue(delay >= RetryPolicy.BASE_DELAY * 2, String.valueOf(delay));
+        // A longer one is capped
+        Assertions.assertEquals(RetryPolicy.MAX_DELAY, RetryPolicy.getDelay(new OriginException("Service Unavailable", 503, RetryPolicy.MAX_DELAY * 10), 1));
+    }
+    
+}
@@ -0,0 +1,203 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+public class StorageBackendTest {
+    
+    @Test
+    public void testMemoryBackend() throws IOException {
+        testBackend(new MemoryBackend());
+    }
+    
+    @Test
+    public void testHttpStorageBackend() throws IOException {
+        final MemoryBackend memoryBackend = new MemoryBackend();
+        final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/store/", (httpExchange) -> {
+            try {
+                handle(memoryBackend, httpExchange);
+            } finally {
+                httpExchange.close();
+            }
+        });
+        httpServer.start();
+        try {
+            testBackend(new HttpStorageBackend(URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/store")));
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+    
+    @Test
+    public void testSlowUpload() throws IOException {
+        final MemoryBackend memoryBackend = new MemoryBackend();
+        final HttpServer httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Reads about 2 MiB/s, so a 4 MiB upload takes about 2 seconds
+        httpServer.createContext("/store/", (httpExchange) -> {
+            try (final InputStream inputStream = httpExchange.getRequestBody()) {
+                final byte[] buffer = new byte[64 * 1024];
+                final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                final long started = System.currentTimeMillis();
+                int read;
+                while ((read = inputStream.read(buffer)) >= 0) {
+                    outputStream.write(buffer, 0, read);
+                    Thread.sleep(Math.max(0, started + outputStream.size() * 1000L / (2 * 1024 * 1024) - System.currentTimeMillis()));
+                }
+                memoryBackend.put(httpExchange.getRequestURI().getPath().substring("/store/".length()), new ByteArrayInputStream(outputStream.toByteArray()), outputStream.size());
+                httpExchange.getResponseHeaders().set("Connection", "close");
+                httpExchange.sendResponseHeaders(201, -1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                httpExchange.close();
+            }
+        });
+        httpServer.start();
+        final File file = File.createTempFile("upload", ".bin");
+        try {
+            final byte[] data = createData(4 * 1024 * 1024);
+            Files.write(file.toPath(), data);
+            final URI uri = URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/store");
+            // The timeout of 500 ms alone is too short for the upload, but it gets another second per MiB
+            final HttpStorageBackend httpStorageBackend = new HttpStorageBackend(uri, 500, 1024 * 1024);
+            Assertions.assertEquals(4500, httpStorageBackend.getUploadTimeout(data.length));
+            Assertions.assertEquals(-1, httpStorageBackend.getUploadTimeout(-1));
+            httpStorageBackend.put("slow", file);
+            Assertions.assertArrayEquals(data, readAll(memoryBackend.get("slow", 0, -1)));
+            // Without the time per Byte it times out
+            Assertions.assertThrows(HttpTimeoutException.class, () -> new HttpStorageBackend(uri, 500, Long.MAX_VALUE).put("too-slow", file));
+        } finally {
+            file.delete();
+            httpServer.stop(0);
+        }
+    }
+    
+    private static void testBackend(StorageBackend storageBackend) throws IOException {
+        final byte[] data = createData(100_000);
+        Assertions.assertNull(storageBackend.stat("a"));
+        Assertions.assertThrows(FileNotFoundException.class, () -> storageBackend.get("a", 0, -1).close());
+        storageBackend.put("a", new ByteArrayInputStream(data), data.length);
+        storageBackend.put("b-c_d", new ByteArrayInputStream(new byte[0]), 0);
+        final StoredObject storedObject = storageBackend.stat("a");
+        Assertions.assertNotNull(storedObject);
+        Assertions.assertEquals(data.length, storedObject.getLength());
+        Assertions.assertTrue(storedObject.getLastModified() > 0);
+        Assertions.assertEquals(0, storageBackend.stat("b-c_d").getLength());
+        Assertions.assertArrayEquals(data, readAll(storageBackend.get("a", 0, -1)));
+        Assertions.assertArrayEquals(Arrays.copyOfRange(data, 1000, 3000), readAll(storageBackend.get("a", 1000, 2000)));
+        Assertions.assertArrayEquals(Arrays.copyOfRange(data, 99_000, data.length), readAll(storageBackend.get("a", 99_000, -1)));
+        Assertions.assertEquals(2, storageBackend.list().size());
+        Assertions.assertTrue(storageBackend.list().containsAll(Arrays.asList("a", "b-c_d")));
+        Assertions.assertTrue(storageBackend.delete("a"));
+        Assertions.assertFalse(storageBackend.delete("a"));
+        Assertions.assertNull(storageBackend.stat("a"));
+        Assertions.assertEquals(Arrays.asList("b-c_d"), storageBackend.list());
+    }
+    
+    /**
+     * Serves the memory backend the way {@link HttpStorageBackend} expects an object store to.
+     */
+    private static void handle(MemoryBackend memoryBackend, HttpExchange httpExchange) throws IOException {
+        // The HttpServer closes kept-alive connections after some responses without saying so, which makes the client reuse closed connections
+        httpExchange.getResponseHeaders().set("Connection", "close");
+        final String key = URLDecoder.decode(httpExchange.getRequestURI().getRawPath().substring("/store/".length()), StandardCharsets.UTF_8);
+        switch (httpExchange.getRequestMethod()) {
+            case "PUT":
+                memoryBackend.put(key, httpExchange.getRequestBody(), -1);
+                httpExchange.sendResponseHeaders(201, -1);
+                return;
+            case "DELETE":
+                httpExchange.sendResponseHeaders(memoryBackend.delete(key) ? 204 : 404, -1);
+                return;
+            case "HEAD":
+            case "GET":
+                break;
+            default:
+                httpExchange.sendResponseHeaders(405, -1);
+                return;
+        }
+        if (key.isEmpty()) {
+            final byte[] body = String.join("\n", memoryBackend.list()).getBytes(StandardCharsets.UTF_8);
+            httpExchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
+            httpExchange.getResponseBody().write(body);
+            return;
+        }
+        final StoredObject storedObject = memoryBackend.stat(key);
+        if (storedObject == null) {
+            httpExchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        httpExchange.getResponseHeaders().set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(storedObject.getLastModified()).atZone(ZoneOffset.UTC)));
+        if (httpExchange.getRequestMethod().equals("HEAD")) {
+            httpExchange.getResponseHeaders().set("Content-Length", String.valueOf(storedObject.getLength()));
+            httpExchange.sendResponseHeaders(200, -1);
+            return;
+        }
+        long offset = 0;
+        long length = storedObject.getLength();
+        final String range = httpExchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+            offset = Long.parseLong(bounds[0]);
+            length = (bounds[1].isEmpty() ? storedObject.getLength() : Long.parseLong(bounds[1]) + 1) - offset;
+            httpExchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + storedObject.getLength());
+        }
+        httpExchange.sendResponseHeaders(range == null ? 200 : 206, length == 0 ? -1 : length);
+        try (final InputStream inputStream = memoryBackend.get(key, offset, length); final OutputStream outputStream = httpExchange.getResponseBody()) {
+            inputStream.transferTo(outputStream);
+        }
+    }
+    
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        try (inputStream) {
+            return inputStream.readAllBytes();
+        }
+    }
+    
+    private static byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + (i >> 8));
+        }
+        return data;
+    }
+    
+}
@@ -0,0 +1,134 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+public class StorageVolumesTest {
+    
+    private static final int PLACEMENTS = 20_000;
+    
+    @Test
+    public void testPlacementFollowsWeights() throws IOException {
+        final File folder = Files.createTempDirectory("volumes").toFile();
+        final List<StorageVolumes.Volume> volumes = StorageVolumes.parseVolumes(String.format("%1$s/a=1, %1$s/b=1, %1$s/c=2", folder.getAbsolutePath()));
+        Assertions.assertEquals(3, volumes.size());
+        Assertions.assertEquals(2.0, volumes.get(2).getWeight());
+        volumes.forEach(StorageVolumes.Volume::probe);
+        final Map<StorageVolumes.Volume, Integer> placements = new HashMap<>();
+        for (int i = 0; i < PLACEMENTS; i++) {
+            placements.merge(StorageVolumes.place(volumes, UUID.randomUUID()), 1, Integer::sum);
+        }
+        // A quarter, a quarter and a half, give or take a few percent
+        Assertions.assertEquals(0.25, placements.get(volumes.get(0)) / (double) PLACEMENTS, 0.03);
+        Assertions.assertEquals(0.25, placements.get(volumes.get(1)) / (double) PLACEMENTS, 0.03);
+        Assertions.assertEquals(0.5, placements.get(volumes.get(2)) / (double) PLACEMENTS, 0.03);
+        deleteFolder(folder);
+    }
+    
+    @Test
+    public void testFailedVolumeIsTakenOut() throws IOException {
+        final File folder = Files.createTempDirectory("volumes").toFile();
+        final List<StorageVolumes.Volume> volumes = StorageVolumes.parseVolumes(String.format("%1$s/a=1, %1$s/b=1, %1$s/c=1", folder.getAbsolutePath()));
+        volumes.forEach(StorageVolumes.Volume::probe);
+        final List<UUID> uuids = new ArrayList<>();
+        final Map<UUID, StorageVolumes.Volume> placed = new HashMap<>();
+        for (int i = 0; i < PLACEMENTS / 10; i++) {
+            final UUID uuid = new UUID(new Random().nextLong(), i);
+            uuids.add(uuid);
+            placed.put(uuid, StorageVolumes.place(volumes, uuid));
+        }
+        final StorageVolumes.Volume failed = volumes.get(1);
+        failed.fail(new IOException("Disk gone"));
+        Assertions.assertTrue(failed.isFailed());
+        Assertions.assertFalse(failed.isWritable());
+        for (UUID uuid : uuids) {
+            final StorageVolumes.Volume volume = StorageVolumes.place(volumes, uuid);
+            Assertions.assertNotSame(failed, volume);
+            // Only the downloads of the failed volume move, the others stay where they were
+            if (placed.get(uuid) != failed) {
+                Assertions.assertSame(placed.get(uuid), volume);
+            }
+        }
+        // Once it passes a probe again, it gets its own downloads back
+        failed.probe();
+        Assertions.assertFalse(failed.isFailed());
+        for (UUID uuid : uuids) {
+            Assertions.assertSame(placed.get(uuid), StorageVolumes.place(volumes, uuid));
+        }
+        deleteFolder(folder);
+    }
+    
+    @Test
+    public void testFailedProbe() throws IOException {
+        final File file = File.createTempFile("volume", ".tmp");
+        try {
+            // A file where the folder should be can't be used as a volume
+            final StorageVolumes.Volume volume = StorageVolumes.parseVolumes(file.getAbsolutePath() + "=1").get(0);
+            volume.probe();
+            Assertions.assertTrue(volume.isFailed());
+            Assertions.assertSame(volume, StorageVolumes.place(List.of(volume), UUID.randomUUID()));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testStoredOnVolumeOfTempFile() throws IOException {
+        final byte[] data = new byte[1000];
+        new Random().nextBytes(data);
+        final UUID uuid = UUID.randomUUID();
+        final File tempFile = Downloader.createTempFileForUUID(uuid);
+        Assertions.assertEquals(StorageVolumes.place(uuid).getFolder(), tempFile.getAbsoluteFile().getParentFile());
+        tempFile.getParentFile().mkdirs();
+        Files.write(tempFile.toPath(), data);
+        final String hash = Downloader.handleFile(new URL("http://example.com/volumes/" + uuid), tempFile, "volumes", false).getValue();
+        try {
+            // Committed by a rename, so the stored file is on the same volume
+            final File file = Downloader.STORAGE.stat(hash).getFile();
+            Assertions.assertEquals(tempFile.getAbsoluteFile().getParentFile(), file.getAbsoluteFile().getParentFile());
+            Assertions.assertNotNull(StorageVolumes.getVolume(file));
+        } finally {
+            Downloader.removeHash(hash);
+            Downloader.STORAGE.delete(hash);
+        }
+    }
+    
+    private static void deleteFolder(File folder) {
+        final File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                deleteFolder(file);
+            }
+        }
+        folder.delete();
+    }
+    
+}
@@ -0,0 +1,113 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class StripedLockTest {
+    
+    @Test
+    public void testStripeRounding() {
+        Assertions.assertEquals(1, new StripedLock(-5).getStripes());
+        Assertions.assertEquals(1, new StripedLock(0).getStripes());
+        Assertions.assertEquals(1, new StripedLock(1).getStripes());
+        Assertions.assertEquals(2, new StripedLock(2).getStripes());
+        Assertions.assertEquals(4, new StripedLock(3).getStripes());
+        Assertions.assertEquals(256, new StripedLock(256).getStripes());
+        Assertions.assertEquals(512, new StripedLock(257).getStripes());
+    }
+    
+    @Test
+    public void testSpread() {
+        final StripedLock stripedLock = new StripedLock(16);
+        Assertions.assertSame(stripedLock.get("hash"), stripedLock.get(new String("hash")));
+        final Set<ReentrantLock> locks = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            locks.add(stripedLock.get("hash" + i));
+        }
+        Assertions.assertEquals(16, locks.size());
+    }
+    
+    @Test
+    public void testConcurrentIdenticalCommits() throws Exception {
+        final int commits = 8;
+        // Random, so no earlier run left the same content behind
+        final byte[] data = new byte[100_000];
+        new Random().nextBytes(data);
+        final List<File> tempFiles = new ArrayList<>();
+        for (int i = 0; i < commits; i++) {
+            final File tempFile = Downloader.createTempFileForUUID(UUID.randomUUID());
+            tempFile.getParentFile().mkdirs();
+            Files.write(tempFile.toPath(), data);
+            tempFiles.add(tempFile);
+        }
+        final long reused = (long) Downloader.getCommitStats().get("reused");
+        final CountDownLatch countDownLatch = new CountDownLatch(1);
+        final ExecutorService executorService = Executors.newFixedThreadPool(commits);
+        final List<Future<Map.Entry<StoredObject, String>>> futures = new ArrayList<>();
+        for (int i = 0; i < commits; i++) {
+            final URL url = new URL("http://example.com/identical/" + i);
+            final File tempFile = tempFiles.get(i);
+            futures.add(executorService.submit(() -> {
+                countDownLatch.await();
+                return Downloader.handleFile(url, tempFile, "identical", false);
+            }));
+        }
+        countDownLatch.countDown();
+        final Set<String> hashes = new HashSet<>();
+        try {
+            for (Future<Map.Entry<StoredObject, String>> future : futures) {
+                final Map.Entry<StoredObject, String> entry = future.get();
+                Assertions.assertNotNull(entry);
+                Assertions.assertEquals(data.length, entry.getKey().getLength());
+                hashes.add(entry.getValue());
+            }
+            // Only the first commit stored the content, every other one found it and reused it
+            Assertions.assertEquals(1, hashes.size());
+            Assertions.assertEquals(reused + commits - 1, (long) Downloader.getCommitStats().get("reused"));
+            tempFiles.forEach((tempFile) -> Assertions.assertFalse(tempFile.exists()));
+            final String hash = hashes.iterator().next();
+            try (final InputStream inputStream = Downloader.openInputStream(Downloader.getStoredObjectForHash(hash))) {
+                Assertions.assertArrayEquals(data, inputStream.readAllBytes());
+            }
+        } finally {
+            executorService.shutdownNow();
+            hashes.forEach(Downloader::removeHash);
+            tempFiles.forEach(File::delete);
+        }
+    }
+    
+}
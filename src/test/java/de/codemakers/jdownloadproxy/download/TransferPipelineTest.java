@@ -0,0 +1,143 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+
+package de.codemakers.jdownloadproxy.download;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TransferPipelineTest {
+    
+    @Test
+    public void testTransfer() throws IOException {
+        final byte[] data = createData(3 * 1024 * 1024 + 17);
+        final File file = File.createTempFile("transfer", ".part");
+        try {
+            final AtomicLong progress = new AtomicLong(-1);
+            try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                // Small reads, like from a network connection
+                Assertions.assertEquals(data.length, TransferPipeline.transfer(new TrickleInputStream(new ByteArrayInputStream(data), 1000), fileChannel, 0, data.length, progress::set));
+            }
+            Assertions.assertEquals(data.length, progress.get());
+            Assertions.assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testResumeAndTruncate() throws IOException {
+        final byte[] data = createData(100_000);
+        final File file = File.createTempFile("transfer", ".part");
+        try {
+            Files.write(file.toPath(), Arrays.copyOf(data, 1000));
+            try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                // The origin sends less than it announced, so the extended target is cut back to what arrived
+                Assertions.assertEquals(data.length, TransferPipeline.transfer(new ByteArrayInputStream(data, 1000, data.length - 1000), fileChannel, 1000, data.length + 5000, null));
+            }
+            Assertions.assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testPoolIsBounded() throws Exception {
+        final byte[] data = createData(16 * 1024 * 1024);
+        final List<Thread> threads = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            // Fast sources, so every transfer grows its buffer to the largest size class
+            threads.add(new Thread(() -> {
+                try {
+                    final File file = File.createTempFile("transfer", ".part");
+                    try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                        TransferPipeline.transfer(new ByteArrayInputStream(data), fileChannel, 0, -1, null);
+                    } finally {
+                        file.delete();
+                    }
+                } catch (Throwable ex) {
+                    synchronized (failures) {
+                        failures.add(ex);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assertions.assertEquals(Arrays.asList(), failures);
+        Assertions.assertTrue(TransferPipeline.getPooledBytes() > 0);
+        Assertions.assertTrue(TransferPipeline.getPooledBytes() <= TransferPipeline.MAX_POOLED_BYTES, String.valueOf(TransferPipeline.getPooledBytes()));
+    }
+    
+    @Test
+    public void testInterrupt() throws IOException {
+        final File file = File.createTempFile("transfer", ".part");
+        try (final FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            Thread.currentThread().interrupt();
+            Assertions.assertThrows(ClosedByInterruptException.class, () -> TransferPipeline.transfer(new ByteArrayInputStream(createData(1000)), fileChannel, 0, 1000, null));
+        } finally {
+            // Cleared, so it doesn't leak into other tests
+            Thread.interrupted();
+            file.delete();
+        }
+    }
+    
+    private static byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+    
+    /**
+     * Returns at most the given number of bytes per read.
+     */
+    private static class TrickleInputStream extends FilterInputStream {
+        
+        private final int maxRead;
+        
+        private TrickleInputStream(InputStream inputStream, int maxRead) {
+            super(inputStream);
+            this.maxRead = maxRead;
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            return super.read(bytes, offset, Math.min(length, maxRead));
+        }
+        
+    }
+    
+}
@@ -0,0 +1,144 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.download;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+public class WebhookDispatcherTest {
+    
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final AtomicInteger failures = new AtomicInteger();
+    private HttpServer httpServer;
+    private WebhookDispatcher webhookDispatcher;
+    
+    @BeforeEach
+    public void startReceiver() throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", (httpExchange) -> {
+            try {
+                // The HttpServer closes kept-alive connections after some responses without saying so, which makes the client reuse closed connections
+                httpExchange.getResponseHeaders().set("Connection", "close");
+                final String body = new String(httpExchange.getRequestBody().readAllBytes());
+                if (httpExchange.getRequestURI().getPath().equals("/fail") || failures.getAndDecrement() > 0) {
+                    httpExchange.sendResponseHeaders(503, -1);
+                    return;
+                }
+                received.add(httpExchange.getRequestURI().getPath() + " " + body);
+                httpExchange.sendResponseHeaders(204, -1);
+            } finally {
+                httpExchange.close();
+            }
+        });
+        httpServer.start();
+    }
+    
+    @AfterEach
+    public void stopReceiver() {
+        if (webhookDispatcher != null) {
+            webhookDispatcher.shutdown();
+        }
+        httpServer.stop(0);
+    }
+    
+    @Test
+    public void testBatchesPerHost() throws Exception {
+        webhookDispatcher = new WebhookDispatcher(1, 100, 200, 100, 3, 10, 100, 5000);
+        for (int i = 0; i < 5; i++) {
+            Assertions.assertTrue(webhookDispatcher.dispatch(getCallback("/a"), createDownloadInfo()));
+        }
+        Assertions.assertTrue(webhookDispatcher.dispatch(getCallback("/b"), createDownloadInfo()));
+        // The receiver records a request before it answers, so the dispatcher may not have counted it yet
+        await(() -> (long) webhookDispatcher.getStats().get("delivered") == 6);
+        // One POST per callback URL, both in the same batch of the host
+        Assertions.assertEquals(5, countDownloadInfos("/a"));
+        Assertions.assertEquals(1, countDownloadInfos("/b"));
+        Assertions.assertEquals(2, received.size());
+        Assertions.assertEquals(2L, webhookDispatcher.getStats().get("batches"));
+        final JsonNode downloadInfo = new ObjectMapper().readTree(received.get(0).split(" ", 2)[1]).get(0);
+        Assertions.assertEquals("FINISHED", downloadInfo.get("status").asText());
+        Assertions.assertTrue(downloadInfo.get("done").asBoolean());
+    }
+    
+    @Test
+    public void testRetriesWithBackoff() throws Exception {
+        webhookDispatcher = new WebhookDispatcher(1, 100, 10, 100, 5, 20, 100, 5000);
+        failures.set(2);
+        Assertions.assertTrue(webhookDispatcher.dispatch(getCallback("/a"), createDownloadInfo()));
+        await(() -> (long) webhookDispatcher.getStats().get("delivered") == 1);
+        final Map<String, Object> stats = webhookDispatcher.getStats();
+        Assertions.assertEquals(2L, stats.get("retried"));
+        Assertions.assertEquals(1, received.size());
+        Assertions.assertEquals(0, stats.get("queued"));
+    }
+    
+    @Test
+    public void testGivesUpAndBounds() throws Exception {
+        webhookDispatcher = new WebhookDispatcher(1, 2, 10, 100, 2, 10, 100, 5000);
+        Assertions.assertTrue(webhookDispatcher.dispatch(getCallback("/fail"), createDownloadInfo()));
+        Assertions.assertTrue(webhookDispatcher.dispatch(getCallback("/fail"), createDownloadInfo()));
+        Assertions.assertFalse(webhookDispatcher.dispatch(getCallback("/fail"), createDownloadInfo()));
+        await(() -> (int) webhookDispatcher.getStats().get("queued") == 0);
+        Assertions.assertEquals(3L, webhookDispatcher.getStats().get("dropped"));
+        Assertions.assertTrue(received.isEmpty());
+    }
+    
+    private URI getCallback(String path) {
+        return URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort() + path);
+    }
+    
+    private int countDownloadInfos(String path) throws IOException {
+        int count = 0;
+        for (String request : received) {
+            final String[] parts = request.split(" ", 2);
+            if (parts[0].equals(path)) {
+                count += new ObjectMapper().readTree(parts[1]).size();
+            }
+        }
+        return count;
+    }
+    
+    private static DownloadInfo createDownloadInfo() throws IOException {
+        return new DownloadInfo(UUID.randomUUID(), new URL("http://example.com/file.bin"), DownloadStatus.FINISHED, "file.bin", "hash");
+    }
+    
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            Assertions.assertTrue(System.currentTimeMillis() < deadline, "Timed out");
+            Thread.sleep(10);
+        }
+    }
+    
+}
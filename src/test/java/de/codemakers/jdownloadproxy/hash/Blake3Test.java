@@ -0,0 +1,65 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.hash;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class Blake3Test {
+    
+    @Test
+    public void testVectors() {
+        Assertions.assertEquals("af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262", toHex(Blake3.hash(new byte[0])));
+        Assertions.assertEquals("6437b3ac38465133ffb63b75273a8db548c558465d79db03fd359c6cd5bd9d85", toHex(Blake3.hash("abc".getBytes(StandardCharsets.US_ASCII))));
+        // Inputs of the official test vectors (byte i is i % 251)
+        Assertions.assertEquals("2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213", toHex(Blake3.hash(createData(1))));
+        Assertions.assertEquals("42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7", toHex(Blake3.hash(createData(Blake3.CHUNK_LEN))));
+    }
+    
+    @Test
+    public void testIncrementalUpdates() {
+        final byte[] data = createData(10 * Blake3.CHUNK_LEN + 7);
+        final byte[] expected = Blake3.hash(data);
+        for (int step : new int[] {1, 63, 64, 65, 1000, Blake3.CHUNK_LEN}) {
+            final Blake3 blake3 = new Blake3();
+            for (int offset = 0; offset < data.length; offset += step) {
+                blake3.update(data, offset, Math.min(step, data.length - offset));
+            }
+            Assertions.assertArrayEquals(expected, blake3.digest(), "step=" + step);
+        }
+    }
+    
+    private static byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+    
+    private static String toHex(byte[] bytes) {
+        final StringBuilder stringBuilder = new StringBuilder();
+        for (byte b : bytes) {
+            stringBuilder.append(String.format("%02x", b));
+        }
+        return stringBuilder.toString();
+    }
+    
+}
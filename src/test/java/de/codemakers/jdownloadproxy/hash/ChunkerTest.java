@@ -0,0 +1,75 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.hash;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+public class ChunkerTest {
+    
+    private static final Chunker CHUNKER = new Chunker(2 * 1024, 8 * 1024, 32 * 1024);
+    
+    @Test
+    public void testChunkSizes() {
+        final byte[] data = createData(1024 * 1024);
+        final List<byte[]> chunks = chunk(data);
+        Assertions.assertEquals(data.length, chunks.stream().mapToInt((chunk) -> chunk.length).sum());
+        for (int i = 0; i < chunks.size() - 1; i++) {
+            Assertions.assertTrue(chunks.get(i).length >= 2 * 1024 && chunks.get(i).length <= 32 * 1024, "length=" + chunks.get(i).length);
+        }
+        Assertions.assertTrue(chunks.size() > 1024 * 1024 / (32 * 1024));
+    }
+    
+    @Test
+    public void testInsertionKeepsMostChunks() {
+        final byte[] data = createData(1024 * 1024);
+        final byte[] edited = new byte[data.length + 100];
+        System.arraycopy(data, 0, edited, 0, 1000);
+        System.arraycopy(data, 1000, edited, 1100, data.length - 1000);
+        final Set<String> chunks = new HashSet<>();
+        chunk(data).forEach((chunk) -> chunks.add(Arrays.toString(chunk)));
+        final List<byte[]> editedChunks = chunk(edited);
+        final long shared = editedChunks.stream().filter((chunk) -> chunks.contains(Arrays.toString(chunk))).count();
+        Assertions.assertTrue(shared >= editedChunks.size() - 3, "shared=" + shared + ", chunks=" + editedChunks.size());
+    }
+    
+    private static List<byte[]> chunk(byte[] data) {
+        final List<byte[]> chunks = new ArrayList<>();
+        int offset = 0;
+        while (offset < data.length) {
+            final int length = CHUNKER.cut(data, offset, data.length - offset);
+            chunks.add(Arrays.copyOfRange(data, offset, offset + length));
+            offset += length;
+        }
+        return chunks;
+    }
+    
+    private static byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+    
+}
@@ -0,0 +1,91 @@
+/*
+ *    Copyright 2020 Paul Hagedorn (Panzer1119)
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ *
+ */
+
+package de.codemakers.jdownloadproxy.hash;
+
+import de.codemakers.jdownloadproxy.Util;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+public class HashEngineTest {
+    
+    @Test
+    public void testFlatMatchesStream() throws IOException {
+        for (int size : new int[] {0, 1, 1000, HashEngine.DIRECT_BUFFER_SIZE + 1, (int) HashEngine.MAPPING_THRESHOLD + 17, 3 * HashEngine.TREE_CHUNK_SIZE / 2}) {
+            final byte[] data = createData(size);
+            final File file = createFile(data);
+            try {
+                Assertions.assertArrayEquals(Util.hashStream(new ByteArrayInputStream(data)), HashEngine.hashFile(file, HashScheme.FLAT), "size=" + size);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+    
+    @Test
+    public void testTreeIsStable() throws IOException {
+        final byte[] data = createData(2 * HashEngine.TREE_CHUNK_SIZE + 5);
+        final File file = createFile(data);
+        try {
+            final byte[] hash = HashEngine.hashFile(file, HashScheme.TREE);
+            Assertions.assertNotNull(hash);
+            Assertions.assertArrayEquals(hash, HashEngine.hashFile(file, HashScheme.TREE));
+            Assertions.assertFalse(Arrays.equals(hash, HashEngine.hashFile(file, HashScheme.FLAT)));
+            data[data.length - 1]++;
+            Files.write(file.toPath(), data);
+            Assertions.assertFalse(Arrays.equals(hash, HashEngine.hashFile(file, HashScheme.TREE)));
+        } finally {
+            file.delete();
+        }
+    }
+    
+    @Test
+    public void testBlake3SubtreesMatchSequential() throws IOException {
+        for (int size : new int[] {0, 1000, HashEngine.TREE_CHUNK_SIZE, 2 * HashEngine.TREE_CHUNK_SIZE, 2 * HashEngine.TREE_CHUNK_SIZE + 5}) {
+            final byte[] data = createData(size);
+            final File file = createFile(data);
+            try {
+                final byte[] expected = Blake3.hash(data);
+                Assertions.assertArrayEquals(expected, HashEngine.hashFile(file, HashScheme.BLAKE3), "size=" + size);
+                Assertions.assertArrayEquals(expected, HashEngine.hashFile(file, HashScheme.BLAKE3, (bytes) -> {
+                }), "throttled, size=" + size);
+            } finally {
+                file.delete();
+            }
+        }
+    }
+    
+    private static byte[] createData(int size) {
+        final byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+    
+    private static File createFile(byte[] data) throws IOException {
+        final File file = File.createTempFile("hash", ".bin");
+        Files.write(file.toPath(), data);
+        return file;
+    }
+    
+}